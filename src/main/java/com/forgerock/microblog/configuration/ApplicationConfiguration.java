@@ -1,10 +1,24 @@
 package com.forgerock.microblog.configuration;
 
+import com.forgerock.microblog.exception.ServiceUnavailableException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.ViewControllerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Configures the Spring Boot application on startup
  */
@@ -12,10 +26,74 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter
 @EnableAspectJAutoProxy
 public class ApplicationConfiguration extends WebMvcConfigurerAdapter {
 
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
     @Override
     public void addViewControllers(ViewControllerRegistry registry) {
 
         registry.addViewController("/").setViewName("forward:/v2/api-docs");
     }
 
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+
+        // Ahead of Jackson so stored JSON is passed through rather than serialised as an object
+        converters.add(0, new RawJsonHttpMessageConverter());
+
+        // Binary JSON for internal service to service clients that send Accept: application/x-jackson-smile
+        converters.add(new MappingJackson2SmileHttpMessageConverter());
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+
+        configurer.setTaskExecutor(streamingExecutor())
+                .setDefaultTimeout(TimeUnit.SECONDS.toMillis(applicationProperties.getAsync().getTimeoutSeconds()));
+    }
+
+    /**
+     * Threads that write streamed responses. Bounded, unlike Spring's default of a new thread per response, so a burst
+     * of exports or slow clients can't exhaust the server. Once every thread is busy and the queue is full further
+     * streamed responses are turned away with 503.
+     */
+    @Bean
+    public AsyncTaskExecutor streamingExecutor() {
+
+        final ApplicationProperties.Async config = applicationProperties.getAsync();
+        final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor() {
+
+            @Override
+            public Future<?> submit(final Runnable task) {
+                try {
+                    return super.submit(task);
+                }
+                catch (TaskRejectedException e) {
+                    throw busy(e);
+                }
+            }
+
+            @Override
+            public <T> Future<T> submit(final Callable<T> task) {
+                try {
+                    return super.submit(task);
+                }
+                catch (TaskRejectedException e) {
+                    throw busy(e);
+                }
+            }
+        };
+        executor.setCorePoolSize(config.getStreamingThreads());
+        executor.setMaxPoolSize(config.getStreamingThreads());
+        executor.setQueueCapacity(config.getStreamingQueueCapacity());
+        executor.setThreadNamePrefix("streaming-");
+        return executor;
+    }
+
+    // Still a rejection for Spring to handle as one, with a cause that answers 503
+    private static TaskRejectedException busy(final TaskRejectedException rejected) {
+
+        return new TaskRejectedException(rejected.getMessage(),
+                new ServiceUnavailableException("Too many responses being streamed. Try again shortly."));
+    }
 }
@@ -1,8 +1,12 @@
 package com.forgerock.microblog.configuration;
 
+import org.elasticsearch.common.xcontent.XContentType;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Holds the YML properties
  */
@@ -12,6 +16,26 @@ public class ApplicationProperties {
 
     private Elasticsearch elasticsearch;
 
+    private Paging paging = new Paging();
+
+    private Export export = new Export();
+
+    private Search search = new Search();
+
+    private Partitions partitions = new Partitions();
+
+    private Cache cache = new Cache();
+
+    private Ratings ratings = new Ratings();
+
+    private WriteBehind writeBehind = new WriteBehind();
+
+    private Consistency consistency = new Consistency();
+
+    private Ids ids = new Ids();
+
+    private Async async = new Async();
+
     public Elasticsearch getElasticsearch() {
 
         return elasticsearch;
@@ -22,12 +46,669 @@ public class ApplicationProperties {
         this.elasticsearch = elasticsearch;
     }
 
+    public Paging getPaging() {
+
+        return paging;
+    }
+
+    public void setPaging(final Paging paging) {
+
+        this.paging = paging;
+    }
+
+    public Export getExport() {
+
+        return export;
+    }
+
+    public void setExport(final Export export) {
+
+        this.export = export;
+    }
+
+    public Search getSearch() {
+
+        return search;
+    }
+
+    public void setSearch(final Search search) {
+
+        this.search = search;
+    }
+
+    public Partitions getPartitions() {
+
+        return partitions;
+    }
+
+    public void setPartitions(final Partitions partitions) {
+
+        this.partitions = partitions;
+    }
+
+    public Cache getCache() {
+
+        return cache;
+    }
+
+    public void setCache(final Cache cache) {
+
+        this.cache = cache;
+    }
+
+    public Ratings getRatings() {
+
+        return ratings;
+    }
+
+    public void setRatings(final Ratings ratings) {
+
+        this.ratings = ratings;
+    }
+
+    public WriteBehind getWriteBehind() {
+
+        return writeBehind;
+    }
+
+    public void setWriteBehind(final WriteBehind writeBehind) {
+
+        this.writeBehind = writeBehind;
+    }
+
+    public Consistency getConsistency() {
+
+        return consistency;
+    }
+
+    public void setConsistency(final Consistency consistency) {
+
+        this.consistency = consistency;
+    }
+
+    public Ids getIds() {
+
+        return ids;
+    }
+
+    public void setIds(final Ids ids) {
+
+        this.ids = ids;
+    }
+
+    public Async getAsync() {
+
+        return async;
+    }
+
+    public void setAsync(final Async async) {
+
+        this.async = async;
+    }
+
+    /**
+     * Requests answered asynchronously, and the threads that write streamed responses (exports and searches)
+     */
+    public static class Async {
+
+        private int streamingThreads = 20;
+        private int streamingQueueCapacity = 50;
+        private long timeoutSeconds = 300;
+
+        /**
+         * @return Most responses streamed at once. Each holds a thread while it is written to the client.
+         */
+        public int getStreamingThreads() {
+
+            return streamingThreads;
+        }
+
+        public void setStreamingThreads(final int streamingThreads) {
+
+            this.streamingThreads = streamingThreads;
+        }
+
+        /**
+         * @return Responses waiting for a streaming thread before more are turned away with 503
+         */
+        public int getStreamingQueueCapacity() {
+
+            return streamingQueueCapacity;
+        }
+
+        public void setStreamingQueueCapacity(final int streamingQueueCapacity) {
+
+            this.streamingQueueCapacity = streamingQueueCapacity;
+        }
+
+        /**
+         * @return Longest an async request can take, including writing a streamed response
+         */
+        public long getTimeoutSeconds() {
+
+            return timeoutSeconds;
+        }
+
+        public void setTimeoutSeconds(final long timeoutSeconds) {
+
+            this.timeoutSeconds = timeoutSeconds;
+        }
+    }
+
+    /**
+     * Creating blog posts by queueing them and writing them to ES in the background
+     */
+    public static class WriteBehind {
+
+        private boolean enabled = false;
+        private int queueCapacity = 10000;
+        private int batchSize = 500;
+        private Durability durability = Durability.JOURNAL;
+        private String journalDir = "journal";
+        private long drainTimeoutSeconds = 30;
+
+        /**
+         * How safe a queued post is once it has been acknowledged
+         */
+        public enum Durability {
+            /** Only in memory. Lost if the instance stops before it is written to ES. */
+            MEMORY,
+            /** Also written to the journal on local disk, so replayed on restart after a crash of the application */
+            JOURNAL,
+            /** Written to the journal and forced to disk, so also survives the host losing power */
+            FSYNC
+        }
+
+        /**
+         * @return True to acknowledge new posts with 202 once queued, false to wait for ES and respond 201
+         */
+        public boolean isEnabled() {
+
+            return enabled;
+        }
+
+        public void setEnabled(final boolean enabled) {
+
+            this.enabled = enabled;
+        }
+
+        /**
+         * @return Most posts waiting to be written. New posts are turned away with 503 while the queue is full.
+         */
+        public int getQueueCapacity() {
+
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(final int queueCapacity) {
+
+            this.queueCapacity = queueCapacity;
+        }
+
+        /**
+         * @return Most posts written to ES in one bulk request
+         */
+        public int getBatchSize() {
+
+            return batchSize;
+        }
+
+        public void setBatchSize(final int batchSize) {
+
+            this.batchSize = batchSize;
+        }
+
+        public Durability getDurability() {
+
+            return durability;
+        }
+
+        public void setDurability(final Durability durability) {
+
+            this.durability = durability;
+        }
+
+        /**
+         * @return Directory of the journal. Each instance needs its own.
+         */
+        public String getJournalDir() {
+
+            return journalDir;
+        }
+
+        public void setJournalDir(final String journalDir) {
+
+            this.journalDir = journalDir;
+        }
+
+        /**
+         * @return Time allowed on shutdown to write the posts still queued. Journaled posts left over are written
+         * on the next start.
+         */
+        public long getDrainTimeoutSeconds() {
+
+            return drainTimeoutSeconds;
+        }
+
+        public void setDrainTimeoutSeconds(final long drainTimeoutSeconds) {
+
+            this.drainTimeoutSeconds = drainTimeoutSeconds;
+        }
+    }
+
+    /**
+     * When writes to blog posts show in reads
+     */
+    public static class Consistency {
+
+        private boolean allowImmediateRefresh = false;
+        private long sessionWindowSeconds = 5;
+        private String sessionTokenKey = "";
+
+        /**
+         * @return True to let clients ask for an immediate refresh. Otherwise they wait for the next refresh instead,
+         * so clients can't force a refresh on every write.
+         */
+        public boolean isAllowImmediateRefresh() {
+
+            return allowImmediateRefresh;
+        }
+
+        public void setAllowImmediateRefresh(final boolean allowImmediateRefresh) {
+
+            this.allowImmediateRefresh = allowImmediateRefresh;
+        }
+
+        /**
+         * @return How long after a write reads with the client's session token look it up in real time. Must be
+         * longer than the index refresh interval.
+         */
+        public long getSessionWindowSeconds() {
+
+            return sessionWindowSeconds;
+        }
+
+        public void setSessionWindowSeconds(final long sessionWindowSeconds) {
+
+            this.sessionWindowSeconds = sessionWindowSeconds;
+        }
+
+        /**
+         * @return Secret that session tokens are signed with, the same on every instance. Empty for a random key per
+         * instance, so tokens are only accepted by the instance that gave them out.
+         */
+        public String getSessionTokenKey() {
+
+            return sessionTokenKey;
+        }
+
+        public void setSessionTokenKey(final String sessionTokenKey) {
+
+            this.sessionTokenKey = sessionTokenKey;
+        }
+    }
+
+    /**
+     * Ids of new blog posts and ratings
+     */
+    public static class Ids {
+
+        public enum Generator {
+            TIME_ORDERED, UUID
+        }
+
+        private Generator generator = Generator.TIME_ORDERED;
+        private int nodeId = -1;
+
+        /**
+         * @return TIME_ORDERED for short ids that sort in the order they were created, or UUID for random UUIDs
+         */
+        public Generator getGenerator() {
+
+            return generator;
+        }
+
+        public void setGenerator(final Generator generator) {
+
+            this.generator = generator;
+        }
+
+        /**
+         * @return Unique to this instance among those writing to the same ES cluster, from 0 to 1023, for time ordered
+         * ids. -1 to derive one from the host name and process id, which may clash when there are many instances.
+         */
+        public int getNodeId() {
+
+            return nodeId;
+        }
+
+        public void setNodeId(final int nodeId) {
+
+            this.nodeId = nodeId;
+        }
+    }
+
+    /**
+     * In-memory rating counters and the summary documents they are flushed to
+     */
+    public static class Ratings {
+
+        private long flushIntervalMillis = 1000;
+        private long idleMinutes = 10;
+
+        /**
+         * @return How often counted ratings are added to the summary documents in ES
+         */
+        public long getFlushIntervalMillis() {
+
+            return flushIntervalMillis;
+        }
+
+        public void setFlushIntervalMillis(final long flushIntervalMillis) {
+
+            this.flushIntervalMillis = flushIntervalMillis;
+        }
+
+        /**
+         * @return Time without ratings after which a blog post's counters are dropped from memory
+         */
+        public long getIdleMinutes() {
+
+            return idleMinutes;
+        }
+
+        public void setIdleMinutes(final long idleMinutes) {
+
+            this.idleMinutes = idleMinutes;
+        }
+    }
+
+    /**
+     * In-process caches. Each instance has its own so entries can be up to the TTL out of date with writes made
+     * through other instances.
+     */
+    public static class Cache {
+
+        private CacheSpec posts = new CacheSpec(10000, 60);
+        private CacheSpec missingPosts = new CacheSpec(1000, 5);
+        private CacheSpec pages = new CacheSpec(20000, 5);
+        private CacheSpec topRated = new CacheSpec(5000, 30);
+        private CacheSpec idempotencyKeys = new CacheSpec(10000, 600);
+        private CacheSpec ratingSummaries = new CacheSpec(10000, 10);
+
+        /**
+         * @return Blog posts looked up by id
+         */
+        public CacheSpec getPosts() {
+
+            return posts;
+        }
+
+        public void setPosts(final CacheSpec posts) {
+
+            this.posts = posts;
+        }
+
+        /**
+         * @return Ids looked up that have no blog post. Kept briefly as a post may be created with the id.
+         */
+        public CacheSpec getMissingPosts() {
+
+            return missingPosts;
+        }
+
+        public void setMissingPosts(final CacheSpec missingPosts) {
+
+            this.missingPosts = missingPosts;
+        }
+
+        /**
+         * @return Pages of blog posts. Max size is the most posts held across all pages so memory use is bounded
+         * whatever the page sizes.
+         */
+        public CacheSpec getPages() {
+
+            return pages;
+        }
+
+        public void setPages(final CacheSpec pages) {
+
+            this.pages = pages;
+        }
+
+        /**
+         * @return Blog post rankings by rating. Max size is the most ranked posts held across all rankings. The TTL
+         * is how often a ranking is recomputed while it is being asked for.
+         */
+        public CacheSpec getTopRated() {
+
+            return topRated;
+        }
+
+        public void setTopRated(final CacheSpec topRated) {
+
+            this.topRated = topRated;
+        }
+
+        /**
+         * @return Blog posts and ratings created with an idempotency key, so retries are answered without going to
+         * ES. The TTL should cover how long clients keep retrying. Older retries are still caught by ES.
+         */
+        public CacheSpec getIdempotencyKeys() {
+
+            return idempotencyKeys;
+        }
+
+        public void setIdempotencyKeys(final CacheSpec idempotencyKeys) {
+
+            this.idempotencyKeys = idempotencyKeys;
+        }
+
+        /**
+         * @return Rating summaries read from ES, to which the ratings counted here since are added. The TTL is how
+         * soon ratings counted by other instances show.
+         */
+        public CacheSpec getRatingSummaries() {
+
+            return ratingSummaries;
+        }
+
+        public void setRatingSummaries(final CacheSpec ratingSummaries) {
+
+            this.ratingSummaries = ratingSummaries;
+        }
+    }
+
+    public static class CacheSpec {
+
+        private long maxSize;
+        private long ttlSeconds;
+
+        public CacheSpec() {
+        }
+
+        public CacheSpec(final long maxSize, final long ttlSeconds) {
+            this.maxSize = maxSize;
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        /**
+         * @return Most entries kept. Least recently used entries are evicted first. 0 disables the cache.
+         */
+        public long getMaxSize() {
+
+            return maxSize;
+        }
+
+        public void setMaxSize(final long maxSize) {
+
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @return Time after an entry is loaded that it expires
+         */
+        public long getTtlSeconds() {
+
+            return ttlSeconds;
+        }
+
+        public void setTtlSeconds(final long ttlSeconds) {
+
+            this.ttlSeconds = ttlSeconds;
+        }
+    }
+
+    /**
+     * Housekeeping of the monthly blog post indices
+     */
+    public static class Partitions {
+
+        private int readOnlyAfterMonths = 1;
+        private long maintenanceIntervalMinutes = 60;
+        private long forceMergeTimeoutMinutes = 60;
+
+        /**
+         * @return Months after its own month that a partition is force merged and made read-only. 1 keeps last month writable.
+         */
+        public int getReadOnlyAfterMonths() {
+
+            return readOnlyAfterMonths;
+        }
+
+        public void setReadOnlyAfterMonths(final int readOnlyAfterMonths) {
+
+            this.readOnlyAfterMonths = readOnlyAfterMonths;
+        }
+
+        /**
+         * @return How often partitions are listed and old ones archived
+         */
+        public long getMaintenanceIntervalMinutes() {
+
+            return maintenanceIntervalMinutes;
+        }
+
+        public void setMaintenanceIntervalMinutes(final long maintenanceIntervalMinutes) {
+
+            this.maintenanceIntervalMinutes = maintenanceIntervalMinutes;
+        }
+
+        public long getForceMergeTimeoutMinutes() {
+
+            return forceMergeTimeoutMinutes;
+        }
+
+        public void setForceMergeTimeoutMinutes(final long forceMergeTimeoutMinutes) {
+
+            this.forceMergeTimeoutMinutes = forceMergeTimeoutMinutes;
+        }
+    }
+
+    public static class Export {
+
+        private int batchSize = 1000;
+
+        /**
+         * @return Documents fetched from ES per search request
+         */
+        public int getBatchSize() {
+
+            return batchSize;
+        }
+
+        public void setBatchSize(final int batchSize) {
+
+            this.batchSize = batchSize;
+        }
+    }
+
+    public static class Paging {
+
+        private int defaultSize = 100;
+        private int maxSize = 1000;
+
+        /**
+         * @return Page size used when a client doesn't ask for one
+         */
+        public int getDefaultSize() {
+
+            return defaultSize;
+        }
+
+        public void setDefaultSize(final int defaultSize) {
+
+            this.defaultSize = defaultSize;
+        }
+
+        /**
+         * @return Largest page returned, whatever size the client asks for
+         */
+        public int getMaxSize() {
+
+            return maxSize;
+        }
+
+        public void setMaxSize(final int maxSize) {
+
+            this.maxSize = maxSize;
+        }
+    }
+
+    /**
+     * Streaming of text search results
+     */
+    public static class Search {
+
+        private int batchSize = 500;
+        private int maxResults = 10000;
+
+        /**
+         * @return Results fetched from ES per search request
+         */
+        public int getBatchSize() {
+
+            return batchSize;
+        }
+
+        public void setBatchSize(final int batchSize) {
+
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * @return Most results returned for a search
+         */
+        public int getMaxResults() {
+
+            return maxResults;
+        }
+
+        public void setMaxResults(final int maxResults) {
+
+            this.maxResults = maxResults;
+        }
+    }
+
     public static class Elasticsearch {
 
         private String host;
         private int port;
+        private List<String> nodes = new ArrayList<>();
         private String cluster;
+        private boolean sniff = false;
+        private long pingTimeoutSeconds = 5;
+        private long nodesSamplerIntervalSeconds = 5;
+        private long requestTimeoutMillis = 30000;
+        private XContentType sourceFormat = XContentType.JSON;
+        private Connections connections = new Connections();
+        private Index index = new Index();
+        private int callbackThreads = Runtime.getRuntime().availableProcessors();
+        private Bulk bulk = new Bulk();
 
+        /**
+         * @return Host used when no nodes are listed
+         */
         public String getHost() {
 
             return host;
@@ -48,6 +729,20 @@ public class ApplicationProperties {
             this.port = port;
         }
 
+        /**
+         * @return Transport addresses as host:port (port defaults to 9300), with IPv6 addresses in brackets e.g.
+         * [::1]:9300. Listing several spreads requests across them and keeps the client working when one goes down.
+         */
+        public List<String> getNodes() {
+
+            return nodes;
+        }
+
+        public void setNodes(final List<String> nodes) {
+
+            this.nodes = nodes;
+        }
+
         public String getCluster() {
 
             return cluster;
@@ -57,5 +752,296 @@ public class ApplicationProperties {
 
             this.cluster = cluster;
         }
+
+        /**
+         * @return Discover the rest of the cluster from the listed nodes and track nodes joining and leaving.
+         * Only enable when the nodes' publish addresses are reachable from this application.
+         */
+        public boolean isSniff() {
+
+            return sniff;
+        }
+
+        public void setSniff(final boolean sniff) {
+
+            this.sniff = sniff;
+        }
+
+        /**
+         * @return Time to wait for a node to answer a ping before it is dropped from the client
+         */
+        public long getPingTimeoutSeconds() {
+
+            return pingTimeoutSeconds;
+        }
+
+        public void setPingTimeoutSeconds(final long pingTimeoutSeconds) {
+
+            this.pingTimeoutSeconds = pingTimeoutSeconds;
+        }
+
+        /**
+         * @return How often the client pings nodes (and sniffs the cluster if enabled)
+         */
+        public long getNodesSamplerIntervalSeconds() {
+
+            return nodesSamplerIntervalSeconds;
+        }
+
+        public void setNodesSamplerIntervalSeconds(final long nodesSamplerIntervalSeconds) {
+
+            this.nodesSamplerIntervalSeconds = nodesSamplerIntervalSeconds;
+        }
+
+        /**
+         * @return Time allowed for a request before it fails so callers aren't held up by a slow or lost node
+         */
+        public long getRequestTimeoutMillis() {
+
+            return requestTimeoutMillis;
+        }
+
+        public void setRequestTimeoutMillis(final long requestTimeoutMillis) {
+
+            this.requestTimeoutMillis = requestTimeoutMillis;
+        }
+
+        /**
+         * @return Encoding of stored documents: JSON, SMILE or CBOR. Binary formats are smaller and cheaper to encode
+         * and decode. Documents stored in any of them can be read whatever the current setting.
+         */
+        public XContentType getSourceFormat() {
+
+            return sourceFormat;
+        }
+
+        public void setSourceFormat(final XContentType sourceFormat) {
+
+            this.sourceFormat = sourceFormat;
+        }
+
+        public Connections getConnections() {
+
+            return connections;
+        }
+
+        public void setConnections(final Connections connections) {
+
+            this.connections = connections;
+        }
+
+        public Index getIndex() {
+
+            return index;
+        }
+
+        public void setIndex(final Index index) {
+
+            this.index = index;
+        }
+
+        public int getCallbackThreads() {
+
+            return callbackThreads;
+        }
+
+        public void setCallbackThreads(final int callbackThreads) {
+
+            this.callbackThreads = callbackThreads;
+        }
+
+        public Bulk getBulk() {
+
+            return bulk;
+        }
+
+        public void setBulk(final Bulk bulk) {
+
+            this.bulk = bulk;
+        }
+    }
+
+    /**
+     * Settings for indices created by the application. Applied through index templates so only affect new indices.
+     */
+    public static class Index {
+
+        private int shards = 5;
+        private int replicas = 1;
+        private long refreshIntervalSeconds = 1;
+        private long templateRetrySeconds = 10;
+
+        public int getShards() {
+
+            return shards;
+        }
+
+        public void setShards(final int shards) {
+
+            this.shards = shards;
+        }
+
+        public int getReplicas() {
+
+            return replicas;
+        }
+
+        public void setReplicas(final int replicas) {
+
+            this.replicas = replicas;
+        }
+
+        /**
+         * @return How long before new documents are visible to searches. Longer intervals make indexing cheaper.
+         */
+        public long getRefreshIntervalSeconds() {
+
+            return refreshIntervalSeconds;
+        }
+
+        public void setRefreshIntervalSeconds(final long refreshIntervalSeconds) {
+
+            this.refreshIntervalSeconds = refreshIntervalSeconds;
+        }
+
+        /**
+         * @return Wait before trying again if templates couldn't be installed on startup (e.g. ES still starting)
+         */
+        public long getTemplateRetrySeconds() {
+
+            return templateRetrySeconds;
+        }
+
+        public void setTemplateRetrySeconds(final long templateRetrySeconds) {
+
+            this.templateRetrySeconds = templateRetrySeconds;
+        }
+    }
+
+    /**
+     * Transport connections opened to each node, by type of traffic. Defaults are the ES defaults.
+     */
+    public static class Connections {
+
+        private int recovery = 2;
+        private int bulk = 3;
+        private int reg = 6;
+        private int state = 1;
+        private int ping = 1;
+
+        public int getRecovery() {
+
+            return recovery;
+        }
+
+        public void setRecovery(final int recovery) {
+
+            this.recovery = recovery;
+        }
+
+        public int getBulk() {
+
+            return bulk;
+        }
+
+        public void setBulk(final int bulk) {
+
+            this.bulk = bulk;
+        }
+
+        /**
+         * @return Connections for regular requests such as get and search
+         */
+        public int getReg() {
+
+            return reg;
+        }
+
+        public void setReg(final int reg) {
+
+            this.reg = reg;
+        }
+
+        public int getState() {
+
+            return state;
+        }
+
+        public void setState(final int state) {
+
+            this.state = state;
+        }
+
+        public int getPing() {
+
+            return ping;
+        }
+
+        public void setPing(final int ping) {
+
+            this.ping = ping;
+        }
+    }
+
+    /**
+     * Bulk processor flushing thresholds. A bulk request is sent when any one of these is reached.
+     */
+    public static class Bulk {
+
+        private int actions = 1000;
+        private int sizeMb = 5;
+        private long flushIntervalMillis = 1000;
+        private int concurrentRequests = 1;
+        private long closeTimeoutSeconds = 30;
+
+        public int getActions() {
+
+            return actions;
+        }
+
+        public void setActions(final int actions) {
+
+            this.actions = actions;
+        }
+
+        public int getSizeMb() {
+
+            return sizeMb;
+        }
+
+        public void setSizeMb(final int sizeMb) {
+
+            this.sizeMb = sizeMb;
+        }
+
+        public long getFlushIntervalMillis() {
+
+            return flushIntervalMillis;
+        }
+
+        public void setFlushIntervalMillis(final long flushIntervalMillis) {
+
+            this.flushIntervalMillis = flushIntervalMillis;
+        }
+
+        public int getConcurrentRequests() {
+
+            return concurrentRequests;
+        }
+
+        public void setConcurrentRequests(final int concurrentRequests) {
+
+            this.concurrentRequests = concurrentRequests;
+        }
+
+        public long getCloseTimeoutSeconds() {
+
+            return closeTimeoutSeconds;
+        }
+
+        public void setCloseTimeoutSeconds(final long closeTimeoutSeconds) {
+
+            this.closeTimeoutSeconds = closeTimeoutSeconds;
+        }
     }
 }
@@ -0,0 +1,49 @@
+package com.forgerock.microblog.configuration;
+
+import com.forgerock.microblog.id.IdGenerator;
+import com.forgerock.microblog.id.RandomUuidIdGenerator;
+import com.forgerock.microblog.id.TimeOrderedIdGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Picks how ids of new documents are minted
+ */
+@Configuration
+public class IdGeneratorConfiguration {
+
+    private final static Logger LOG = LoggerFactory.getLogger(IdGeneratorConfiguration.class);
+
+    @Bean
+    public IdGenerator idGenerator(final ApplicationProperties applicationProperties) {
+
+        final ApplicationProperties.Ids config = applicationProperties.getIds();
+        if (config.getGenerator() == ApplicationProperties.Ids.Generator.UUID) {
+            LOG.info("Minting random UUID ids");
+            return new RandomUuidIdGenerator();
+        }
+        if (config.getNodeId() >= 0) {
+            LOG.info("Minting time ordered ids as node: {}", config.getNodeId());
+            return new TimeOrderedIdGenerator(config.getNodeId());
+        }
+        final int nodeId = deriveNodeId();
+        LOG.warn("Minting time ordered ids as node: {}, derived from the host name and process id as ids.nodeId is not set. "
+                + "Another instance may derive the same node and mint the same ids, which then fail to be created with 409. "
+                + "Set a different ids.nodeId on each instance when there are many.", nodeId);
+        return new TimeOrderedIdGenerator(nodeId);
+    }
+
+    /**
+     * Hash of the process id and host name. Two instances may get the same node, so set ids.nodeId when there are many.
+     */
+    private static int deriveNodeId() {
+
+        // pid@hostname on the usual JVMs
+        final String name = ManagementFactory.getRuntimeMXBean().getName();
+        return (name.hashCode() & Integer.MAX_VALUE) % (TimeOrderedIdGenerator.MAX_NODE_ID + 1);
+    }
+}
@@ -0,0 +1,72 @@
+package com.forgerock.microblog.configuration;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.forgerock.microblog.model.RawJson;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes {@link RawJson} responses straight to the response body without going through Jackson.
+ * Must come before the Jackson converters, which would otherwise serialise it as a bean.
+ * <p>
+ * Clients asking for SMILE get the JSON converted token by token, still without building model objects.
+ * </p>
+ */
+public class RawJsonHttpMessageConverter extends AbstractHttpMessageConverter<RawJson> {
+
+    static final MediaType SMILE = new MediaType("application", "x-jackson-smile");
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    // The servlet container closes the response stream
+    private static final JsonFactory SMILE_FACTORY = new SmileFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    public RawJsonHttpMessageConverter() {
+        super(MediaType.APPLICATION_JSON_UTF8, new MediaType("application", "*+json", StandardCharsets.UTF_8), SMILE);
+    }
+
+    @Override
+    protected boolean supports(final Class<?> clazz) {
+        return RawJson.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(final Class<?> clazz, final MediaType mediaType) {
+        // Only used for responses
+        return false;
+    }
+
+    @Override
+    protected RawJson readInternal(final Class<? extends RawJson> clazz, final HttpInputMessage inputMessage) throws IOException {
+        throw new HttpMessageNotReadableException("Raw JSON cannot be read from a request");
+    }
+
+    @Override
+    protected void writeInternal(final RawJson json, final HttpOutputMessage outputMessage) throws IOException {
+
+        final MediaType contentType = outputMessage.getHeaders().getContentType();
+        if (contentType == null || !SMILE.isCompatibleWith(contentType)) {
+            json.writeTo(outputMessage.getBody());
+            return;
+        }
+
+        final ByteArrayOutputStream jsonBytes = new ByteArrayOutputStream();
+        json.writeTo(jsonBytes);
+        try (JsonParser parser = JSON_FACTORY.createParser(jsonBytes.toByteArray());
+             JsonGenerator generator = SMILE_FACTORY.createGenerator(outputMessage.getBody())) {
+            while (parser.nextToken() != null) {
+                generator.copyCurrentEvent(parser);
+            }
+        }
+    }
+}
@@ -1,37 +1,104 @@
 package com.forgerock.microblog.controller;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.forgerock.microblog.dao.BlogPostDao;
+import com.forgerock.microblog.dao.BlogPostWriteQueue;
 import com.forgerock.microblog.exception.BadRequestException;
 import com.forgerock.microblog.exception.NotFoundException;
+import com.forgerock.microblog.exception.PayloadTooLargeException;
+import com.forgerock.microblog.exception.PreconditionFailedException;
 import com.forgerock.microblog.filter.BlogPostSortFilter;
+import com.forgerock.microblog.filter.SessionToken;
+import com.forgerock.microblog.filter.SessionTokenSigner;
+import com.forgerock.microblog.id.IdGenerator;
 import com.forgerock.microblog.model.BlogPost;
+import com.forgerock.microblog.model.BulkResult;
+import com.forgerock.microblog.model.MultiGetResult;
+import com.forgerock.microblog.model.RawJson;
+import com.forgerock.microblog.model.Versioned;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import org.elasticsearch.action.support.WriteRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * REST service for blog posts
+ * REST service for blog posts.
+ * Handlers return futures so servlet threads are released while Elasticsearch requests are in flight.
+ * <p>
+ * New and changed posts show in lists after the index refresh interval. A write can instead wait until it shows with
+ * an X-Refresh header. Every write also returns an X-Session-Token header; passing the latest one back on reads
+ * includes the client's own recent writes without waiting for them to show.
+ * </p>
+ * <p>
+ * Creates can be retried safely with an Idempotency-Key header: every request with the same key creates the same post.
+ * </p>
  */
 @RestController
 public class BlogPostController {
 
     private final static Logger LOG = LoggerFactory.getLogger(BlogPostController.class);
 
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    static final String REFRESH_HEADER = "X-Refresh";
+
+    static final String SESSION_TOKEN_HEADER = "X-Session-Token";
+
+    static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    // True on the response to a retried create that created nothing
+    static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+
+    // Largest bulk create taken in one request. Larger requests get 413 and should be split.
+    static final int MAX_BULK_POSTS = 1000;
+    static final long MAX_BULK_BYTES = 5L * 1024 * 1024;
+
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    // Reads a single line of a bulk request
+    private static final ObjectReader BLOG_POST_READER = new ObjectMapper()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+            .readerFor(BlogPost.class);
+
     private final BlogPostDao blogPostDao;
 
+    private final BlogPostWriteQueue blogPostWriteQueue;
+
+    private final IdGenerator idGenerator;
+
+    private final SessionTokenSigner sessionTokenSigner;
+
     @Autowired
-    public BlogPostController(BlogPostDao blogPostDao) {
+    public BlogPostController(BlogPostDao blogPostDao, BlogPostWriteQueue blogPostWriteQueue, IdGenerator idGenerator, SessionTokenSigner sessionTokenSigner) {
         this.blogPostDao = blogPostDao;
+        this.blogPostWriteQueue = blogPostWriteQueue;
+        this.idGenerator = idGenerator;
+        this.sessionTokenSigner = sessionTokenSigner;
     }
 
     /**
@@ -49,33 +116,92 @@ public class BlogPostController {
      * e.g. GET /blogposts?size=10&offset=0
      * </p>
      * <p>
-     * Note that sort, filter and paging can all be used on the same URL.
+     * Results are returned a page at a time. When there may be more results the response has an X-Next-Cursor header
+     * which fetches the next page, however deep, with the same sort and filters:
+     * e.g. GET /blogposts?size=10&cursor=WzE0OTcxOTQ0MDAwMDAsImJsb2dwb3N0IzEiXQ
+     * </p>
+     * <p>
+     * Can return only some fields of each post, e.g. for a list view:
+     * e.g. GET /blogposts?fields=id,timestamp
+     * </p>
+     * <p>
+     * Note that sort, filter, paging and fields can all be used on the same URL.
+     * </p>
+     * <p>
+     * Posts are returned as stored, without being read into blog post objects and written out again.
+     * </p>
+     * <p>
+     * The response has a weak ETag from the ids and versions of the posts on the page. Polling with it in
+     * If-None-Match gets a 304 with no body until a post on the page changes.
+     * </p>
+     * <p>
+     * With the X-Session-Token from the client's last write, the first page includes the client's recent writes even
+     * before they show in searches.
      * </p>
      *
      * @param blogPostSortFilter Filter, sort and paging values
-     * @return List of blog posts or empty list if none
+     * @param sessionToken       Token from the client's last write, if any
+     * @return Completes with JSON array of blog posts or empty array if none
      */
     @GetMapping("/blogposts")
-    public List<BlogPost> getAll(BlogPostSortFilter blogPostSortFilter) {
+    public CompletableFuture<ResponseEntity<RawJson>> getAll(BlogPostSortFilter blogPostSortFilter,
+                                                             @RequestHeader(value = SESSION_TOKEN_HEADER, required = false) final String sessionToken) {
 
-        return blogPostDao.getAll(blogPostSortFilter);
+        return blogPostDao.getRawPage(blogPostSortFilter, sessionTokenSigner.parse(sessionToken)).thenApply(page -> {
+            final ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            if (page.getVersion() != null) {
+                response.eTag(weakETag(page.getVersion()));
+            }
+            if (page.getNextCursor() != null) {
+                response.header(NEXT_CURSOR_HEADER, page.getNextCursor());
+            }
+            return response.body(RawJson.array(page.getResults()));
+        });
+    }
+
+    /**
+     * Export every blog post matching the filters as newline delimited JSON (one post per line).
+     * <p>
+     * Takes the same filters and sort as GET /blogposts but is not limited to a page of results. The response is
+     * streamed as posts are read so it can be used for very large exports:
+     * e.g. GET /blogposts/_export?userIds=user1&fromDateTime=2017-01-01T00:00:00.000Z
+     * </p>
+     *
+     * @param blogPostSortFilter Filter and sort values. Paging values are ignored.
+     * @return Completes with the streamed blog posts once the first have been read
+     */
+    @GetMapping("/blogposts/_export")
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> exportBlogPosts(BlogPostSortFilter blogPostSortFilter) {
+
+        // The first batch is read before the response is started so a failed search gets an error status
+        return blogPostDao.export(blogPostSortFilter).thenApply(posts -> ResponseEntity.ok()
+                .contentType(NDJSON)
+                .body(posts::writeTo));
     }
 
     /**
      * Get a specific BlogPost by its ID.
      * e.g. GET /blogposts/ccafed04-96a2-4a2e-9147-4453f3d309a4
+     * <p>
+     * The ETag is the version of the post. Polling with it in If-None-Match gets a 304 with no body until the post changes.
+     * </p>
      *
-     * @param id ID of the blog post (a GUID)
-     * @return A BlogPost or 401 if not found.
+     * @param id           ID of the blog post (a GUID)
+     * @param sessionToken Token from the client's last write, if any. Posts it wrote recently are read in real time.
+     * @return Completes with the JSON of the BlogPost as stored or 404 if not found.
      */
     @GetMapping("/blogposts/{id}")
-    public BlogPost getBlogPost(@PathVariable(value = "id") final String id) {
+    public CompletableFuture<ResponseEntity<RawJson>> getBlogPost(@PathVariable(value = "id") final String id,
+                                                                  @RequestHeader(value = SESSION_TOKEN_HEADER, required = false) final String sessionToken) {
         if (StringUtils.isEmpty(id == null)) {
             throw new BadRequestException("Missing id field in URL. Usage: /blogposts/{id}");
         }
 
-        final Optional<BlogPost> response = blogPostDao.getById(id);
-        return response.orElseThrow(NotFoundException::new);
+        // Spring answers a matching If-None-Match with 304 rather than writing the body
+        return blogPostDao.getRawById(id, sessionTokenSigner.parse(sessionToken)).thenApply(response -> {
+            final Versioned<RawJson> blogPost = response.orElseThrow(NotFoundException::new);
+            return ResponseEntity.ok().eTag(blogPost.getVersion()).body(blogPost.getValue());
+        });
     }
 
     /**
@@ -87,28 +213,183 @@ public class BlogPostController {
      *
      * Note that the timestamp and ID will be automatically generated.
      * The URL location of the new BlogPost will be returned in the Location header of the response.
+     * <p>
+     * With write behind enabled the post is queued and written to ES in the background, and the response is a 202
+     * once it is queued. The post can be read from its location shortly after. A full queue is a 503. X-Refresh has
+     * no effect on queued posts.
+     * </p>
+     * <p>
+     * With an Idempotency-Key header the post's id is derived from the key, so a retry after a timeout gets the same
+     * Location rather than creating a duplicate. The response to a retry has Idempotent-Replayed: true. Reusing a key
+     * for a different post is a 409. These posts are always written straight away, even with write behind enabled, as
+     * a queued post can't be checked against an earlier one with the key.
+     * </p>
      * @param blogPost New Blog Post data
-     * @return 201 if success
+     * @param refresh When the post shows in lists: false (default), wait_for or true. See {@link #toRefreshPolicy(String)}.
+     * @param sessionToken Token from the client's last write, if any
+     * @param idempotencyKey Key unique to this post chosen by the client, e.g. a UUID, or null
+     * @return Completes with 201 if success, or 202 if queued, and the client's new session token
      */
     @PostMapping("/blogposts")
-    public ResponseEntity createBlogPost(@RequestBody final BlogPost blogPost) {
+    public CompletableFuture<ResponseEntity> createBlogPost(@RequestBody final BlogPost blogPost,
+                                                            @RequestHeader(value = REFRESH_HEADER, required = false) final String refresh,
+                                                            @RequestHeader(value = SESSION_TOKEN_HEADER, required = false) final String sessionToken,
+                                                            @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) final String idempotencyKey) {
         // We will accept empty posts as they can be updated later.
+        final WriteRequest.RefreshPolicy refreshPolicy = toRefreshPolicy(refresh);
+        final SessionToken session = sessionTokenSigner.parse(sessionToken);
 
-        final String newId = UUID.randomUUID().toString();
-        final BlogPost created = blogPostDao.create(BlogPost.BlogPostBuilder
+        final String newId = idempotencyKey != null ? toIdempotentId("blogpost", idempotencyKey) : idGenerator.nextId();
+
+        // Build while still on the request thread
+        final URI location = ServletUriComponentsBuilder
+                .fromCurrentRequest().path("/{id}")
+                .buildAndExpand(newId).toUri();
+        LOG.trace("Built URI for created blogpost: {}", location);
+
+        final BlogPost newBlogPost = BlogPost.BlogPostBuilder
                 .aBlogPost()
                 .withBody(blogPost.getBody())
                 .withUserId(blogPost.getUserId())
                 .withTimestamp(new Date())
                 .withId(newId)
-                .build()
-        );
-        LOG.trace("Created blogpost: {}", created);
-        final URI location = ServletUriComponentsBuilder
-                .fromCurrentRequest().path("/{id}")
-                .buildAndExpand(created.getId()).toUri();
-        LOG.trace("Built URI for created blogpost: {}", location);
-        return ResponseEntity.created(location).build();
+                .build();
+
+        if (blogPostWriteQueue.isEnabled() && idempotencyKey == null) {
+            blogPostWriteQueue.submit(newBlogPost);
+            LOG.trace("Queued blogpost: {}", newBlogPost);
+            return CompletableFuture.completedFuture(ResponseEntity.accepted()
+                    .location(location)
+                    .header(SESSION_TOKEN_HEADER, sessionTokenSigner.encode(session.withWrite(newId, System.currentTimeMillis())))
+                    .build());
+        }
+
+        if (idempotencyKey != null) {
+            return blogPostDao.createOnce(newBlogPost, refreshPolicy).thenApply(created -> {
+                LOG.trace("Created blogpost: {}", created);
+                return ResponseEntity.created(location)
+                        .header(SESSION_TOKEN_HEADER, sessionTokenSigner.encode(session.withWrite(newId, System.currentTimeMillis())))
+                        .header(REPLAYED_HEADER, String.valueOf(created.isReplayed()))
+                        .build();
+            });
+        }
+
+        return blogPostDao.create(newBlogPost, refreshPolicy).thenApply(created -> {
+            LOG.trace("Created blogpost: {}", created);
+            return ResponseEntity.created(location)
+                    .header(SESSION_TOKEN_HEADER, sessionTokenSigner.encode(session.withWrite(newId, System.currentTimeMillis())))
+                    .build();
+        });
+    }
+
+    /**
+     * Id of a resource created with an idempotency key, the same for every retry of the create
+     *
+     * @param scope          Kind of resource, so a key used for different kinds of resource gives different ids
+     * @param idempotencyKey Key from the {@value #IDEMPOTENCY_KEY_HEADER} header
+     * @return Name based UUID of the scope and key
+     * @throws BadRequestException Key is empty or too long
+     */
+    static String toIdempotentId(final String scope, final String idempotencyKey) {
+
+        if (!StringUtils.hasText(idempotencyKey) || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            throw new BadRequestException(String.format("Invalid %s header. Must be 1 to %d characters", IDEMPOTENCY_KEY_HEADER, MAX_IDEMPOTENCY_KEY_LENGTH));
+        }
+        return UUID.nameUUIDFromBytes((scope + ':' + idempotencyKey).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Create many BlogPosts in one request.
+     * <p>
+     * POST /blogposts/_bulk  <br/>
+     * { "body": "Evil plans",  "userId": "DrEvil" }  <br/>
+     * { "body": "More evil plans",  "userId": "DrEvil" }
+     * </p>
+     *
+     * The body is newline delimited JSON with one blog post per line. As with a single create, timestamps and IDs are generated.
+     * At most {@value #MAX_BULK_POSTS} posts and {@value #MAX_BULK_BYTES} bytes are taken in one request.
+     * @param ndjson New Blog Posts, one per line
+     * @return Completes with result for each blog post in the order submitted. A failed post does not stop the others being created.
+     * @throws IOException Unable to read request body
+     * @throws PayloadTooLargeException Too many posts or bytes
+     */
+    @PostMapping("/blogposts/_bulk")
+    public CompletableFuture<BulkResult> createBlogPosts(final InputStream ndjson) throws IOException {
+
+        final List<BlogPost> blogPosts = new ArrayList<>();
+        final Date now = new Date();
+        // Reads no more than one byte past the limit, enough to tell the body is too big
+        final CountingInputStream limited = new CountingInputStream(ByteStreams.limit(ndjson, MAX_BULK_BYTES + 1));
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(limited, StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                if (limited.getCount() > MAX_BULK_BYTES) {
+                    throw new PayloadTooLargeException(String.format("Bulk request larger than %d bytes. Split it into smaller requests.", MAX_BULK_BYTES));
+                }
+                lineNumber++;
+                if (StringUtils.isEmpty(line.trim())) {
+                    continue;
+                }
+                if (blogPosts.size() == MAX_BULK_POSTS) {
+                    throw new PayloadTooLargeException(String.format("More than %d blog posts in bulk request. Split it into smaller requests.", MAX_BULK_POSTS));
+                }
+                final BlogPost blogPost;
+                try {
+                    blogPost = BLOG_POST_READER.readValue(line);
+                }
+                catch (IOException e) {
+                    throw new BadRequestException(String.format("Invalid blog post JSON on line %d", lineNumber));
+                }
+                blogPosts.add(BlogPost.BlogPostBuilder
+                        .aBlogPost()
+                        .withBody(blogPost.getBody())
+                        .withUserId(blogPost.getUserId())
+                        .withTimestamp(now)
+                        .withId(idGenerator.nextId())
+                        .build());
+            }
+        }
+        if (blogPosts.isEmpty()) {
+            throw new BadRequestException("No blog posts in request. Usage: one JSON blog post per line");
+        }
+
+        return blogPostDao.createAll(blogPosts).thenApply(result -> {
+            LOG.trace("Bulk created blogposts: {}", result);
+            return result;
+        });
+    }
+
+    /**
+     * Get many BlogPosts by ID in one request.
+     * <p>
+     * POST /blogposts/_mget  <br/>
+     * [ "ccafed04-96a2-4a2e-9147-4453f3d309a4", "38d566e9-7af0-4b77-ace4-cd35a2fea4ee" ]
+     * </p>
+     *
+     * Blog posts are returned in the order requested. IDs with no blog post are listed separately rather than failing the request.
+     * @param ids IDs of the blog posts
+     * @return Completes with the blog posts found and the IDs that were not found
+     */
+    @PostMapping("/blogposts/_mget")
+    public CompletableFuture<MultiGetResult<BlogPost>> getBlogPosts(@RequestBody final List<String> ids) {
+        if (ids.isEmpty() || ids.stream().anyMatch(StringUtils::isEmpty)) {
+            throw new BadRequestException("Missing ids. Usage: JSON array of blog post ids");
+        }
+
+        return blogPostDao.getByIds(ids).thenApply(blogPosts -> {
+            final List<BlogPost> found = new ArrayList<>();
+            final List<String> missingIds = new ArrayList<>();
+            blogPosts.forEach((id, blogPost) -> {
+                if (blogPost.isPresent()) {
+                    found.add(blogPost.get());
+                }
+                else {
+                    missingIds.add(id);
+                }
+            });
+            return new MultiGetResult<>(found, missingIds);
+        });
     }
 
     /**
@@ -117,29 +398,93 @@ public class BlogPostController {
      * PUT /blogposts/38d566e9-7af0-4b77-ace4-cd35a2fea4ee  <br/>
      * { "body": "New Evil plans" }
      * </p>
+     * <p>
+     * To stop concurrent edits overwriting each other, send the ETag from GET /blogposts/{id} in an If-Match header.
+     * The update is then only made if the post hasn't changed since, otherwise the response is 412.
+     * </p>
      *
      *
      * @param id ID for post to update. Must exist.
      * @param blogPost Updated data (only body will be updated)
-     * @return Updated blog post with HTTP 200. 404 if not found.
+     * @param ifMatch ETag of the version being updated, or absent to update whatever the version
+     * @param refresh When the change shows in lists, as for create
+     * @param sessionToken Token from the client's last write, if any
+     * @return Completes with updated blog post, its new ETag and the client's new session token with HTTP 200. 404 if
+     * not found. 412 if changed since the ETag.
      */
     @PutMapping("/blogposts/{id}")
-    public ResponseEntity<BlogPost> updateBlogPost(@PathVariable(value = "id") final String id, @RequestBody final BlogPost blogPost) {
+    public CompletableFuture<ResponseEntity<BlogPost>> updateBlogPost(@PathVariable(value = "id") final String id, @RequestBody final BlogPost blogPost,
+                                                                      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) final String ifMatch,
+                                                                      @RequestHeader(value = REFRESH_HEADER, required = false) final String refresh,
+                                                                      @RequestHeader(value = SESSION_TOKEN_HEADER, required = false) final String sessionToken) {
         if (StringUtils.isEmpty(id == null)) {
             throw new BadRequestException("Missing id field in URL. Usage: /blogposts/{id}");
         }
+        final SessionToken session = sessionTokenSigner.parse(sessionToken);
 
         // Only allow edit of post body
-        final BlogPost updated = blogPostDao.update(BlogPost.BlogPostBuilder
+        return blogPostDao.update(BlogPost.BlogPostBuilder
                 .aBlogPost()
                 .withId(id)
                 // Ignore timestamp and userId by design - we only update the text
                 // When user authentication is added we can limit updates to the user who created the BlogPost.
                 .withBody(blogPost.getBody())
-                .build()
-        );
-        LOG.trace("Updated blogpost: {}", updated);
-        return ResponseEntity.ok(updated);
+                .build(), toExpectedVersion(ifMatch), toRefreshPolicy(refresh)
+        ).thenApply(updated -> {
+            LOG.trace("Updated blogpost: {}", updated);
+            return ResponseEntity.ok()
+                    .eTag(updated.getVersion())
+                    .header(SESSION_TOKEN_HEADER, sessionTokenSigner.encode(session.withWrite(id, System.currentTimeMillis())))
+                    .body(updated.getValue());
+        });
+    }
+
+    /**
+     * Version in an If-Match header. Single posts have strong ETags so a weak or unknown ETag can never match.
+     *
+     * @return The version or null for any version (no header or *)
+     */
+    static Long toExpectedVersion(final String ifMatch) {
+
+        if (StringUtils.isEmpty(ifMatch) || ifMatch.trim().equals("*")) {
+            return null;
+        }
+        final String eTag = ifMatch.trim();
+        if (eTag.length() > 2 && eTag.startsWith("\"") && eTag.endsWith("\"")) {
+            try {
+                return Long.parseLong(eTag.substring(1, eTag.length() - 1));
+            }
+            catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+        throw new PreconditionFailedException("If-Match does not match the blog post's ETag");
+    }
+
+    /**
+     * Refresh asked for in an X-Refresh header. Takes the values of the ES refresh parameter: false (the default) to
+     * show within the refresh interval, wait_for to respond once the write shows or true to refresh straight away.
+     * The policy names NONE, WAIT_UNTIL and IMMEDIATE are accepted too.
+     *
+     * @return The refresh policy, NONE if no header
+     */
+    static WriteRequest.RefreshPolicy toRefreshPolicy(final String refresh) {
+
+        if (StringUtils.isEmpty(refresh)) {
+            return WriteRequest.RefreshPolicy.NONE;
+        }
+        final String value = refresh.trim();
+        for (WriteRequest.RefreshPolicy refreshPolicy : WriteRequest.RefreshPolicy.values()) {
+            if (refreshPolicy.name().equalsIgnoreCase(value)) {
+                return refreshPolicy;
+            }
+        }
+        try {
+            return WriteRequest.RefreshPolicy.parse(value);
+        }
+        catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid X-Refresh. Must be false, wait_for or true");
+        }
     }
 
     /**
@@ -147,33 +492,55 @@ public class BlogPostController {
      * e.g. DELETE /blogposts/38d566e9-7af0-4b77-ace4-cd35a2fea4ee
      *
      * @param id Id of BlogPost
-     * @return HTTP 204
+     * @param refresh When the post stops showing in lists, as for create
+     * @param sessionToken Token from the client's last write, if any
+     * @return Completes with HTTP 204 and the client's new session token
      */
     @DeleteMapping("/blogposts/{id}")
-    public ResponseEntity<BlogPost> deleteBlogPost(@PathVariable(value = "id") final String id) {
+    public CompletableFuture<ResponseEntity<BlogPost>> deleteBlogPost(@PathVariable(value = "id") final String id,
+                                                                      @RequestHeader(value = REFRESH_HEADER, required = false) final String refresh,
+                                                                      @RequestHeader(value = SESSION_TOKEN_HEADER, required = false) final String sessionToken) {
         if (StringUtils.isEmpty(id == null)) {
             throw new BadRequestException("Missing id field in URL. Usage: /blogposts/{id}");
         }
-        blogPostDao.delete(id);
-        return ResponseEntity.noContent().build();
+        final SessionToken session = sessionTokenSigner.parse(sessionToken);
+        return blogPostDao.delete(id, toRefreshPolicy(refresh)).thenApply(deleted -> ResponseEntity.noContent()
+                .header(SESSION_TOKEN_HEADER, sessionTokenSigner.encode(session.withWrite(id, System.currentTimeMillis())))
+                .<BlogPost>build());
     }
 
     /**
      * Search for a single text term (whole word match)
      * <p>
      * Usage:  /search?searchTerm={my_term}
+     * <p>
+     * Only return some fields of each post:  /search?searchTerm={my_term}&fields=id,timestamp
+     * <p>
+     * Best matches come first. The JSON array is streamed as results are read so the first results are sent before
+     * the last have been found.
      *
      * @param searchTerm Single search term
-     * @return Results
+     * @param fields     Fields to return for each post. All fields if not given.
+     * @return Completes with the streamed JSON array of the matching posts as stored once the first have been read
      */
     @GetMapping("/search")
-    public List<BlogPost> searchOrders(@RequestParam("searchTerm") final String searchTerm) {
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> searchOrders(@RequestParam("searchTerm") final String searchTerm,
+                                                                                 @RequestParam(value = "fields", required = false) final List<String> fields) {
         // No point searching with empty string
         if (StringUtils.isEmpty(searchTerm)) {
             throw new BadRequestException("Empty search term");
         }
 
-        // Do search
-        return blogPostDao.search(searchTerm);
+        // Do search. The first batch is read before the response is started so a failed search gets an error status.
+        return blogPostDao.streamSearch(searchTerm, fields).thenApply(results -> ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .body(results::writeTo));
+    }
+
+    /**
+     * Weak ETag for a list, which is equivalent rather than byte for byte identical when the version is unchanged
+     */
+    static String weakETag(final String version) {
+        return "W/\"" + version + "\"";
     }
 }
@@ -2,9 +2,13 @@ package com.forgerock.microblog.controller;
 
 import com.forgerock.microblog.dao.BlogPostDao;
 import com.forgerock.microblog.dao.BlogPostRatingDao;
+import com.forgerock.microblog.dao.RatingCounters;
 import com.forgerock.microblog.exception.BadRequestException;
-import com.forgerock.microblog.model.BlogPost;
+import com.forgerock.microblog.filter.TopRatedFilter;
+import com.forgerock.microblog.id.IdGenerator;
 import com.forgerock.microblog.model.BlogPostRating;
+import com.forgerock.microblog.model.RatedBlogPost;
+import com.forgerock.microblog.model.RatingSummary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,9 +18,12 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
-import java.util.Optional;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 /**
  * REST service for blog post ratings
@@ -32,27 +39,114 @@ public class BlogPostRatingController {
 
     private final BlogPostRatingDao blogPostRatingDao;
 
+    private final RatingCounters ratingCounters;
+
+    private final IdGenerator idGenerator;
+
     @Autowired
-    public BlogPostRatingController(BlogPostDao blogPostDao, BlogPostRatingDao blogPostRatingDao) {
+    public BlogPostRatingController(BlogPostDao blogPostDao, BlogPostRatingDao blogPostRatingDao, RatingCounters ratingCounters, IdGenerator idGenerator) {
 
         this.blogPostDao = blogPostDao;
         this.blogPostRatingDao = blogPostRatingDao;
+        this.ratingCounters = ratingCounters;
+        this.idGenerator = idGenerator;
     }
 
     /**
      * Get all the ratings for a specific BlogPost.
      * e.g. GET /blogposts/38d566e9-7af0-4b77-ace4-cd35a2fea4ee/ratings
      *
+     * <p>
+     * The response has a weak ETag from the ids and versions of the ratings. Polling with it in If-None-Match gets
+     * a 304 with no body until a rating is added.
+     * </p>
+     *
      * @param id Blog Post Id
-     * @return List of ratings and who made them.
+     * @return Completes with list of ratings and who made them.
      */
     @GetMapping(REST_URL)
-    public List<BlogPostRating> getAllRatingsForBlogPost(@PathVariable(value = "id") final String id) {
+    public CompletableFuture<ResponseEntity<List<BlogPostRating>>> getAllRatingsForBlogPost(@PathVariable(value = "id") final String id) {
 
         if (StringUtils.isEmpty(id == null)) {
             throw new BadRequestException("Missing id field in URL. Usage: " + REST_URL);
         }
-        return blogPostRatingDao.getAllByParentId(id);
+        return blogPostRatingDao.getVersionedByParentId(id).thenApply(ratings -> ResponseEntity.ok()
+                .eTag(BlogPostController.weakETag(ratings.getVersion()))
+                .body(ratings.getValue()));
+    }
+
+    /**
+     * Get the number of ratings for a BlogPost, their average, lowest and highest and how many there are of each score.
+     * Served from counters kept in memory so it costs the same however many ratings there are. Ratings counted by
+     * other instances show up within the cache TTL ({@code cache.ratingSummaries.ttlSeconds}).
+     * e.g. GET /blogposts/38d566e9-7af0-4b77-ace4-cd35a2fea4ee/ratings/summary
+     *
+     * @param id Blog Post Id
+     * @return Completes with the summary. Count is 0 if there are no ratings.
+     */
+    @GetMapping(REST_URL + "/summary")
+    public CompletableFuture<RatingSummary> getRatingSummaryForBlogPost(@PathVariable(value = "id") final String id) {
+
+        return ratingCounters.getSummary(id);
+    }
+
+    /**
+     * Get the rating summaries for many BlogPosts in one request.
+     * <p>
+     * POST /blogposts/ratings/_summary  <br/>
+     * [ "ccafed04-96a2-4a2e-9147-4453f3d309a4", "38d566e9-7af0-4b77-ace4-cd35a2fea4ee" ]
+     * </p>
+     *
+     * @param ids Blog Post Ids
+     * @return Completes with a summary for each blog post in the order requested
+     */
+    @PostMapping("/blogposts/ratings/_summary")
+    public CompletableFuture<List<RatingSummary>> getRatingSummaries(@RequestBody final List<String> ids) {
+        if (ids.isEmpty() || ids.stream().anyMatch(StringUtils::isEmpty)) {
+            throw new BadRequestException("Missing ids. Usage: JSON array of blog post ids");
+        }
+
+        return ratingCounters.getSummaries(ids).thenApply(summaries -> new ArrayList<>(summaries.values()));
+    }
+
+    /**
+     * Get the top BlogPosts by average rating or number of ratings, each with the summary of its ratings.
+     * e.g. GET /blogposts/top?by=avgRating&window=24h&size=50
+     * <p>
+     * The ranking is computed by Elasticsearch and the posts are then fetched in one request, rather than fetching
+     * the ratings of every post. Rankings are cached for a short time ({@code cache.topRated.ttlSeconds}) so new
+     * ratings take up to that long to show.
+     * </p>
+     *
+     * @param by       avgRating (default) or ratingCount
+     * @param window   Only count ratings made in this period before now e.g. 90m, 24h, 7d. All ratings if not set.
+     * @param size     Number of blog posts
+     * @param minCount Fewest ratings in the window a post needs to be ranked. Stops one 5 topping the average ranking.
+     * @return Completes with the blog posts, highest ranked first. Posts deleted since they were rated are left out.
+     */
+    @GetMapping("/blogposts/top")
+    public CompletableFuture<List<RatedBlogPost>> getTopRatedBlogPosts(@RequestParam(value = "by", required = false, defaultValue = "avgRating") final String by,
+                                                                       @RequestParam(value = "window", required = false) final String window,
+                                                                       @RequestParam(value = "size", required = false) final Integer size,
+                                                                       @RequestParam(value = "minCount", required = false, defaultValue = "1") final long minCount) {
+
+        final TopRatedFilter filter = TopRatedFilter.TopRatedFilterBuilder.aTopRatedFilter()
+                .withBy(TopRatedFilter.RankBy.parse(by))
+                .withWindow(TopRatedFilter.parseWindow(window))
+                .withSize(size)
+                .withMinCount(minCount)
+                .build();
+
+        return blogPostRatingDao.getTopRated(filter).thenCompose(ranking -> {
+            if (ranking.isEmpty()) {
+                return CompletableFuture.completedFuture(Collections.<RatedBlogPost>emptyList());
+            }
+            final List<String> ids = ranking.stream().map(RatingSummary::getBlogPostId).collect(Collectors.toList());
+            return blogPostDao.getByIds(ids).thenApply(blogPosts -> ranking.stream()
+                    .filter(summary -> blogPosts.get(summary.getBlogPostId()).isPresent())
+                    .map(summary -> new RatedBlogPost(blogPosts.get(summary.getBlogPostId()).get(), summary))
+                    .collect(Collectors.toList()));
+        });
     }
 
     /**
@@ -63,12 +157,18 @@ public class BlogPostRatingController {
      * {"rating": 4, "userId": "blofeld"}
      * </p>
      *
+     * <p>
+     * As when creating a blog post, an Idempotency-Key header makes retries safe. A retry is not counted again.
+     * </p>
+     *
      * @param blogPostRating A rating from 1 to 5.
      * @param blogPostId     A Blog Post Id
-     * @return 201 if successfully created. 404 if Blog Post not found.
+     * @param idempotencyKey Key unique to this rating chosen by the client, e.g. a UUID, or null
+     * @return Completes with 201 if successfully created. 404 if Blog Post not found. 409 if the key was used for a different rating.
      */
     @PostMapping(REST_URL)
-    public ResponseEntity submitRatingForBlogPost(@RequestBody final BlogPostRating blogPostRating, @PathVariable(value = "id") String blogPostId) {
+    public CompletableFuture<ResponseEntity> submitRatingForBlogPost(@RequestBody final BlogPostRating blogPostRating, @PathVariable(value = "id") String blogPostId,
+                                                                     @RequestHeader(value = BlogPostController.IDEMPOTENCY_KEY_HEADER, required = false) final String idempotencyKey) {
 
         if (blogPostRating.getRating() > BlogPostRating.MAX_RATING || blogPostRating.getRating() < BlogPostRating.MIN_RATING) {
             // Note: Could use JSR-303 bean validation if more complex objects and validation were required but keeping it simple for now.
@@ -78,27 +178,49 @@ public class BlogPostRatingController {
             throw new BadRequestException("Missing id field in URL. Usage: " + REST_URL);
         }
 
-        // If BLog Post Id does  not match an existing blog post then return 404.
-        Optional<BlogPost> blogPost = blogPostDao.getById(blogPostId);
-        if (!blogPost.isPresent()) {
-            ResponseEntity.notFound();
-        }
+        // Scoped to the blog post so a key reused across posts is a different rating
+        final String newId = idempotencyKey != null
+                ? BlogPostController.toIdempotentId("blogpost/" + blogPostId + "/rating", idempotencyKey)
+                : idGenerator.nextId();
 
-        // Add rating
-        final String newId = UUID.randomUUID().toString();
-        final BlogPostRating created = blogPostRatingDao.addToParentResource(BlogPostRating.BlogPostRatingBuilder
-                .aBlogPostRating()
-                .withRating(blogPostRating.getRating())
-                .withId(newId)
-                .withBlogPostId(blogPostId) // Take from URL in preference to what is in body
-                .withUserId(blogPostRating.getUserId())
-                .build()
-        );
-        LOG.trace("Created blog post rating: {}", created);
+        // Build while still on the request thread
         final URI location = ServletUriComponentsBuilder
                 .fromCurrentRequest().path("/{ratingId}")
-                .buildAndExpand(created.getId(), created.getId()).toUri();
+                .buildAndExpand(blogPostId, newId).toUri();
         LOG.trace("Built URI for created blog post rating: {}", location);
-        return ResponseEntity.created(location).build();
+
+        // If BLog Post Id does  not match an existing blog post then return 404.
+        return blogPostDao.getById(blogPostId).<ResponseEntity>thenCompose(blogPost -> {
+            if (!blogPost.isPresent()) {
+                return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+            }
+
+            final BlogPostRating newRating = BlogPostRating.BlogPostRatingBuilder
+                    .aBlogPostRating()
+                    .withRating(blogPostRating.getRating())
+                    .withId(newId)
+                    .withBlogPostId(blogPostId) // Take from URL in preference to what is in body
+                    .withUserId(blogPostRating.getUserId())
+                    .withTimestamp(new Date())
+                    .build();
+
+            // Add rating
+            if (idempotencyKey != null) {
+                return blogPostRatingDao.addToParentResourceOnce(newRating).thenApply(created -> {
+                    LOG.trace("Created blog post rating: {}", created);
+                    if (!created.isReplayed()) {
+                        ratingCounters.record(blogPostId, blogPostRating.getRating());
+                    }
+                    return ResponseEntity.created(location)
+                            .header(BlogPostController.REPLAYED_HEADER, String.valueOf(created.isReplayed()))
+                            .build();
+                });
+            }
+            return blogPostRatingDao.addToParentResource(newRating).thenApply(created -> {
+                LOG.trace("Created blog post rating: {}", created);
+                ratingCounters.record(blogPostId, blogPostRating.getRating());
+                return ResponseEntity.created(location).build();
+            });
+        });
     }
 }
@@ -0,0 +1,48 @@
+package com.forgerock.microblog.dao;
+
+import com.forgerock.microblog.es.DocumentCache;
+import com.google.common.cache.CacheStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Publishes the blog post cache statistics on the actuator metrics endpoint
+ */
+@Component
+public class BlogPostCacheMetrics implements PublicMetrics {
+
+    private static final String PREFIX = "cache.blogposts";
+
+    @Autowired
+    private BlogPostDao blogPostDao;
+
+    @Autowired
+    private BlogPostRatingDao blogPostRatingDao;
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+
+        final DocumentCache<?> cache = blogPostDao.getCache();
+        final List<Metric<?>> metrics = new ArrayList<>();
+        addMetrics(metrics, PREFIX, cache.size(), cache.stats());
+        addMetrics(metrics, PREFIX + ".missing", cache.missingSize(), cache.missingStats());
+        addMetrics(metrics, PREFIX + ".pages", blogPostDao.getPageCache().size(), blogPostDao.getPageCache().stats());
+        addMetrics(metrics, PREFIX + ".toprated", blogPostRatingDao.getTopRatedCache().size(), blogPostRatingDao.getTopRatedCache().stats());
+        return metrics;
+    }
+
+    private static void addMetrics(final List<Metric<?>> metrics, final String prefix, final long size, final CacheStats stats) {
+
+        metrics.add(new Metric<>(prefix + ".size", size));
+        metrics.add(new Metric<>(prefix + ".hits", stats.hitCount()));
+        metrics.add(new Metric<>(prefix + ".misses", stats.missCount()));
+        metrics.add(new Metric<>(prefix + ".evictions", stats.evictionCount()));
+        metrics.add(new Metric<>(prefix + ".hit.ratio", stats.hitRate()));
+    }
+}
@@ -1,25 +1,79 @@
 package com.forgerock.microblog.dao;
 
+import com.forgerock.microblog.configuration.ApplicationProperties;
 import com.forgerock.microblog.es.AbstractElasticsearchDao;
+import com.forgerock.microblog.es.DocumentCache;
+import com.forgerock.microblog.es.MonthlyPartitions;
+import com.forgerock.microblog.es.ResultCache;
+import com.forgerock.microblog.es.SearchQuery;
+import com.forgerock.microblog.es.SourceCodec;
+import com.forgerock.microblog.exception.BadRequestException;
+import com.forgerock.microblog.exception.ConflictException;
 import com.forgerock.microblog.exception.NotFoundException;
+import com.forgerock.microblog.exception.PreconditionFailedException;
 import com.forgerock.microblog.filter.BlogPostSortFilter;
+import com.forgerock.microblog.filter.PageCursor;
+import com.forgerock.microblog.filter.SessionToken;
 import com.forgerock.microblog.filter.SortColumn;
+import com.forgerock.microblog.id.TimeOrderedIdGenerator;
 import com.forgerock.microblog.model.BlogPost;
+import com.forgerock.microblog.model.BulkResult;
+import com.forgerock.microblog.model.Created;
+import com.forgerock.microblog.model.RawJson;
+import com.forgerock.microblog.model.ResultPage;
+import com.forgerock.microblog.model.ResultWriter;
+import com.forgerock.microblog.model.Versioned;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.RangeQueryBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.ScoreSortBuilder;
 import org.elasticsearch.search.sort.SortBuilder;
 import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
@@ -27,6 +81,8 @@ import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
 @Component
 public class BlogPostDao extends AbstractElasticsearchDao implements ICrudDao<BlogPost, BlogPostSortFilter>, ITextSearchDao<BlogPost> {
 
+    private final static Logger LOG = LoggerFactory.getLogger(BlogPostDao.class);
+
     // Search field - Search 'body' and 'userId' fields with equal weightings - could be extended as required.
     private static final Map<String, Float> SEARCH_FIELDS = new HashMap<>();
 
@@ -35,77 +91,880 @@ public class BlogPostDao extends AbstractElasticsearchDao implements ICrudDao<Bl
         SEARCH_FIELDS.put("userId", 1.0F);
     }
 
+    private static final String TIMESTAMP_FIELD = "timestamp";
+
+    // Fields that can be requested with the fields parameter
+    private static final Set<String> SOURCE_FIELDS = new LinkedHashSet<>(Arrays.asList("id", TIMESTAMP_FIELD, "body", "userId"));
+
+    // Matches the ISO dates written for the model
+    private static final String DATE_FORMAT = "strict_date_optional_time||epoch_millis";
+
+    // Unique per document so it can break ties between results with equal sort values. Sorts on doc values, unlike
+    // _uid which has to be loaded onto the heap, and ids minted in time order keep it in creation order too.
+    private static final String TIEBREAKER_FIELD = "id";
+
+    // Fields a post looked up in real time can be placed among search results by
+    private static final Set<String> OVERLAY_SORT_FIELDS = new HashSet<>(Arrays.asList("id", TIMESTAMP_FIELD, "userId"));
+
+    // Posts are written to a partition per month. Reads go through this alias which covers every partition.
+    private static final String INDEX_ALIAS = "microblog-blogpost";
+
+    private static final String WRITE_BLOCK_KEY = "index.blocks.write";
+
+    // Furthest a post's timestamp can be from the time in its id. The timestamp is taken just after the id is minted,
+    // but ids run ahead of the clock if it goes back.
+    private static final Duration ID_TIME_SLACK = Duration.ofHours(1);
+
+    private static final SourceCodec<BlogPost> CODEC = new SourceCodec<>(BlogPost.class);
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    private final MonthlyPartitions partitions = new MonthlyPartitions(INDEX_ALIAS);
+
+    // Created on first use as it is sized from the properties
+    private final Supplier<DocumentCache<GetResponse>> cache = Suppliers.memoize(() -> new DocumentCache<>(
+            applicationProperties.getCache().getPosts(), applicationProperties.getCache().getMissingPosts()));
+
+    // Stored sources of each page, weighed by the number of posts on them
+    private final Supplier<ResultCache<BlogPostPageKey, ResultPage<BytesReference>>> pageCache = Suppliers.memoize(() -> new ResultCache<>(
+            applicationProperties.getCache().getPages(), page -> page.getResults().size() + 1));
+
+    // Posts created with an idempotency key, by id, so a retry is answered without going to ES
+    private final Supplier<ResultCache<String, Created<BlogPost>>> createdCache = Suppliers.memoize(() -> new ResultCache<>(
+            applicationProperties.getCache().getIdempotencyKeys(), created -> 1));
+
+    // Lists partitions and archives old ones in the background
+    private ScheduledExecutorService maintenanceScheduler;
+
+    @PostConstruct
+    public void init() {
+
+        final long interval = applicationProperties.getPartitions().getMaintenanceIntervalMinutes();
+        maintenanceScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("blogpost-partitions-%d").setDaemon(true).build());
+        maintenanceScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                maintainPartitions().join();
+            }
+            catch (RuntimeException e) {
+                LOG.warn("Unable to maintain blog post partitions. Will try again in {} minutes", interval, e);
+            }
+        }, 0, interval, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        maintenanceScheduler.shutdownNow();
+    }
+
+    /**
+     * Refresh the list of partitions, then force merge and make read-only any partition old enough that it should no
+     * longer be written to. Merged read-only partitions are smaller and cheaper to search and can be cached by ES.
+     *
+     * @return Completes when all partitions due have been archived
+     */
+    CompletableFuture<Void> maintainPartitions() {
+
+        final ApplicationProperties.Partitions config = applicationProperties.getPartitions();
+        final YearMonth oldestWritable = YearMonth.now(ZoneOffset.UTC).minusMonths(config.getReadOnlyAfterMonths());
+
+        return getClient().getIndexSettings(INDEX_ALIAS).thenCompose(settingsByIndex -> {
+            partitions.setKnown(settingsByIndex.keySet());
+
+            // One at a time as merging is heavy work for the cluster
+            CompletableFuture<Void> archived = CompletableFuture.completedFuture(null);
+            for (Map.Entry<String, Settings> partition : settingsByIndex.entrySet()) {
+                final boolean old = partitions.monthOf(partition.getKey()).map(month -> month.isBefore(oldestWritable)).orElse(false);
+                if (old && !partition.getValue().getAsBoolean(WRITE_BLOCK_KEY, false)) {
+                    archived = archived.thenCompose(previous -> archive(partition.getKey(), TimeValue.timeValueMinutes(config.getForceMergeTimeoutMinutes())));
+                }
+            }
+            return archived;
+        });
+    }
+
+    private CompletableFuture<Void> archive(final String partition, final TimeValue forceMergeTimeout) {
+
+        LOG.info("Archiving blog post partition: {}", partition);
+        return getClient().forceMerge(partition, 1, forceMergeTimeout)
+                .thenCompose(merged -> getClient().updateIndexSettings(partition, Settings.builder().put(WRITE_BLOCK_KEY, true).build()));
+    }
+
+    /**
+     * @return Every partition a post could be in, listing them from ES the first time
+     */
+    private CompletableFuture<List<String>> readPartitions() {
+
+        if (partitions.isKnown()) {
+            return CompletableFuture.completedFuture(partitions.all());
+        }
+        return getClient().getIndexSettings(INDEX_ALIAS).thenApply(settingsByIndex -> {
+            partitions.setKnown(settingsByIndex.keySet());
+            return partitions.all();
+        });
+    }
+
+    /**
+     * @return Cache of lookups by id, for its statistics
+     */
+    DocumentCache<GetResponse> getCache() {
+        return cache.get();
+    }
+
+    /**
+     * @return Cache of pages, for its statistics
+     */
+    ResultCache<BlogPostPageKey, ResultPage<BytesReference>> getPageCache() {
+        return pageCache.get();
+    }
+
+    /**
+     * Lookup of a post in whichever partition it is in. Cached, and the cache is invalidated by writes through this
+     * instance so they are seen straight away.
+     */
+    private CompletableFuture<Optional<GetResponse>> findById(final String id) {
+
+        return cache.get().get(id, this::lookUp);
+    }
+
+    /**
+     * Real time lookup of a post in whichever partition it is in
+     */
+    private CompletableFuture<Optional<GetResponse>> lookUp(final String id) {
+
+        return multiGet(Collections.singletonList(id)).thenApply(responses -> responses.get(0));
+    }
+
+    /**
+     * Real time lookup of posts, each only in the partitions it can be in. A time ordered id gives the month the post
+     * was written in, give or take the slack. Other ids (random or from an idempotency key) are looked for in every
+     * partition. Ids that can be in the same partitions are looked up together, so recent posts take one request.
+     *
+     * @param ids Unique ids
+     * @return Completes with a response for each id in the same order, or empty if not found
+     */
+    private CompletableFuture<List<Optional<GetResponse>>> multiGet(final Collection<String> ids) {
+
+        return readPartitions().thenCompose(all -> {
+            final Map<List<String>, List<String>> idsByPartitions = new LinkedHashMap<>();
+            for (String id : ids) {
+                final List<String> indices = TimeOrderedIdGenerator.mintedAt(id).map(minted -> partitions.around(minted, ID_TIME_SLACK)).orElse(all);
+                idsByPartitions.computeIfAbsent(indices, key -> new ArrayList<>()).add(id);
+            }
+
+            final List<CompletableFuture<Map<String, GetResponse>>> lookups = new ArrayList<>();
+            idsByPartitions.forEach((indices, group) -> {
+                // No partition for the month, so the post can't exist
+                if (!indices.isEmpty()) {
+                    lookups.add(getClient().multiGet(indices, getType(), group).thenApply(responses -> {
+                        final Map<String, GetResponse> found = new HashMap<>();
+                        for (int i = 0; i < group.size(); i++) {
+                            final String id = group.get(i);
+                            responses.get(i).ifPresent(response -> found.put(id, response));
+                        }
+                        return found;
+                    }));
+                }
+            });
+
+            return CompletableFuture.allOf(lookups.toArray(new CompletableFuture[lookups.size()])).thenApply(allDone -> {
+                final Map<String, GetResponse> found = new HashMap<>();
+                lookups.forEach(lookup -> found.putAll(lookup.join()));
+                return ids.stream().map(id -> Optional.ofNullable(found.get(id))).collect(Collectors.toList());
+            });
+        });
+    }
+
     @Override
-    public Optional<BlogPost> getById(final String id) {
+    public CompletableFuture<Optional<BlogPost>> getById(final String id) {
+        Preconditions.checkNotNull(id, "id cannot be null");
+
+        return findById(id).thenApply(this::toBlogPost);
+    }
+
+    /**
+     * As {@link #getById(String)} but returns the stored source without building a blog post from it
+     *
+     * @param id ID of the blog post
+     * @return Completes with the JSON of the blog post and its document version or empty if not found
+     */
+    public CompletableFuture<Optional<Versioned<RawJson>>> getRawById(final String id) {
+
+        return getRawById(id, SessionToken.empty());
+    }
+
+    /**
+     * As {@link #getRawById(String)} but looks the post up in real time if the session wrote it recently, as the
+     * cached lookup may be from before the write if it was made through another instance
+     *
+     * @param id      ID of the blog post
+     * @param session Recent writes of the client
+     * @return Completes with the JSON of the blog post and its document version or empty if not found
+     */
+    public CompletableFuture<Optional<Versioned<RawJson>>> getRawById(final String id, final SessionToken session) {
         Preconditions.checkNotNull(id, "id cannot be null");
+        Preconditions.checkNotNull(session, "session cannot be null");
+
+        final CompletableFuture<Optional<GetResponse>> lookup = getWrittenRecently(session).contains(id)
+                ? lookUp(id).whenComplete((resp, failure) -> cache.get().invalidate(id))
+                : findById(id);
+        return lookup.thenApply(resp -> resp
+                .filter(found -> found.getSourceAsBytesRef() != null)
+                .map(found -> new Versioned<>(toRawJson(found.getSourceAsBytesRef()), String.valueOf(found.getVersion()))));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Optional<BlogPost>>> getByIds(final Collection<String> ids) {
+        Preconditions.checkNotNull(ids, "ids cannot be null");
+
+        final List<String> uniqueIds = new ArrayList<>(new LinkedHashSet<>(ids));
+        return multiGet(uniqueIds).thenApply(responses -> {
+            final Map<String, Optional<BlogPost>> blogPosts = new LinkedHashMap<>();
+            for (int i = 0; i < uniqueIds.size(); i++) {
+                blogPosts.put(uniqueIds.get(i), toBlogPost(responses.get(i)));
+            }
+            return blogPosts;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<BlogPost>> getAll(final BlogPostSortFilter sortFilter) {
+
+        return getPage(sortFilter).thenApply(ResultPage::getResults);
+    }
+
+    @Override
+    public CompletableFuture<ResultPage<BlogPost>> getPage(final BlogPostSortFilter sortFilter) {
 
-        Optional<GetResponse> resp = getClient().getById(getIndex(), getType(), id);
-        if (!resp.isPresent() || StringUtils.isEmpty(resp.get().getSourceAsString())) {
-            return Optional.empty();
+        return getPage(sortFilter, CODEC::decode);
+    }
+
+    /**
+     * As {@link #getPage(BlogPostSortFilter)} but returns the stored source of each post without building blog posts
+     *
+     * @param sortFilter Filter, sort and paging values
+     * @return Completes with the JSON of each post on the page
+     */
+    public CompletableFuture<ResultPage<RawJson>> getRawPage(final BlogPostSortFilter sortFilter) {
+
+        return getPage(sortFilter, AbstractElasticsearchDao::toRawJson);
+    }
+
+    /**
+     * As {@link #getRawPage(BlogPostSortFilter)} but including the posts the session wrote too recently to show in
+     * searches. They are looked up in real time and placed on the first page where they sort, or left off it if
+     * deleted or no longer matching the filters. Later pages only skip the cache, as placing a post on them would
+     * shift the pages before.
+     * <p>
+     * Pages including real time lookups have no version, so no ETag.
+     * </p>
+     *
+     * @param sortFilter Filter, sort and paging values
+     * @param session    Recent writes of the client
+     * @return Completes with the JSON of each post on the page
+     */
+    public CompletableFuture<ResultPage<RawJson>> getRawPage(final BlogPostSortFilter sortFilter, final SessionToken session) {
+        Preconditions.checkNotNull(sortFilter, "sortFilter cannot be null");
+        Preconditions.checkNotNull(session, "session cannot be null");
+
+        final Set<String> written = getWrittenRecently(session);
+        if (written.isEmpty()) {
+            return getRawPage(sortFilter);
         }
-        else {
-            return Optional.of(GSON.fromJson(resp.get().getSourceAsString(), BlogPost.class));
+
+        final List<String> indices = getPartitions(sortFilter);
+        if (indices.isEmpty()) {
+            return CompletableFuture.completedFuture(new ResultPage<>(Collections.emptyList(), null));
+        }
+
+        final int size = getPageSize(sortFilter);
+        final List<SortColumn> sortColumns = getSortColumns(sortFilter);
+        final CompletableFuture<Optional<SearchResponse>> search = getClient().getAll(indices, getType(), aPageQuery(sortFilter, size, sortColumns));
+
+        final boolean firstPage = StringUtils.isEmpty(sortFilter.getCursor()) && (sortFilter.getOffset() == null || sortFilter.getOffset() == 0);
+        final boolean placeable = sortColumns.stream().allMatch(column -> OVERLAY_SORT_FIELDS.contains(column.getColumn()));
+        if (!firstPage || !placeable || size == 0) {
+            return search.thenApply(resp -> toPage(resp, size)).thenApply(page -> toRawPage(page, page.getVersion()));
         }
+
+        final BlogPostPageKey pageKey = new BlogPostPageKey(sortFilter, size, sortColumns);
+        final String[] includes = toSourceIncludes(sortFilter.getFields());
+        return multiGet(written)
+                .thenCombine(search, (lookups, resp) -> {
+                    final Comparator<Object[]> order = toSortOrder(sortColumns);
+                    final SearchHit[] hits = resp.isPresent() ? resp.get().getHits().getHits() : new SearchHit[0];
+                    // With a full page the search decides where the page ends. Posts sorting after it belong on a later page.
+                    final Object[] end = hits.length == size ? hits[hits.length - 1].getSortValues() : null;
+
+                    final List<Map.Entry<Object[], BytesReference>> results = new ArrayList<>();
+                    for (SearchHit hit : hits) {
+                        if (!written.contains(hit.getId())) {
+                            results.add(new AbstractMap.SimpleImmutableEntry<>(hit.getSortValues(), hit.getSourceRef()));
+                        }
+                    }
+                    for (Optional<GetResponse> lookup : lookups) {
+                        final Optional<BlogPost> blogPost = toBlogPost(lookup).filter(pageKey::includes);
+                        if (blogPost.isPresent()) {
+                            final Object[] sortValues = toSortValues(blogPost.get(), sortColumns);
+                            if (end == null || order.compare(sortValues, end) <= 0) {
+                                results.add(new AbstractMap.SimpleImmutableEntry<>(sortValues, filterSource(lookup.get(), includes)));
+                            }
+                        }
+                    }
+                    results.sort((first, second) -> order.compare(first.getKey(), second.getKey()));
+
+                    final List<BytesReference> sources = results.stream().limit(size).map(Map.Entry::getValue).collect(Collectors.toList());
+                    String nextCursor = null;
+                    if (end != null || results.size() > size) {
+                        nextCursor = new PageCursor(sources.isEmpty() ? end : results.get(sources.size() - 1).getKey()).encode();
+                    }
+                    return toRawPage(new ResultPage<>(sources, nextCursor), null);
+                });
     }
 
-    @Override
-    public List<BlogPost> getAll(final BlogPostSortFilter sortFilter) {
+    private static ResultPage<RawJson> toRawPage(final ResultPage<BytesReference> page, final String version) {
+
+        return new ResultPage<>(page.getResults().stream().map(AbstractElasticsearchDao::toRawJson).collect(Collectors.toList()), page.getNextCursor(), version);
+    }
+
+    private <T> CompletableFuture<ResultPage<T>> getPage(final BlogPostSortFilter sortFilter, final Function<BytesReference, T> toResult) {
         Preconditions.checkNotNull(sortFilter, "sortFilter cannot be null");
 
-        Optional<SearchResponse> resp = getClient().getAll(getIndex(), getType(), sortFilter.getOffset(), sortFilter.getSize(),
-                getQueryBuilder(sortFilter),
-                getSortBuilders(sortFilter));
-        List<BlogPost> results = new ArrayList<>();
-        if (resp.isPresent() && resp.get().getHits().getTotalHits() > 0) {
-            for (SearchHit hit : resp.get().getHits().getHits()) {
-                results.add(GSON.fromJson(hit.getSourceAsString(), BlogPost.class));
+        final int size = getPageSize(sortFilter);
+        final List<SortColumn> sortColumns = getSortColumns(sortFilter);
+        final SearchQuery searchQuery = aPageQuery(sortFilter, size, sortColumns);
+        final List<String> indices = getPartitions(sortFilter);
+        if (indices.isEmpty()) {
+            // No partition can hold posts in the date range
+            return CompletableFuture.completedFuture(new ResultPage<>(Collections.emptyList(), null));
+        }
+        return pageCache.get().get(new BlogPostPageKey(sortFilter, size, sortColumns), key -> getClient().getAll(indices, getType(), searchQuery)
+                .thenApply(resp -> toPage(resp, size)))
+                .thenApply(page -> new ResultPage<>(
+                        page.getResults().stream().map(toResult).collect(Collectors.toList()), page.getNextCursor(), page.getVersion()));
+    }
+
+    /**
+     * Capped so the memory needed for a page stays bounded. Clients use the cursor for more.
+     */
+    private int getPageSize(final BlogPostSortFilter sortFilter) {
+
+        final ApplicationProperties.Paging paging = applicationProperties.getPaging();
+        return Math.min(sortFilter.getSize() != null ? sortFilter.getSize() : paging.getDefaultSize(), paging.getMaxSize());
+    }
+
+    /**
+     * Only the partitions that can hold posts in the requested date range. Empty if none can.
+     */
+    private List<String> getPartitions(final BlogPostSortFilter sortFilter) {
+        return partitions.forRange(sortFilter.getFromDateTime(), sortFilter.getToDateTime());
+    }
+
+    private SearchQuery aPageQuery(final BlogPostSortFilter sortFilter, final int size, final List<SortColumn> sortColumns) {
+
+        final List<SortBuilder> sortBuilders = getSortBuilders(sortColumns);
+        final SearchQuery.SearchQueryBuilder searchQuery = SearchQuery.SearchQueryBuilder.aSearchQuery()
+                .withSearchType(getSearchType())
+                .withSize(size)
+                .withQueryBuilder(getQueryBuilder(sortFilter))
+                .withSortBuilders(sortBuilders)
+                .withSourceIncludes(toSourceIncludes(sortFilter.getFields()))
+                .withVersion(true);
+
+        // A cursor continues from the last result of the previous page so deep pages cost the same as the first
+        if (!StringUtils.isEmpty(sortFilter.getCursor())) {
+            final PageCursor cursor = PageCursor.parse(sortFilter.getCursor());
+            if (cursor.getSortValues().length != sortBuilders.size()) {
+                throw new BadRequestException("Cursor does not match sort. Use the same sort for every page.");
             }
+            searchQuery.withSearchAfter(cursor.getSortValues());
         }
-        return results;
+        else {
+            searchQuery.withFrom(sortFilter.getOffset());
+        }
+        return searchQuery.build();
+    }
+
+    private static ResultPage<BytesReference> toPage(final Optional<SearchResponse> resp, final int size) {
+
+        final List<BytesReference> sources = toResults(resp, Function.identity());
+
+        // Only a full page can have more results after it
+        final SearchHit[] hits = resp.isPresent() ? resp.get().getHits().getHits() : new SearchHit[0];
+        String nextCursor = null;
+        if (size > 0 && sources.size() == size) {
+            nextCursor = new PageCursor(hits[hits.length - 1].getSortValues()).encode();
+        }
+        return new ResultPage<>(sources, nextCursor, toVersion(hits));
+    }
+
+    /**
+     * Posts the session wrote too recently to be sure they show in searches
+     */
+    private Set<String> getWrittenRecently(final SessionToken session) {
+
+        final long window = TimeUnit.SECONDS.toMillis(applicationProperties.getConsistency().getSessionWindowSeconds());
+        return session.getWrittenSince(System.currentTimeMillis() - window);
+    }
+
+    /**
+     * The values ES would sort the post by, so it can be placed among search results
+     */
+    private Object[] toSortValues(final BlogPost blogPost, final List<SortColumn> sortColumns) {
+
+        final Object[] sortValues = new Object[sortColumns.size() + 1];
+        for (int i = 0; i < sortColumns.size(); i++) {
+            switch (sortColumns.get(i).getColumn()) {
+                case TIMESTAMP_FIELD:
+                    sortValues[i] = blogPost.getTimestamp() != null ? blogPost.getTimestamp().getTime() : null;
+                    break;
+                case "userId":
+                    sortValues[i] = blogPost.getUserId();
+                    break;
+                default:
+                    sortValues[i] = blogPost.getId();
+            }
+        }
+        sortValues[sortColumns.size()] = blogPost.getId();
+        return sortValues;
+    }
+
+    /**
+     * Orders sort values as ES does for the columns followed by the tiebreaker. Missing values sort last.
+     */
+    private static Comparator<Object[]> toSortOrder(final List<SortColumn> sortColumns) {
+
+        return (first, second) -> {
+            for (int i = 0; i < first.length; i++) {
+                if (first[i] == null || second[i] == null) {
+                    if (first[i] != second[i]) {
+                        return first[i] == null ? 1 : -1;
+                    }
+                    continue;
+                }
+                int result = first[i] instanceof Number && second[i] instanceof Number
+                        ? Long.compare(((Number) first[i]).longValue(), ((Number) second[i]).longValue())
+                        : String.valueOf(first[i]).compareTo(String.valueOf(second[i]));
+                if (i < sortColumns.size() && sortColumns.get(i).getDirection() == SortColumn.SortDirection.DESC) {
+                    result = -result;
+                }
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        };
+    }
+
+    /**
+     * Only the requested fields of a post looked up by id, as a search would return
+     */
+    private static BytesReference filterSource(final GetResponse found, final String[] includes) {
+
+        if (includes == null) {
+            return found.getSourceAsBytesRef();
+        }
+        try {
+            return XContentFactory.jsonBuilder().map(XContentMapValues.filter(found.getSourceAsMap(), includes, null)).bytes();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Unable to filter blog post source", e);
+        }
+    }
+
+    /**
+     * Every blog post matching the filters as newline delimited JSON. Posts are read from ES and written a batch at a
+     * time so memory use doesn't grow with the number of posts. Paging values in the filter are ignored.
+     * <p>
+     * Batches are read with search_after, sorted as asked then by id (ids minted in time order put posts in creation
+     * order when no sort is asked for). Posts written during an export may or may not be in it.
+     * </p>
+     *
+     * @param sortFilter Filters and optional sort
+     * @return Completes once the first batch has been read, with a writer that writes the posts and reads the rest
+     */
+    public CompletableFuture<ResultWriter> export(final BlogPostSortFilter sortFilter) {
+        Preconditions.checkNotNull(sortFilter, "sortFilter cannot be null");
+
+        final List<SortColumn> sortColumns = sortFilter.getSort() == null
+                ? Collections.emptyList()
+                : sortFilter.getSort().stream().map(SortColumn::parse).collect(Collectors.toList());
+        final SearchQuery searchQuery = SearchQuery.SearchQueryBuilder.aSearchQuery()
+                .withSize(applicationProperties.getExport().getBatchSize())
+                .withQueryBuilder(getQueryBuilder(sortFilter))
+                .withSortBuilders(getSortBuilders(sortColumns))
+                .withSourceIncludes(toSourceIncludes(sortFilter.getFields()))
+                .build();
+
+        return getClient().searchInBatches(getIndex(), getType(), searchQuery).thenApply(batches -> out -> batches.forEach(hits -> {
+            for (SearchHit hit : hits) {
+                writeJson(hit, out);
+                out.write('\n');
+            }
+            out.flush();
+            return true;
+        }));
     }
 
     @Override
-    public List<BlogPost> search(final String searchTerm) {
+    public CompletableFuture<List<BlogPost>> search(final String searchTerm, final List<String> fields) {
+
+        return getClient().getAll(getIndex(), getType(), aTextSearchQuery(searchTerm, fields).build())
+                .thenApply(resp -> toResults(resp, CODEC::decode));
+    }
+
+    /**
+     * As {@link #search(String, List)} but writes the matching posts as a JSON array while they are read from ES, a
+     * batch at a time, so memory use doesn't grow with the number of results. Best matches are written first and
+     * writing stops after the configured maximum number of results.
+     * <p>
+     * Batches are read with search_after, by score then id, so no search context is held open in ES while a slow
+     * client reads. If a later batch can't be read the array is left unclosed, so the client can tell the results are
+     * incomplete.
+     * </p>
+     *
+     * @param searchTerm Single search term
+     * @param fields     Fields to return for each post or null for all
+     * @return Completes once the first batch has been read, with a writer that writes the results and reads the rest
+     */
+    public CompletableFuture<ResultWriter> streamSearch(final String searchTerm, final List<String> fields) {
+
+        final ApplicationProperties.Search config = applicationProperties.getSearch();
+        final SearchQuery searchQuery = aTextSearchQuery(searchTerm, fields)
+                .withSize(Math.min(config.getBatchSize(), config.getMaxResults()))
+                .withSortBuilders(Arrays.asList(new ScoreSortBuilder(), new FieldSortBuilder(TIEBREAKER_FIELD).order(SortOrder.ASC)))
+                .build();
+
+        return getClient().searchInBatches(getIndex(), getType(), searchQuery).thenApply(batches -> out -> {
+            final AtomicInteger written = new AtomicInteger();
+            out.write('[');
+            batches.forEach(hits -> {
+                for (SearchHit hit : hits) {
+                    if (written.get() >= config.getMaxResults()) {
+                        return false;
+                    }
+                    if (written.getAndIncrement() > 0) {
+                        out.write(',');
+                    }
+                    writeJson(hit, out);
+                }
+                out.flush();
+                return true;
+            });
+            out.write(']');
+            out.flush();
+        });
+    }
+
+    // JSON sources are already what we want to send so their bytes are copied as they are
+    private static void writeJson(final SearchHit hit, final OutputStream out) throws IOException {
+
+        final RawJson json = toRawJson(hit.getSourceRef());
+        (json != null ? json : RawJson.NULL).writeTo(out);
+    }
+
+    private SearchQuery.SearchQueryBuilder aTextSearchQuery(final String searchTerm, final List<String> fields) {
 
         Preconditions.checkNotNull(searchTerm);
-        Optional<SearchResponse> resp = getClient().getAll(getIndex(), getType(), QueryBuilders.simpleQueryStringQuery(searchTerm + "*").fields(SEARCH_FIELDS));
-        List<BlogPost> results = new ArrayList<>();
-        if (resp.isPresent() && resp.get().getHits().getTotalHits() > 0) {
-            for (SearchHit hit : resp.get().getHits().getHits()) {
-                results.add(GSON.fromJson(hit.getSourceAsString(), BlogPost.class));
+        return SearchQuery.SearchQueryBuilder.aSearchQuery()
+                .withSearchType(getTextSearchType())
+                .withQueryBuilder(QueryBuilders.simpleQueryStringQuery(searchTerm + "*").fields(SEARCH_FIELDS))
+                .withSourceIncludes(toSourceIncludes(fields));
+    }
+
+    /**
+     * @param fields Requested fields or null/empty for all
+     * @return Source fields to fetch or null for the whole source
+     * @throws BadRequestException Field is not part of a blog post
+     */
+    private static String[] toSourceIncludes(final List<String> fields) {
+
+        if (fields == null || fields.isEmpty()) {
+            return null;
+        }
+        for (String field : fields) {
+            if (!SOURCE_FIELDS.contains(field)) {
+                throw new BadRequestException(String.format("Unknown field '%s'. Fields are: %s", field, SOURCE_FIELDS));
             }
         }
-        return results;
+        return fields.toArray(new String[fields.size()]);
     }
 
     @Override
-    public BlogPost create(final BlogPost resourceToCreate) {
+    public CompletableFuture<BlogPost> create(final BlogPost resourceToCreate) {
+
+        return create(resourceToCreate, WriteRequest.RefreshPolicy.NONE);
+    }
+
+    /**
+     * As {@link #create(BlogPost)} choosing when the post shows in searches
+     *
+     * @param resourceToCreate New post with its id and timestamp set
+     * @param refreshPolicy    NONE to show within the refresh interval, WAIT_UNTIL to complete once it shows or
+     *                         IMMEDIATE to refresh now, if allowed
+     * @return Completes with the created post
+     */
+    public CompletableFuture<BlogPost> create(final BlogPost resourceToCreate, final WriteRequest.RefreshPolicy refreshPolicy) {
 
         Preconditions.checkNotNull(resourceToCreate);
-        getClient().create(getIndex(), getType(), resourceToCreate.getId(), GSON.toJson(resourceToCreate));
-        return resourceToCreate;
+        Preconditions.checkNotNull(resourceToCreate.getTimestamp(), "timestamp cannot be null");
+        return getClient().create(partitions.forDate(resourceToCreate.getTimestamp()), getType(), resourceToCreate.getId(), toSource(CODEC, resourceToCreate),
+                toAllowed(refreshPolicy))
+                .whenComplete((id, failure) -> invalidate(resourceToCreate.getId(), resourceToCreate))
+                .thenApply(id -> resourceToCreate);
+    }
+
+    /**
+     * As {@link #create(BlogPost, WriteRequest.RefreshPolicy)} for a post whose id is derived from an idempotency key,
+     * so creating it again replays the first create rather than adding a duplicate. Posts created through this
+     * instance recently are answered from memory. Otherwise ES turns down the second create and the post is read back.
+     * <p>
+     * Only the partition of the post's own month is checked, so a retry in the next month from the first attempt
+     * creates the post again. A post deleted through this instance is forgotten, so a retry creates it again. One
+     * deleted through another instance is replayed from memory until the remembered create expires.
+     * </p>
+     *
+     * @param resourceToCreate New post with the id derived from the key and its timestamp set
+     * @param refreshPolicy    As for {@link #create(BlogPost, WriteRequest.RefreshPolicy)}
+     * @return Completes with the post as first created and whether this was a replay, or fails with
+     * {@link ConflictException} if the key was first used for a different post
+     */
+    public CompletableFuture<Created<BlogPost>> createOnce(final BlogPost resourceToCreate, final WriteRequest.RefreshPolicy refreshPolicy) {
+        Preconditions.checkNotNull(resourceToCreate, "Blog post cannot be null");
+        Preconditions.checkNotNull(resourceToCreate.getId(), "id cannot be null");
+
+        final AtomicBoolean started = new AtomicBoolean();
+        return createdCache.get().get(resourceToCreate.getId(), id -> {
+            started.set(true);
+            return create(resourceToCreate, refreshPolicy)
+                    .handle((created, failure) -> {
+                        if (failure == null) {
+                            return CompletableFuture.completedFuture(new Created<>(created, false));
+                        }
+                        if (!(rootCause(failure) instanceof VersionConflictEngineException)) {
+                            return BlogPostDao.<Created<BlogPost>>failed(failure);
+                        }
+                        // Created by an attempt this instance no longer remembers, or through another instance
+                        return lookUp(id).thenApply(existing -> new Created<>(toBlogPost(existing)
+                                .orElseThrow(() -> new ConflictException("Blog post with this idempotency key is being deleted")), true));
+                    })
+                    .thenCompose(Function.identity());
+        }).thenApply(created -> {
+            if (!isSamePost(created.getValue(), resourceToCreate)) {
+                throw new ConflictException("Idempotency key was already used for a different blog post");
+            }
+            return started.get() ? created : created.asReplay();
+        });
+    }
+
+    private static boolean isSamePost(final BlogPost created, final BlogPost retried) {
+
+        return Objects.equals(created.getUserId(), retried.getUserId()) && Objects.equals(created.getBody(), retried.getBody());
     }
 
     @Override
-    public BlogPost update(final BlogPost resourceToUpdate) throws NotFoundException {
-        Preconditions.checkNotNull(resourceToUpdate);
+    public CompletableFuture<BulkResult> createAll(final List<BlogPost> resourcesToCreate) {
 
-        // Check exists
-        getById(resourceToUpdate.getId()).orElseThrow(NotFoundException::new);
+        Preconditions.checkNotNull(resourcesToCreate);
 
-        getClient().update(getIndex(), getType(), resourceToUpdate.getId(), GSON.toJson(resourceToUpdate));
-        return resourceToUpdate;
+        // Usually all in one partition
+        final Map<String, Map<String, byte[]>> docsByPartition = new LinkedHashMap<>();
+        resourcesToCreate.forEach(blogPost -> {
+            Preconditions.checkNotNull(blogPost.getId(), "id cannot be null");
+            Preconditions.checkNotNull(blogPost.getTimestamp(), "timestamp cannot be null");
+            docsByPartition.computeIfAbsent(partitions.forDate(blogPost.getTimestamp()), partition -> new LinkedHashMap<>())
+                    .put(blogPost.getId(), toSource(CODEC, blogPost));
+        });
+        final List<CompletableFuture<List<BulkItemResponse>>> futures = docsByPartition.entrySet().stream()
+                .map(docs -> getClient().bulkCreate(docs.getKey(), getType(), docs.getValue()))
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]))
+                .whenComplete((allDone, failure) -> invalidate(resourcesToCreate))
+                .thenApply(allDone -> {
+                    // Back into the order submitted
+                    final Map<String, BulkItemResponse> itemsById = new HashMap<>();
+                    futures.forEach(future -> future.join().forEach(item -> itemsById.put(item.getId(), item)));
+                    return toBulkResult(resourcesToCreate.stream().map(blogPost -> itemsById.get(blogPost.getId())).collect(Collectors.toList()));
+                });
     }
 
     @Override
-    public void delete(final String id) {
+    public CompletableFuture<BlogPost> update(final BlogPost resourceToUpdate) {
+
+        return update(resourceToUpdate, null, WriteRequest.RefreshPolicy.NONE).thenApply(Versioned::getValue);
+    }
+
+    /**
+     * Update a post with one request to ES, which checks the post exists and is still at the expected version as it
+     * applies the change. There is no separate lookup first so nothing can change in between.
+     * <p>
+     * The request goes to the post's partition if a lookup of the post is cached, otherwise to the month in its id if it
+     * is time ordered, or the current month's as most edits are of recent posts. Only if the post isn't there is it
+     * looked up to find its partition.
+     * </p>
+     *
+     * @param resourceToUpdate Post with updated fields. Id must be present and exist.
+     * @param expectedVersion  Version the post must still be at (as given in its ETag) or null for any version
+     * @param refreshPolicy    When the change shows in searches, as for {@link #create(BlogPost, WriteRequest.RefreshPolicy)}
+     * @return Completes with the whole post as updated and its new version. Completes exceptionally with
+     * {@link NotFoundException} if there is no post with the id or {@link PreconditionFailedException} if it is no
+     * longer at the expected version.
+     */
+    public CompletableFuture<Versioned<BlogPost>> update(final BlogPost resourceToUpdate, final Long expectedVersion, final WriteRequest.RefreshPolicy refreshPolicy) {
+        Preconditions.checkNotNull(resourceToUpdate, "Blog post cannot be null");
+        Preconditions.checkNotNull(resourceToUpdate.getId(), "id cannot be null");
+
+        final WriteRequest.RefreshPolicy refresh = toAllowed(refreshPolicy);
+        final String id = resourceToUpdate.getId();
+        final byte[] source = toSource(CODEC, resourceToUpdate);
+        final String partition = cache.get().getIfLoaded(id).map(GetResponse::getIndex)
+                .orElseGet(() -> partitions.forDate(TimeOrderedIdGenerator.mintedAt(id).map(Date::from).orElseGet(Date::new)));
+
+        return getClient().update(partition, getType(), id, source, expectedVersion, refresh)
+                .handle((updated, failure) -> {
+                    if (failure == null) {
+                        return CompletableFuture.completedFuture(updated);
+                    }
+                    if (!isMissing(failure)) {
+                        return BlogPostDao.<UpdateResponse>failed(failure);
+                    }
+                    // Not in the partition tried. Bypasses the cache as it may be what was out of date.
+                    return lookUp(id).thenCompose(existing -> {
+                        if (!existing.isPresent() || existing.get().getIndex().equals(partition)) {
+                            throw new NotFoundException();
+                        }
+                        return getClient().update(existing.get().getIndex(), getType(), id, source, expectedVersion, refresh);
+                    });
+                })
+                .thenCompose(Function.identity())
+                .thenApply(updated -> new Versioned<>(CODEC.decode(updated.getGetResult().sourceRef()), String.valueOf(updated.getVersion())))
+                .whenComplete((updated, failure) -> invalidate(id, updated != null ? updated.getValue() : resourceToUpdate))
+                .exceptionally(BlogPostDao::whenUpdateFailed);
+    }
+
+    private static boolean isMissing(final Throwable failure) {
+
+        final Throwable cause = rootCause(failure);
+        return cause instanceof DocumentMissingException || cause instanceof IndexNotFoundException;
+    }
+
+    private static <T> CompletableFuture<T> failed(final Throwable failure) {
+
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    /**
+     * A post deleted after it was found, or changed since the version the client read
+     */
+    private static <T> T whenUpdateFailed(final Throwable failure) {
+
+        final Throwable cause = rootCause(failure);
+        if (cause instanceof NotFoundException || cause instanceof DocumentMissingException) {
+            throw new NotFoundException();
+        }
+        if (cause instanceof VersionConflictEngineException) {
+            throw new PreconditionFailedException("Blog post has changed. Get it again for its current version.");
+        }
+        return whenArchived(failure);
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(final String id) {
+
+        return delete(id, WriteRequest.RefreshPolicy.NONE);
+    }
+
+    /**
+     * As {@link #delete(String)} choosing when the post stops showing in searches
+     *
+     * @param id            Unique id
+     * @param refreshPolicy As for {@link #create(BlogPost, WriteRequest.RefreshPolicy)}
+     * @return Completes when deleted
+     */
+    public CompletableFuture<Void> delete(final String id, final WriteRequest.RefreshPolicy refreshPolicy) {
         Preconditions.checkNotNull(id, "id cannot be null");
-        getClient().deleteById(getIndex(), getType(), id);
+        // Live lookup for the partition, as a cached lookup may be out of date and a cached miss must not skip the delete
+        return lookUp(id).thenCompose(existing -> {
+            if (!existing.isPresent()) {
+                forgetDeleted(id);
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            return getClient().deleteById(existing.get().getIndex(), getType(), id, toAllowed(refreshPolicy))
+                    .whenComplete((deleted, failure) -> {
+                        invalidate(id, toBlogPost(existing).orElseGet(() -> BlogPost.BlogPostBuilder.aBlogPost().withId(id).build()));
+                        forgetDeleted(id);
+                    })
+                    .exceptionally(BlogPostDao::whenArchived);
+        });
+    }
+
+    // A retried create of the post creates it again rather than replaying the deleted one
+    private void forgetDeleted(final String id) {
+
+        cache.get().invalidate(id);
+        createdCache.get().invalidateIf(id::equals);
+    }
+
+    /**
+     * An immediate refresh per write would swamp ES with tiny segments, so unless allowed the write waits for the
+     * next scheduled refresh instead
+     */
+    private WriteRequest.RefreshPolicy toAllowed(final WriteRequest.RefreshPolicy refreshPolicy) {
+
+        if (refreshPolicy == null) {
+            return WriteRequest.RefreshPolicy.NONE;
+        }
+        if (refreshPolicy == WriteRequest.RefreshPolicy.IMMEDIATE && !applicationProperties.getConsistency().isAllowImmediateRefresh()) {
+            return WriteRequest.RefreshPolicy.WAIT_UNTIL;
+        }
+        return refreshPolicy;
+    }
+
+    /**
+     * Drop cached lookups of the post and cached pages it could be on, as it was and as it now is. Also called on
+     * failure as the write may still have been applied.
+     */
+    private void invalidate(final String id, final BlogPost... written) {
+
+        cache.get().invalidate(id);
+        pageCache.get().invalidateIf(page -> Arrays.stream(written).anyMatch(page::matches));
+    }
+
+    private void invalidate(final List<BlogPost> written) {
+
+        written.forEach(blogPost -> cache.get().invalidate(blogPost.getId()));
+        pageCache.get().invalidateIf(page -> written.stream().anyMatch(page::matches));
+    }
+
+    /**
+     * Writes to archived partitions are blocked
+     */
+    private static <T> T whenArchived(final Throwable failure) {
+
+        if (rootCause(failure) instanceof ClusterBlockException) {
+            throw new BadRequestException("Blog post is archived and can no longer be changed");
+        }
+        throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
     }
 
+    /**
+     * @return Alias covering every monthly partition
+     */
     @Override
     protected String getIndex() {
-        return "microblog";
+        return INDEX_ALIAS;
+    }
+
+    @Override
+    protected String getIndexPattern() {
+        return partitions.getPattern();
+    }
+
+    @Override
+    protected String getIndexAlias() {
+        return partitions.getAlias();
     }
 
     @Override
@@ -113,6 +972,21 @@ public class BlogPostDao extends AbstractElasticsearchDao implements ICrudDao<Bl
         return "blogpost";
     }
 
+    @Override
+    protected XContentBuilder getMapping() throws IOException {
+
+        // Only body is analysed for text search. Everything else is filtered and sorted on exact values using doc values.
+        return XContentFactory.jsonBuilder().startObject()
+                .startObject("_all").field("enabled", false).endObject()
+                .startObject("properties")
+                    .startObject("id").field("type", "keyword").endObject()
+                    .startObject(TIMESTAMP_FIELD).field("type", "date").field("format", DATE_FORMAT).endObject()
+                    .startObject("body").field("type", "text").endObject()
+                    .startObject("userId").field("type", "keyword").endObject()
+                .endObject()
+                .endObject();
+    }
+
     // Could be refactored into separate builders if more REST services required filters and sorts
     private QueryBuilder getQueryBuilder(BlogPostSortFilter filter) {
 
@@ -124,7 +998,7 @@ public class BlogPostDao extends AbstractElasticsearchDao implements ICrudDao<Bl
             }
             if (filter.getFromDateTime() != null || filter.getToDateTime() != null) {
                 RangeQueryBuilder rangeQueryBuilder = QueryBuilders
-                        .rangeQuery("timestamp");
+                        .rangeQuery(TIMESTAMP_FIELD);
                 if (filter.getFromDateTime() != null) {
                     rangeQueryBuilder.gte(filter.getFromDateTime());
                 }
@@ -138,26 +1012,49 @@ public class BlogPostDao extends AbstractElasticsearchDao implements ICrudDao<Bl
         return QueryBuilders.constantScoreQuery(boolQueryBuilder);
     }
 
-    private List<SortBuilder> getSortBuilders(final BlogPostSortFilter sortFilter) {
-        if (sortFilter.getSort() == null || sortFilter.getSort().isEmpty()) {
-            return Collections.emptyList();
-        }
+    private Optional<BlogPost> toBlogPost(final Optional<GetResponse> resp) {
 
-        return sortFilter.getSort().stream().map(SortColumn::parse).map(this::aSortBuilder).collect(Collectors.toList());
+        return resp.map(found -> CODEC.decode(found.getSourceAsBytesRef()));
     }
 
-    private SortBuilder aSortBuilder(final SortColumn sortColumn) {
+    private static <T> List<T> toResults(final Optional<SearchResponse> resp, final Function<BytesReference, T> toResult) {
 
-        final org.elasticsearch.search.sort.SortBuilder sortBuilder;
-        if (sortColumn.getColumn().equals("userId")) {
-            // Fix for text value sorting - would need to use mapping properties to handle String fields correctly in a complete solution but quick fix for now.
-            sortBuilder = new FieldSortBuilder(sortColumn.getColumn() + ".keyword");
+        List<T> results = new ArrayList<>();
+        if (resp.isPresent() && resp.get().getHits().getTotalHits() > 0) {
+            for (SearchHit hit : resp.get().getHits().getHits()) {
+                results.add(toResult.apply(hit.getSourceRef()));
+            }
         }
-        else {
-            sortBuilder = new FieldSortBuilder(sortColumn.getColumn());
+        return results;
+    }
+
+    /**
+     * Sorts followed by document id. The id tiebreaker gives every result a unique position so cursors never skip or
+     * repeat results.
+     */
+    private List<SortBuilder> getSortBuilders(final List<SortColumn> sortColumns) {
+
+        final List<SortBuilder> sortBuilders = sortColumns.stream().map(this::aSortBuilder).collect(Collectors.toList());
+        sortBuilders.add(new FieldSortBuilder(TIEBREAKER_FIELD).order(SortOrder.ASC));
+        return sortBuilders;
+    }
+
+    /**
+     * Requested sorts followed by timestamp (newest first, unless already sorted by timestamp)
+     */
+    private static List<SortColumn> getSortColumns(final BlogPostSortFilter sortFilter) {
+        final List<SortColumn> sortColumns = sortFilter.getSort() == null
+                ? new ArrayList<>()
+                : sortFilter.getSort().stream().map(SortColumn::parse).collect(Collectors.toList());
+
+        if (sortColumns.stream().noneMatch(sortColumn -> sortColumn.getColumn().equals(TIMESTAMP_FIELD))) {
+            sortColumns.add(new SortColumn(TIMESTAMP_FIELD, SortColumn.SortDirection.DESC.name()));
         }
+        return sortColumns;
+    }
+
+    private SortBuilder aSortBuilder(final SortColumn sortColumn) {
 
-        sortBuilder.order(SortOrder.valueOf(sortColumn.getDirection().name()));
-        return sortBuilder;
+        return new FieldSortBuilder(sortColumn.getColumn()).order(SortOrder.valueOf(sortColumn.getDirection().name()));
     }
 }
@@ -0,0 +1,138 @@
+package com.forgerock.microblog.dao;
+
+import com.forgerock.microblog.es.MonthlyPartitions;
+import com.forgerock.microblog.filter.BlogPostSortFilter;
+import com.forgerock.microblog.filter.SortColumn;
+import com.forgerock.microblog.model.BlogPost;
+import org.springframework.util.StringUtils;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Canonical form of a page request, so requests that return the same page share a cache entry whatever order their
+ * user ids and fields are listed in, how their dates are written or whether the default sort is asked for explicitly.
+ */
+final class BlogPostPageKey {
+
+    private final Set<String> userIds;
+    private final Instant from;
+    private final Instant to;
+    // Dates that couldn't be parsed are kept as given
+    private final String unparsedFrom;
+    private final String unparsedTo;
+    private final List<String> sort;
+    private final int size;
+    private final Integer offset;
+    private final String cursor;
+    private final Set<String> fields;
+
+    /**
+     * @param sortFilter  Page request
+     * @param size        Page size actually used
+     * @param sortColumns Sort actually used, including default sorts
+     */
+    BlogPostPageKey(final BlogPostSortFilter sortFilter, final int size, final List<SortColumn> sortColumns) {
+
+        this.userIds = sorted(sortFilter.getUserIds());
+        this.from = MonthlyPartitions.parseInstant(sortFilter.getFromDateTime()).orElse(null);
+        this.to = MonthlyPartitions.parseInstant(sortFilter.getToDateTime()).orElse(null);
+        this.unparsedFrom = from == null ? sortFilter.getFromDateTime() : null;
+        this.unparsedTo = to == null ? sortFilter.getToDateTime() : null;
+        this.sort = sortColumns.stream().map(column -> column.getColumn() + ':' + column.getDirection()).collect(Collectors.toList());
+        this.size = size;
+        // Offset is ignored when there is a cursor
+        this.cursor = StringUtils.isEmpty(sortFilter.getCursor()) ? null : sortFilter.getCursor();
+        this.offset = cursor != null ? null : (sortFilter.getOffset() != null ? sortFilter.getOffset() : 0);
+        this.fields = sorted(sortFilter.getFields());
+    }
+
+    private static Set<String> sorted(final Collection<String> values) {
+        return values == null ? Collections.emptySet() : new TreeSet<>(values);
+    }
+
+    /**
+     * @param post Post written, as it was or as it now is. Missing values are assumed to match.
+     * @return Whether the post could be on this page
+     */
+    boolean matches(final BlogPost post) {
+
+        if (!userIds.isEmpty() && post.getUserId() != null && !userIds.contains(post.getUserId())) {
+            return false;
+        }
+        if (post.getTimestamp() != null) {
+            final Instant timestamp = post.getTimestamp().toInstant();
+            if ((from != null && timestamp.isBefore(from)) || (to != null && timestamp.isAfter(to))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param post Post as it now is, with every value
+     * @return Whether a search for this page would return the post
+     */
+    boolean includes(final BlogPost post) {
+
+        if (unparsedFrom != null || unparsedTo != null) {
+            return false;
+        }
+        if (!userIds.isEmpty() && post.getUserId() == null) {
+            return false;
+        }
+        if ((from != null || to != null) && post.getTimestamp() == null) {
+            return false;
+        }
+        return matches(post);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final BlogPostPageKey that = (BlogPostPageKey) o;
+        return size == that.size
+                && Objects.equals(userIds, that.userIds)
+                && Objects.equals(from, that.from)
+                && Objects.equals(to, that.to)
+                && Objects.equals(unparsedFrom, that.unparsedFrom)
+                && Objects.equals(unparsedTo, that.unparsedTo)
+                && Objects.equals(sort, that.sort)
+                && Objects.equals(offset, that.offset)
+                && Objects.equals(cursor, that.cursor)
+                && Objects.equals(fields, that.fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(userIds, from, to, unparsedFrom, unparsedTo, sort, size, offset, cursor, fields);
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("BlogPostPageKey{");
+        sb.append("userIds=").append(userIds);
+        sb.append(", from=").append(from != null ? from : unparsedFrom);
+        sb.append(", to=").append(to != null ? to : unparsedTo);
+        sb.append(", sort=").append(sort);
+        sb.append(", size=").append(size);
+        sb.append(", offset=").append(offset);
+        sb.append(", cursor='").append(cursor).append('\'');
+        sb.append(", fields=").append(fields);
+        sb.append('}');
+        return sb.toString();
+    }
+}
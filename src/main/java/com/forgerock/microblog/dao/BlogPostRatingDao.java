@@ -1,49 +1,355 @@
 package com.forgerock.microblog.dao;
 
+import com.forgerock.microblog.configuration.ApplicationProperties;
 import com.forgerock.microblog.es.AbstractElasticsearchDao;
+import com.forgerock.microblog.es.ResultCache;
+import com.forgerock.microblog.es.SearchQuery;
+import com.forgerock.microblog.es.SourceCodec;
+import com.forgerock.microblog.exception.BadRequestException;
+import com.forgerock.microblog.exception.ConflictException;
+import com.forgerock.microblog.filter.TopRatedFilter;
 import com.forgerock.microblog.model.BlogPostRating;
+import com.forgerock.microblog.model.BulkResult;
+import com.forgerock.microblog.model.Created;
+import com.forgerock.microblog.model.RatingSummary;
+import com.forgerock.microblog.model.Versioned;
 import com.google.common.base.Preconditions;
-import org.elasticsearch.action.search.SearchResponse;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 @Component
 public class BlogPostRatingDao extends AbstractElasticsearchDao implements IChildResourceDao<BlogPostRating> {
 
+    private static final String BLOG_POST_ID_FIELD = "blogPostId";
+
+    private static final String RATING_FIELD = "rating";
+
+    private static final String TIMESTAMP_FIELD = "timestamp";
+
+    private static final String DATE_FORMAT = "strict_date_optional_time||epoch_millis";
+
+    // Most blog posts summarised in one request
+    static final int MAX_SUMMARIES = 1000;
+
+    private static final String POSTS_AGGREGATION = "posts";
+    private static final String STATS_AGGREGATION = "stats";
+    private static final String HISTOGRAM_AGGREGATION = "histogram";
+
+    // Each shard returns this many times the posts asked for, so posts ranked highly overall but not on every shard
+    // still make the ranking
+    private static final int TOP_RATED_SHARD_SIZE_FACTOR = 5;
+
+    private static final SourceCodec<BlogPostRating> CODEC = new SourceCodec<>(BlogPostRating.class);
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    // Ratings added in bulk are counted here, as the controller counts those added one at a time
+    @Autowired
+    private RatingCounters ratingCounters;
+
+    // Created on first use as it is sized from the properties. Weighed by the number of posts ranked.
+    private final Supplier<ResultCache<TopRatedFilter, List<RatingSummary>>> topRatedCache = Suppliers.memoize(() -> new ResultCache<>(
+            applicationProperties.getCache().getTopRated(), ranking -> ranking.size() + 1));
+
+    // Ratings created with an idempotency key, by id, so a retry is answered without going to ES
+    private final Supplier<ResultCache<String, Created<BlogPostRating>>> createdCache = Suppliers.memoize(() -> new ResultCache<>(
+            applicationProperties.getCache().getIdempotencyKeys(), created -> 1));
+
     @Override
-    public List<BlogPostRating> getAllByParentId(final String parentId) {
+    public CompletableFuture<List<BlogPostRating>> getAllByParentId(final String parentId) {
+
+        return getVersionedByParentId(parentId).thenApply(Versioned::getValue);
+    }
+
+    /**
+     * As {@link #getAllByParentId(String)} with a version that changes whenever a rating is added, removed or changed
+     *
+     * @param parentId Blog post id
+     * @return Completes with the ratings and their version
+     */
+    public CompletableFuture<Versioned<List<BlogPostRating>>> getVersionedByParentId(final String parentId) {
         Preconditions.checkNotNull(parentId, "parentId cannot be null");
 
-        // Filter by blog post (parent) id
-        final QueryBuilder queryBuilder = QueryBuilders.commonTermsQuery("blogPostId", Collections.singletonList(parentId));
+        // Filter by blog post (parent) id - exact keyword match, no scoring needed
+        final QueryBuilder queryBuilder = QueryBuilders.constantScoreQuery(QueryBuilders.termQuery(BLOG_POST_ID_FIELD, parentId));
 
         // Do search
-        final Optional<SearchResponse> resp = getClient().getAll(getIndex(), getType(), queryBuilder);
+        return getClient().getAll(getIndex(), getType(), SearchQuery.SearchQueryBuilder.aSearchQuery()
+                .withSearchType(getSearchType())
+                .withQueryBuilder(queryBuilder)
+                .withVersion(true)
+                .build()).thenApply(resp -> {
+
+            // Handle results
+            final SearchHit[] hits = resp.isPresent() ? resp.get().getHits().getHits() : new SearchHit[0];
+            List<BlogPostRating> results = new ArrayList<>();
+            for (SearchHit hit : hits) {
+                results.add(CODEC.decode(hit.getSourceRef()));
+            }
+            return new Versioned<>(results, toVersion(hits));
+        });
+    }
+
+    /**
+     * @param parentId Blog post id
+     * @return Completes with the statistics of the ratings for the blog post
+     */
+    public CompletableFuture<RatingSummary> getSummaryByParentId(final String parentId) {
+        Preconditions.checkNotNull(parentId, "parentId cannot be null");
+
+        return getSummariesByParentIds(Collections.singletonList(parentId)).thenApply(summaries -> summaries.get(parentId));
+    }
+
+    /**
+     * Statistics of the ratings for each blog post, recounted from the ratings with aggregations so no ratings are
+     * fetched. One request whatever the number of blog posts. {@link RatingCounters} serves the same from memory.
+     *
+     * @param parentIds Blog post ids
+     * @return Completes with the statistics for each blog post in the order requested. Blog posts without ratings
+     * (including ones that don't exist) have a count of 0.
+     * @throws BadRequestException Too many blog posts
+     */
+    public CompletableFuture<Map<String, RatingSummary>> getSummariesByParentIds(final Collection<String> parentIds) {
+        Preconditions.checkNotNull(parentIds, "parentIds cannot be null");
+
+        final List<String> uniqueIds = new ArrayList<>(new LinkedHashSet<>(parentIds));
+        if (uniqueIds.size() > MAX_SUMMARIES) {
+            throw new BadRequestException(String.format("No more than %d blog posts can be summarised in one request", MAX_SUMMARIES));
+        }
+
+        // A bucket per blog post. Sized to fit every id asked for so the counts are exact.
+        final AggregationBuilder aggregation = AggregationBuilders.terms(POSTS_AGGREGATION).field(BLOG_POST_ID_FIELD).size(uniqueIds.size())
+                .subAggregation(AggregationBuilders.stats(STATS_AGGREGATION).field(RATING_FIELD))
+                .subAggregation(AggregationBuilders.terms(HISTOGRAM_AGGREGATION).field(RATING_FIELD).size(BlogPostRating.MAX_RATING - BlogPostRating.MIN_RATING + 1));
+
+        return getClient().getAll(getIndex(), getType(), SearchQuery.SearchQueryBuilder.aSearchQuery()
+                .withSearchType(getSearchType())
+                .withQueryBuilder(QueryBuilders.constantScoreQuery(QueryBuilders.termsQuery(BLOG_POST_ID_FIELD, uniqueIds)))
+                .withSize(0)
+                .withAggregations(Collections.singletonList(aggregation))
+                .build()).thenApply(resp -> {
+
+            final Map<String, RatingSummary> found = new HashMap<>();
+            if (resp.isPresent() && resp.get().getAggregations() != null) {
+                final Terms posts = resp.get().getAggregations().get(POSTS_AGGREGATION);
+                for (Terms.Bucket post : posts.getBuckets()) {
+                    found.put(post.getKeyAsString(), toSummary(post));
+                }
+            }
+
+            final Map<String, RatingSummary> summaries = new LinkedHashMap<>();
+            uniqueIds.forEach(id -> summaries.put(id, found.getOrDefault(id, RatingSummary.RatingSummaryBuilder.aRatingSummary().withBlogPostId(id).build())));
+            return summaries;
+        });
+    }
+
+    ResultCache<TopRatedFilter, List<RatingSummary>> getTopRatedCache() {
+        return topRatedCache.get();
+    }
 
-        // Handle results
-        List<BlogPostRating> results = new ArrayList<>();
-        if (resp.isPresent() && resp.get().getHits().getTotalHits() > 0) {
-            for (SearchHit hit : resp.get().getHits().getHits()) {
-                results.add(GSON.fromJson(hit.getSourceAsString(), BlogPostRating.class));
+    /**
+     * Blog posts ranked by their ratings, computed with a terms aggregation ordered by the ranking so no ratings are
+     * fetched. Ties are broken by the other ranking then the blog post id.
+     * <p>
+     * A ranking costs the same to compute whoever asks for it so it is cached, and recomputed once the TTL has passed.
+     * Ranking by average is approximate when ratings are spread over several shards, as each shard only returns its
+     * own top posts.
+     * </p>
+     *
+     * @param filter Ranking, window and size
+     * @return Completes with the summaries of the top blog posts, highest ranked first
+     */
+    public CompletableFuture<List<RatingSummary>> getTopRated(final TopRatedFilter filter) {
+        Preconditions.checkNotNull(filter, "filter cannot be null");
+
+        final ApplicationProperties.Paging paging = applicationProperties.getPaging();
+        final int size = Math.min(filter.getSize() != null ? filter.getSize() : paging.getDefaultSize(), paging.getMaxSize());
+        if (size < 1) {
+            throw new BadRequestException("size must be at least 1");
+        }
+
+        // Keyed by the effective size so the default and an explicit default share an entry
+        final TopRatedFilter key = TopRatedFilter.TopRatedFilterBuilder.aTopRatedFilter()
+                .withBy(filter.getBy())
+                .withWindow(filter.getWindow())
+                .withSize(size)
+                .withMinCount(filter.getMinCount())
+                .build();
+        return topRatedCache.get().get(key, this::rank);
+    }
+
+    private CompletableFuture<List<RatingSummary>> rank(final TopRatedFilter filter) {
+
+        final Terms.Order byAverage = Terms.Order.aggregation(STATS_AGGREGATION + ".avg", false);
+        final Terms.Order byCount = Terms.Order.count(false);
+        final Terms.Order order = filter.getBy() == TopRatedFilter.RankBy.AVG_RATING
+                ? Terms.Order.compound(byAverage, byCount, Terms.Order.term(true))
+                : Terms.Order.compound(byCount, byAverage, Terms.Order.term(true));
+
+        final AggregationBuilder aggregation = AggregationBuilders.terms(POSTS_AGGREGATION).field(BLOG_POST_ID_FIELD)
+                .size(filter.getSize())
+                .shardSize(filter.getSize() * TOP_RATED_SHARD_SIZE_FACTOR)
+                .minDocCount(filter.getMinCount())
+                .order(order)
+                .subAggregation(AggregationBuilders.stats(STATS_AGGREGATION).field(RATING_FIELD))
+                .subAggregation(AggregationBuilders.terms(HISTOGRAM_AGGREGATION).field(RATING_FIELD).size(BlogPostRating.MAX_RATING - BlogPostRating.MIN_RATING + 1));
+
+        // Rounded to the minute so the same request is repeated and ES can answer it from its shard request cache
+        final QueryBuilder query = filter.getWindow() == null
+                ? QueryBuilders.matchAllQuery()
+                : QueryBuilders.rangeQuery(TIMESTAMP_FIELD).gte("now-" + filter.getWindow().getSeconds() + "s/m");
+
+        return getClient().getAll(getIndex(), getType(), SearchQuery.SearchQueryBuilder.aSearchQuery()
+                .withSearchType(getSearchType())
+                .withQueryBuilder(QueryBuilders.constantScoreQuery(query))
+                .withSize(0)
+                .withAggregations(Collections.singletonList(aggregation))
+                .build()).thenApply(resp -> {
+
+            final List<RatingSummary> ranking = new ArrayList<>();
+            if (resp.isPresent() && resp.get().getAggregations() != null) {
+                final Terms posts = resp.get().getAggregations().get(POSTS_AGGREGATION);
+                for (Terms.Bucket post : posts.getBuckets()) {
+                    ranking.add(toSummary(post));
+                }
             }
+            return ranking;
+        });
+    }
+
+    private static RatingSummary toSummary(final Terms.Bucket post) {
+
+        final Stats stats = post.getAggregations().get(STATS_AGGREGATION);
+        final RatingSummary.RatingSummaryBuilder summary = RatingSummary.RatingSummaryBuilder.aRatingSummary()
+                .withBlogPostId(post.getKeyAsString())
+                .withCount(stats.getCount());
+        if (stats.getCount() > 0) {
+            summary.withAverage(stats.getAvg()).withMin((int) stats.getMin()).withMax((int) stats.getMax());
         }
-        return results;
+
+        final Terms histogram = post.getAggregations().get(HISTOGRAM_AGGREGATION);
+        for (Terms.Bucket rating : histogram.getBuckets()) {
+            summary.withRatingCount(rating.getKeyAsNumber().intValue(), rating.getDocCount());
+        }
+        return summary.build();
     }
 
     @Override
-    public BlogPostRating addToParentResource(final BlogPostRating resourceToCreate) {
+    public CompletableFuture<BlogPostRating> addToParentResource(final BlogPostRating resourceToCreate) {
         Preconditions.checkNotNull(resourceToCreate, "Blog post rating cannot be null");
         Preconditions.checkNotNull(resourceToCreate.getId(), "Blog post rating Id cannot be null");
         Preconditions.checkNotNull(resourceToCreate.getBlogPostId(), "Blog post Id cannot be null");
-        getClient().create(getIndex(), getType(), resourceToCreate.getId(), GSON.toJson(resourceToCreate));
-        return resourceToCreate;
+        return getClient().create(getIndex(), getType(), resourceToCreate.getId(), toSource(CODEC, resourceToCreate), WriteRequest.RefreshPolicy.NONE)
+                .thenApply(id -> resourceToCreate);
+    }
+
+    /**
+     * As {@link #addToParentResource(BlogPostRating)} for a rating whose id is derived from an idempotency key, so
+     * adding it again replays the first add rather than counting the rating twice. Ratings added through this
+     * instance recently are answered from memory. Otherwise ES turns down the second create and the rating is read back.
+     *
+     * @param resourceToCreate New rating with the id derived from the key
+     * @return Completes with the rating as first added and whether this was a replay, or fails with
+     * {@link ConflictException} if the key was first used for a different rating
+     */
+    public CompletableFuture<Created<BlogPostRating>> addToParentResourceOnce(final BlogPostRating resourceToCreate) {
+        Preconditions.checkNotNull(resourceToCreate, "Blog post rating cannot be null");
+        Preconditions.checkNotNull(resourceToCreate.getId(), "Blog post rating Id cannot be null");
+
+        final AtomicBoolean started = new AtomicBoolean();
+        return createdCache.get().get(resourceToCreate.getId(), id -> {
+            started.set(true);
+            return addToParentResource(resourceToCreate)
+                    .handle((created, failure) -> {
+                        if (failure == null) {
+                            return CompletableFuture.completedFuture(new Created<>(created, false));
+                        }
+                        if (!(rootCause(failure) instanceof VersionConflictEngineException)) {
+                            final CompletableFuture<Created<BlogPostRating>> failed = new CompletableFuture<>();
+                            failed.completeExceptionally(failure);
+                            return failed;
+                        }
+                        // Added by an attempt this instance no longer remembers, or through another instance
+                        return getClient().getById(getIndex(), getType(), id).thenApply(existing -> new Created<>(existing
+                                .filter(GetResponse::isExists)
+                                .map(found -> CODEC.decode(found.getSourceAsBytesRef()))
+                                .orElseThrow(() -> new ConflictException("Rating with this idempotency key is being deleted")), true));
+                    })
+                    .thenCompose(Function.identity());
+        }).thenApply(created -> {
+            if (!isSameRating(created.getValue(), resourceToCreate)) {
+                throw new ConflictException("Idempotency key was already used for a different rating");
+            }
+            return started.get() ? created : created.asReplay();
+        });
+    }
+
+    private static boolean isSameRating(final BlogPostRating created, final BlogPostRating retried) {
+
+        return Objects.equals(created.getRating(), retried.getRating())
+                && Objects.equals(created.getBlogPostId(), retried.getBlogPostId())
+                && Objects.equals(created.getUserId(), retried.getUserId());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Ratings that are added are counted in the rating summaries. A rating with an id already in use fails with 409
+     * rather than replacing the rating, so it is never counted twice.
+     * </p>
+     */
+    @Override
+    public CompletableFuture<BulkResult> addAllToParentResource(final List<BlogPostRating> resourcesToCreate) {
+        Preconditions.checkNotNull(resourcesToCreate, "Blog post ratings cannot be null");
+        final Map<String, byte[]> docs = new LinkedHashMap<>();
+        final Map<String, BlogPostRating> ratings = new HashMap<>();
+        for (BlogPostRating rating : resourcesToCreate) {
+            Preconditions.checkNotNull(rating.getId(), "Blog post rating Id cannot be null");
+            Preconditions.checkNotNull(rating.getBlogPostId(), "Blog post Id cannot be null");
+            docs.put(rating.getId(), toSource(CODEC, rating));
+            ratings.put(rating.getId(), rating);
+        }
+        return getClient().bulkCreate(getIndex(), getType(), docs).thenApply(items -> {
+            for (BulkItemResponse item : items) {
+                final BlogPostRating added = ratings.get(item.getId());
+                // Ratings out of range can't be summarised, as for the aggregations
+                if (!item.isFailed() && added.getRating() != null
+                        && added.getRating() >= BlogPostRating.MIN_RATING && added.getRating() <= BlogPostRating.MAX_RATING) {
+                    ratingCounters.record(added.getBlogPostId(), added.getRating());
+                }
+            }
+            return toBulkResult(items);
+        });
     }
 
     @Override
@@ -55,4 +361,19 @@ public class BlogPostRatingDao extends AbstractElasticsearchDao implements IChil
     protected String getType() {
         return "rating";
     }
+
+    @Override
+    protected XContentBuilder getMapping() throws IOException {
+
+        return XContentFactory.jsonBuilder().startObject()
+                .startObject("_all").field("enabled", false).endObject()
+                .startObject("properties")
+                    .startObject("id").field("type", "keyword").endObject()
+                    .startObject(BLOG_POST_ID_FIELD).field("type", "keyword").endObject()
+                    .startObject(RATING_FIELD).field("type", "integer").endObject()
+                    .startObject("userId").field("type", "keyword").endObject()
+                    .startObject(TIMESTAMP_FIELD).field("type", "date").field("format", DATE_FORMAT).endObject()
+                .endObject()
+                .endObject();
+    }
 }
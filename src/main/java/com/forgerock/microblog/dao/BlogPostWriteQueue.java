@@ -0,0 +1,284 @@
+package com.forgerock.microblog.dao;
+
+import com.forgerock.microblog.configuration.ApplicationProperties;
+import com.forgerock.microblog.es.SourceCodec;
+import com.forgerock.microblog.exception.ServiceUnavailableException;
+import com.forgerock.microblog.model.BlogPost;
+import com.forgerock.microblog.model.BulkResult;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Creates blog posts in the background so POST /blogposts can answer as soon as a post is queued, rather than when
+ * ES has indexed it. A single thread takes whatever has queued up, up to the batch size, and creates it with one bulk
+ * request, so the busier it gets the bigger the batches. Depending on the durability, posts are journaled to local
+ * disk before they are acknowledged and replayed on the next start if they weren't written.
+ */
+@Component
+public class BlogPostWriteQueue {
+
+    private final static Logger LOG = LoggerFactory.getLogger(BlogPostWriteQueue.class);
+
+    private static final long POLL_MILLIS = 100;
+
+    private static final long MIN_RETRY_MILLIS = 100;
+
+    private static final long MAX_RETRY_MILLIS = 10000;
+
+    private static final SourceCodec<BlogPost> CODEC = new SourceCodec<>(BlogPost.class);
+
+    @Autowired
+    private BlogPostDao blogPostDao;
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    // Bounded by the capacity when posts are submitted rather than here, so replayed posts always fit
+    private final BlockingQueue<Queued> queue = new LinkedBlockingQueue<>();
+
+    // Keeps the journal in the same order as the queue
+    private final Object submitLock = new Object();
+
+    private volatile boolean accepting;
+
+    // Null when posts are only held in memory
+    private WriteJournal journal;
+
+    private ExecutorService writer;
+
+    @PostConstruct
+    public void init() throws IOException {
+
+        final ApplicationProperties.WriteBehind config = applicationProperties.getWriteBehind();
+        if (!config.isEnabled()) {
+            return;
+        }
+        Preconditions.checkArgument(config.getQueueCapacity() > 0, "writeBehind.queueCapacity must be greater than 0");
+        Preconditions.checkArgument(config.getBatchSize() > 0, "writeBehind.batchSize must be greater than 0");
+
+        if (config.getDurability() != ApplicationProperties.WriteBehind.Durability.MEMORY) {
+            journal = new WriteJournal(Paths.get(config.getJournalDir()), config.getDurability() == ApplicationProperties.WriteBehind.Durability.FSYNC);
+            for (WriteJournal.Entry entry : journal.recover()) {
+                try {
+                    queue.add(new Queued(CODEC.decode(new BytesArray(entry.getData())), entry.getSeq()));
+                }
+                catch (UncheckedIOException e) {
+                    // Only the last line written before a crash can be incomplete
+                    LOG.warn("Skipping unreadable blog post in write journal: {}", e.getMessage());
+                }
+            }
+        }
+
+        writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("blogpost-writer-%d").setDaemon(true).build());
+        accepting = true;
+        writer.execute(this::drain);
+        LOG.info("Write behind started with queue capacity: {}, batch size: {}, durability: {}, queued from journal: {}",
+                config.getQueueCapacity(), config.getBatchSize(), config.getDurability(), queue.size());
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+
+        if (writer == null) {
+            return;
+        }
+        synchronized (submitLock) {
+            accepting = false;
+        }
+        writer.shutdown();
+
+        final long timeout = applicationProperties.getWriteBehind().getDrainTimeoutSeconds();
+        try {
+            if (!writer.awaitTermination(timeout, TimeUnit.SECONDS)) {
+                LOG.error("Timed out after {}s writing queued blog posts. {} blog posts not written{}", timeout, queue.size(),
+                        journal != null ? " will be written from the journal on the next start." : " are lost.");
+                writer.shutdownNow();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.shutdownNow();
+        }
+
+        if (journal != null) {
+            try {
+                journal.close();
+            }
+            catch (IOException e) {
+                LOG.error("Unable to close write journal", e);
+            }
+        }
+    }
+
+    /**
+     * @return True if new posts should be submitted here rather than created directly
+     */
+    public boolean isEnabled() {
+        return applicationProperties.getWriteBehind().isEnabled();
+    }
+
+    /**
+     * Queue a new post to be created. Returns once the post is as durable as configured.
+     *
+     * @param blogPost New post with its id and timestamp set
+     * @throws ServiceUnavailableException The queue is full or shutting down
+     * @throws UncheckedIOException        Unable to write to the journal
+     */
+    public void submit(final BlogPost blogPost) {
+        Preconditions.checkNotNull(blogPost, "Blog post cannot be null");
+        Preconditions.checkNotNull(blogPost.getId(), "id cannot be null");
+        Preconditions.checkState(writer != null, "Write behind is not enabled");
+
+        final byte[] source = journal != null ? CODEC.encode(blogPost, XContentType.JSON) : null;
+        final long seq;
+        try {
+            synchronized (submitLock) {
+                if (!accepting || queue.size() >= applicationProperties.getWriteBehind().getQueueCapacity()) {
+                    throw new ServiceUnavailableException("Too many blog posts waiting to be written. Try again shortly.");
+                }
+                seq = journal != null ? journal.append(source).getSeq() : -1;
+                queue.add(new Queued(blogPost, seq));
+            }
+            // Outside the lock so posts submitted meanwhile share the force to disk
+            if (journal != null) {
+                journal.sync(seq);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Unable to write blog post to the write journal", e);
+        }
+    }
+
+    /**
+     * @return Posts waiting to be written
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Write batches until stopped and everything queued has been written
+     */
+    private void drain() {
+
+        final int batchSize = applicationProperties.getWriteBehind().getBatchSize();
+        final List<Queued> batch = new ArrayList<>(batchSize);
+        try {
+            while (true) {
+                final Queued first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (!accepting) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                write(batch);
+                batch.clear();
+            }
+        }
+        catch (InterruptedException e) {
+            // Shutdown timed out. Anything journaled is written on the next start.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create every post in the batch, trying again with backoff while ES is unavailable or too busy. A post that
+     * already exists was written before, by an attempt whose result was lost or a journal replayed after a crash. Posts
+     * ES turns down for any other reason are logged and dropped, as they would fail again.
+     */
+    void write(final List<Queued> batch) throws InterruptedException {
+
+        List<Queued> remaining = batch;
+        long backoff = MIN_RETRY_MILLIS;
+        while (!remaining.isEmpty()) {
+            final List<Queued> retry = new ArrayList<>();
+            try {
+                final BulkResult result = blogPostDao.createAll(remaining.stream().map(Queued::getBlogPost).collect(Collectors.toList())).join();
+                for (int i = 0; i < remaining.size(); i++) {
+                    final BulkResult.Item item = result.getItems().get(i);
+                    if (!item.isFailed()) {
+                        continue;
+                    }
+                    if (item.getStatus() == HttpStatus.CONFLICT.value()) {
+                        LOG.debug("Queued blog post {} was already written", item.getId());
+                        continue;
+                    }
+                    if (item.getStatus() == HttpStatus.TOO_MANY_REQUESTS.value() || item.getStatus() >= HttpStatus.INTERNAL_SERVER_ERROR.value()) {
+                        retry.add(remaining.get(i));
+                    }
+                    else {
+                        LOG.error("Dropping queued blog post {} that ES turned down with status {}: {}", item.getId(), item.getStatus(), item.getError());
+                    }
+                }
+            }
+            catch (CompletionException | UncheckedIOException e) {
+                LOG.warn("Unable to write {} queued blog posts. Trying again in {}ms", remaining.size(), backoff, e);
+                retry.addAll(remaining);
+            }
+
+            remaining = retry;
+            if (!remaining.isEmpty()) {
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_RETRY_MILLIS);
+            }
+        }
+
+        if (journal != null) {
+            try {
+                journal.committed(batch.get(batch.size() - 1).getSeq());
+            }
+            catch (IOException e) {
+                // Only means the segment is kept and replayed on the next start. Posts already written then get 409.
+                LOG.warn("Unable to delete written segments of the write journal", e);
+            }
+        }
+    }
+
+    /**
+     * A post waiting to be written and its place in the journal
+     */
+    static final class Queued {
+
+        private final BlogPost blogPost;
+
+        private final long seq;
+
+        Queued(final BlogPost blogPost, final long seq) {
+            this.blogPost = blogPost;
+            this.seq = seq;
+        }
+
+        BlogPost getBlogPost() {
+            return blogPost;
+        }
+
+        long getSeq() {
+            return seq;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.forgerock.microblog.dao;
 
+import com.forgerock.microblog.model.BulkResult;
+
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * DAO for adding and getting child resources by parent resource
@@ -11,15 +14,23 @@ public interface IChildResourceDao<Child> {
      * Get all child resources by parent id
      *
      * @param parentId Parent Id
-     * @return Child resources
+     * @return Completes with child resources
      */
-    List<Child> getAllByParentId(String parentId);
+    CompletableFuture<List<Child>> getAllByParentId(String parentId);
 
     /**
      * Add new child resource to parent resource (parent resource id should be inside resource object)
      *
      * @param child    Child resource with no id
-     * @return Created child resource with generated child id
+     * @return Completes with created child resource with generated child id
+     */
+    CompletableFuture<Child> addToParentResource(Child child);
+
+    /**
+     * Add many new child resources in as few round trips to the data store as possible
+     *
+     * @param children Child resources with ids and parent resource ids set
+     * @return Completes with result for each child in the same order
      */
-    Child addToParentResource(Child child);
+    CompletableFuture<BulkResult> addAllToParentResource(List<Child> children);
 }
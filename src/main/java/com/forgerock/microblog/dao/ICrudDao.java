@@ -1,12 +1,17 @@
 package com.forgerock.microblog.dao;
 
 import com.forgerock.microblog.exception.NotFoundException;
+import com.forgerock.microblog.model.BulkResult;
+import com.forgerock.microblog.model.ResultPage;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * CRUD operations for data store
+ * CRUD operations for data store. Operations are non-blocking and complete the returned future when the data store responds.
  */
 public interface ICrudDao<T, K> {
 
@@ -14,40 +19,64 @@ public interface ICrudDao<T, K> {
      * Get resource by unique id
      *
      * @param id Unique id of post
-     * @return Resource matching id or empty if not found
+     * @return Completes with resource matching id or empty if not found
      */
-    Optional<T> getById(String id);
+    CompletableFuture<Optional<T>> getById(String id);
+
+    /**
+     * Get many resources by unique id in one round trip to the data store
+     *
+     * @param ids Unique ids. Duplicates are only looked up once.
+     * @return Completes with each resource keyed by id in the order requested. Value is empty if not found.
+     */
+    CompletableFuture<Map<String, Optional<T>>> getByIds(Collection<String> ids);
 
     /**
      * Get all resources filtered and sorted with provided parameter
      *
      * @param sortFilter Sort and filter criteria. If null then no sorting or filtering.
-     * @return List of sorted resources or empty list if no matches
+     * @return Completes with list of sorted resources or empty list if no matches
+     */
+    CompletableFuture<List<T>> getAll(K sortFilter);
+
+    /**
+     * Get one page of resources filtered and sorted with provided parameter
+     *
+     * @param sortFilter Sort, filter and paging criteria
+     * @return Completes with the page of resources and a cursor for the next page if there may be more
      */
-    List<T> getAll(K sortFilter);
+    CompletableFuture<ResultPage<T>> getPage(K sortFilter);
 
     /**
      * If Id is null then create a new resource with generated id.
      *
      * @param resourceToCreate New resource to create
-     * @return Created/updated resource
+     * @return Completes with created/updated resource
+     */
+    CompletableFuture<T> create(T resourceToCreate);
+
+    /**
+     * Create many new resources in as few round trips to the data store as possible. Ids must already be set.
+     *
+     * @param resourcesToCreate New resources to create
+     * @return Completes with result for each resource in the same order. A failure of one resource does not stop the others.
      */
-    T create(T resourceToCreate);
+    CompletableFuture<BulkResult> createAll(List<T> resourcesToCreate);
 
     /**
-     * Update an existing resource
+     * Update an existing resource. Completes exceptionally with {@link NotFoundException} if no resource with this id could be found.
      *
      * @param resourceToUpdate Resource with updated fields. Id must be present and exist.
-     * @return Updated resource
-     * @throws NotFoundException No resource with this id could be found
+     * @return Completes with updated resource
      */
-    T update(T resourceToUpdate) throws NotFoundException;
+    CompletableFuture<T> update(T resourceToUpdate);
 
     /**
      * Delete resource with specified id. If id does not exist method does nothing and is therefore idempotent.
      *
      * @param id Unique id
+     * @return Completes when deleted
      */
-    void delete(String id) throws NotFoundException;
+    CompletableFuture<Void> delete(String id);
 
 }
@@ -1,6 +1,7 @@
 package com.forgerock.microblog.dao;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * For Daos that implement text search
@@ -11,7 +12,8 @@ public interface ITextSearchDao<T> {
      * Search for matching text in supported fields
      *
      * @param searchTerm Search term
-     * @return Results
+     * @param fields     Fields to return for each result or null/empty for all fields
+     * @return Completes with results
      */
-    List<T> search(String searchTerm);
+    CompletableFuture<List<T>> search(String searchTerm, List<String> fields);
 }
@@ -0,0 +1,451 @@
+package com.forgerock.microblog.dao;
+
+import com.forgerock.microblog.configuration.ApplicationProperties;
+import com.forgerock.microblog.exception.BadRequestException;
+import com.forgerock.microblog.model.BlogPostRating;
+import com.forgerock.microblog.model.RatingSummary;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts ratings in memory so reading a blog post's score doesn't mean aggregating every rating of it. Counters are
+ * striped so threads rating the same post don't contend, and are added to the post's summary document in ES in
+ * batches by a single background thread.
+ * <p>
+ * Scores are served from memory: the summary last read from ES plus the ratings counted here since. Summaries read are
+ * kept in a bounded cache and read again once they expire, to include ratings counted by other instances. Only rating
+ * a post creates counters for it, so asking about many posts doesn't grow memory beyond the cache.
+ * </p>
+ * <p>
+ * Posts rated before ratings were counted have no summary until they are rated again. Until then their ratings are
+ * recounted with an aggregation, and the summary is seeded from the same aggregation when it is first written. A
+ * rating counted by another instance but not yet flushed when a summary is seeded is counted twice.
+ * </p>
+ */
+@Component
+public class RatingCounters {
+
+    private final static Logger LOG = LoggerFactory.getLogger(RatingCounters.class);
+
+    private static final int SCORES = RatingSummaryDao.SCORES;
+
+    @Autowired
+    private RatingSummaryDao ratingSummaryDao;
+
+    @Autowired
+    private BlogPostRatingDao blogPostRatingDao;
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    private final ConcurrentMap<String, Tally> tallies = new ConcurrentHashMap<>();
+
+    // Tallies dropped from the map by the last flush. A rating counted on one just as it was dropped is moved to the
+    // post's new tally by the next flush. Only used by the flush thread.
+    private List<Map.Entry<String, Tally>> retired = new ArrayList<>();
+
+    // Summaries read from ES by post id. Created on first use as it is sized from the properties.
+    private final Supplier<Cache<String, Snapshot>> snapshots = Suppliers.memoize(() -> {
+        final ApplicationProperties.CacheSpec spec = applicationProperties.getCache().getRatingSummaries();
+        return CacheBuilder.newBuilder()
+                .maximumSize(spec.getMaxSize())
+                .expireAfterWrite(spec.getTtlSeconds(), TimeUnit.SECONDS)
+                .<String, Snapshot>build();
+    });
+
+    private ScheduledExecutorService flushScheduler;
+
+    @PostConstruct
+    public void init() {
+
+        final long interval = applicationProperties.getRatings().getFlushIntervalMillis();
+        flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("rating-counters-%d").setDaemon(true).build());
+        flushScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                flush().join();
+            }
+            catch (RuntimeException e) {
+                LOG.warn("Unable to flush rating counts. Will try again in {}ms", interval, e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+
+        flushScheduler.shutdownNow();
+        final long timeout = applicationProperties.getElasticsearch().getBulk().getCloseTimeoutSeconds();
+        try {
+            if (flushScheduler.awaitTermination(timeout, TimeUnit.SECONDS)) {
+                flush().get(timeout, TimeUnit.SECONDS);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted flushing rating counts on shutdown", e);
+        }
+        catch (ExecutionException | TimeoutException e) {
+            LOG.error("Unable to flush rating counts on shutdown. Recent ratings are missing from the summaries.", e);
+        }
+    }
+
+    /**
+     * Count a rating. Doesn't block or wait on ES.
+     *
+     * @param blogPostId Blog post id
+     * @param rating     Score
+     */
+    public void record(final String blogPostId, final int rating) {
+        Preconditions.checkNotNull(blogPostId, "blogPostId cannot be null");
+        Preconditions.checkArgument(rating >= BlogPostRating.MIN_RATING && rating <= BlogPostRating.MAX_RATING, "rating out of range: %s", rating);
+
+        // Only lock the map when the post has no tally yet
+        Tally tally = tallies.get(blogPostId);
+        if (tally == null) {
+            tally = tallies.computeIfAbsent(blogPostId, id -> new Tally());
+        }
+        tally.recorded[rating - BlogPostRating.MIN_RATING].increment();
+    }
+
+    /**
+     * @param blogPostId Blog post id
+     * @return Completes with the statistics of the ratings for the blog post
+     */
+    public CompletableFuture<RatingSummary> getSummary(final String blogPostId) {
+        Preconditions.checkNotNull(blogPostId, "blogPostId cannot be null");
+
+        return getSummaries(Collections.singletonList(blogPostId)).thenApply(summaries -> summaries.get(blogPostId));
+    }
+
+    /**
+     * Statistics of the ratings for each blog post. Served from memory when the summaries have been read recently,
+     * otherwise with one request to ES for all that haven't.
+     *
+     * @param blogPostIds Blog post ids
+     * @return Completes with the statistics for each blog post in the order requested. Blog posts without ratings
+     * (including ones that don't exist) have a count of 0.
+     * @throws BadRequestException Too many blog posts
+     */
+    public CompletableFuture<Map<String, RatingSummary>> getSummaries(final Collection<String> blogPostIds) {
+        Preconditions.checkNotNull(blogPostIds, "blogPostIds cannot be null");
+
+        final List<String> uniqueIds = new ArrayList<>(new LinkedHashSet<>(blogPostIds));
+        if (uniqueIds.size() > BlogPostRatingDao.MAX_SUMMARIES) {
+            throw new BadRequestException(String.format("No more than %d blog posts can be summarised in one request", BlogPostRatingDao.MAX_SUMMARIES));
+        }
+
+        final Map<String, long[]> counts = new HashMap<>();
+        // Tally of each post to read, null for posts not rated here. Never creates tallies, only rating does.
+        final Map<String, Tally> toRead = new LinkedHashMap<>();
+        for (String id : uniqueIds) {
+            final Tally tally = tallies.get(id);
+            final Snapshot snapshot = snapshots.get().getIfPresent(id);
+            // A snapshot only goes with the tally it was read with. A new tally starts from nothing flushed.
+            if (snapshot != null && snapshot.tally == tally) {
+                counts.put(id, snapshot.counts());
+            }
+            else {
+                toRead.put(id, tally);
+            }
+        }
+        if (toRead.isEmpty()) {
+            return CompletableFuture.completedFuture(toSummaries(uniqueIds, counts));
+        }
+
+        // What ES held of the ratings counted here when the summaries were read
+        final Map<String, long[]> flushedBefore = new HashMap<>();
+        toRead.forEach((id, tally) -> flushedBefore.put(id, tally != null ? tally.flushed : null));
+
+        return ratingSummaryDao.getCounts(toRead.keySet()).thenCompose(summaries -> {
+            toRead.forEach((id, tally) -> {
+                if (tally != null && summaries.containsKey(id)) {
+                    tally.stored = true;
+                }
+            });
+            return withRecounts(toRead, summaries);
+        }).thenApply(stored -> {
+            toRead.forEach((id, tally) -> {
+                final long[] flushed = tally != null ? tally.flushed : null;
+                final Snapshot snapshot = new Snapshot(stored.getOrDefault(id, new long[SCORES]), tally, flushed);
+                // A flush that finished during the read may or may not be in what was read, so read again next time
+                if (flushed == flushedBefore.get(id)) {
+                    snapshots.get().put(id, snapshot);
+                }
+                counts.put(id, snapshot.counts());
+            });
+            return toSummaries(uniqueIds, counts);
+        });
+    }
+
+    /**
+     * Add what a summary would hold to the summaries read, for posts that don't have one: the ratings in ES less those
+     * counted here and not yet flushed, which are added on top as for any summary.
+     */
+    private CompletableFuture<Map<String, long[]>> withRecounts(final Map<String, Tally> tallies, final Map<String, long[]> summaries) {
+
+        final Map<String, long[]> unflushed = new LinkedHashMap<>();
+        tallies.forEach((id, tally) -> {
+            if (!summaries.containsKey(id)) {
+                unflushed.put(id, tally != null ? tally.unflushed(tally.recorded()) : new long[SCORES]);
+            }
+        });
+        if (unflushed.isEmpty()) {
+            return CompletableFuture.completedFuture(summaries);
+        }
+
+        return recount(unflushed).thenApply(recounted -> {
+            final Map<String, long[]> stored = new HashMap<>(summaries);
+            stored.putAll(recounted);
+            return stored;
+        });
+    }
+
+    /**
+     * Recount the ratings in ES of each post with an aggregation
+     *
+     * @param counted Ratings of each post already counted elsewhere, which are taken off
+     * @return Completes with the counts by score, never below 0
+     */
+    private CompletableFuture<Map<String, long[]>> recount(final Map<String, long[]> counted) {
+
+        final List<CompletableFuture<Map<String, RatingSummary>>> futures = new ArrayList<>();
+        for (List<String> ids : Lists.partition(new ArrayList<>(counted.keySet()), BlogPostRatingDao.MAX_SUMMARIES)) {
+            futures.add(blogPostRatingDao.getSummariesByParentIds(ids));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).thenApply(allDone -> {
+            final Map<String, long[]> counts = new HashMap<>();
+            for (CompletableFuture<Map<String, RatingSummary>> future : futures) {
+                future.join().forEach((id, summary) -> {
+                    final long[] taken = counted.get(id);
+                    final long[] recounted = new long[SCORES];
+                    for (int i = 0; i < SCORES; i++) {
+                        recounted[i] = Math.max(0, summary.getHistogram().getOrDefault(BlogPostRating.MIN_RATING + i, 0L) - taken[i]);
+                    }
+                    counts.put(id, recounted);
+                });
+            }
+            return counts;
+        });
+    }
+
+    private static Map<String, RatingSummary> toSummaries(final List<String> blogPostIds, final Map<String, long[]> counts) {
+
+        final Map<String, RatingSummary> summaries = new LinkedHashMap<>();
+        blogPostIds.forEach(id -> summaries.put(id, toSummary(id, counts.get(id))));
+        return summaries;
+    }
+
+    private static RatingSummary toSummary(final String blogPostId, final long[] counts) {
+
+        final RatingSummary.RatingSummaryBuilder summary = RatingSummary.RatingSummaryBuilder.aRatingSummary().withBlogPostId(blogPostId);
+        long count = 0;
+        long sum = 0;
+        Integer min = null;
+        Integer max = null;
+        for (int i = 0; i < SCORES; i++) {
+            final int score = BlogPostRating.MIN_RATING + i;
+            summary.withRatingCount(score, counts[i]);
+            if (counts[i] > 0) {
+                count += counts[i];
+                sum += score * counts[i];
+                min = min == null ? score : min;
+                max = score;
+            }
+        }
+        summary.withCount(count).withMin(min).withMax(max);
+        if (count > 0) {
+            summary.withAverage((double) sum / count);
+        }
+        return summary.build();
+    }
+
+    /**
+     * Add the ratings counted since the last flush to the summaries in ES, one bulk request for all posts. Posts that
+     * fail are tried again next time. Tallies without new ratings for the idle time are dropped from memory.
+     *
+     * @return Completes when the counts have been written
+     */
+    CompletableFuture<Void> flush() {
+
+        final ApplicationProperties.Ratings config = applicationProperties.getRatings();
+        final long idleRounds = Math.max(1, TimeUnit.MINUTES.toMillis(config.getIdleMinutes()) / config.getFlushIntervalMillis());
+
+        for (Map.Entry<String, Tally> entry : retired) {
+            final long[] left = entry.getValue().unflushed(entry.getValue().recorded());
+            if (!isZero(left)) {
+                final Tally current = tallies.computeIfAbsent(entry.getKey(), id -> new Tally());
+                for (int i = 0; i < SCORES; i++) {
+                    current.recorded[i].add(left[i]);
+                }
+            }
+        }
+        retired = new ArrayList<>();
+
+        final Map<String, long[]> deltas = new LinkedHashMap<>();
+        final Map<String, long[]> unseeded = new LinkedHashMap<>();
+        final Map<String, Map.Entry<Tally, long[]>> flushing = new HashMap<>();
+        for (Map.Entry<String, Tally> entry : tallies.entrySet()) {
+            final Tally tally = entry.getValue();
+            final long[] recorded = tally.recorded();
+            final long[] delta = tally.unflushed(recorded);
+            if (!isZero(delta)) {
+                tally.idleRounds = 0;
+                deltas.put(entry.getKey(), delta);
+                flushing.put(entry.getKey(), new AbstractMap.SimpleImmutableEntry<>(tally, recorded));
+                if (!tally.stored) {
+                    unseeded.put(entry.getKey(), delta);
+                }
+            }
+            else if (++tally.idleRounds >= idleRounds && tallies.remove(entry.getKey(), tally)) {
+                retired.add(entry);
+            }
+        }
+        if (deltas.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        LOG.debug("Flushing rating counts for {} blog posts, {} of them not known to have a summary", deltas.size(), unseeded.size());
+        // Summaries that don't exist yet start from the ratings made before they were counted
+        final CompletableFuture<Map<String, long[]>> seeds = unseeded.isEmpty()
+                ? CompletableFuture.completedFuture(Collections.<String, long[]>emptyMap())
+                : recount(unseeded);
+        return seeds.thenCompose(seed -> ratingSummaryDao.addCounts(deltas, seed)).thenAccept(items -> {
+            for (BulkItemResponse item : items) {
+                if (item.isFailed()) {
+                    LOG.warn("Unable to add rating counts for blog post {}: {}", item.getId(), item.getFailureMessage());
+                    continue;
+                }
+                final Map.Entry<Tally, long[]> flushed = flushing.get(item.getId());
+                flushed.getKey().flushed = flushed.getValue();
+                flushed.getKey().stored = true;
+            }
+        });
+    }
+
+    /**
+     * @return Number of blog posts with counters in memory
+     */
+    int size() {
+        return tallies.size();
+    }
+
+    private static boolean isZero(final long[] counts) {
+
+        for (long count : counts) {
+            if (count != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ratings of one blog post
+     */
+    private static final class Tally {
+
+        // Counted here since the tally was created, by score. Only ever increase.
+        private final LongAdder[] recorded = new LongAdder[SCORES];
+
+        // How many of the recorded ratings are in ES. Replaced, never changed, and only by the flush thread.
+        private volatile long[] flushed = new long[SCORES];
+
+        // Whether ES has a summary for the post, so it includes the ratings made before they were counted
+        private volatile boolean stored;
+
+        // Flushes since the last rating. Only used by the flush thread.
+        private long idleRounds;
+
+        private Tally() {
+            for (int i = 0; i < SCORES; i++) {
+                recorded[i] = new LongAdder();
+            }
+        }
+
+        private long[] recorded() {
+
+            final long[] counts = new long[SCORES];
+            for (int i = 0; i < SCORES; i++) {
+                counts[i] = recorded[i].sum();
+            }
+            return counts;
+        }
+
+        private long[] unflushed(final long[] recorded) {
+
+            final long[] flushedCounts = flushed;
+            final long[] counts = new long[SCORES];
+            for (int i = 0; i < SCORES; i++) {
+                counts[i] = recorded[i] - flushedCounts[i];
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Summary read from ES
+     */
+    private static final class Snapshot {
+
+        private final long[] stored;
+
+        // Tally of the post when it was read, null if it had none
+        private final Tally tally;
+
+        // Ratings counted on the tally that had been flushed when it was read, so were included
+        private final long[] flushed;
+
+        private Snapshot(final long[] stored, final Tally tally, final long[] flushed) {
+            this.stored = stored;
+            this.tally = tally;
+            this.flushed = flushed;
+        }
+
+        /**
+         * @return What ES held when the snapshot was read, plus the ratings counted here that it didn't include
+         */
+        private long[] counts() {
+
+            if (tally == null) {
+                return stored.clone();
+            }
+            final long[] counts = tally.recorded();
+            for (int i = 0; i < SCORES; i++) {
+                counts[i] = stored[i] + counts[i] - flushed[i];
+            }
+            return counts;
+        }
+    }
+}
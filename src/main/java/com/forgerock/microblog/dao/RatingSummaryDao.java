@@ -0,0 +1,151 @@
+package com.forgerock.microblog.dao;
+
+import com.forgerock.microblog.es.AbstractElasticsearchDao;
+import com.forgerock.microblog.model.BlogPostRating;
+import com.google.common.base.Preconditions;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A document per blog post holding the number of ratings of each score. Counts are only ever added to, by scripted
+ * updates, so instances adding at the same time don't overwrite each other.
+ */
+@Component
+public class RatingSummaryDao extends AbstractElasticsearchDao {
+
+    private static final String BLOG_POST_ID_FIELD = "blogPostId";
+
+    private static final String COUNTS_FIELD = "counts";
+
+    private static final String DELTAS_PARAM = "deltas";
+
+    // Adds the deltas to the counts, starting from 0 for scores not counted before
+    private static final String ADD_COUNTS_SCRIPT = "for (def entry : params." + DELTAS_PARAM + ".entrySet()) {"
+            + " def current = ctx._source." + COUNTS_FIELD + "[entry.getKey()];"
+            + " ctx._source." + COUNTS_FIELD + "[entry.getKey()] = (current == null ? 0 : current) + entry.getValue(); }";
+
+    // Scores a blog post can be given
+    static final int SCORES = BlogPostRating.MAX_RATING - BlogPostRating.MIN_RATING + 1;
+
+    /**
+     * @param blogPostIds Blog post ids
+     * @return Completes with the number of ratings of each score, lowest first, for each blog post that has a summary
+     */
+    public CompletableFuture<Map<String, long[]>> getCounts(final Collection<String> blogPostIds) {
+        Preconditions.checkNotNull(blogPostIds, "blogPostIds cannot be null");
+
+        final List<String> uniqueIds = new ArrayList<>(new LinkedHashSet<>(blogPostIds));
+        return getClient().multiGet(getIndex(), getType(), uniqueIds).thenApply(responses -> {
+            final Map<String, long[]> counts = new HashMap<>();
+            for (Optional<GetResponse> response : responses) {
+                response.filter(found -> found.getSourceAsMap() != null)
+                        .ifPresent(found -> counts.put(found.getId(), toCounts(found.getSourceAsMap())));
+            }
+            return counts;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long[] toCounts(final Map<String, Object> source) {
+
+        final long[] counts = new long[SCORES];
+        final Map<String, Object> stored = (Map<String, Object>) source.getOrDefault(COUNTS_FIELD, Collections.emptyMap());
+        for (int score = BlogPostRating.MIN_RATING; score <= BlogPostRating.MAX_RATING; score++) {
+            final Object count = stored.get(String.valueOf(score));
+            counts[score - BlogPostRating.MIN_RATING] = count instanceof Number ? ((Number) count).longValue() : 0;
+        }
+        return counts;
+    }
+
+    /**
+     * Add to the counts of each blog post, creating summaries that don't exist yet
+     *
+     * @param deltas Number of new ratings of each score, lowest first, by blog post id
+     * @return Completes with an item response for each blog post. Failed items are reported per item.
+     */
+    public CompletableFuture<List<BulkItemResponse>> addCounts(final Map<String, long[]> deltas) {
+
+        return addCounts(deltas, Collections.emptyMap());
+    }
+
+    /**
+     * Add to the counts of each blog post. A summary that doesn't exist yet starts from its seed, e.g. the ratings
+     * made before they were counted, rather than from 0. Seeds of summaries that exist are ignored.
+     *
+     * @param deltas Number of new ratings of each score, lowest first, by blog post id
+     * @param seeds  Counts a new summary starts from, lowest first, by blog post id. 0 for blog posts not in it.
+     * @return Completes with an item response for each blog post. Failed items are reported per item.
+     */
+    public CompletableFuture<List<BulkItemResponse>> addCounts(final Map<String, long[]> deltas, final Map<String, long[]> seeds) {
+        Preconditions.checkNotNull(deltas, "deltas cannot be null");
+        Preconditions.checkNotNull(seeds, "seeds cannot be null");
+
+        final Map<String, Script> scripts = new LinkedHashMap<>();
+        deltas.forEach((blogPostId, delta) -> {
+            Preconditions.checkArgument(delta.length == SCORES, "Expected a count for each of %s scores", SCORES);
+            scripts.put(blogPostId, new Script(ScriptType.INLINE, Script.DEFAULT_SCRIPT_LANG, ADD_COUNTS_SCRIPT,
+                    Collections.singletonMap(DELTAS_PARAM, toByScore(delta))));
+        });
+
+        return getClient().bulkScriptedUpsert(getIndex(), getType(), scripts, blogPostId -> {
+            final Map<String, Object> upsert = new LinkedHashMap<>();
+            upsert.put(BLOG_POST_ID_FIELD, blogPostId);
+            upsert.put(COUNTS_FIELD, seeds.containsKey(blogPostId) ? toByScore(seeds.get(blogPostId)) : new HashMap<>());
+            return upsert;
+        });
+    }
+
+    private static Map<String, Long> toByScore(final long[] counts) {
+
+        final Map<String, Long> byScore = new LinkedHashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                byScore.put(String.valueOf(BlogPostRating.MIN_RATING + i), counts[i]);
+            }
+        }
+        return byScore;
+    }
+
+    @Override
+    protected String getIndex() {
+        return "microblog";
+    }
+
+    @Override
+    protected String getType() {
+        return "ratingsummary";
+    }
+
+    @Override
+    protected XContentBuilder getMapping() throws IOException {
+
+        final XContentBuilder mapping = XContentFactory.jsonBuilder().startObject()
+                .startObject("_all").field("enabled", false).endObject()
+                .startObject("properties")
+                    .startObject(BLOG_POST_ID_FIELD).field("type", "keyword").endObject()
+                    .startObject(COUNTS_FIELD).startObject("properties");
+        for (int score = BlogPostRating.MIN_RATING; score <= BlogPostRating.MAX_RATING; score++) {
+            mapping.startObject(String.valueOf(score)).field("type", "long").endObject();
+        }
+        return mapping.endObject().endObject()
+                .endObject()
+                .endObject();
+    }
+}
@@ -0,0 +1,263 @@
+package com.forgerock.microblog.dao;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only log on local disk of entries that have been acknowledged but not yet written to ES, so they survive a
+ * restart. Entries are lines in segment files of up to {@link #SEGMENT_ENTRIES} lines. A segment is deleted once every
+ * entry in it has been written to ES.
+ * <p>
+ * Appends only reach the OS, which is enough to survive the application crashing. With fsync each append can also be
+ * forced to disk, and concurrent appends share one force.
+ * </p>
+ * Only one process may use a directory.
+ */
+class WriteJournal implements Closeable {
+
+    private final static Logger LOG = LoggerFactory.getLogger(WriteJournal.class);
+
+    static final int SEGMENT_ENTRIES = 10000;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.ndjson");
+
+    private static final byte[] NEW_LINE = {'\n'};
+
+    private final Path dir;
+
+    private final boolean fsync;
+
+    // Segments holding entries not yet written to ES, oldest first. The last is the one appended to.
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    // Held while forcing to disk, before this. Lets appends continue during a force.
+    private final Object syncLock = new Object();
+
+    private FileChannel current;
+
+    private long nextSegment;
+
+    private long nextSeq;
+
+    private long committedSeq = -1;
+
+    // Guarded by syncLock
+    private long syncedSeq = -1;
+
+    /**
+     * @param dir   Directory of the segments. Created if it doesn't exist.
+     * @param fsync True to force each append to disk when {@link #sync(long)} is called
+     */
+    WriteJournal(final Path dir, final boolean fsync) throws IOException {
+        Preconditions.checkNotNull(dir, "dir cannot be null");
+
+        this.dir = Files.createDirectories(dir);
+        this.fsync = fsync;
+    }
+
+    /**
+     * Entries left by the last run, oldest first. They are numbered as if appended again but stay in their own
+     * segments, which are deleted as usual once the entries are committed. Call once, before the first append.
+     *
+     * @return Entries not written to ES by the last run
+     */
+    synchronized List<Entry> recover() throws IOException {
+        Preconditions.checkState(current == null, "recover must be called before appending");
+
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            stream.forEach(file -> {
+                if (SEGMENT_NAME.matcher(file.getFileName().toString()).matches()) {
+                    files.add(file);
+                }
+            });
+        }
+        files.sort((first, second) -> Long.compare(segmentNumber(first), segmentNumber(second)));
+
+        final List<Entry> entries = new ArrayList<>();
+        for (Path file : files) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // A line cut short by a crash mid append has no newline and can't be parsed. Left to the caller.
+                    if (!line.isEmpty()) {
+                        entries.add(new Entry(nextSeq++, line.getBytes(StandardCharsets.UTF_8)));
+                    }
+                }
+            }
+            segments.add(new Segment(file, nextSeq - 1));
+            nextSegment = segmentNumber(file) + 1;
+        }
+        if (!entries.isEmpty()) {
+            LOG.info("Recovered {} entries from {} journal segments in {}", entries.size(), files.size(), dir);
+        }
+        return entries;
+    }
+
+    private static long segmentNumber(final Path file) {
+
+        final Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    /**
+     * @param data One entry. Must not contain a new line.
+     * @return The entry with its sequence number
+     */
+    synchronized Entry append(final byte[] data) throws IOException {
+        Preconditions.checkNotNull(data, "data cannot be null");
+
+        if (current == null || segments.getLast().entries >= SEGMENT_ENTRIES) {
+            rotate();
+        }
+        writeFully(ByteBuffer.wrap(data));
+        writeFully(ByteBuffer.wrap(NEW_LINE));
+
+        final Entry entry = new Entry(nextSeq++, data);
+        final Segment segment = segments.getLast();
+        segment.lastSeq = entry.seq;
+        segment.entries++;
+        return entry;
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            current.write(buffer);
+        }
+    }
+
+    private void rotate() throws IOException {
+
+        if (current != null) {
+            if (fsync) {
+                current.force(false);
+            }
+            current.close();
+        }
+        final Path file = dir.resolve("segment-" + nextSegment++ + ".ndjson");
+        current = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segments.add(new Segment(file, nextSeq - 1));
+    }
+
+    /**
+     * With fsync, wait until the entry is on disk. Callers that arrive during a force wait for the next one, which
+     * covers all of their entries. Does nothing without fsync.
+     *
+     * @param seq Sequence number of the entry
+     */
+    void sync(final long seq) throws IOException {
+
+        if (!fsync) {
+            return;
+        }
+        synchronized (syncLock) {
+            while (syncedSeq < seq) {
+                final long target;
+                final FileChannel channel;
+                synchronized (this) {
+                    if (current == null) {
+                        throw new ClosedChannelException();
+                    }
+                    target = nextSeq - 1;
+                    channel = current;
+                }
+                try {
+                    channel.force(false);
+                    syncedSeq = Math.max(syncedSeq, target);
+                }
+                catch (ClosedChannelException e) {
+                    // Rotated meanwhile, which forced it. Force the new segment.
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that entries up to and including the sequence number have been written to ES, deleting the segments
+     * holding only those
+     *
+     * @param seq Sequence number of the last entry written. Entries must be committed in order.
+     */
+    synchronized void committed(final long seq) throws IOException {
+
+        committedSeq = Math.max(committedSeq, seq);
+        while (!segments.isEmpty() && segments.getFirst().lastSeq <= committedSeq && segments.size() > (current != null ? 1 : 0)) {
+            Files.deleteIfExists(segments.removeFirst().file);
+        }
+    }
+
+    /**
+     * Close the segment being appended to. It is deleted too if all its entries have been committed.
+     */
+    @Override
+    public void close() throws IOException {
+
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (current == null) {
+                    return;
+                }
+                current.close();
+                current = null;
+                committed(committedSeq);
+            }
+        }
+    }
+
+    /**
+     * A line of the journal
+     */
+    static final class Entry {
+
+        private final long seq;
+
+        private final byte[] data;
+
+        private Entry(final long seq, final byte[] data) {
+            this.seq = seq;
+            this.data = data;
+        }
+
+        long getSeq() {
+            return seq;
+        }
+
+        byte[] getData() {
+            return data;
+        }
+    }
+
+    private static final class Segment {
+
+        private final Path file;
+
+        private long lastSeq;
+
+        private int entries;
+
+        private Segment(final Path file, final long lastSeq) {
+            this.file = file;
+            this.lastSeq = lastSeq;
+        }
+    }
+}
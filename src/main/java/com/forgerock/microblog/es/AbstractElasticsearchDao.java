@@ -1,20 +1,32 @@
 package com.forgerock.microblog.es;
 
-import com.forgerock.microblog.model.DateTimeConstants;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.forgerock.microblog.model.BulkResult;
+import com.forgerock.microblog.model.RawJson;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * Super class for ES DAOs
  */
 public abstract class AbstractElasticsearchDao {
 
-    // For turning results into model objects
-    protected static final Gson GSON = new GsonBuilder()
-            .setDateFormat(DateTimeConstants.ISO_OFFSET_DATE_TIME)
-            .create();
-
     @Autowired
     private ElasticsearchClient elasticsearchClient;
 
@@ -28,4 +40,107 @@ public abstract class AbstractElasticsearchDao {
     /** Type name */
     protected abstract String getType();
 
+    /**
+     * Pattern matching every index the DAO writes to. Used by the index template.
+     */
+    protected String getIndexPattern() {
+        return getIndex();
+    }
+
+    /**
+     * Alias added to every index matching the pattern when the DAO spreads documents over several indices.
+     * {@link #getIndex()} should then return the alias for reads.
+     *
+     * @return Alias or null if documents are in a single index
+     */
+    protected String getIndexAlias() {
+        return null;
+    }
+
+    /**
+     * Explicit mapping for the type, installed in the index template on startup
+     *
+     * @see IndexTemplateInstaller
+     */
+    protected abstract XContentBuilder getMapping() throws IOException;
+
+    /**
+     * Search type for filter and lookup queries. These don't score so there is no need for the extra DFS round trip
+     * to gather term statistics from every shard.
+     */
+    protected SearchType getSearchType() {
+        return SearchType.QUERY_THEN_FETCH;
+    }
+
+    /**
+     * Search type for relevance scored text searches, where term statistics should be consistent across shards
+     */
+    protected SearchType getTextSearchType() {
+        return SearchType.DFS_QUERY_THEN_FETCH;
+    }
+
+    /**
+     * Get the underlying ES exception from a failed future
+     */
+    protected static Throwable rootCause(final Throwable failure) {
+        return ElasticsearchClient.unwrap(failure);
+    }
+
+    /**
+     * Turn ES bulk item responses into a REST friendly result
+     */
+    protected static BulkResult toBulkResult(final List<BulkItemResponse> itemResponses) {
+
+        return new BulkResult(itemResponses.stream()
+                .map(item -> item.isFailed()
+                        ? new BulkResult.Item(item.getId(), item.getFailure().getStatus().getStatus(), item.getFailureMessage())
+                        : new BulkResult.Item(item.getId(), HttpStatus.CREATED.value(), null))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Version of a list of hits, from their ids and versions. The search must ask for versions.
+     *
+     * @return Hash that changes when a hit is added, removed, reordered or changed
+     */
+    protected static String toVersion(final SearchHit[] hits) {
+
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (SearchHit hit : hits) {
+            hasher.putString(hit.getId(), StandardCharsets.UTF_8).putLong(hit.getVersion());
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Encode a document in the configured source format
+     */
+    protected <T> byte[] toSource(final SourceCodec<T> codec, final T document) {
+        return codec.encode(document, getClient().getSourceType());
+    }
+
+    /**
+     * Wrap the source of a hit or document so it can be written to a response without building a model object.
+     * Sources stored in a binary format are converted to JSON first.
+     *
+     * @return JSON or null if there is no source
+     */
+    protected static RawJson toRawJson(final BytesReference source) {
+
+        if (source == null || source.length() == 0) {
+            return null;
+        }
+        final XContentType format = XContentFactory.xContentType(source);
+        if (format != null && format != XContentType.JSON) {
+            try {
+                return RawJson.of(XContentHelper.convertToJson(source, false, format));
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Unable to convert document source to JSON", e);
+            }
+        }
+        final BytesRef bytes = source.toBytesRef();
+        return RawJson.of(bytes.bytes, bytes.offset, bytes.length);
+    }
+
 }
@@ -0,0 +1,145 @@
+package com.forgerock.microblog.es;
+
+import com.forgerock.microblog.configuration.ApplicationProperties;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Read-through cache of documents by id. Lookups in flight are cached too so concurrent requests for the same
+ * document share one request to ES. Ids found to have no document are kept separately for a shorter time.
+ * Failed lookups are not cached.
+ *
+ * @param <T> Document type
+ */
+public class DocumentCache<T> {
+
+    private final Cache<String, CompletableFuture<Optional<T>>> found;
+
+    private final Cache<String, CompletableFuture<Optional<T>>> missing;
+
+    /**
+     * @param found   Size and TTL for documents
+     * @param missing Size and TTL for ids with no document
+     */
+    public DocumentCache(final ApplicationProperties.CacheSpec found, final ApplicationProperties.CacheSpec missing) {
+        Preconditions.checkNotNull(found, "found cannot be null");
+        Preconditions.checkNotNull(missing, "missing cannot be null");
+
+        this.found = aCache(found);
+        this.missing = aCache(missing);
+    }
+
+    private static <V> Cache<String, V> aCache(final ApplicationProperties.CacheSpec spec) {
+
+        return CacheBuilder.newBuilder()
+                .maximumSize(spec.getMaxSize())
+                .expireAfterWrite(spec.getTtlSeconds(), TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @param id     Document id
+     * @param loader Looks up the document in ES when it isn't cached
+     * @return Completes with the document or empty if there is none
+     */
+    public CompletableFuture<Optional<T>> get(final String id, final Function<String, CompletableFuture<Optional<T>>> loader) {
+        Preconditions.checkNotNull(id, "id cannot be null");
+
+        final CompletableFuture<Optional<T>> none = missing.getIfPresent(id);
+        if (none != null) {
+            return none;
+        }
+
+        final AtomicBoolean loaded = new AtomicBoolean();
+        final CompletableFuture<Optional<T>> future;
+        try {
+            future = found.get(id, () -> {
+                loaded.set(true);
+                return loader.apply(id);
+            });
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            throw new CompletionException(e.getCause());
+        }
+
+        // Only once the lookup is in the cache, otherwise it could complete and be removed before it is added
+        if (loaded.get()) {
+            future.whenComplete((result, failure) -> {
+                if (failure != null || !result.isPresent()) {
+                    found.asMap().remove(id, future);
+                }
+                if (failure == null && !result.isPresent()) {
+                    missing.put(id, future);
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * The document if it has already been looked up, without looking it up or waiting for a lookup in flight
+     *
+     * @param id Document id
+     * @return The cached document or empty if it isn't cached
+     */
+    public Optional<T> getIfLoaded(final String id) {
+        Preconditions.checkNotNull(id, "id cannot be null");
+
+        final CompletableFuture<Optional<T>> future = found.getIfPresent(id);
+        if (future == null || !future.isDone() || future.isCompletedExceptionally()) {
+            return Optional.empty();
+        }
+        return future.join();
+    }
+
+    /**
+     * Drop the document so the next lookup goes to ES. Call when it is created, changed or deleted.
+     *
+     * @param id Document id
+     */
+    public void invalidate(final String id) {
+
+        found.invalidate(id);
+        missing.invalidate(id);
+    }
+
+    /**
+     * @return Hits, misses and evictions of documents
+     */
+    public CacheStats stats() {
+        return found.stats();
+    }
+
+    /**
+     * @return Hits, misses and evictions of ids with no document
+     */
+    public CacheStats missingStats() {
+        return missing.stats();
+    }
+
+    /**
+     * @return Approximate number of documents cached
+     */
+    public long size() {
+        return found.size();
+    }
+
+    /**
+     * @return Approximate number of ids with no document cached
+     */
+    public long missingSize() {
+        return missing.size();
+    }
+}
@@ -2,17 +2,46 @@ package com.forgerock.microblog.es;
 
 import com.forgerock.microblog.configuration.ApplicationProperties;
 import com.google.common.base.Preconditions;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateRequestBuilder;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateRequestBuilder;
+import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.IndexNotFoundException;
 import org.elasticsearch.index.query.QueryBuilder;
-import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.transport.client.PreBuiltTransportClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,14 +50,33 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
- * Gives a singleton instance of the Elasticsearch client
+ * Gives a singleton instance of the Elasticsearch client.
+ * All requests are non-blocking and complete a future when ES responds.
  */
 @Component
 public class ElasticsearchClient {
@@ -36,39 +84,207 @@ public class ElasticsearchClient {
     // Could be yml config value if required
     private static int ES_MAX_SIZE = 10000; // Maximum allowed size with default ES install
 
+    // Formats documents can be stored in. All can be read back whatever the current setting.
+    private static final Set<XContentType> SOURCE_TYPES = EnumSet.of(XContentType.JSON, XContentType.SMILE, XContentType.CBOR);
+
+    // Scripted updates to the same document from several instances conflict under load
+    private static final int RETRY_ON_CONFLICT = 5;
+
+    // Delays before resending a bulk item ES rejected as too busy
+    private static final BackoffPolicy BULK_ITEM_BACKOFF = BackoffPolicy.exponentialBackoff();
+
+    // How often shutdown checks whether every queued document has been indexed
+    private static final long PENDING_POLL_MILLIS = 50;
+
     private final static Logger LOG = LoggerFactory.getLogger(ElasticsearchClient.class);
 
     // From YML
-    private String host = "elasticsearch";
-    private int port = 9300; // Transport client port
+    private List<String> nodes = Collections.singletonList("elasticsearch:9300");
     private String cluster = "elasticsearch";
+    private long requestTimeoutMillis = 30000;
+
+    private static final int DEFAULT_TRANSPORT_PORT = 9300;
 
     private static final String CLUSTER_NAME_KEY = "cluster.name";
+    private static final String SNIFF_KEY = "client.transport.sniff";
+    private static final String PING_TIMEOUT_KEY = "client.transport.ping_timeout";
+    private static final String NODES_SAMPLER_INTERVAL_KEY = "client.transport.nodes_sampler_interval";
+    private static final String CONNECTIONS_PER_NODE_KEY = "transport.connections_per_node.";
 
     @Autowired
     private ApplicationProperties applicationProperties;
 
     private TransportClient transportClient;
 
+    private BulkProcessor bulkProcessor;
+
+    // Completes futures so callers' work does not run on transport threads
+    private ExecutorService callbackExecutor;
+
+    // Fails requests that get no response in time
+    private ScheduledExecutorService timeoutScheduler;
+
+    // Encoding of documents sent to ES
+    private XContentType sourceType;
+
+    // Callers waiting on individual documents queued in the bulk processor
+    private final Map<DocWriteRequest, PendingItem> pendingBulkItems = Collections.synchronizedMap(new IdentityHashMap<>());
+
     @PostConstruct
     public void init() {
 
-        host = applicationProperties.getElasticsearch().getHost();
-        port = applicationProperties.getElasticsearch().getPort();
-        cluster = applicationProperties.getElasticsearch().getCluster();
+        final ApplicationProperties.Elasticsearch elasticsearch = applicationProperties.getElasticsearch();
+        nodes = transportNodes(elasticsearch);
+        cluster = elasticsearch.getCluster();
+        requestTimeoutMillis = elasticsearch.getRequestTimeoutMillis();
+        sourceType = elasticsearch.getSourceFormat();
+        Preconditions.checkArgument(SOURCE_TYPES.contains(sourceType), "sourceFormat must be one of %s but was %s", SOURCE_TYPES, sourceType);
 
-        final Settings settings = Settings.builder()
-                .put(CLUSTER_NAME_KEY, cluster).build();
-        try {
-            transportClient = new PreBuiltTransportClient(settings)
-                    .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(host), port));
-            LOG.info("Connected to ElasticSearch on: {}:{} , cluster: {}", host, port, cluster);
+        final int callbackThreads = elasticsearch.getCallbackThreads();
+        callbackExecutor = Executors.newFixedThreadPool(callbackThreads, new ThreadFactoryBuilder().setNameFormat("es-callback-%d").setDaemon(true).build());
+        timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("es-timeout-%d").setDaemon(true).build());
 
+        final ApplicationProperties.Connections connections = elasticsearch.getConnections();
+        final Settings settings = Settings.builder()
+                .put(CLUSTER_NAME_KEY, cluster)
+                .put(SNIFF_KEY, elasticsearch.isSniff())
+                .put(PING_TIMEOUT_KEY, TimeValue.timeValueSeconds(elasticsearch.getPingTimeoutSeconds()))
+                .put(NODES_SAMPLER_INTERVAL_KEY, TimeValue.timeValueSeconds(elasticsearch.getNodesSamplerIntervalSeconds()))
+                .put(CONNECTIONS_PER_NODE_KEY + "recovery", connections.getRecovery())
+                .put(CONNECTIONS_PER_NODE_KEY + "bulk", connections.getBulk())
+                .put(CONNECTIONS_PER_NODE_KEY + "reg", connections.getReg())
+                .put(CONNECTIONS_PER_NODE_KEY + "state", connections.getState())
+                .put(CONNECTIONS_PER_NODE_KEY + "ping", connections.getPing())
+                .build();
+        transportClient = new PreBuiltTransportClient(settings);
+        for (String node : nodes) {
+            try {
+                // Requests are spread round robin across every connected node
+                transportClient.addTransportAddress(toTransportAddress(node));
+            }
+            catch (UnknownHostException e) {
+                LOG.error("Unable to initialise Elasticsearch client with unknown host: {}. Check the configuration. ", node);
+                transportClient.close();
+                throw new RuntimeException(e); // Cannot recover from this - fail startup
+            }
         }
-        catch (UnknownHostException e) {
-            LOG.error("Unable to initialise Elasticsearch client with unknown host: {}:{}. Check the configuration. ", host, port);
-            throw new RuntimeException(e); // Cannot recover from this - fail startup
+        LOG.info("Connected to ElasticSearch on: {} , cluster: {}, sniff: {}, connected nodes: {}",
+                nodes, cluster, elasticsearch.isSniff(), transportClient.connectedNodes().size());
+
+        final ApplicationProperties.Bulk bulk = applicationProperties.getElasticsearch().getBulk();
+        bulkProcessor = BulkProcessor.builder(transportClient, new PendingItemsListener())
+                .setBulkActions(bulk.getActions())
+                .setBulkSize(new ByteSizeValue(bulk.getSizeMb(), ByteSizeUnit.MB))
+                .setFlushInterval(TimeValue.timeValueMillis(bulk.getFlushIntervalMillis()))
+                .setConcurrentRequests(bulk.getConcurrentRequests())
+                // Rejected items are resent by PendingItemsListener. The processor's own retries send only the
+                // rejected items, so the items of the response it reports no longer line up with the request.
+                .setBackoffPolicy(BackoffPolicy.noBackoff())
+                .build();
+        LOG.info("Bulk processor started with actions: {}, size: {}MB, flush interval: {}ms, concurrent requests: {}",
+                bulk.getActions(), bulk.getSizeMb(), bulk.getFlushIntervalMillis(), bulk.getConcurrentRequests());
+    }
+
+    /**
+     * @return Encoding to use for documents passed to the write methods
+     */
+    public XContentType getSourceType() {
+        return sourceType;
+    }
+
+    /**
+     * @return The nodes listed, or host and port when there are none
+     */
+    static List<String> transportNodes(final ApplicationProperties.Elasticsearch elasticsearch) {
+
+        return elasticsearch.getNodes().isEmpty()
+                ? Collections.singletonList(HostAndPort.fromParts(elasticsearch.getHost(), elasticsearch.getPort()).toString())
+                : elasticsearch.getNodes();
+    }
+
+    /**
+     * @param node host or host:port, with an IPv6 address in brackets e.g. [::1]:9300
+     * @throws IllegalArgumentException Blank node, bad port, or an IPv6 address without brackets
+     */
+    static InetSocketTransportAddress toTransportAddress(final String node) throws UnknownHostException {
+
+        Preconditions.checkArgument(node != null && !node.trim().isEmpty(), "node cannot be empty");
+        final HostAndPort hostAndPort = HostAndPort.fromString(node.trim()).requireBracketsForIPv6().withDefaultPort(DEFAULT_TRANSPORT_PORT);
+        Preconditions.checkArgument(!hostAndPort.getHost().isEmpty(), "node must be host, host:port or [host]:port but was %s", node);
+        return new InetSocketTransportAddress(InetAddress.getByName(hostAndPort.getHost()), hostAndPort.getPort());
+    }
+
+    /**
+     * Create or replace an index template. Indices matching the pattern get its settings and mappings when created.
+     *
+     * @param name     Template name
+     * @param pattern  Index name pattern e.g. microblog*
+     * @param alias    Alias added to each new index or null for none
+     * @param settings Index settings
+     * @param mappings JSON mapping for each type
+     * @return Completes when the template is stored
+     */
+    public CompletableFuture<Void> putIndexTemplate(final String name, final String pattern, final String alias, final Settings settings, final Map<String, String> mappings) {
+
+        Preconditions.checkNotNull(mappings, "mappings cannot be null");
+
+        LOG.debug("PUT /_template/{} , pattern: {}, types: {}", name, pattern, mappings.keySet());
+        final PutIndexTemplateRequestBuilder requestBuilder = transportClient.admin().indices()
+                .preparePutTemplate(name)
+                .setTemplate(pattern)
+                .setSettings(settings);
+        mappings.forEach((type, mapping) -> requestBuilder.addMapping(type, mapping, XContentType.JSON));
+        if (alias != null) {
+            requestBuilder.addAlias(new Alias(alias));
         }
+        return execute(requestBuilder).thenApply(response -> null);
+    }
+
+    /**
+     * Settings of each index behind an index name or alias
+     *
+     * @param index Index, alias or pattern
+     * @return Completes with settings by concrete index name, or empty if none exist
+     */
+    public CompletableFuture<Map<String, Settings>> getIndexSettings(final String index) {
+
+        LOG.debug("GET /{}/_settings", index);
+        return execute(transportClient.admin().indices().prepareGetSettings(index))
+                .thenApply(response -> {
+                    final Map<String, Settings> settingsByIndex = new LinkedHashMap<>();
+                    response.getIndexToSettings().keysIt().forEachRemaining(name -> settingsByIndex.put(name, response.getIndexToSettings().get(name)));
+                    return settingsByIndex;
+                })
+                .exceptionally(e -> whenIndexNotFound(index, e, Collections.emptyMap()));
+    }
+
+    /**
+     * Update dynamic settings of an existing index
+     *
+     * @param index    Index
+     * @param settings Settings to change
+     * @return Completes when updated
+     */
+    public CompletableFuture<Void> updateIndexSettings(final String index, final Settings settings) {
+
+        LOG.debug("PUT /{}/_settings , settings: {}", index, settings.getAsMap());
+        return execute(transportClient.admin().indices().prepareUpdateSettings(index).setSettings(settings))
+                .thenApply(response -> null);
+    }
+
+    /**
+     * Merge the segments of an index that is no longer written to, making searches on it cheaper.
+     *
+     * @param index       Index
+     * @param maxSegments Segments per shard to merge down to
+     * @param timeout     Time allowed. Merging a large index can take far longer than the normal request timeout.
+     * @return Completes when merged
+     */
+    public CompletableFuture<Void> forceMerge(final String index, final int maxSegments, final TimeValue timeout) {
+
+        LOG.debug("POST /{}/_forcemerge?max_num_segments={}", index, maxSegments);
+        return execute(transportClient.admin().indices().prepareForceMerge(index).setMaxNumSegments(maxSegments), timeout.millis())
+                .thenApply(response -> null);
     }
 
     /**
@@ -76,128 +292,391 @@ public class ElasticsearchClient {
      * @param index Index
      * @param type Type
      * @param id ID
-     * @return Get Response or empty
+     * @return Completes with the Get Response or empty
      */
-    public Optional<GetResponse> getById(final String index, final String type, final String id) {
-        try {
-            LOG.debug("GET /{}/{}/{}", index, type, id);
-            return Optional.ofNullable(
-                    transportClient.prepareGet(index, type, id).get()
-            );
-        }
-        catch (IndexNotFoundException indexNotFoundException) {
-            // No data created yet in ES. Return empty list.
-            LOG.warn("No data created yet for index: {}. Index will be created when new data is posted.", index);
-            return Optional.empty();
-        }
+    public CompletableFuture<Optional<GetResponse>> getById(final String index, final String type, final String id) {
+
+        LOG.debug("GET /{}/{}/{}", index, type, id);
+        return execute(transportClient.prepareGet(index, type, id))
+                .thenApply(Optional::ofNullable)
+                .exceptionally(e -> whenIndexNotFound(index, e, Optional.empty()));
     }
 
     /**
-     * Delete by ID
+     * GET many documents by id in a single round trip
      *
      * @param index Index
      * @param type  Type
-     * @param id    ID
+     * @param ids   IDs
+     * @return Completes with a response for each id in the same order, or empty where the index doesn't exist yet
      */
-    public void deleteById(final String index, final String type, final String id) {
+    public CompletableFuture<List<Optional<GetResponse>>> multiGet(final String index, final String type, final Collection<String> ids) {
+        return multiGet(Collections.singletonList(index), type, ids);
+    }
 
-        LOG.debug("DELETE /{}/{}/{}", index, type, id);
-        try {
-            transportClient
-                    .prepareDelete(index, type, id)
-                    .get();
-        }
-        catch (IndexNotFoundException indexNotFoundException) {
-            // No data created yet in ES. Ignore.
-            LOG.warn("No data created yet for index: {}. Index will be created when new data is posted.", index);
-        }
+    /**
+     * GET many documents by id in a single round trip when each may be in any one of several indices
+     *
+     * @param indices Indices to look in. Use the fewest possible as every id is looked up in each one.
+     * @param type    Type
+     * @param ids     IDs
+     * @return Completes with the first document found for each id in the same order, or empty if not in any index
+     */
+    public CompletableFuture<List<Optional<GetResponse>>> multiGet(final Collection<String> indices, final String type, final Collection<String> ids) {
+
+        Preconditions.checkArgument(indices != null && !indices.isEmpty(), "indices cannot be empty");
+        Preconditions.checkNotNull(ids, "ids cannot be null");
+
+        LOG.debug("GET /{}/{}/_mget , ids: {}", String.join(",", indices), type, ids.size());
+        final MultiGetRequestBuilder requestBuilder = transportClient.prepareMultiGet();
+        ids.forEach(id -> indices.forEach(index -> requestBuilder.add(index, type, id)));
+
+        // Responses are in request order - one per index for each id
+        return execute(requestBuilder).thenApply(response -> {
+            final MultiGetItemResponse[] items = response.getResponses();
+            final List<Optional<GetResponse>> results = new ArrayList<>(ids.size());
+            for (int i = 0; i < items.length; i += indices.size()) {
+                Optional<GetResponse> found = Optional.empty();
+                for (int j = i; j < i + indices.size() && !found.isPresent(); j++) {
+                    final Optional<GetResponse> item = items[j].isFailed()
+                            ? whenIndexNotFound(items[j].getIndex(), items[j].getFailure().getFailure(), Optional.<GetResponse>empty())
+                            : Optional.of(items[j].getResponse());
+                    found = item.filter(GetResponse::isExists);
+                }
+                results.add(found);
+            }
+            return results;
+        });
     }
 
-    public String create(final String index, final String type, final String id, final String json) {
+    /**
+     * Delete by ID
+     *
+     * @param index         Index
+     * @param type          Type
+     * @param id            ID
+     * @param refreshPolicy When the delete shows in searches. Anything but NONE costs indexing throughput.
+     * @return Completes when deleted
+     */
+    public CompletableFuture<Void> deleteById(final String index, final String type, final String id, final WriteRequest.RefreshPolicy refreshPolicy) {
+
+        LOG.debug("DELETE /{}/{}/{} , refresh: {}", index, type, id, refreshPolicy);
+        return execute(transportClient.prepareDelete(index, type, id).setRefreshPolicy(refreshPolicy))
+                .<Void>thenApply(response -> null)
+                .exceptionally(e -> whenIndexNotFound(index, e, null)); // No data created yet in ES. Ignore.
+    }
+
+    /**
+     * Index a new document. Fails with {@link org.elasticsearch.index.engine.VersionConflictEngineException} if there
+     * is already a document with the id, rather than replacing it.
+     *
+     * @param index Index
+     * @param type  Type
+     * @param id     ID
+     * @param source Document encoded as {@link #getSourceType()}
+     * @param refreshPolicy When the document shows in searches. Anything but NONE costs indexing throughput.
+     * @return Completes with the id of the created document
+     */
+    public CompletableFuture<String> create(final String index, final String type, final String id, final byte[] source, final WriteRequest.RefreshPolicy refreshPolicy) {
 
         Preconditions.checkNotNull(id, "id cannot be null");
-        Preconditions.checkNotNull(json, "json cannot be null");
+        Preconditions.checkNotNull(source, "source cannot be null");
 
-        LOG.debug("PUT /{}/{}/{}", index, type, id);
-        return transportClient
+        LOG.debug("PUT /{}/{}/{}/_create , refresh: {}", index, type, id, refreshPolicy);
+        return execute(transportClient
                 .prepareIndex(index, type, id)
-                .setSource(json, XContentType.JSON)
-                .get()
-                .getId();
+                .setOpType(DocWriteRequest.OpType.CREATE)
+                .setSource(source, sourceType)
+                .setRefreshPolicy(refreshPolicy))
+                .thenApply(IndexResponse::getId);
     }
 
-    public void update(final String index, final String type, final String id, final String json) {
+    /**
+     * Partial update of an existing document in one round trip. Fails with {@link org.elasticsearch.index.engine.DocumentMissingException}
+     * if there is no document with the id, rather than creating one.
+     *
+     * @param index   Index
+     * @param type    Type
+     * @param id      ID
+     * @param source  Fields to update encoded as {@link #getSourceType()}
+     * @param version Version the document must be at, failing with
+     *                {@link org.elasticsearch.index.engine.VersionConflictEngineException} if it isn't. Null for any version.
+     * @param refreshPolicy When the change shows in searches. Anything but NONE costs indexing throughput.
+     * @return Completes with the new version and the whole document as updated
+     */
+    public CompletableFuture<UpdateResponse> update(final String index, final String type, final String id, final byte[] source, final Long version,
+                                                    final WriteRequest.RefreshPolicy refreshPolicy) {
 
         Preconditions.checkNotNull(id, "id cannot be null");
-        Preconditions.checkNotNull(json, "json cannot be null");
+        Preconditions.checkNotNull(source, "source cannot be null");
 
-        LOG.debug("PUT /{}/{}/{}", index, type, id);
-        transportClient
+        LOG.debug("POST /{}/{}/{}/_update , version: {}, refresh: {}", index, type, id, version, refreshPolicy);
+        final UpdateRequestBuilder requestBuilder = transportClient
                 .prepareUpdate(index, type, id)
-                .setDoc(json, XContentType.JSON)
-                .get();
+                .setDoc(source, sourceType)
+                .setFetchSource(true)
+                .setRefreshPolicy(refreshPolicy);
+        if (version != null) {
+            requestBuilder.setVersion(version);
+        }
+        return execute(requestBuilder);
+    }
+
+    /**
+     * Queue a new document for the bulk processor. The document is sent with the next bulk request when the
+     * configured number of actions, size or flush interval is reached.
+     *
+     * @param index Index
+     * @param type  Type
+     * @param id     ID
+     * @param source Document encoded as {@link #getSourceType()}
+     * @return Completes with the item response (which may be a failure) once the bulk request containing it returns.
+     * A document with the id already exists fails with 409 rather than being replaced.
+     */
+    public CompletableFuture<BulkItemResponse> queueCreate(final String index, final String type, final String id, final byte[] source) {
+
+        Preconditions.checkNotNull(id, "id cannot be null");
+        Preconditions.checkNotNull(source, "source cannot be null");
+
+        return queue(new IndexRequest(index, type, id).opType(DocWriteRequest.OpType.CREATE).source(source, sourceType));
+    }
+
+    /**
+     * Create a batch of new documents through the bulk processor.
+     *
+     * @param index Index
+     * @param type  Type
+     * @param docs  Documents by id, encoded as {@link #getSourceType()}
+     * @return Completes with item responses in the same order as the documents. Failed items are reported per item,
+     * including 409 for a document with the id already existing.
+     */
+    public CompletableFuture<List<BulkItemResponse>> bulkCreate(final String index, final String type, final Map<String, byte[]> docs) {
+
+        Preconditions.checkNotNull(docs, "docs cannot be null");
+
+        LOG.debug("POST /{}/{}/_bulk , creates: {}", index, type, docs.size());
+        final List<CompletableFuture<BulkItemResponse>> futures = new ArrayList<>(docs.size());
+        docs.forEach((id, source) -> futures.add(queueCreate(index, type, id, source)));
+
+        // Don't wait for the flush interval as the caller is waiting on the results
+        bulkProcessor.flush();
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]))
+                .thenApply(allDone -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
+
+    /**
+     * Run a script against each document through the bulk processor. A document that doesn't exist yet is created from
+     * its upsert source and the script is run against that, so the script alone decides the content.
+     * Retried when another write changes a document between it being read and written.
+     *
+     * @param index   Index
+     * @param type    Type
+     * @param scripts Script for each document id
+     * @param upsert  Source of a new document, from its id
+     * @return Completes with item responses in the same order as the scripts. Failed items are reported per item.
+     */
+    public CompletableFuture<List<BulkItemResponse>> bulkScriptedUpsert(final String index, final String type, final Map<String, Script> scripts,
+                                                                        final Function<String, Map<String, Object>> upsert) {
+
+        Preconditions.checkNotNull(scripts, "scripts cannot be null");
+        Preconditions.checkNotNull(upsert, "upsert cannot be null");
+
+        LOG.debug("POST /{}/{}/_bulk , scripted upserts: {}", index, type, scripts.size());
+        final List<CompletableFuture<BulkItemResponse>> futures = new ArrayList<>(scripts.size());
+        scripts.forEach((id, script) -> {
+            final UpdateRequest updateRequest = new UpdateRequest(index, type, id)
+                    .script(script)
+                    .scriptedUpsert(true)
+                    .upsert(upsert.apply(id), sourceType)
+                    .retryOnConflict(RETRY_ON_CONFLICT);
+            futures.add(queue(updateRequest));
+        });
+        bulkProcessor.flush();
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]))
+                .thenApply(allDone -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
+
+    private CompletableFuture<BulkItemResponse> queue(final DocWriteRequest request) {
+
+        final PendingItem pending = new PendingItem();
+        pendingBulkItems.put(request, pending);
+        bulkProcessor.add(request);
+        return pending.future;
     }
 
     /**
      * Find all requests with specified filters
      *
+     * @param searchType   How shards are queried - see {@link SearchType}
      * @param queryBuilder Filters
-     * @return Result Json
+     * @return Completes with the search response or empty
      */
-    public Optional<SearchResponse> getAll(final String index, final String type, final QueryBuilder queryBuilder) {
-        return this.getAll(index, type, null, null, queryBuilder, Collections.emptyList());
+    public CompletableFuture<Optional<SearchResponse>> getAll(final String index, final String type, final SearchType searchType, final QueryBuilder queryBuilder) {
+        return this.getAll(index, type, SearchQuery.SearchQueryBuilder.aSearchQuery()
+                .withSearchType(searchType)
+                .withQueryBuilder(queryBuilder)
+                .build());
     }
 
     /**
      * Find all requests with specified filters, page and sort
      *
-     * @param index        Index
-     * @param type         Type
-     * @param from         Paging offset
-     * @param size         page size
-     * @param queryBuilder Filters
-     * @param sortBuilders Sorts
-     * @return Search response or empty
+     * @param index       Index
+     * @param type        Type
+     * @param searchQuery Filters, sorts and paging. Only use DFS_QUERY_THEN_FETCH where relevance scoring needs global term
+     *                    statistics as it costs an extra round trip to every shard.
+     * @return Completes with the search response or empty
+     */
+    public CompletableFuture<Optional<SearchResponse>> getAll(final String index, final String type, final SearchQuery searchQuery) {
+        return this.getAll(Collections.singletonList(index), type, searchQuery);
+    }
+
+    /**
+     * Find all requests with specified filters, page and sort across several indices. Indices that don't exist are skipped.
+     *
+     * @param indices     Indices or aliases
+     * @param type        Type
+     * @param searchQuery Filters, sorts and paging
+     * @return Completes with the search response or empty
      */
-    public Optional<SearchResponse> getAll(final String index, final String type, final Integer from, final Integer size, final QueryBuilder queryBuilder, final List<SortBuilder> sortBuilders) {
+    public CompletableFuture<Optional<SearchResponse>> getAll(final List<String> indices, final String type, final SearchQuery searchQuery) {
 
-        LOG.debug("search /{}/{} , filters: {}", index, type, queryBuilder);
+        Preconditions.checkArgument(indices != null && !indices.isEmpty(), "indices cannot be empty");
+        Preconditions.checkNotNull(searchQuery, "searchQuery cannot be null");
+        Preconditions.checkNotNull(searchQuery.getSearchType(), "searchType cannot be null");
+
+        final String index = String.join(",", indices);
+        LOG.debug("search /{}/{} , query: {}", index, type, searchQuery);
 
         // Build search
         final SearchRequestBuilder searchRequestBuilder = transportClient
-                .prepareSearch(index)
+                .prepareSearch(indices.toArray(new String[indices.size()]))
                 .setTypes(type)
-                .setSearchType(SearchType.DFS_QUERY_THEN_FETCH);
+                .setIndicesOptions(IndicesOptions.lenientExpandOpen())
+                .setSearchType(searchQuery.getSearchType())
+                .setVersion(searchQuery.isVersion());
 
-        if (from != null) {
-            searchRequestBuilder.setFrom(from);
+        if (searchQuery.getSearchAfter() != null) {
+            // Deep paging - continue after the last hit of the previous page. Offset must be 0.
+            searchRequestBuilder.searchAfter(searchQuery.getSearchAfter());
+            searchRequestBuilder.setFrom(0);
+        }
+        else if (searchQuery.getFrom() != null) {
+            searchRequestBuilder.setFrom(searchQuery.getFrom());
         }
         else {
             searchRequestBuilder.setFrom(0);
         }
 
-        if (size != null) {
-            searchRequestBuilder.setSize(size);
+        if (searchQuery.getSize() != null) {
+            searchRequestBuilder.setSize(Math.min(searchQuery.getSize(), ES_MAX_SIZE));
         }
         else {
             searchRequestBuilder.setSize(ES_MAX_SIZE);
         }
 
         // Add filters
-        searchRequestBuilder.setQuery(queryBuilder);
+        searchRequestBuilder.setQuery(searchQuery.getQueryBuilder());
+
+        // Only fetch the source fields asked for
+        if (searchQuery.getSourceIncludes() != null) {
+            searchRequestBuilder.setFetchSource(searchQuery.getSourceIncludes(), null);
+        }
 
         // Add sort
-        sortBuilders.forEach(searchRequestBuilder::addSort);
+        searchQuery.getSortBuilders().forEach(searchRequestBuilder::addSort);
+
+        searchQuery.getAggregations().forEach(searchRequestBuilder::addAggregation);
 
         // Do search
-        try {
-            return Optional.ofNullable(searchRequestBuilder.get());
-        }
-        catch (IndexNotFoundException indexNotFoundException) {
-            // No data created yet in ES. Return empty list.
+        return execute(searchRequestBuilder)
+                .thenApply(Optional::ofNullable)
+                .exceptionally(e -> whenIndexNotFound(index, e, Optional.empty()));
+    }
+
+    /**
+     * Read every hit matching the query a batch at a time, each batch a search continuing after the last hit of the
+     * batch before (search_after). Unlike a scroll nothing is kept open in ES between batches, so a slow reader costs
+     * ES nothing, but hits added or changed while reading may or may not be included.
+     *
+     * @param index       Index
+     * @param type        Type
+     * @param searchQuery Filters and sorts, ending with a field unique to each document. Size is the batch size.
+     *                    Paging is ignored.
+     * @return Completes once the first batch has been read, with the batches
+     */
+    public CompletableFuture<HitBatches> searchInBatches(final String index, final String type, final SearchQuery searchQuery) {
+
+        Preconditions.checkNotNull(searchQuery, "searchQuery cannot be null");
+        Preconditions.checkNotNull(searchQuery.getSize(), "batch size cannot be null");
+        Preconditions.checkArgument(!searchQuery.getSortBuilders().isEmpty(), "batches must be sorted on a unique field");
+
+        final int batchSize = Math.min(searchQuery.getSize(), ES_MAX_SIZE);
+        final Function<Object[], CompletableFuture<SearchHit[]>> searchAfter = after -> getAll(index, type, SearchQuery.SearchQueryBuilder.aSearchQuery()
+                .withSearchType(searchQuery.getSearchType())
+                .withSize(batchSize)
+                .withQueryBuilder(searchQuery.getQueryBuilder())
+                .withSortBuilders(searchQuery.getSortBuilders())
+                .withSourceIncludes(searchQuery.getSourceIncludes())
+                .withSearchAfter(after)
+                .build()).thenApply(resp -> resp.map(found -> found.getHits().getHits()).orElse(new SearchHit[0]));
+
+        return searchAfter.apply(null).thenApply(first -> new HitBatches(first, batchSize, searchAfter));
+    }
+
+    /**
+     * Send a request without blocking the calling thread. The future is completed on the callback thread pool so that
+     * work chained onto it never runs on (and holds up) the transport threads.
+     * If there is no response within the request timeout the future fails with {@link ElasticsearchTimeoutException}.
+     */
+    private <Response extends ActionResponse> CompletableFuture<Response> execute(final ActionRequestBuilder<?, Response, ?> requestBuilder) {
+        return execute(requestBuilder, requestTimeoutMillis);
+    }
+
+    private <Response extends ActionResponse> CompletableFuture<Response> execute(final ActionRequestBuilder<?, Response, ?> requestBuilder, final long timeoutMillis) {
+
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        final ScheduledFuture<?> timeout = timeoutScheduler.schedule(() -> callbackExecutor.execute(() -> future.completeExceptionally(
+                new ElasticsearchTimeoutException("No response from Elasticsearch after {}ms", timeoutMillis))),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete((response, e) -> timeout.cancel(false));
+        requestBuilder.execute(new ActionListener<Response>() {
+
+            @Override
+            public void onResponse(final Response response) {
+                callbackExecutor.execute(() -> future.complete(response));
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                callbackExecutor.execute(() -> future.completeExceptionally(e));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Give a default value if the failure was because no data has been created in ES yet, otherwise rethrow.
+     */
+    private static <T> T whenIndexNotFound(final String index, final Throwable failure, final T defaultValue) {
+
+        final Throwable cause = unwrap(failure);
+        if (cause instanceof IndexNotFoundException) {
             LOG.warn("No data created yet for index: {}. Index will be created when new data is posted.", index);
-            return Optional.empty();
+            return defaultValue;
         }
+        throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(cause);
+    }
+
+    /**
+     * Get the underlying ES exception from a failed future
+     */
+    static Throwable unwrap(final Throwable failure) {
+
+        final Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        return ExceptionsHelper.unwrapCause(cause);
     }
 
     /**
@@ -205,9 +684,123 @@ public class ElasticsearchClient {
      */
     @PreDestroy
     public void cleanUp() {
+        final long timeout = applicationProperties.getElasticsearch().getBulk().getCloseTimeoutSeconds();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        try {
+            // Rejected documents waiting to be sent again aren't in the bulk processor, so wait for every queued
+            // document to get its response before closing it
+            while (!pendingBulkItems.isEmpty() && System.nanoTime() < deadline) {
+                bulkProcessor.flush();
+                TimeUnit.MILLISECONDS.sleep(PENDING_POLL_MILLIS);
+            }
+            // Flush anything still queued before the transport goes away
+            if (!bulkProcessor.awaitClose(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) || !pendingBulkItems.isEmpty()) {
+                LOG.error("Timed out after {}s flushing bulk processor. {} queued documents may not have been indexed.", timeout, pendingBulkItems.size());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted flushing bulk processor on shutdown", e);
+        }
+        // No more timeouts or documents sent again, then fail whatever is left so no caller waits forever
+        timeoutScheduler.shutdownNow();
+        final List<PendingItem> unsent;
+        synchronized (pendingBulkItems) {
+            unsent = new ArrayList<>(pendingBulkItems.values());
+            pendingBulkItems.clear();
+        }
+        final IllegalStateException closed = new IllegalStateException("Elasticsearch client shut down before the document was indexed");
+        unsent.forEach(pending -> pending.future.completeExceptionally(closed));
+        callbackExecutor.shutdown();
         transportClient.close();
         LOG.info("Elasticsearch client successfully shutdown");
     }
 
+    /**
+     * Receives a batch of hits
+     */
+    @FunctionalInterface
+    public interface HitsConsumer {
+
+        /**
+         * @return true for the next batch, false to stop reading
+         */
+        boolean accept(SearchHit[] hits) throws IOException;
+    }
+
+    /**
+     * A document queued in the bulk processor
+     */
+    private static class PendingItem {
+
+        private final CompletableFuture<BulkItemResponse> future = new CompletableFuture<>();
+
+        // Delays left for resending the document if ES is too busy to take it
+        private final Iterator<TimeValue> backoff = BULK_ITEM_BACKOFF.iterator();
+    }
+
+    /**
+     * Completes the future of each document in a bulk request with its own item response. Documents ES was too busy to
+     * take are queued again after a delay, the same request so their futures are still found.
+     */
+    private class PendingItemsListener implements BulkProcessor.Listener {
+
+        @Override
+        public void beforeBulk(final long executionId, final BulkRequest request) {
+
+            LOG.debug("Sending bulk request {} with {} actions", executionId, request.numberOfActions());
+        }
+
+        @Override
+        public void afterBulk(final long executionId, final BulkRequest request, final BulkResponse response) {
+
+            if (response.hasFailures()) {
+                LOG.warn("Bulk request {} had failures: {}", executionId, response.buildFailureMessage());
+            }
+            // Without the processor's retries each item id is the position of its document in the request
+            for (BulkItemResponse item : response.getItems()) {
+                final DocWriteRequest docWriteRequest = request.requests().get(item.getItemId());
+                final PendingItem pending = pendingBulkItems.get(docWriteRequest);
+                if (pending == null) {
+                    continue;
+                }
+                if (item.isFailed() && item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS && pending.backoff.hasNext()) {
+                    final TimeValue delay = pending.backoff.next();
+                    timeoutScheduler.schedule(() -> callbackExecutor.execute(() -> requeue(docWriteRequest)), delay.millis(), TimeUnit.MILLISECONDS);
+                }
+                else {
+                    pendingBulkItems.remove(docWriteRequest);
+                    callbackExecutor.execute(() -> pending.future.complete(item));
+                }
+            }
+        }
+
+        @Override
+        public void afterBulk(final long executionId, final BulkRequest request, final Throwable failure) {
+
+            LOG.error("Bulk request {} failed", executionId, failure);
+            for (DocWriteRequest docWriteRequest : request.requests()) {
+                final PendingItem pending = pendingBulkItems.remove(docWriteRequest);
+                if (pending != null) {
+                    callbackExecutor.execute(() -> pending.future.completeExceptionally(failure));
+                }
+            }
+        }
+
+        // Not on the scheduler thread as adding can wait for a bulk request in flight
+        private void requeue(final DocWriteRequest docWriteRequest) {
+
+            try {
+                bulkProcessor.add(docWriteRequest);
+            }
+            catch (IllegalStateException closed) {
+                final PendingItem pending = pendingBulkItems.remove(docWriteRequest);
+                if (pending != null) {
+                    pending.future.completeExceptionally(closed);
+                }
+            }
+        }
+    }
+
 
 }
@@ -0,0 +1,57 @@
+package com.forgerock.microblog.es;
+
+import com.google.common.base.Preconditions;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Every hit of a search, read a batch at a time. The first batch has already been read, so a search that fails does so
+ * before anything is done with the hits. The rest are read as they are wanted.
+ */
+public class HitBatches {
+
+    private final SearchHit[] first;
+
+    private final int batchSize;
+
+    private final Function<Object[], CompletableFuture<SearchHit[]>> searchAfter;
+
+    /**
+     * @param first       First batch
+     * @param batchSize   Hits asked for per batch. A smaller batch is the last.
+     * @param searchAfter Reads the batch after the hit with the given sort values
+     */
+    public HitBatches(final SearchHit[] first, final int batchSize, final Function<Object[], CompletableFuture<SearchHit[]>> searchAfter) {
+        Preconditions.checkNotNull(first, "first cannot be null");
+        Preconditions.checkArgument(batchSize > 0, "batchSize must be at least 1");
+        Preconditions.checkNotNull(searchAfter, "searchAfter cannot be null");
+
+        this.first = first;
+        this.batchSize = batchSize;
+        this.searchAfter = searchAfter;
+    }
+
+    /**
+     * Pass each batch to the consumer in order, reading the next once the consumer is done with the one before.
+     * <p>
+     * This blocks the calling thread while batches are read so should only be called from a background or response
+     * streaming thread.
+     * </p>
+     *
+     * @param consumer Called with each batch in order until it returns false
+     * @throws IOException         Thrown by the consumer
+     * @throws CompletionException Unable to read a batch after the first
+     */
+    public void forEach(final ElasticsearchClient.HitsConsumer consumer) throws IOException {
+        Preconditions.checkNotNull(consumer, "consumer cannot be null");
+
+        SearchHit[] hits = first;
+        while (hits.length > 0 && consumer.accept(hits) && hits.length >= batchSize) {
+            hits = searchAfter.apply(hits[hits.length - 1].getSortValues()).join();
+        }
+    }
+}
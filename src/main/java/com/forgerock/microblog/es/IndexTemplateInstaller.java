@@ -0,0 +1,99 @@
+package com.forgerock.microblog.es;
+
+import com.forgerock.microblog.configuration.ApplicationProperties;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Installs an index template for each index used by the DAOs on startup, so indices get explicit mappings and tuned
+ * settings instead of dynamic mapping when they are first written to.
+ * <p>
+ * Templates only apply to new indices. An index created before its template must be reindexed to pick it up.
+ * </p>
+ */
+@Component
+public class IndexTemplateInstaller {
+
+    private final static Logger LOG = LoggerFactory.getLogger(IndexTemplateInstaller.class);
+
+    private static final String SHARDS_KEY = "index.number_of_shards";
+    private static final String REPLICAS_KEY = "index.number_of_replicas";
+    private static final String REFRESH_INTERVAL_KEY = "index.refresh_interval";
+
+    @Autowired
+    private ElasticsearchClient elasticsearchClient;
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    @Autowired
+    private List<AbstractElasticsearchDao> daos;
+
+    // ES may still be starting (e.g. docker-compose) so keep trying in the background rather than failing startup
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("es-template-%d").setDaemon(true).build());
+
+    @PostConstruct
+    public void init() {
+
+        // DAOs sharing an index share a template
+        final Map<String, AbstractElasticsearchDao> daoByIndex = new LinkedHashMap<>();
+        final Map<String, Map<String, String>> mappingsByIndex = new LinkedHashMap<>();
+        for (AbstractElasticsearchDao dao : daos) {
+            try {
+                daoByIndex.putIfAbsent(dao.getIndex(), dao);
+                mappingsByIndex.computeIfAbsent(dao.getIndex(), index -> new LinkedHashMap<>()).put(dao.getType(), dao.getMapping().string());
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e); // Bug in mapping - fail startup
+            }
+        }
+
+        final ApplicationProperties.Index index = applicationProperties.getElasticsearch().getIndex();
+        final Settings settings = Settings.builder()
+                .put(SHARDS_KEY, index.getShards())
+                .put(REPLICAS_KEY, index.getReplicas())
+                .put(REFRESH_INTERVAL_KEY, TimeValue.timeValueSeconds(index.getRefreshIntervalSeconds()))
+                .build();
+
+        mappingsByIndex.forEach((indexName, mappings) -> {
+            final AbstractElasticsearchDao dao = daoByIndex.get(indexName);
+            install(indexName, dao.getIndexPattern(), dao.getIndexAlias(), settings, mappings);
+        });
+    }
+
+    private void install(final String indexName, final String pattern, final String alias, final Settings settings, final Map<String, String> mappings) {
+
+        elasticsearchClient.putIndexTemplate(indexName, pattern, alias, settings, mappings).whenComplete((ignored, e) -> {
+            if (e == null) {
+                LOG.info("Installed index template for: {}, pattern: {}, types: {}", indexName, pattern, mappings.keySet());
+            }
+            else {
+                final long retrySeconds = applicationProperties.getElasticsearch().getIndex().getTemplateRetrySeconds();
+                LOG.warn("Unable to install index template for: {}. Retrying in {}s", indexName, retrySeconds, e);
+                retryScheduler.schedule(() -> install(indexName, pattern, alias, settings, mappings), retrySeconds, TimeUnit.SECONDS);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        retryScheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,187 @@
+package com.forgerock.microblog.es;
+
+import com.google.common.base.Preconditions;
+import org.springframework.util.StringUtils;
+
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Names of the monthly indices (partitions) that documents are written to, e.g. microblog-blogpost-2017.06.
+ * All partitions share a read alias, which is the prefix without the trailing dash.
+ * <p>
+ * Knows which partitions exist from the last time they were listed so that date range queries only go to the
+ * partitions that can match.
+ * </p>
+ */
+public class MonthlyPartitions {
+
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM");
+
+    private final String alias;
+
+    // Null until partitions have been listed from ES
+    private volatile TreeSet<String> known;
+
+    /**
+     * @param alias Read alias covering every partition. Partitions are named alias-yyyy.MM
+     */
+    public MonthlyPartitions(final String alias) {
+        Preconditions.checkArgument(!StringUtils.isEmpty(alias), "alias cannot be empty");
+        this.alias = alias;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * @return Pattern matching every partition, for the index template
+     */
+    public String getPattern() {
+        return alias + "-*";
+    }
+
+    /**
+     * @param date Document date
+     * @return Partition the document belongs in
+     */
+    public String forDate(final Date date) {
+        Preconditions.checkNotNull(date, "date cannot be null");
+        return forMonth(YearMonth.from(date.toInstant().atOffset(ZoneOffset.UTC)));
+    }
+
+    public String forMonth(final YearMonth month) {
+        return alias + "-" + MONTH_FORMAT.format(month);
+    }
+
+    /**
+     * @param index Index name
+     * @return Month of the partition or empty if the index is not one of these partitions
+     */
+    public Optional<YearMonth> monthOf(final String index) {
+
+        if (index == null || !index.startsWith(alias + "-")) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(YearMonth.parse(index.substring(alias.length() + 1), MONTH_FORMAT));
+        }
+        catch (DateTimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return true once partitions have been listed from ES
+     */
+    public boolean isKnown() {
+        return known != null;
+    }
+
+    /**
+     * @param indices Partitions that currently exist in ES
+     */
+    public void setKnown(final Collection<String> indices) {
+        known = indices.stream().filter(index -> monthOf(index).isPresent()).collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    /**
+     * @return Every partition that may hold documents, oldest first. Always includes the current and previous month
+     * as they may have been created since partitions were last listed.
+     */
+    public List<String> all() {
+
+        final TreeSet<String> all = known == null ? new TreeSet<>() : new TreeSet<>(known);
+        final YearMonth now = YearMonth.now(ZoneOffset.UTC);
+        all.add(forMonth(now.minusMonths(1)));
+        all.add(forMonth(now));
+        return new ArrayList<>(all);
+    }
+
+    /**
+     * @param date  Date of the document, give or take the slack
+     * @param slack Furthest the document's date can be from the date given
+     * @return Partitions that can hold the document, oldest first, out of {@link #all()}. Empty if none of them can.
+     */
+    public List<String> around(final Instant date, final Duration slack) {
+        Preconditions.checkNotNull(date, "date cannot be null");
+        Preconditions.checkNotNull(slack, "slack cannot be null");
+
+        final YearMonth from = YearMonth.from(date.minus(slack).atOffset(ZoneOffset.UTC));
+        final YearMonth to = YearMonth.from(date.plus(slack).atOffset(ZoneOffset.UTC));
+        return all().stream()
+                .filter(index -> {
+                    final YearMonth month = monthOf(index).get();
+                    return !month.isBefore(from) && !month.isAfter(to);
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Partitions that can hold documents dated between from and to. Dates are in any of the formats accepted by the
+     * timestamp range query. A date that can't be read here is treated as unbounded so nothing is wrongly left out.
+     *
+     * @param fromDateTime Earliest date or null
+     * @param toDateTime   Latest date or null
+     * @return Partitions, or just the alias if partitions haven't been listed yet or no range was given. Empty if no
+     * partition can hold documents in the range, e.g. it is before the first partition or from is after to.
+     */
+    public List<String> forRange(final String fromDateTime, final String toDateTime) {
+
+        final Optional<YearMonth> from = parseMonth(fromDateTime);
+        final Optional<YearMonth> to = parseMonth(toDateTime);
+        if (!isKnown() || (!from.isPresent() && !to.isPresent())) {
+            return Collections.singletonList(alias);
+        }
+
+        return all().stream()
+                .filter(index -> {
+                    final YearMonth month = monthOf(index).get();
+                    return (!from.isPresent() || !month.isBefore(from.get())) && (!to.isPresent() || !month.isAfter(to.get()));
+                })
+                .collect(Collectors.toList());
+    }
+
+    static Optional<YearMonth> parseMonth(final String dateTime) {
+
+        return parseInstant(dateTime).map(instant -> YearMonth.from(instant.atOffset(ZoneOffset.UTC)));
+    }
+
+    /**
+     * @param dateTime Epoch millis, ISO date-time with offset or ISO date (start of the day in UTC)
+     * @return Instant or empty if none given or not in one of those formats
+     */
+    public static Optional<Instant> parseInstant(final String dateTime) {
+
+        if (StringUtils.isEmpty(dateTime)) {
+            return Optional.empty();
+        }
+        try {
+            if (dateTime.chars().allMatch(Character::isDigit)) {
+                return Optional.of(Instant.ofEpochMilli(Long.parseLong(dateTime)));
+            }
+            if (dateTime.contains("T")) {
+                return Optional.of(OffsetDateTime.parse(dateTime).toInstant());
+            }
+            return Optional.of(LocalDate.parse(dateTime).atStartOfDay(ZoneOffset.UTC).toInstant());
+        }
+        catch (DateTimeException | NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+}
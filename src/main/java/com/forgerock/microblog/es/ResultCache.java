@@ -0,0 +1,112 @@
+package com.forgerock.microblog.es;
+
+import com.forgerock.microblog.configuration.ApplicationProperties;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Read-through cache of query results. Entries are weighed, e.g. by number of documents, so the cache is bounded by
+ * the total weight of the results it holds rather than by the number of queries. Concurrent requests for a query that
+ * isn't cached share one request to ES.
+ * <p>
+ * Writes invalidate the queries they could change. A query still running when there is a write is not cached as it
+ * may have missed the write.
+ * </p>
+ *
+ * @param <K> Query, with equals and hashCode on its canonical form
+ * @param <V> Result
+ */
+public class ResultCache<K, V> {
+
+    private final Cache<K, V> results;
+
+    private final ConcurrentMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+
+    // Counts invalidations so queries that overlapped one can be left out of the cache
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param spec    Total weight of results to keep and how long to keep them
+     * @param weigher Weight of a result
+     */
+    public ResultCache(final ApplicationProperties.CacheSpec spec, final ToIntFunction<V> weigher) {
+        Preconditions.checkNotNull(spec, "spec cannot be null");
+        Preconditions.checkNotNull(weigher, "weigher cannot be null");
+
+        this.results = CacheBuilder.newBuilder()
+                .maximumWeight(spec.getMaxSize())
+                .weigher((K key, V result) -> weigher.applyAsInt(result))
+                .expireAfterWrite(spec.getTtlSeconds(), TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @param query  Query
+     * @param loader Runs the query in ES when it isn't cached
+     * @return Completes with the result
+     */
+    public CompletableFuture<V> get(final K query, final Function<K, CompletableFuture<V>> loader) {
+        Preconditions.checkNotNull(query, "query cannot be null");
+
+        final V cached = results.getIfPresent(query);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        final long generation = invalidations.get();
+        final AtomicBoolean started = new AtomicBoolean();
+        final CompletableFuture<V> future = loading.computeIfAbsent(query, key -> {
+            started.set(true);
+            return loader.apply(key);
+        });
+
+        // Only the request that started the query caches it
+        if (started.get()) {
+            future.whenComplete((result, failure) -> {
+                if (failure == null && result != null && invalidations.get() == generation) {
+                    results.put(query, result);
+                }
+                loading.remove(query, future);
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Drop the cached results that a write could have changed
+     *
+     * @param stale Whether the write could change the result of a query
+     */
+    public void invalidateIf(final Predicate<K> stale) {
+
+        invalidations.incrementAndGet();
+        results.asMap().keySet().removeIf(stale);
+    }
+
+    /**
+     * @return Hits, misses and evictions
+     */
+    public CacheStats stats() {
+        return results.stats();
+    }
+
+    /**
+     * @return Approximate number of results cached
+     */
+    public long size() {
+        return results.size();
+    }
+}
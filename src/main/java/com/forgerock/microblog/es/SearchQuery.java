@@ -0,0 +1,173 @@
+package com.forgerock.microblog.es;
+
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Options for a search request
+ */
+public class SearchQuery {
+
+    private SearchType searchType = SearchType.QUERY_THEN_FETCH;
+    private Integer from;
+    private Integer size;
+    private QueryBuilder queryBuilder;
+    private List<SortBuilder> sortBuilders = new ArrayList<>();
+    private Object[] searchAfter;
+    private String[] sourceIncludes;
+    private boolean version;
+    private List<AggregationBuilder> aggregations = new ArrayList<>();
+
+    public SearchType getSearchType() {
+        return searchType;
+    }
+
+    /**
+     * @return Paging offset or null for the first result
+     */
+    public Integer getFrom() {
+        return from;
+    }
+
+    /**
+     * @return Page size or null for the maximum allowed
+     */
+    public Integer getSize() {
+        return size;
+    }
+
+    public QueryBuilder getQueryBuilder() {
+        return queryBuilder;
+    }
+
+    public List<SortBuilder> getSortBuilders() {
+        return sortBuilders;
+    }
+
+    /**
+     * @return Sort values of the last hit on the previous page, or null for the first page
+     */
+    public Object[] getSearchAfter() {
+        return searchAfter;
+    }
+
+    /**
+     * @return Source fields to return for each hit, or null for the whole source
+     */
+    public String[] getSourceIncludes() {
+        return sourceIncludes;
+    }
+
+    /**
+     * @return true to return the version of each hit
+     */
+    public boolean isVersion() {
+        return version;
+    }
+
+    /**
+     * @return Aggregations to compute over the matching documents
+     */
+    public List<AggregationBuilder> getAggregations() {
+        return aggregations;
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("SearchQuery{");
+        sb.append("searchType=").append(searchType);
+        sb.append(", from=").append(from);
+        sb.append(", size=").append(size);
+        sb.append(", queryBuilder=").append(queryBuilder);
+        sb.append(", sortBuilders=").append(sortBuilders);
+        sb.append(", searchAfter=").append(Arrays.toString(searchAfter));
+        sb.append(", sourceIncludes=").append(Arrays.toString(sourceIncludes));
+        sb.append(", version=").append(version);
+        sb.append(", aggregations=").append(aggregations);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    public static final class SearchQueryBuilder {
+        private SearchType searchType = SearchType.QUERY_THEN_FETCH;
+        private Integer from;
+        private Integer size;
+        private QueryBuilder queryBuilder;
+        private List<SortBuilder> sortBuilders = new ArrayList<>();
+        private Object[] searchAfter;
+        private String[] sourceIncludes;
+        private boolean version;
+        private List<AggregationBuilder> aggregations = new ArrayList<>();
+
+        private SearchQueryBuilder() {}
+
+        public static SearchQueryBuilder aSearchQuery() { return new SearchQueryBuilder();}
+
+        public SearchQueryBuilder withSearchType(SearchType searchType) {
+            this.searchType = searchType;
+            return this;
+        }
+
+        public SearchQueryBuilder withFrom(Integer from) {
+            this.from = from;
+            return this;
+        }
+
+        public SearchQueryBuilder withSize(Integer size) {
+            this.size = size;
+            return this;
+        }
+
+        public SearchQueryBuilder withQueryBuilder(QueryBuilder queryBuilder) {
+            this.queryBuilder = queryBuilder;
+            return this;
+        }
+
+        public SearchQueryBuilder withSortBuilders(List<SortBuilder> sortBuilders) {
+            this.sortBuilders = sortBuilders;
+            return this;
+        }
+
+        public SearchQueryBuilder withSearchAfter(Object[] searchAfter) {
+            this.searchAfter = searchAfter;
+            return this;
+        }
+
+        public SearchQueryBuilder withSourceIncludes(String[] sourceIncludes) {
+            this.sourceIncludes = sourceIncludes;
+            return this;
+        }
+
+        public SearchQueryBuilder withVersion(boolean version) {
+            this.version = version;
+            return this;
+        }
+
+        public SearchQueryBuilder withAggregations(List<AggregationBuilder> aggregations) {
+            this.aggregations = aggregations;
+            return this;
+        }
+
+        public SearchQuery build() {
+
+            SearchQuery searchQuery = new SearchQuery();
+            searchQuery.searchType = searchType;
+            searchQuery.from = from;
+            searchQuery.size = size;
+            searchQuery.queryBuilder = queryBuilder;
+            searchQuery.sortBuilders = sortBuilders;
+            searchQuery.searchAfter = searchAfter;
+            searchQuery.sourceIncludes = sourceIncludes;
+            searchQuery.version = version;
+            searchQuery.aggregations = aggregations;
+            return searchQuery;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.forgerock.microblog.es;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.base.Preconditions;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Turns model objects into ES document sources and back. Sources are encoded as JSON, SMILE or CBOR and parsed
+ * straight from the bytes as they arrive from the transport, whichever of those formats they were stored in.
+ * Readers and writers are immutable so a codec is shared by all threads.
+ *
+ * @param <T> Model type
+ */
+public class SourceCodec<T> {
+
+    private static final Map<XContentType, ObjectMapper> MAPPERS = new EnumMap<>(XContentType.class);
+
+    static {
+        MAPPERS.put(XContentType.JSON, aMapper(new JsonFactory()));
+        MAPPERS.put(XContentType.SMILE, aMapper(new SmileFactory()));
+        MAPPERS.put(XContentType.CBOR, aMapper(new CBORFactory()));
+    }
+
+    private final Map<XContentType, ObjectReader> readers = new EnumMap<>(XContentType.class);
+
+    private final Map<XContentType, ObjectWriter> writers = new EnumMap<>(XContentType.class);
+
+    public SourceCodec(final Class<T> type) {
+        MAPPERS.forEach((format, mapper) -> {
+            readers.put(format, mapper.readerFor(type));
+            writers.put(format, mapper.writerFor(type));
+        });
+    }
+
+    private static ObjectMapper aMapper(final JsonFactory factory) {
+
+        return new ObjectMapper(factory)
+                // Documents may gain fields before the model does
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                // Partial updates must only contain the fields being changed
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    }
+
+    /**
+     * @param document Model object
+     * @param format   JSON, SMILE or CBOR
+     * @return Source to send to ES
+     */
+    public byte[] encode(final T document, final XContentType format) {
+        Preconditions.checkNotNull(document, "document cannot be null");
+        Preconditions.checkArgument(writers.containsKey(format), "Unsupported source format: %s", format);
+
+        try {
+            return writers.get(format).writeValueAsBytes(document);
+        }
+        catch (JsonProcessingException e) {
+            throw new UncheckedIOException("Unable to encode document source", e);
+        }
+    }
+
+    /**
+     * @param source Source of a hit or document in any supported format
+     * @return Model object or null if there is no source
+     * @throws UncheckedIOException Source doesn't match the model
+     */
+    public T decode(final BytesReference source) {
+
+        if (source == null || source.length() == 0) {
+            return null;
+        }
+
+        // Points at the transport buffer when the source is in one piece, which it is unless very large
+        final BytesRef bytes = source.toBytesRef();
+        try {
+            return readerFor(source).readValue(bytes.bytes, bytes.offset, bytes.length);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Unable to decode document source", e);
+        }
+    }
+
+    private ObjectReader readerFor(final BytesReference source) {
+
+        // Anything unrecognised is read as JSON so it fails with a parse error
+        final XContentType format = XContentFactory.xContentType(source);
+        return readers.getOrDefault(format, readers.get(XContentType.JSON));
+    }
+}
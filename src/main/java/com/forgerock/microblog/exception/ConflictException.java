@@ -0,0 +1,16 @@
+package com.forgerock.microblog.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Request clashes with an existing resource, e.g. an idempotency key reused for a different resource
+ */
+@ResponseStatus(HttpStatus.CONFLICT)
+public class ConflictException extends RuntimeException {
+
+    public ConflictException(String msg) {
+
+        super(msg);
+    }
+}
@@ -0,0 +1,16 @@
+package com.forgerock.microblog.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Request body is bigger than the server will take. The client should split it up.
+ */
+@ResponseStatus(HttpStatus.PAYLOAD_TOO_LARGE)
+public class PayloadTooLargeException extends RuntimeException {
+
+    public PayloadTooLargeException(String msg) {
+
+        super(msg);
+    }
+}
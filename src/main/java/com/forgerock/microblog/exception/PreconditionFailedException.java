@@ -0,0 +1,16 @@
+package com.forgerock.microblog.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Resource has changed since the version the client based its request on
+ */
+@ResponseStatus(HttpStatus.PRECONDITION_FAILED)
+public class PreconditionFailedException extends RuntimeException {
+
+    public PreconditionFailedException(String msg) {
+
+        super(msg);
+    }
+}
@@ -0,0 +1,16 @@
+package com.forgerock.microblog.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Too busy to take the request now. The client should try again later.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class ServiceUnavailableException extends RuntimeException {
+
+    public ServiceUnavailableException(String msg) {
+
+        super(msg);
+    }
+}
@@ -14,11 +14,15 @@ public class BlogPostSortFilter implements SortFilter {
     // Paging
     private Integer size;
     private Integer offset;
+    private String cursor;
 
     private List<String> userIds = new ArrayList<>();
 
     private List<String> sort = new ArrayList<>();
 
+    // Projection
+    private List<String> fields = new ArrayList<>();
+
     public BlogPostSortFilter() {
     }
 
@@ -63,6 +67,17 @@ public class BlogPostSortFilter implements SortFilter {
         this.offset = offset;
     }
 
+    /**
+     * @return Token from a previous page to continue from, or null. Takes precedence over offset.
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(final String cursor) {
+        this.cursor = cursor;
+    }
+
     public List<String> getUserIds() {
         return userIds;
     }
@@ -79,6 +94,17 @@ public class BlogPostSortFilter implements SortFilter {
         this.sort = sort;
     }
 
+    /**
+     * @return Fields to return for each blog post or empty for all fields
+     */
+    public List<String> getFields() {
+        return fields;
+    }
+
+    public void setFields(final List<String> fields) {
+        this.fields = fields;
+    }
+
 
     public static final class BlogPostSortFilterBuilder {
 
@@ -87,8 +113,10 @@ public class BlogPostSortFilter implements SortFilter {
         // Paging
         private Integer size;
         private Integer offset;
+        private String cursor;
         private List<String> userIds = new ArrayList<>();
         private List<String> sort = new ArrayList<>();
+        private List<String> fields = new ArrayList<>();
 
         private BlogPostSortFilterBuilder() {}
 
@@ -118,6 +146,12 @@ public class BlogPostSortFilter implements SortFilter {
             return this;
         }
 
+        public BlogPostSortFilterBuilder withCursor(String cursor) {
+
+            this.cursor = cursor;
+            return this;
+        }
+
         public BlogPostSortFilterBuilder withUserIds(List<String> userIds) {
 
             this.userIds = userIds;
@@ -130,6 +164,12 @@ public class BlogPostSortFilter implements SortFilter {
             return this;
         }
 
+        public BlogPostSortFilterBuilder withFields(List<String> fields) {
+
+            this.fields = fields;
+            return this;
+        }
+
         public BlogPostSortFilter build() {
 
             BlogPostSortFilter blogPostSortFilter = new BlogPostSortFilter();
@@ -137,8 +177,10 @@ public class BlogPostSortFilter implements SortFilter {
             blogPostSortFilter.setToDateTime(toDateTime);
             blogPostSortFilter.setSize(size);
             blogPostSortFilter.setOffset(offset);
+            blogPostSortFilter.setCursor(cursor);
             blogPostSortFilter.setUserIds(userIds);
             blogPostSortFilter.setSort(sort);
+            blogPostSortFilter.setFields(fields);
             return blogPostSortFilter;
         }
     }
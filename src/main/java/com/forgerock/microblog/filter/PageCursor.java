@@ -0,0 +1,99 @@
+package com.forgerock.microblog.filter;
+
+import com.forgerock.microblog.exception.BadRequestException;
+import com.google.common.base.Preconditions;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Opaque token for the next page of results. Holds the sort values of the last result on the previous page
+ * so the next page can start directly after it, however deep into the results it is.
+ */
+public class PageCursor {
+
+    private static final Gson GSON = new Gson();
+
+    private final Object[] sortValues;
+
+    public PageCursor(final Object[] sortValues) {
+        Preconditions.checkArgument(sortValues != null && sortValues.length > 0, "Sort values cannot be empty");
+        this.sortValues = sortValues;
+    }
+
+    public Object[] getSortValues() {return sortValues;}
+
+    /**
+     * @return URL safe token for the client
+     */
+    public String encode() {
+
+        final JsonArray values = new JsonArray();
+        for (Object value : sortValues) {
+            // Null for a post missing the sort field, kept as null rather than the string "null"
+            if (value == null) {
+                values.add(JsonNull.INSTANCE);
+            }
+            else {
+                values.add(value instanceof Number ? new JsonPrimitive((Number) value) : new JsonPrimitive(String.valueOf(value)));
+            }
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(GSON.toJson(values).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a token given to a client by {@link #encode()}
+     *
+     * @param cursor Token
+     * @return Cursor
+     * @throws BadRequestException Token was not created by this service
+     */
+    public static PageCursor parse(final String cursor) {
+
+        Preconditions.checkArgument(!StringUtils.isEmpty(cursor), "String cannot be empty");
+        try {
+            final String json = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            final JsonArray values = new JsonParser().parse(json).getAsJsonArray();
+            final Object[] sortValues = new Object[values.size()];
+            for (int i = 0; i < values.size(); i++) {
+                sortValues[i] = toSortValue(values.get(i));
+            }
+            return new PageCursor(sortValues);
+        }
+        catch (IllegalArgumentException | IllegalStateException | JsonParseException e) {
+            throw new BadRequestException("Invalid cursor");
+        }
+    }
+
+    // ES only accepts specific types for search_after values
+    private static Object toSortValue(final JsonElement element) {
+
+        if (element.isJsonNull()) {
+            return null;
+        }
+        final JsonPrimitive primitive = element.getAsJsonPrimitive();
+        if (primitive.isNumber()) {
+            final String number = primitive.getAsString();
+            return number.contains(".") || number.contains("e") || number.contains("E") ? (Object) primitive.getAsDouble() : (Object) primitive.getAsLong();
+        }
+        return primitive.getAsString();
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("PageCursor{");
+        sb.append("sortValues=").append(Arrays.toString(sortValues));
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,128 @@
+package com.forgerock.microblog.filter;
+
+import com.forgerock.microblog.exception.BadRequestException;
+import com.google.common.base.Preconditions;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Opaque token of a client's most recent writes, so its reads can include them before they show in searches.
+ * Returned from every write and passed back by the client on its next request, signed by {@link SessionTokenSigner}.
+ */
+public class SessionToken {
+
+    // Keeps the header small. Only writes from the last few seconds matter.
+    static final int MAX_WRITES = 20;
+
+    private static final Gson GSON = new Gson();
+
+    private static final SessionToken EMPTY = new SessionToken(Collections.emptyMap());
+
+    // Id of each post written to the time it was written, oldest first
+    private final Map<String, Long> writes;
+
+    private SessionToken(final Map<String, Long> writes) {
+        this.writes = writes;
+    }
+
+    /**
+     * @return Token of a client that hasn't written anything
+     */
+    public static SessionToken empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param id        Post written
+     * @param writtenAt Time of the write in epoch milliseconds
+     * @return New token with the write added, dropping the oldest writes to keep it small
+     */
+    public SessionToken withWrite(final String id, final long writtenAt) {
+        Preconditions.checkNotNull(id, "id cannot be null");
+
+        final Map<String, Long> newWrites = new LinkedHashMap<>(writes);
+        newWrites.remove(id);
+        newWrites.put(id, writtenAt);
+        final Iterator<String> oldest = newWrites.keySet().iterator();
+        while (newWrites.size() > MAX_WRITES) {
+            oldest.next();
+            oldest.remove();
+        }
+        return new SessionToken(newWrites);
+    }
+
+    /**
+     * @param since Epoch milliseconds. Writes before this are taken to show in searches by now.
+     * @return Ids of the posts written since the time, oldest first
+     */
+    public Set<String> getWrittenSince(final long since) {
+
+        final Set<String> ids = new LinkedHashSet<>();
+        writes.forEach((id, writtenAt) -> {
+            if (writtenAt >= since) {
+                ids.add(id);
+            }
+        });
+        return ids;
+    }
+
+    /**
+     * @return URL safe token, to be signed before it is given to the client
+     */
+    String encode() {
+
+        final JsonObject json = new JsonObject();
+        writes.forEach(json::addProperty);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(GSON.toJson(json).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a token written by {@link #encode()}, once its signature has been checked
+     *
+     * @param token Token or empty if the client has none
+     * @return Session
+     * @throws BadRequestException Token was not created by this service
+     */
+    static SessionToken parse(final String token) {
+
+        if (StringUtils.isEmpty(token)) {
+            return EMPTY;
+        }
+        try {
+            final String json = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            final Map<String, Long> writes = new LinkedHashMap<>();
+            for (Map.Entry<String, JsonElement> write : new JsonParser().parse(json).getAsJsonObject().entrySet()) {
+                writes.put(write.getKey(), write.getValue().getAsLong());
+            }
+            if (writes.size() > MAX_WRITES) {
+                throw new BadRequestException("Invalid session token");
+            }
+            return new SessionToken(writes);
+        }
+        catch (IllegalArgumentException | IllegalStateException | UnsupportedOperationException | JsonParseException e) {
+            throw new BadRequestException("Invalid session token");
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("SessionToken{");
+        sb.append("writes=").append(writes);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,116 @@
+package com.forgerock.microblog.filter;
+
+import com.forgerock.microblog.configuration.ApplicationProperties;
+import com.forgerock.microblog.exception.BadRequestException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Signs the session tokens given to clients and checks the signature of those passed back, so a client can't make up
+ * a token that has its reads look up any posts it likes in real time. A token that can't be checked is ignored rather
+ * than failing the request, as it only decides whether the client's own recent writes are read in real time.
+ */
+@Component
+public class SessionTokenSigner {
+
+    private final static Logger LOG = LoggerFactory.getLogger(SessionTokenSigner.class);
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    // Between the token and its signature. Not in the URL safe base 64 alphabet.
+    private static final char SEPARATOR = '.';
+
+    private static final int RANDOM_KEY_BYTES = 32;
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    private SecretKeySpec key;
+
+    @PostConstruct
+    public void init() {
+
+        final String configured = applicationProperties.getConsistency().getSessionTokenKey();
+        final byte[] secret;
+        if (StringUtils.isEmpty(configured)) {
+            secret = new byte[RANDOM_KEY_BYTES];
+            new SecureRandom().nextBytes(secret);
+            LOG.warn("consistency.sessionTokenKey is not set. Session tokens are signed with a random key and ignored by other instances, "
+                    + "so clients switching instances don't read their own writes straight away. Set the same key on every instance when there are many.");
+        }
+        else {
+            secret = configured.getBytes(StandardCharsets.UTF_8);
+        }
+        key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    /**
+     * @param session Session
+     * @return Signed URL safe token for the client
+     */
+    public String encode(final SessionToken session) {
+
+        final String token = session.encode();
+        return token + SEPARATOR + sign(token);
+    }
+
+    /**
+     * Read a token given to a client by {@link #encode(SessionToken)}
+     *
+     * @param signedToken Token or empty if the client has none
+     * @return Session, or an empty one if the token wasn't signed with this instance's key (e.g. it came from another
+     * instance with a different key) or has been changed
+     */
+    public SessionToken parse(final String signedToken) {
+
+        if (StringUtils.isEmpty(signedToken)) {
+            return SessionToken.empty();
+        }
+        final int separator = signedToken.lastIndexOf(SEPARATOR);
+        if (separator < 0) {
+            LOG.debug("Ignoring unsigned session token");
+            return SessionToken.empty();
+        }
+        final String token = signedToken.substring(0, separator);
+        final byte[] signature = signedToken.substring(separator + 1).getBytes(StandardCharsets.UTF_8);
+        // Takes the same time however much of the signature matches
+        if (!MessageDigest.isEqual(sign(token).getBytes(StandardCharsets.UTF_8), signature)) {
+            LOG.debug("Ignoring session token with a signature that doesn't match");
+            return SessionToken.empty();
+        }
+        try {
+            return SessionToken.parse(token);
+        }
+        catch (BadRequestException e) {
+            // Signed by this service so only if the format has changed
+            LOG.debug("Ignoring session token that can't be read", e);
+            return SessionToken.empty();
+        }
+    }
+
+    private String sign(final String token) {
+
+        try {
+            // Not thread safe so one per token
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(token.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (GeneralSecurityException e) {
+            // Every JVM has HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.forgerock.microblog.filter;
+
+import com.forgerock.microblog.exception.BadRequestException;
+import com.google.common.base.Preconditions;
+import org.springframework.util.StringUtils;
+
+import java.time.Duration;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Which blog posts make the leaderboard and how they are ranked
+ */
+public class TopRatedFilter {
+
+    // e.g. 90m, 24h, 7d
+    private static final Pattern WINDOW_PATTERN = Pattern.compile("(\\d{1,9})([smhd])");
+
+    private RankBy by;
+    private Duration window;
+    private Integer size;
+    private long minCount;
+
+    private TopRatedFilter(final RankBy by, final Duration window, final Integer size, final long minCount) {
+        this.by = by;
+        this.window = window;
+        this.size = size;
+        this.minCount = minCount;
+    }
+
+    public RankBy getBy() {
+        return by;
+    }
+
+    /**
+     * @return Only ratings made in this long before now are counted, or null for all ratings
+     */
+    public Duration getWindow() {
+        return window;
+    }
+
+    /**
+     * @return Number of blog posts or null for the default
+     */
+    public Integer getSize() {
+        return size;
+    }
+
+    /**
+     * @return Fewest ratings a blog post needs to be ranked, so one 5 doesn't top the average ranking
+     */
+    public long getMinCount() {
+        return minCount;
+    }
+
+    public enum RankBy {
+        AVG_RATING("avgRating"), RATING_COUNT("ratingCount");
+
+        private final String param;
+
+        RankBy(final String param) {
+            this.param = param;
+        }
+
+        public String getParam() {
+            return param;
+        }
+
+        public static RankBy parse(final String param) {
+
+            for (RankBy rankBy : values()) {
+                if (rankBy.param.equalsIgnoreCase(param)) {
+                    return rankBy;
+                }
+            }
+            throw new BadRequestException("Invalid ranking. Must be avgRating or ratingCount");
+        }
+    }
+
+    /**
+     * @param windowParam Number followed by s, m, h or d e.g. 24h. Empty for no window.
+     * @return The window or null if empty
+     */
+    public static Duration parseWindow(final String windowParam) {
+
+        if (StringUtils.isEmpty(windowParam)) {
+            return null;
+        }
+        final Matcher matcher = WINDOW_PATTERN.matcher(windowParam.trim());
+        final long amount = matcher.matches() ? Long.parseLong(matcher.group(1)) : 0;
+        if (amount <= 0) {
+            throw new BadRequestException("Invalid window. Must be a number greater than 0 followed by s, m, h or d e.g. 24h");
+        }
+        switch (matcher.group(2)) {
+            case "s":
+                return Duration.ofSeconds(amount);
+            case "m":
+                return Duration.ofMinutes(amount);
+            case "h":
+                return Duration.ofHours(amount);
+            default:
+                return Duration.ofDays(amount);
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TopRatedFilter)) {
+            return false;
+        }
+
+        final TopRatedFilter that = (TopRatedFilter) o;
+
+        if (minCount != that.minCount) {
+            return false;
+        }
+        if (by != that.by) {
+            return false;
+        }
+        if (window != null ? !window.equals(that.window) : that.window != null) {
+            return false;
+        }
+        return size != null ? size.equals(that.size) : that.size == null;
+    }
+
+    @Override
+    public int hashCode() {
+
+        int result = by != null ? by.hashCode() : 0;
+        result = 31 * result + (window != null ? window.hashCode() : 0);
+        result = 31 * result + (size != null ? size.hashCode() : 0);
+        result = 31 * result + (int) (minCount ^ (minCount >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("TopRatedFilter{");
+        sb.append("by=").append(by);
+        sb.append(", window=").append(window);
+        sb.append(", size=").append(size);
+        sb.append(", minCount=").append(minCount);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    public static final class TopRatedFilterBuilder {
+        private RankBy by = RankBy.AVG_RATING;
+        private Duration window;
+        private Integer size;
+        private long minCount = 1;
+
+        private TopRatedFilterBuilder() {}
+
+        public static TopRatedFilterBuilder aTopRatedFilter() { return new TopRatedFilterBuilder();}
+
+        public TopRatedFilterBuilder withBy(RankBy by) {
+
+            this.by = by;
+            return this;
+        }
+
+        public TopRatedFilterBuilder withWindow(Duration window) {
+
+            this.window = window;
+            return this;
+        }
+
+        public TopRatedFilterBuilder withSize(Integer size) {
+
+            this.size = size;
+            return this;
+        }
+
+        public TopRatedFilterBuilder withMinCount(long minCount) {
+
+            this.minCount = minCount;
+            return this;
+        }
+
+        public TopRatedFilter build() {
+
+            Preconditions.checkNotNull(by, "by cannot be null");
+            return new TopRatedFilter(by, window, size, Math.max(1, minCount));
+        }
+    }
+}
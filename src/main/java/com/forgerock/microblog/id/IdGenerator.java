@@ -0,0 +1,12 @@
+package com.forgerock.microblog.id;
+
+/**
+ * Mints ids for new documents
+ */
+public interface IdGenerator {
+
+    /**
+     * @return Id no other call returns, on this instance or another
+     */
+    String nextId();
+}
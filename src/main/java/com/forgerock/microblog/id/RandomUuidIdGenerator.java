@@ -0,0 +1,15 @@
+package com.forgerock.microblog.id;
+
+import java.util.UUID;
+
+/**
+ * Random UUIDs, as ids were minted before {@link TimeOrderedIdGenerator}. Every id costs a call to the shared
+ * SecureRandom.
+ */
+public class RandomUuidIdGenerator implements IdGenerator {
+
+    @Override
+    public String nextId() {
+        return UUID.randomUUID().toString();
+    }
+}
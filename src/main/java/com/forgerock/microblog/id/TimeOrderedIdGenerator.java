@@ -0,0 +1,109 @@
+package com.forgerock.microblog.id;
+
+import com.google.common.base.Preconditions;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Snowflake style ids: milliseconds since {@link #EPOCH_MILLIS}, then the node, then a sequence within the millisecond,
+ * in 64 bits written as {@value #LENGTH} characters of base 32. Ids sort as text in the order they were minted on a
+ * node, and across nodes to within clock skew, which keeps them close together in the index.
+ * <p>
+ * Minting is lock-free and never waits. A node that mints more than 4096 ids in a millisecond,
+ * or whose clock goes back, carries on from the last id rather than the clock, so ids stay unique and ordered. Ids are
+ * only unique across nodes if each has its own node id.
+ * </p>
+ */
+public class TimeOrderedIdGenerator implements IdGenerator {
+
+    // 2017-01-01T00:00:00Z. 41 bits of milliseconds lasts until 2086.
+    static final long EPOCH_MILLIS = 1483228800000L;
+
+    static final int NODE_BITS = 10;
+
+    static final int SEQUENCE_BITS = 12;
+
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+
+    static final int MAX_SEQUENCE = (1 << SEQUENCE_BITS) - 1;
+
+    private static final int TIME_BITS = Long.SIZE - 1 - NODE_BITS - SEQUENCE_BITS;
+
+    static final int LENGTH = 13;
+
+    // Crockford's base 32 in lower case. Ascending in ASCII so ids compare as their numbers do.
+    private static final char[] DIGITS = "0123456789abcdefghjkmnpqrstvwxyz".toCharArray();
+
+    private final long node;
+
+    private final LongSupplier clock;
+
+    // Milliseconds since the epoch and sequence of the last id, as one number so both change in one compare and set
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * @param nodeId Unique to this instance among those writing to the same index, from 0 to {@link #MAX_NODE_ID}
+     */
+    public TimeOrderedIdGenerator(final int nodeId) {
+        this(nodeId, System::currentTimeMillis);
+    }
+
+    TimeOrderedIdGenerator(final int nodeId, final LongSupplier clock) {
+        Preconditions.checkArgument(nodeId >= 0 && nodeId <= MAX_NODE_ID, "Node id must be from 0 to %s", MAX_NODE_ID);
+        Preconditions.checkNotNull(clock, "clock cannot be null");
+
+        this.node = nodeId;
+        this.clock = clock;
+    }
+
+    @Override
+    public String nextId() {
+
+        final long millis = clock.getAsLong() - EPOCH_MILLIS;
+        Preconditions.checkState(millis >= 0 && millis < (1L << TIME_BITS), "Clock is outside the range of ids");
+
+        final long now = millis << SEQUENCE_BITS;
+        final long stamp = last.updateAndGet(previous -> Math.max(previous + 1, now));
+        return encode((stamp >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS) | (node << SEQUENCE_BITS) | (stamp & MAX_SEQUENCE));
+    }
+
+    /**
+     * @param id Id, from any generator
+     * @return When the id was minted, to the millisecond, or empty if it wasn't minted by a time ordered generator
+     */
+    public static Optional<Instant> mintedAt(final String id) {
+
+        if (id == null || id.length() != LENGTH) {
+            return Optional.empty();
+        }
+        long value = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            final int digit = Arrays.binarySearch(DIGITS, id.charAt(i));
+            // The first digit only holds the top 4 of the 64 bits, and the sign bit is never set
+            if (digit < 0 || (i == 0 && digit > 7)) {
+                return Optional.empty();
+            }
+            value = value << 5 | digit;
+        }
+        return Optional.of(Instant.ofEpochMilli((value >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH_MILLIS));
+    }
+
+    /**
+     * @param id Non-negative number
+     * @return The number in base 32, padded to {@value #LENGTH} characters
+     */
+    static String encode(final long id) {
+
+        final char[] chars = new char[LENGTH];
+        long remaining = id;
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            chars[i] = DIGITS[(int) (remaining & 31)];
+            remaining >>>= 5;
+        }
+        return new String(chars);
+    }
+}
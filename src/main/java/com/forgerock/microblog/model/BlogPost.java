@@ -1,12 +1,15 @@
 package com.forgerock.microblog.model;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.util.Date;
 
 /**
  * A single post on the blog at a specific point in time with textual content and an optional user id.
+ * Fields not requested (or not set) are left out of responses.
  */
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class BlogPost {
 
     private String id;
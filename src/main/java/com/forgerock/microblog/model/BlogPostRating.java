@@ -1,5 +1,9 @@
 package com.forgerock.microblog.model;
 
+import com.fasterxml.jackson.annotation.JsonFormat;
+
+import java.util.Date;
+
 /**
  * A numeric rating for a blog post submitted by a user.
  */
@@ -19,6 +23,9 @@ public class BlogPostRating {
 
     private String userId;
 
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = DateTimeConstants.ISO_OFFSET_DATE_TIME)
+    private Date timestamp;
+
     public BlogPostRating(final String id, final String blogPostId, final int rating, final String userId) {
         this.id = id;
         this.blogPostId = blogPostId;
@@ -69,6 +76,18 @@ public class BlogPostRating {
         this.userId = userId;
     }
 
+    /**
+     * @return When the rating was made. Null for ratings made before it was recorded.
+     */
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(final Date timestamp) {
+
+        this.timestamp = timestamp;
+    }
+
     @Override
     public boolean equals(final Object o) {
 
@@ -90,7 +109,10 @@ public class BlogPostRating {
         if (rating != null ? !rating.equals(that.rating) : that.rating != null) {
             return false;
         }
-        return userId != null ? userId.equals(that.userId) : that.userId == null;
+        if (userId != null ? !userId.equals(that.userId) : that.userId != null) {
+            return false;
+        }
+        return timestamp != null ? timestamp.equals(that.timestamp) : that.timestamp == null;
     }
 
     @Override
@@ -100,6 +122,7 @@ public class BlogPostRating {
         result = 31 * result + (blogPostId != null ? blogPostId.hashCode() : 0);
         result = 31 * result + (rating != null ? rating.hashCode() : 0);
         result = 31 * result + (userId != null ? userId.hashCode() : 0);
+        result = 31 * result + (timestamp != null ? timestamp.hashCode() : 0);
         return result;
     }
 
@@ -111,6 +134,7 @@ public class BlogPostRating {
         sb.append(", blogPostId='").append(blogPostId).append('\'');
         sb.append(", rating=").append(rating);
         sb.append(", userId='").append(userId).append('\'');
+        sb.append(", timestamp=").append(timestamp);
         sb.append('}');
         return sb.toString();
     }
@@ -120,6 +144,7 @@ public class BlogPostRating {
         private String blogPostId;
         private int rating;
         private String userId;
+        private Date timestamp;
 
         private BlogPostRatingBuilder() {}
 
@@ -149,9 +174,16 @@ public class BlogPostRating {
             return this;
         }
 
+        public BlogPostRatingBuilder withTimestamp(Date timestamp) {
+
+            this.timestamp = timestamp;
+            return this;
+        }
+
         public BlogPostRating build() {
 
             BlogPostRating blogPostRating = new BlogPostRating(id, blogPostId, rating, userId);
+            blogPostRating.setTimestamp(timestamp);
             return blogPostRating;
         }
     }
@@ -0,0 +1,87 @@
+package com.forgerock.microblog.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a bulk create with a result for each submitted resource, in submission order.
+ */
+public class BulkResult {
+
+    private final List<Item> items;
+
+    public BulkResult(final List<Item> items) {
+        this.items = new ArrayList<>(items);
+    }
+
+    /**
+     * @return true if any item failed
+     */
+    public boolean isErrors() {
+        return items.stream().anyMatch(Item::isFailed);
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("BulkResult{");
+        sb.append("items=").append(items);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Result for a single resource in the bulk request
+     */
+    public static class Item {
+
+        private final String id;
+
+        private final int status;
+
+        private final String error;
+
+        public Item(final String id, final int status, final String error) {
+            this.id = id;
+            this.status = status;
+            this.error = error;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return HTTP status for this item
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return Failure reason or null if successful
+         */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isFailed() {
+            return error != null;
+        }
+
+        @Override
+        public String toString() {
+
+            final StringBuilder sb = new StringBuilder("Item{");
+            sb.append("id='").append(id).append('\'');
+            sb.append(", status=").append(status);
+            sb.append(", error='").append(error).append('\'');
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.forgerock.microblog.model;
+
+/**
+ * A resource from a create that may have been retried, and whether it was created by this request or an earlier one
+ */
+public class Created<T> {
+
+    private final T value;
+
+    private final boolean replayed;
+
+    public Created(final T value, final boolean replayed) {
+        this.value = value;
+        this.replayed = replayed;
+    }
+
+    /**
+     * @return The resource as it was first created
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * @return True if an earlier request created the resource and this one changed nothing
+     */
+    public boolean isReplayed() {
+        return replayed;
+    }
+
+    /**
+     * @return The same resource as seen by a later request
+     */
+    public Created<T> asReplay() {
+        return replayed ? this : new Created<>(value, true);
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("Created{");
+        sb.append("value=").append(value);
+        sb.append(", replayed=").append(replayed);
+        sb.append('}');
+        return sb.toString();
+    }
+}
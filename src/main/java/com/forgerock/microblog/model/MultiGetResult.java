@@ -0,0 +1,39 @@
+package com.forgerock.microblog.model;
+
+import java.util.List;
+
+/**
+ * Resources found by a multi get, in the order requested, and the ids that were not found
+ */
+public class MultiGetResult<T> {
+
+    private final List<T> results;
+
+    private final List<String> missingIds;
+
+    public MultiGetResult(final List<T> results, final List<String> missingIds) {
+        this.results = results;
+        this.missingIds = missingIds;
+    }
+
+    public List<T> getResults() {
+        return results;
+    }
+
+    /**
+     * @return Requested ids with no matching resource or empty list if all were found
+     */
+    public List<String> getMissingIds() {
+        return missingIds;
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("MultiGetResult{");
+        sb.append("results=").append(results);
+        sb.append(", missingIds=").append(missingIds);
+        sb.append('}');
+        return sb.toString();
+    }
+}
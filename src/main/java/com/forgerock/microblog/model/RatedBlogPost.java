@@ -0,0 +1,34 @@
+package com.forgerock.microblog.model;
+
+/**
+ * A blog post with the statistics of its ratings
+ */
+public class RatedBlogPost {
+
+    private final BlogPost blogPost;
+
+    private final RatingSummary ratings;
+
+    public RatedBlogPost(final BlogPost blogPost, final RatingSummary ratings) {
+        this.blogPost = blogPost;
+        this.ratings = ratings;
+    }
+
+    public BlogPost getBlogPost() {
+        return blogPost;
+    }
+
+    public RatingSummary getRatings() {
+        return ratings;
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("RatedBlogPost{");
+        sb.append("blogPost=").append(blogPost);
+        sb.append(", ratings=").append(ratings);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,196 @@
+package com.forgerock.microblog.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistics of the ratings for a blog post, computed by ES so the ratings themselves don't have to be fetched
+ */
+public class RatingSummary {
+
+    private String blogPostId;
+
+    private long count;
+
+    private Double average;
+
+    private Integer min;
+
+    private Integer max;
+
+    private Map<Integer, Long> histogram;
+
+    public RatingSummary(final String blogPostId, final long count, final Double average, final Integer min, final Integer max, final Map<Integer, Long> histogram) {
+        this.blogPostId = blogPostId;
+        this.count = count;
+        this.average = average;
+        this.min = min;
+        this.max = max;
+        this.histogram = histogram;
+    }
+
+    /**
+     * Required by Spring
+     */
+    public RatingSummary() {
+    }
+
+    public String getBlogPostId() {
+        return blogPostId;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return Mean rating or null if there are no ratings
+     */
+    public Double getAverage() {
+        return average;
+    }
+
+    /**
+     * @return Lowest rating or null if there are no ratings
+     */
+    public Integer getMin() {
+        return min;
+    }
+
+    /**
+     * @return Highest rating or null if there are no ratings
+     */
+    public Integer getMax() {
+        return max;
+    }
+
+    /**
+     * @return Number of ratings of each score from lowest to highest, including scores nobody gave
+     */
+    public Map<Integer, Long> getHistogram() {
+        return histogram;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RatingSummary)) {
+            return false;
+        }
+
+        final RatingSummary that = (RatingSummary) o;
+
+        if (count != that.count) {
+            return false;
+        }
+        if (blogPostId != null ? !blogPostId.equals(that.blogPostId) : that.blogPostId != null) {
+            return false;
+        }
+        if (average != null ? !average.equals(that.average) : that.average != null) {
+            return false;
+        }
+        if (min != null ? !min.equals(that.min) : that.min != null) {
+            return false;
+        }
+        if (max != null ? !max.equals(that.max) : that.max != null) {
+            return false;
+        }
+        return histogram != null ? histogram.equals(that.histogram) : that.histogram == null;
+    }
+
+    @Override
+    public int hashCode() {
+
+        int result = blogPostId != null ? blogPostId.hashCode() : 0;
+        result = 31 * result + (int) (count ^ (count >>> 32));
+        result = 31 * result + (average != null ? average.hashCode() : 0);
+        result = 31 * result + (min != null ? min.hashCode() : 0);
+        result = 31 * result + (max != null ? max.hashCode() : 0);
+        result = 31 * result + (histogram != null ? histogram.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("RatingSummary{");
+        sb.append("blogPostId='").append(blogPostId).append('\'');
+        sb.append(", count=").append(count);
+        sb.append(", average=").append(average);
+        sb.append(", min=").append(min);
+        sb.append(", max=").append(max);
+        sb.append(", histogram=").append(histogram);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    public static final class RatingSummaryBuilder {
+        private String blogPostId;
+        private long count;
+        private Double average;
+        private Integer min;
+        private Integer max;
+        private Map<Integer, Long> histogram = emptyHistogram();
+
+        private RatingSummaryBuilder() {}
+
+        public static RatingSummaryBuilder aRatingSummary() { return new RatingSummaryBuilder();}
+
+        private static Map<Integer, Long> emptyHistogram() {
+
+            final Map<Integer, Long> histogram = new LinkedHashMap<>();
+            for (int rating = BlogPostRating.MIN_RATING; rating <= BlogPostRating.MAX_RATING; rating++) {
+                histogram.put(rating, 0L);
+            }
+            return histogram;
+        }
+
+        public RatingSummaryBuilder withBlogPostId(String blogPostId) {
+
+            this.blogPostId = blogPostId;
+            return this;
+        }
+
+        public RatingSummaryBuilder withCount(long count) {
+
+            this.count = count;
+            return this;
+        }
+
+        public RatingSummaryBuilder withAverage(Double average) {
+
+            this.average = average;
+            return this;
+        }
+
+        public RatingSummaryBuilder withMin(Integer min) {
+
+            this.min = min;
+            return this;
+        }
+
+        public RatingSummaryBuilder withMax(Integer max) {
+
+            this.max = max;
+            return this;
+        }
+
+        /**
+         * @param rating Score
+         * @param count  Number of ratings with the score
+         */
+        public RatingSummaryBuilder withRatingCount(int rating, long count) {
+
+            this.histogram.put(rating, count);
+            return this;
+        }
+
+        public RatingSummary build() {
+
+            return new RatingSummary(blogPostId, count, average, min, max, histogram);
+        }
+    }
+}
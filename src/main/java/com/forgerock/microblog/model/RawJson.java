@@ -0,0 +1,94 @@
+package com.forgerock.microblog.model;
+
+import com.google.common.base.Preconditions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JSON that has already been serialised, e.g. the stored source of a document. It is written to responses as it is
+ * so no model object is built and serialised again.
+ */
+public abstract class RawJson {
+
+    /**
+     * JSON null
+     */
+    public static final RawJson NULL = of("null");
+
+    /**
+     * @param out Destination for the JSON bytes
+     * @throws IOException Unable to write to destination
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * @param bytes  Buffer holding a JSON value. Not copied so must not be changed afterwards.
+     * @param offset Start of the value in the buffer
+     * @param length Length of the value
+     * @return JSON value
+     */
+    public static RawJson of(final byte[] bytes, final int offset, final int length) {
+        Preconditions.checkNotNull(bytes, "bytes cannot be null");
+        Preconditions.checkPositionIndexes(offset, offset + length, bytes.length);
+
+        return new RawJson() {
+            @Override
+            public void writeTo(final OutputStream out) throws IOException {
+                out.write(bytes, offset, length);
+            }
+        };
+    }
+
+    /**
+     * @param json JSON value
+     * @return JSON value
+     */
+    public static RawJson of(final String json) {
+        Preconditions.checkNotNull(json, "json cannot be null");
+
+        final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return of(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param elements JSON values. A null element is written as JSON null.
+     * @return JSON array of the values, in order
+     */
+    public static RawJson array(final List<RawJson> elements) {
+        Preconditions.checkNotNull(elements, "elements cannot be null");
+
+        final List<RawJson> copy = new ArrayList<>(elements);
+        return new RawJson() {
+            @Override
+            public void writeTo(final OutputStream out) throws IOException {
+                out.write('[');
+                for (int i = 0; i < copy.size(); i++) {
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    (copy.get(i) != null ? copy.get(i) : NULL).writeTo(out);
+                }
+                out.write(']');
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeTo(out);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,54 @@
+package com.forgerock.microblog.model;
+
+import java.util.List;
+
+/**
+ * One page of results and a cursor for the page after it
+ */
+public class ResultPage<T> {
+
+    private final List<T> results;
+
+    private final String nextCursor;
+
+    private final String version;
+
+    public ResultPage(final List<T> results, final String nextCursor) {
+        this(results, nextCursor, null);
+    }
+
+    public ResultPage(final List<T> results, final String nextCursor, final String version) {
+        this.results = results;
+        this.nextCursor = nextCursor;
+        this.version = version;
+    }
+
+    public List<T> getResults() {
+        return results;
+    }
+
+    /**
+     * @return Token for the next page or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return Opaque version that changes when any result on the page changes, or null if not known
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("ResultPage{");
+        sb.append("results=").append(results);
+        sb.append(", nextCursor='").append(nextCursor).append('\'');
+        sb.append(", version='").append(version).append('\'');
+        sb.append('}');
+        return sb.toString();
+    }
+}
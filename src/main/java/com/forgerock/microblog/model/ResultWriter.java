@@ -0,0 +1,20 @@
+package com.forgerock.microblog.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes results that have started to be read, the rest being read while they are written. Handed back once the
+ * first results are in, so a failure to read them can still be answered with an error status.
+ */
+@FunctionalInterface
+public interface ResultWriter {
+
+    /**
+     * Blocks until all results have been written
+     *
+     * @param out Destination
+     * @throws IOException Unable to write to destination
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
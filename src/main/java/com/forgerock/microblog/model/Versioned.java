@@ -0,0 +1,37 @@
+package com.forgerock.microblog.model;
+
+/**
+ * A resource and a version that changes whenever the resource does
+ */
+public class Versioned<T> {
+
+    private final T value;
+
+    private final String version;
+
+    public Versioned(final T value, final String version) {
+        this.value = value;
+        this.version = version;
+    }
+
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * @return Opaque version. Equal versions mean the resource has not changed.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("Versioned{");
+        sb.append("value=").append(value);
+        sb.append(", version='").append(version).append('\'');
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,64 @@
+package com.forgerock.microblog.benchmark;
+
+import com.forgerock.microblog.id.IdGenerator;
+import com.forgerock.microblog.id.RandomUuidIdGenerator;
+import com.forgerock.microblog.id.TimeOrderedIdGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minting ids with random UUIDs, which share one SecureRandom, against time ordered ids, on one thread and on as many
+ * threads as there are cores as when many requests create posts at once
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class IdGeneratorBenchmark {
+
+    private final IdGenerator randomUuid = new RandomUuidIdGenerator();
+
+    private final IdGenerator timeOrdered = new TimeOrderedIdGenerator(1);
+
+    @Benchmark
+    public String randomUuid() {
+        return randomUuid.nextId();
+    }
+
+    @Benchmark
+    public String timeOrdered() {
+        return timeOrdered.nextId();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String randomUuidContended() {
+        return randomUuid.nextId();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String timeOrderedContended() {
+        return timeOrdered.nextId();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+
+        new Runner(new OptionsBuilder().include(IdGeneratorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
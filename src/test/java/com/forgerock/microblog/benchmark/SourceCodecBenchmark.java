@@ -0,0 +1,134 @@
+package com.forgerock.microblog.benchmark;
+
+import com.forgerock.microblog.es.SourceCodec;
+import com.forgerock.microblog.model.BlogPost;
+import com.forgerock.microblog.model.DateTimeConstants;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a page of search hits: source bytes to String to GSON, against parsing the source bytes directly in each
+ * stored format. Encoding is compared the same way, and the size of the encoded page is logged at setup.
+ * Run with -prof gc to compare allocation per page as well as time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SourceCodecBenchmark {
+
+    private final static Logger LOG = LoggerFactory.getLogger(SourceCodecBenchmark.class);
+
+    private static final Gson GSON = new GsonBuilder()
+            .setDateFormat(DateTimeConstants.ISO_OFFSET_DATE_TIME)
+            .create();
+
+    private static final SourceCodec<BlogPost> CODEC = new SourceCodec<>(BlogPost.class);
+
+    @Param({ "100", "10000" })
+    private int hits;
+
+    @Param({ "140", "2000" })
+    private int bodyLength;
+
+    @Param({ "JSON", "SMILE", "CBOR" })
+    private XContentType format;
+
+    private BlogPost[] blogPosts;
+
+    // JSON written by GSON
+    private BytesReference[] sources;
+
+    // Written by the codec in the format being measured
+    private BytesReference[] encodedSources;
+
+    @Setup
+    public void setup() {
+
+        final StringBuilder body = new StringBuilder();
+        while (body.length() < bodyLength) {
+            body.append("Shrink the moon then steal it. ");
+        }
+
+        blogPosts = new BlogPost[hits];
+        sources = new BytesReference[hits];
+        encodedSources = new BytesReference[hits];
+        long encodedBytes = 0;
+        for (int i = 0; i < hits; i++) {
+            final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost()
+                    .withId(UUID.randomUUID().toString())
+                    .withTimestamp(new Date())
+                    .withUserId("gru" + i)
+                    .withBody(body.substring(0, bodyLength))
+                    .build();
+            blogPosts[i] = blogPost;
+            sources[i] = new BytesArray(GSON.toJson(blogPost));
+            encodedSources[i] = new BytesArray(CODEC.encode(blogPost, format));
+            encodedBytes += encodedSources[i].length();
+        }
+        LOG.info("{} page of {} posts: {} bytes", format, hits, encodedBytes);
+    }
+
+    @Benchmark
+    public void stringThenGson(final Blackhole blackhole) {
+
+        for (BytesReference source : sources) {
+            blackhole.consume(GSON.fromJson(source.utf8ToString(), BlogPost.class));
+        }
+    }
+
+    @Benchmark
+    public void codecDecode(final Blackhole blackhole) {
+
+        for (BytesReference source : encodedSources) {
+            blackhole.consume(CODEC.decode(source));
+        }
+    }
+
+    @Benchmark
+    public void gsonEncode(final Blackhole blackhole) {
+
+        for (BlogPost blogPost : blogPosts) {
+            blackhole.consume(GSON.toJson(blogPost));
+        }
+    }
+
+    @Benchmark
+    public void codecEncode(final Blackhole blackhole) {
+
+        for (BlogPost blogPost : blogPosts) {
+            blackhole.consume(CODEC.encode(blogPost, format));
+        }
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+
+        new Runner(new OptionsBuilder().include(SourceCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -1,29 +1,64 @@
 package com.forgerock.microblog.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.forgerock.microblog.configuration.ApplicationProperties;
 import com.forgerock.microblog.dao.BlogPostDao;
+import com.forgerock.microblog.dao.BlogPostWriteQueue;
+import com.forgerock.microblog.exception.PreconditionFailedException;
+import com.forgerock.microblog.exception.ServiceUnavailableException;
+import com.forgerock.microblog.filter.BlogPostSortFilter;
+import com.forgerock.microblog.filter.SessionToken;
+import com.forgerock.microblog.filter.SessionTokenSigner;
+import com.forgerock.microblog.id.IdGenerator;
+import com.forgerock.microblog.id.TimeOrderedIdGenerator;
 import com.forgerock.microblog.model.BlogPost;
+import com.forgerock.microblog.model.BulkResult;
+import com.forgerock.microblog.model.Created;
+import com.forgerock.microblog.model.RawJson;
+import com.forgerock.microblog.model.Versioned;
+import com.forgerock.microblog.model.ResultPage;
+import com.forgerock.microblog.model.ResultWriter;
 import com.google.gson.Gson;
+import org.elasticsearch.action.support.WriteRequest;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.StringContains.containsString;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 
 @RunWith(SpringRunner.class)
 @WebMvcTest(value = BlogPostController.class)
+@Import({ ApplicationProperties.class, SessionTokenSigner.class })
 public class BlogPostControllerTest {
 
     @Autowired
@@ -32,18 +67,37 @@ public class BlogPostControllerTest {
     @MockBean
     BlogPostDao dao;
 
+    @MockBean
+    BlogPostWriteQueue writeQueue;
+
+    @MockBean
+    IdGenerator idGenerator;
+
+    @Autowired
+    SessionTokenSigner sessionTokenSigner;
+
+    @Before
+    public void setup() {
+
+        final IdGenerator ids = new TimeOrderedIdGenerator(0);
+        Mockito.when(idGenerator.nextId()).thenAnswer(invocation -> ids.nextId());
+    }
+
     @Test
     public void testGetAllPosts_returnList() throws Exception {
         // Setup data and mock
         Date now = new Date();
-        final List<BlogPost> blogPostList = Arrays.asList(
-                BlogPost.BlogPostBuilder.aBlogPost().withBody("Text1").withId("1").withTimestamp(now).withUserId("user1").build(),
-                BlogPost.BlogPostBuilder.aBlogPost().withBody("Text2").withId("2").withTimestamp(now).withUserId("user2").build()
+        final List<RawJson> blogPostList = Arrays.asList(
+                toRawJson(BlogPost.BlogPostBuilder.aBlogPost().withBody("Text1").withId("1").withTimestamp(now).withUserId("user1").build()),
+                toRawJson(BlogPost.BlogPostBuilder.aBlogPost().withBody("Text2").withId("2").withTimestamp(now).withUserId("user2").build())
         );
-        Mockito.when(dao.getAll(Mockito.any())).thenReturn(blogPostList);
+        Mockito.when(dao.getRawPage(Mockito.any(), Mockito.any())).thenReturn(CompletableFuture.completedFuture(new ResultPage<>(blogPostList, null)));
 
         // Do test
-        this.mockMvc.perform(get("/blogposts"))
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                 .andExpect(MockMvcResultMatchers.status().isOk())
                 .andExpect(jsonPath("$[0].id").value("1"))
                 .andExpect(jsonPath("$[0].body").value("Text1"))
@@ -53,29 +107,125 @@ public class BlogPostControllerTest {
                 .andExpect(jsonPath("$[1].userId").value("user2"));
     }
 
+    @Test
+    public void testGetAllPosts_morePages_returnNextCursorHeader() throws Exception {
+        // Setup data and mock
+        final List<RawJson> blogPostList = Collections.singletonList(
+                toRawJson(BlogPost.BlogPostBuilder.aBlogPost().withBody("Text1").withId("1").withTimestamp(new Date()).withUserId("user1").build()));
+        Mockito.when(dao.getRawPage(Mockito.any(), Mockito.any())).thenReturn(CompletableFuture.completedFuture(new ResultPage<>(blogPostList, "abc", "v1")));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts?size=1&cursor=xyz"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(header().string(BlogPostController.NEXT_CURSOR_HEADER, "abc"))
+                .andExpect(header().string(HttpHeaders.ETAG, "W/\"v1\""))
+                .andExpect(jsonPath("$[0].id").value("1"));
+
+        final ArgumentCaptor<BlogPostSortFilter> captor = ArgumentCaptor.forClass(BlogPostSortFilter.class);
+        Mockito.verify(dao).getRawPage(captor.capture(), Mockito.any());
+        assertThat(captor.getValue().getCursor(), is("xyz"));
+    }
+
     @Test
     public void testGetPostsById_returnSpecificPost() throws Exception {
         // Setup data and mock
         Date now = new Date();
         final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("Text1").withId("1").withTimestamp(now).withUserId("user1").build();
 
-        Mockito.when(dao.getById(Mockito.eq("1"))).thenReturn(Optional.of(blogPost));
+        Mockito.when(dao.getRawById(Mockito.eq("1"), Mockito.any())).thenReturn(CompletableFuture.completedFuture(Optional.of(new Versioned<>(toRawJson(blogPost), "3"))));
 
         // Do test
-        this.mockMvc.perform(get("/blogposts/1"))
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts/1"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                 .andExpect(MockMvcResultMatchers.status().isOk())
                 .andExpect(jsonPath("$.id").value("1"))
                 .andExpect(jsonPath("$.body").value("Text1"))
-                .andExpect(jsonPath("$.userId").value("user1"));
+                .andExpect(jsonPath("$.userId").value("user1"))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"3\""));
+    }
+
+    @Test
+    public void testGetPostsById_unchanged_return304() throws Exception {
+
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("Text1").withId("1").withUserId("user1").build();
+        Mockito.when(dao.getRawById(Mockito.eq("1"), Mockito.any())).thenReturn(CompletableFuture.completedFuture(Optional.of(new Versioned<>(toRawJson(blogPost), "3"))));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts/1").header(HttpHeaders.IF_NONE_MATCH, "\"3\""))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"3\""))
+                .andExpect(MockMvcResultMatchers.content().string(""));
+    }
+
+    @Test
+    public void testGetPostsById_acceptSmile_returnSmile() throws Exception {
+
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("Text1").withId("1").withUserId("user1").build();
+        Mockito.when(dao.getRawById(Mockito.eq("1"), Mockito.any())).thenReturn(CompletableFuture.completedFuture(Optional.of(new Versioned<>(toRawJson(blogPost), "3"))));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts/1").accept("application/x-jackson-smile"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        final byte[] smile = this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.content().contentType("application/x-jackson-smile"))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        final BlogPost returned = new ObjectMapper(new SmileFactory()).readValue(smile, BlogPost.class);
+        assertThat(returned, is(blogPost));
+    }
+
+    @Test
+    public void testGetPostsByIds_returnFoundAndMissing() throws Exception {
+        // Setup data and mock
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("Text2").withId("2").withTimestamp(new Date()).withUserId("user1").build();
+        final Map<String, Optional<BlogPost>> blogPosts = new LinkedHashMap<>();
+        blogPosts.put("1", Optional.empty());
+        blogPosts.put("2", Optional.of(blogPost));
+        Mockito.when(dao.getByIds(Mockito.any())).thenReturn(CompletableFuture.completedFuture(blogPosts));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(post("/blogposts/_mget")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[\"1\",\"2\"]"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(jsonPath("$.results[0].id").value("2"))
+                .andExpect(jsonPath("$.missingIds[0]").value("1"));
+
+        Mockito.verify(dao).getByIds(Arrays.asList("1", "2"));
+    }
+
+    @Test
+    public void testGetPostsByIds_noIds_return400() throws Exception {
+
+        this.mockMvc.perform(post("/blogposts/_mget")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[]"))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
     }
 
     @Test
     public void testGetPostsById_notFound_return404() throws Exception {
 
-        Mockito.when(dao.getById(Mockito.any())).thenReturn(Optional.empty());
+        Mockito.when(dao.getRawById(Mockito.any(), Mockito.any())).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
 
         // Do test
-        this.mockMvc.perform(get("/blogposts/1"))
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts/1"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                 .andExpect(MockMvcResultMatchers.status().isNotFound());
     }
 
@@ -83,34 +233,406 @@ public class BlogPostControllerTest {
     public void testCreateBlogPost_success_return201() throws Exception {
 
         final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("New Post Text").withId("1").withUserId("user1").build();
-        Mockito.when(dao.create(Mockito.any())).thenReturn(blogPost);
+        Mockito.when(dao.create(Mockito.any(), Mockito.any())).thenReturn(CompletableFuture.completedFuture(blogPost));
 
         // Do test
-        this.mockMvc.perform(post("/blogposts")
+        final MvcResult mvcResult = this.mockMvc.perform(post("/blogposts")
                 .content(new Gson().toJson(blogPost))
                 .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                 .andExpect(MockMvcResultMatchers.status().isCreated());
     }
 
     @Test
-    public void testUpdateBlogPost_success_return200() throws Exception {
+    public void testCreateBlogPost_waitForRefresh_returnSessionToken() throws Exception {
 
         final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("New Post Text").withId("1").withUserId("user1").build();
-        Mockito.when(dao.update(Mockito.any())).thenReturn(blogPost);
+        Mockito.when(dao.create(Mockito.any(), Mockito.eq(WriteRequest.RefreshPolicy.WAIT_UNTIL))).thenReturn(CompletableFuture.completedFuture(blogPost));
 
         // Do test
-        this.mockMvc.perform(put("/blogposts/1")
+        final MvcResult mvcResult = this.mockMvc.perform(post("/blogposts")
+                .header(BlogPostController.REFRESH_HEADER, "wait_for")
                 .content(new Gson().toJson(blogPost))
                 .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        final MvcResult result = this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isCreated())
+                .andReturn();
+
+        // Token holds the new post
+        final String location = result.getResponse().getHeader(HttpHeaders.LOCATION);
+        final SessionToken session = sessionTokenSigner.parse(result.getResponse().getHeader(BlogPostController.SESSION_TOKEN_HEADER));
+        assertThat(session.getWrittenSince(0).size(), is(1));
+        assertThat(location.endsWith("/" + session.getWrittenSince(0).iterator().next()), is(true));
+    }
+
+    @Test
+    public void testCreateBlogPost_sameIdempotencyKey_sameLocation() throws Exception {
+
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("New Post Text").withId("1").withUserId("user1").build();
+        Mockito.when(dao.createOnce(Mockito.any(), Mockito.any())).thenReturn(
+                CompletableFuture.completedFuture(new Created<>(blogPost, false)),
+                CompletableFuture.completedFuture(new Created<>(blogPost, true)));
+
+        // Do test - original and retry
+        final List<MvcResult> results = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final MvcResult mvcResult = this.mockMvc.perform(post("/blogposts")
+                    .header(BlogPostController.IDEMPOTENCY_KEY_HEADER, "a6e3bd53-5c1f-4f4b-9b4e-1f2e0b4a7d10")
+                    .content(new Gson().toJson(blogPost))
+                    .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+            results.add(this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andExpect(MockMvcResultMatchers.status().isCreated())
+                    .andReturn());
+        }
+
+        assertThat(results.get(1).getResponse().getHeader(HttpHeaders.LOCATION), is(results.get(0).getResponse().getHeader(HttpHeaders.LOCATION)));
+        assertThat(results.get(0).getResponse().getHeader(BlogPostController.REPLAYED_HEADER), is("false"));
+        assertThat(results.get(1).getResponse().getHeader(BlogPostController.REPLAYED_HEADER), is("true"));
+        Mockito.verify(dao, Mockito.never()).create(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void testCreateBlogPost_emptyIdempotencyKey_return400() throws Exception {
+
+        this.mockMvc.perform(post("/blogposts")
+                .header(BlogPostController.IDEMPOTENCY_KEY_HEADER, " ")
+                .content("{\"body\":\"New Post Text\"}")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+
+        Mockito.verify(dao, Mockito.never()).createOnce(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void testCreateBlogPost_invalidRefresh_return400() throws Exception {
+
+        this.mockMvc.perform(post("/blogposts")
+                .header(BlogPostController.REFRESH_HEADER, "sometime")
+                .content("{\"body\":\"New Post Text\"}")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+
+        Mockito.verify(dao, Mockito.never()).create(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void testGetBlogPost_sessionToken_passedToDao() throws Exception {
+
+        final String token = sessionTokenSigner.encode(SessionToken.empty().withWrite("1", System.currentTimeMillis()));
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("Text1").withId("1").withUserId("user1").build();
+        Mockito.when(dao.getRawById(Mockito.eq("1"), Mockito.any())).thenReturn(CompletableFuture.completedFuture(Optional.of(new Versioned<>(toRawJson(blogPost), "3"))));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts/1").header(BlogPostController.SESSION_TOKEN_HEADER, token))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isOk());
+
+        final ArgumentCaptor<SessionToken> captor = ArgumentCaptor.forClass(SessionToken.class);
+        Mockito.verify(dao).getRawById(Mockito.eq("1"), captor.capture());
+        assertThat(captor.getValue().getWrittenSince(0).contains("1"), is(true));
+    }
+
+    @Test
+    public void testGetBlogPost_changedSessionToken_ignored() throws Exception {
+
+        final String token = sessionTokenSigner.encode(SessionToken.empty().withWrite("1", System.currentTimeMillis()));
+        final String changed = sessionTokenSigner.encode(SessionToken.empty().withWrite("2", System.currentTimeMillis()));
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("Text1").withId("1").withUserId("user1").build();
+        Mockito.when(dao.getRawById(Mockito.eq("1"), Mockito.any())).thenReturn(CompletableFuture.completedFuture(Optional.of(new Versioned<>(toRawJson(blogPost), "3"))));
+
+        // Do test - writes of one token with the signature of another
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts/1").header(BlogPostController.SESSION_TOKEN_HEADER,
+                changed.substring(0, changed.indexOf('.')) + token.substring(token.indexOf('.'))))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                 .andExpect(MockMvcResultMatchers.status().isOk());
+
+        final ArgumentCaptor<SessionToken> captor = ArgumentCaptor.forClass(SessionToken.class);
+        Mockito.verify(dao).getRawById(Mockito.eq("1"), captor.capture());
+        assertThat(captor.getValue().getWrittenSince(0).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testCreateBlogPost_writeBehind_queueAndReturn202() throws Exception {
+
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("New Post Text").withUserId("user1").build();
+        Mockito.when(writeQueue.isEnabled()).thenReturn(true);
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(post("/blogposts")
+                .content(new Gson().toJson(blogPost))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isAccepted())
+                .andExpect(header().string(HttpHeaders.LOCATION, containsString("/blogposts/")));
+
+        final ArgumentCaptor<BlogPost> captor = ArgumentCaptor.forClass(BlogPost.class);
+        Mockito.verify(writeQueue).submit(captor.capture());
+        assertThat(captor.getValue().getBody(), is("New Post Text"));
+        Mockito.verify(dao, Mockito.never()).create(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void testCreateBlogPost_writeBehindWithIdempotencyKey_createOnceNow() throws Exception {
+
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("New Post Text").withUserId("user1").build();
+        Mockito.when(writeQueue.isEnabled()).thenReturn(true);
+        Mockito.when(dao.createOnce(Mockito.any(), Mockito.any())).thenReturn(CompletableFuture.completedFuture(new Created<>(blogPost, true)));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(post("/blogposts")
+                .header(BlogPostController.IDEMPOTENCY_KEY_HEADER, "key-1")
+                .content(new Gson().toJson(blogPost))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isCreated())
+                .andExpect(header().string(BlogPostController.REPLAYED_HEADER, "true"));
+
+        Mockito.verify(writeQueue, Mockito.never()).submit(Mockito.any());
+    }
+
+    @Test
+    public void testCreateBlogPosts_bulk_returnItemResults() throws Exception {
+
+        final BulkResult result = new BulkResult(Arrays.asList(
+                new BulkResult.Item("1", 201, null),
+                new BulkResult.Item("2", 201, null)));
+        Mockito.when(dao.createAll(Mockito.any())).thenReturn(CompletableFuture.completedFuture(result));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(post("/blogposts/_bulk")
+                .content("{\"body\":\"Text1\",\"userId\":\"user1\"}\n\n{\"body\":\"Text2\",\"userId\":\"user2\"}\n")
+                .contentType("application/x-ndjson"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(jsonPath("$.errors").value(false))
+                .andExpect(jsonPath("$.items[0].id").value("1"))
+                .andExpect(jsonPath("$.items[1].status").value(201));
+
+        final ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(dao).createAll(captor.capture());
+        assertThat(captor.getValue().size(), is(2));
+    }
+
+    @Test
+    public void testCreateBlogPosts_bulkInvalidLine_return400() throws Exception {
+
+        this.mockMvc.perform(post("/blogposts/_bulk")
+                .content("{\"body\":\"Text1\"}\nnot json\n")
+                .contentType("application/x-ndjson"))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+
+        Mockito.verify(dao, Mockito.never()).createAll(Mockito.any());
+    }
+
+    @Test
+    public void testCreateBlogPosts_bulkTooManyPosts_return413() throws Exception {
+
+        final StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i <= BlogPostController.MAX_BULK_POSTS; i++) {
+            ndjson.append("{\"body\":\"Text\",\"userId\":\"user1\"}\n");
+        }
+
+        this.mockMvc.perform(post("/blogposts/_bulk")
+                .content(ndjson.toString())
+                .contentType("application/x-ndjson"))
+                .andExpect(MockMvcResultMatchers.status().isPayloadTooLarge());
+
+        Mockito.verify(dao, Mockito.never()).createAll(Mockito.any());
+    }
+
+    @Test
+    public void testCreateBlogPosts_bulkTooManyBytes_return413() throws Exception {
+
+        final byte[] body = new byte[(int) BlogPostController.MAX_BULK_BYTES + 1];
+        Arrays.fill(body, (byte) 'a');
+
+        this.mockMvc.perform(post("/blogposts/_bulk")
+                .content(body)
+                .contentType("application/x-ndjson"))
+                .andExpect(MockMvcResultMatchers.status().isPayloadTooLarge());
+
+        Mockito.verify(dao, Mockito.never()).createAll(Mockito.any());
+    }
+
+    @Test
+    public void testUpdateBlogPost_success_return200() throws Exception {
+
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("New Post Text").withId("1").withUserId("user1").build();
+        Mockito.when(dao.update(Mockito.any(), (Long) Mockito.isNull(), Mockito.any())).thenReturn(CompletableFuture.completedFuture(new Versioned<>(blogPost, "2")));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(put("/blogposts/1")
+                .content(new Gson().toJson(blogPost))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"2\""))
+                .andExpect(jsonPath("$.userId").value("user1"));
+    }
+
+    @Test
+    public void testUpdateBlogPost_ifMatch_updateThatVersion() throws Exception {
+
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("New Post Text").withId("1").build();
+        Mockito.when(dao.update(Mockito.any(), Mockito.eq(3L), Mockito.any())).thenReturn(CompletableFuture.completedFuture(new Versioned<>(blogPost, "4")));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(put("/blogposts/1")
+                .header(HttpHeaders.IF_MATCH, "\"3\"")
+                .content(new Gson().toJson(blogPost))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"4\""));
+    }
+
+    @Test
+    public void testUpdateBlogPost_changedSinceIfMatch_return412() throws Exception {
+
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withBody("New Post Text").withId("1").build();
+        final CompletableFuture<Versioned<BlogPost>> conflict = new CompletableFuture<>();
+        conflict.completeExceptionally(new PreconditionFailedException("changed"));
+        Mockito.when(dao.update(Mockito.any(), Mockito.eq(3L), Mockito.any())).thenReturn(conflict);
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(put("/blogposts/1")
+                .header(HttpHeaders.IF_MATCH, "\"3\"")
+                .content(new Gson().toJson(blogPost))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isPreconditionFailed());
+    }
+
+    @Test
+    public void testUpdateBlogPost_weakIfMatch_return412() throws Exception {
+
+        this.mockMvc.perform(put("/blogposts/1")
+                .header(HttpHeaders.IF_MATCH, "W/\"3\"")
+                .content("{\"body\":\"New Post Text\"}")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isPreconditionFailed());
+
+        Mockito.verify(dao, Mockito.never()).update(Mockito.any(), Mockito.any(), Mockito.any());
     }
 
     @Test
     public void testDeleteBlogPost_success_return204() throws Exception {
+
+        Mockito.when(dao.delete(Mockito.any(), Mockito.any())).thenReturn(CompletableFuture.completedFuture(null));
+
         // Do test
-        this.mockMvc.perform(delete("/blogposts/1"))
+        final MvcResult mvcResult = this.mockMvc.perform(delete("/blogposts/1"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                 .andExpect(MockMvcResultMatchers.status().isNoContent());
 
-        Mockito.verify(dao, Mockito.times(1)).delete("1");
+        Mockito.verify(dao, Mockito.times(1)).delete("1", WriteRequest.RefreshPolicy.NONE);
+    }
+
+    @Test
+    public void testExportBlogPosts_streamNdjson() throws Exception {
+
+        final ResultWriter posts = out -> out.write("{\"id\":\"1\"}\n{\"id\":\"2\"}\n".getBytes(StandardCharsets.UTF_8));
+        Mockito.when(dao.export(Mockito.any())).thenReturn(CompletableFuture.completedFuture(posts));
+
+        // Do test - the first batch is read, then the posts are written on a streaming thread
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts/_export?userIds=user1"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        final MvcResult streamResult = this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        streamResult.getAsyncResult();
+
+        assertThat(streamResult.getResponse().getStatus(), is(200));
+        assertThat(streamResult.getResponse().getContentType(), is("application/x-ndjson"));
+        assertThat(streamResult.getResponse().getContentAsString(), is("{\"id\":\"1\"}\n{\"id\":\"2\"}\n"));
+
+        final ArgumentCaptor<BlogPostSortFilter> captor = ArgumentCaptor.forClass(BlogPostSortFilter.class);
+        Mockito.verify(dao).export(captor.capture());
+        assertThat(captor.getValue().getUserIds(), is(Collections.singletonList("user1")));
+    }
+
+    @Test
+    public void testGetAllPosts_withFields_omitOtherFields() throws Exception {
+        // Setup data and mock - only the requested fields come back from the dao
+        final List<RawJson> blogPostList = Collections.singletonList(toRawJson(BlogPost.BlogPostBuilder.aBlogPost().withId("1").withTimestamp(new Date()).build()));
+        Mockito.when(dao.getRawPage(Mockito.any(), Mockito.any())).thenReturn(CompletableFuture.completedFuture(new ResultPage<>(blogPostList, null)));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts?fields=id,timestamp"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(jsonPath("$[0].id").value("1"))
+                .andExpect(jsonPath("$[0].body").doesNotExist())
+                .andExpect(jsonPath("$[0].userId").doesNotExist());
+
+        final ArgumentCaptor<BlogPostSortFilter> captor = ArgumentCaptor.forClass(BlogPostSortFilter.class);
+        Mockito.verify(dao).getRawPage(captor.capture(), Mockito.any());
+        assertThat(captor.getValue().getFields(), is(Arrays.asList("id", "timestamp")));
+    }
+
+    @Test
+    public void testSearch_streamJsonArray() throws Exception {
+
+        final ResultWriter results = out -> out.write("[{\"id\":\"1\",\"body\":\"Evil plans\"}]".getBytes(StandardCharsets.UTF_8));
+        Mockito.when(dao.streamSearch(Mockito.eq("evil"), Mockito.any())).thenReturn(CompletableFuture.completedFuture(results));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(get("/search?searchTerm=evil"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        final MvcResult streamResult = this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        streamResult.getAsyncResult();
+
+        assertThat(streamResult.getResponse().getStatus(), is(200));
+        assertThat(streamResult.getResponse().getContentType(), is(MediaType.APPLICATION_JSON_UTF8_VALUE));
+        assertThat(streamResult.getResponse().getContentAsString(), is("[{\"id\":\"1\",\"body\":\"Evil plans\"}]"));
+    }
+
+    @Test
+    public void testSearch_searchFailed_errorStatusNotPartialResults() throws Exception {
+
+        final CompletableFuture<ResultWriter> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new ServiceUnavailableException("Cluster unavailable"));
+        Mockito.when(dao.streamSearch(Mockito.eq("evil"), Mockito.any())).thenReturn(failed);
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(get("/search?searchTerm=evil"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isServiceUnavailable());
+    }
+
+    private static RawJson toRawJson(final BlogPost blogPost) {
+        return RawJson.of(new Gson().toJson(blogPost));
     }
-}
\ No newline at end of file
+}
@@ -1,33 +1,54 @@
 package com.forgerock.microblog.controller;
 
+import com.forgerock.microblog.configuration.ApplicationProperties;
 import com.forgerock.microblog.dao.BlogPostDao;
 import com.forgerock.microblog.dao.BlogPostRatingDao;
+import com.forgerock.microblog.dao.RatingCounters;
+import com.forgerock.microblog.filter.TopRatedFilter;
+import com.forgerock.microblog.id.IdGenerator;
+import com.forgerock.microblog.id.TimeOrderedIdGenerator;
 import com.forgerock.microblog.model.BlogPost;
 import com.forgerock.microblog.model.BlogPostRating;
+import com.forgerock.microblog.model.Created;
+import com.forgerock.microblog.model.RatingSummary;
+import com.forgerock.microblog.model.Versioned;
 import com.google.gson.Gson;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.eq;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 
 @RunWith(SpringRunner.class)
 @WebMvcTest(value = BlogPostRatingController.class)
+@Import(ApplicationProperties.class)
 public class BlogPostRatingControllerTest {
 
     @Autowired
@@ -39,6 +60,19 @@ public class BlogPostRatingControllerTest {
     @MockBean
     BlogPostRatingDao dao;
 
+    @MockBean
+    RatingCounters ratingCounters;
+
+    @MockBean
+    IdGenerator idGenerator;
+
+    @Before
+    public void setup() {
+
+        final IdGenerator ids = new TimeOrderedIdGenerator(0);
+        Mockito.when(idGenerator.nextId()).thenAnswer(invocation -> ids.nextId());
+    }
+
     @Test
     public void testGetAllPosts_returnList() throws Exception {
         // Setup data and mock
@@ -46,10 +80,13 @@ public class BlogPostRatingControllerTest {
                 BlogPostRating.BlogPostRatingBuilder.aBlogPostRating().withId("10").withBlogPostId("1").withUserId("user1").withRating(5).build(),
                 BlogPostRating.BlogPostRatingBuilder.aBlogPostRating().withId("11").withBlogPostId("1").withUserId("user2").withRating(1).build()
         );
-        Mockito.when(dao.getAllByParentId(Mockito.any())).thenReturn(blogPostRatingsList);
+        Mockito.when(dao.getVersionedByParentId(Mockito.any())).thenReturn(CompletableFuture.completedFuture(new Versioned<>(blogPostRatingsList, "abc")));
 
         // Do test
-        this.mockMvc.perform(get("/blogposts/1/ratings"))
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts/1/ratings"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                 .andExpect(MockMvcResultMatchers.status().isOk())
                 .andExpect(jsonPath("$[0].id").value("10"))
                 .andExpect(jsonPath("$[0].rating").value(5))
@@ -58,17 +95,37 @@ public class BlogPostRatingControllerTest {
                 .andExpect(jsonPath("$[1].id").value("11"))
                 .andExpect(jsonPath("$[1].rating").value(1))
                 .andExpect(jsonPath("$[0].blogPostId").value("1"))
-                .andExpect(jsonPath("$[1].userId").value("user2"));
+                .andExpect(jsonPath("$[1].userId").value("user2"))
+                .andExpect(header().string(HttpHeaders.ETAG, "W/\"abc\""));
+    }
+
+    @Test
+    public void testGetAllPosts_unchanged_return304() throws Exception {
+        // Setup data and mock
+        final List<BlogPostRating> blogPostRatingsList = Collections.singletonList(
+                BlogPostRating.BlogPostRatingBuilder.aBlogPostRating().withId("10").withBlogPostId("1").withUserId("user1").withRating(5).build());
+        Mockito.when(dao.getVersionedByParentId(Mockito.any())).thenReturn(CompletableFuture.completedFuture(new Versioned<>(blogPostRatingsList, "abc")));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts/1/ratings").header(HttpHeaders.IF_NONE_MATCH, "W/\"abc\""))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isNotModified())
+                .andExpect(MockMvcResultMatchers.content().string(""));
     }
 
     @Test
     public void testGetAllPosts_handleEmptyList() throws Exception {
         // Setup data and mock
         final List<BlogPostRating> blogPostRatingsList = Collections.emptyList();
-        Mockito.when(dao.getAllByParentId(Mockito.any())).thenReturn(blogPostRatingsList);
+        Mockito.when(dao.getVersionedByParentId(Mockito.any())).thenReturn(CompletableFuture.completedFuture(new Versioned<>(blogPostRatingsList, "abc")));
 
         // Do test
-        this.mockMvc.perform(get("/blogposts/1/ratings"))
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts/1/ratings"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                 .andExpect(MockMvcResultMatchers.status().isOk());
     }
 
@@ -76,14 +133,59 @@ public class BlogPostRatingControllerTest {
     public void testAddRatingToPost_validRating_return204() throws Exception {
         // Setup data and mock
         BlogPostRating rating = BlogPostRating.BlogPostRatingBuilder.aBlogPostRating().withId("10").withBlogPostId("1").withUserId("user1").withRating(5).build();
-        Mockito.when(dao.addToParentResource(Mockito.any())).thenReturn(rating);
-        Mockito.when(blogPostDao.getById(eq("1"))).thenReturn(Optional.of(BlogPost.BlogPostBuilder.aBlogPost().withId("1").build()));
+        Mockito.when(dao.addToParentResource(Mockito.any())).thenReturn(CompletableFuture.completedFuture(rating));
+        Mockito.when(blogPostDao.getById(eq("1"))).thenReturn(CompletableFuture.completedFuture(Optional.of(BlogPost.BlogPostBuilder.aBlogPost().withId("1").build())));
 
         // Do test
-        this.mockMvc.perform(post("/blogposts/1/ratings")
+        final MvcResult mvcResult = this.mockMvc.perform(post("/blogposts/1/ratings")
                 .content(new Gson().toJson(rating))
                 .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                 .andExpect(MockMvcResultMatchers.status().isCreated());
+        Mockito.verify(ratingCounters).record("1", 5);
+    }
+
+    @Test
+    public void testAddRatingToPost_retriedWithIdempotencyKey_countOnce() throws Exception {
+        // Setup data and mock - already added by the first attempt
+        BlogPostRating rating = BlogPostRating.BlogPostRatingBuilder.aBlogPostRating().withId("10").withBlogPostId("1").withUserId("user1").withRating(5).build();
+        Mockito.when(dao.addToParentResourceOnce(Mockito.any())).thenReturn(CompletableFuture.completedFuture(new Created<>(rating, true)));
+        Mockito.when(blogPostDao.getById(eq("1"))).thenReturn(CompletableFuture.completedFuture(Optional.of(BlogPost.BlogPostBuilder.aBlogPost().withId("1").build())));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(post("/blogposts/1/ratings")
+                .header(BlogPostController.IDEMPOTENCY_KEY_HEADER, "retry-me")
+                .content(new Gson().toJson(rating))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isCreated())
+                .andExpect(header().string(BlogPostController.REPLAYED_HEADER, "true"));
+
+        Mockito.verify(dao, Mockito.never()).addToParentResource(Mockito.any());
+        Mockito.verify(ratingCounters, Mockito.never()).record(Mockito.any(), Mockito.anyInt());
+    }
+
+    @Test
+    public void testAddRatingToPost_unknownPost_return404() throws Exception {
+        // Setup data and mock
+        BlogPostRating rating = BlogPostRating.BlogPostRatingBuilder.aBlogPostRating().withUserId("user1").withRating(5).build();
+        Mockito.when(blogPostDao.getById(eq("1"))).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(post("/blogposts/1/ratings")
+                .content(new Gson().toJson(rating))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isNotFound());
+
+        Mockito.verify(dao, Mockito.never()).addToParentResource(Mockito.any());
+        Mockito.verify(ratingCounters, Mockito.never()).record(Mockito.any(), Mockito.anyInt());
     }
 
     @Test
@@ -104,4 +206,92 @@ public class BlogPostRatingControllerTest {
                 .andExpect(MockMvcResultMatchers.status().isBadRequest());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testGetRatingSummary_returnSummary() throws Exception {
+        // Setup data and mock
+        final RatingSummary summary = RatingSummary.RatingSummaryBuilder.aRatingSummary()
+                .withBlogPostId("1").withCount(3).withAverage(4.0).withMin(3).withMax(5)
+                .withRatingCount(3, 1).withRatingCount(4, 1).withRatingCount(5, 1).build();
+        Mockito.when(ratingCounters.getSummary(eq("1"))).thenReturn(CompletableFuture.completedFuture(summary));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts/1/ratings/summary"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(jsonPath("$.blogPostId").value("1"))
+                .andExpect(jsonPath("$.count").value(3))
+                .andExpect(jsonPath("$.average").value(4.0))
+                .andExpect(jsonPath("$.min").value(3))
+                .andExpect(jsonPath("$.max").value(5))
+                .andExpect(jsonPath("$.histogram.1").value(0))
+                .andExpect(jsonPath("$.histogram.5").value(1));
+    }
+
+    @Test
+    public void testGetRatingSummaries_returnInOrderRequested() throws Exception {
+        // Setup data and mock
+        final Map<String, RatingSummary> summaries = new LinkedHashMap<>();
+        summaries.put("2", RatingSummary.RatingSummaryBuilder.aRatingSummary().withBlogPostId("2").build());
+        summaries.put("1", RatingSummary.RatingSummaryBuilder.aRatingSummary().withBlogPostId("1").withCount(1).withAverage(5.0).withMin(5).withMax(5).withRatingCount(5, 1).build());
+        Mockito.when(ratingCounters.getSummaries(eq(Arrays.asList("2", "1")))).thenReturn(CompletableFuture.completedFuture(summaries));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(post("/blogposts/ratings/_summary")
+                .content(new Gson().toJson(Arrays.asList("2", "1")))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(jsonPath("$[0].blogPostId").value("2"))
+                .andExpect(jsonPath("$[0].count").value(0))
+                .andExpect(jsonPath("$[1].blogPostId").value("1"))
+                .andExpect(jsonPath("$[1].average").value(5.0));
+    }
+
+    @Test
+    public void testGetRatingSummaries_noIds_return400() throws Exception {
+        // Do test
+        this.mockMvc.perform(post("/blogposts/ratings/_summary")
+                .content("[]")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+    @Test
+    public void testGetTopRated_deletedPostLeftOut_returnInRankOrder() throws Exception {
+        // Setup data and mock
+        final TopRatedFilter filter = TopRatedFilter.TopRatedFilterBuilder.aTopRatedFilter()
+                .withBy(TopRatedFilter.RankBy.RATING_COUNT).withWindow(Duration.ofHours(24)).withSize(3).build();
+        Mockito.when(dao.getTopRated(eq(filter))).thenReturn(CompletableFuture.completedFuture(Arrays.asList(
+                RatingSummary.RatingSummaryBuilder.aRatingSummary().withBlogPostId("2").withCount(3).build(),
+                RatingSummary.RatingSummaryBuilder.aRatingSummary().withBlogPostId("deleted").withCount(2).build(),
+                RatingSummary.RatingSummaryBuilder.aRatingSummary().withBlogPostId("1").withCount(1).build())));
+        final Map<String, Optional<BlogPost>> blogPosts = new LinkedHashMap<>();
+        blogPosts.put("1", Optional.of(BlogPost.BlogPostBuilder.aBlogPost().withId("1").build()));
+        blogPosts.put("2", Optional.of(BlogPost.BlogPostBuilder.aBlogPost().withId("2").build()));
+        blogPosts.put("deleted", Optional.empty());
+        Mockito.when(blogPostDao.getByIds(anyCollectionOf(String.class))).thenReturn(CompletableFuture.completedFuture(blogPosts));
+
+        // Do test
+        final MvcResult mvcResult = this.mockMvc.perform(get("/blogposts/top?by=ratingCount&window=24h&size=3"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].blogPost.id").value("2"))
+                .andExpect(jsonPath("$[0].ratings.count").value(3))
+                .andExpect(jsonPath("$[1].blogPost.id").value("1"));
+        Mockito.verify(blogPostDao).getByIds(eq(Arrays.asList("2", "deleted", "1")));
+    }
+
+    @Test
+    public void testGetTopRated_invalidWindow_return400() throws Exception {
+
+        this.mockMvc.perform(get("/blogposts/top?window=yesterday"))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+}
@@ -1,32 +1,84 @@
 package com.forgerock.microblog.dao;
 
+import com.forgerock.microblog.configuration.ApplicationProperties;
 import com.forgerock.microblog.es.ElasticsearchClient;
+import com.forgerock.microblog.es.HitBatches;
+import com.forgerock.microblog.es.SearchQuery;
+import com.forgerock.microblog.es.SourceCodec;
+import com.forgerock.microblog.exception.BadRequestException;
+import com.forgerock.microblog.exception.ConflictException;
 import com.forgerock.microblog.exception.NotFoundException;
+import com.forgerock.microblog.exception.PreconditionFailedException;
 import com.forgerock.microblog.filter.BlogPostSortFilter;
+import com.forgerock.microblog.filter.PageCursor;
+import com.forgerock.microblog.filter.SessionToken;
+import com.forgerock.microblog.id.TimeOrderedIdGenerator;
 import com.forgerock.microblog.model.BlogPost;
+import com.forgerock.microblog.model.BulkResult;
+import com.forgerock.microblog.model.Created;
+import com.forgerock.microblog.model.RawJson;
+import com.forgerock.microblog.model.ResultPage;
+import com.forgerock.microblog.model.ResultWriter;
+import com.forgerock.microblog.model.Versioned;
 import com.forgerock.microblog.model.DateTimeConstants;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.ScoreSortBuilder;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
-
+import org.mockito.Spy;
+
+import java.io.ByteArrayOutputStream;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -35,6 +87,8 @@ public class BlogPostDaoTest {
     private static final String ID = "gdkjagdjkhgjhg";
     private static final String BODY = "text";
     private static final String USER = "testuser";
+    private static final Date TIMESTAMP = new Date(1497194400000L); // 2017-06-11
+    private static final String PARTITION = "microblog-blogpost-2017.06";
 
     // For turning results into model objects
     protected static final Gson GSON = new GsonBuilder()
@@ -50,10 +104,17 @@ public class BlogPostDaoTest {
     @Mock
     private ElasticsearchClient elasticsearchClient;
 
+    @Spy
+    private ApplicationProperties applicationProperties = new ApplicationProperties();
+
+    private final SourceCodec<BlogPost> codec = new SourceCodec<>(BlogPost.class);
+
     @Before
     public void startup() {
 
         MockitoAnnotations.initMocks(this);
+        when(elasticsearchClient.getIndexSettings(any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonMap(PARTITION, Settings.EMPTY)));
+        when(elasticsearchClient.getSourceType()).thenReturn(XContentType.JSON);
     }
 
     @Test
@@ -63,30 +124,111 @@ public class BlogPostDaoTest {
 
         // Mocks
         final GetResponse getResponse = Mockito.mock(GetResponse.class);
-        when(getResponse.getSourceAsString()).thenReturn(GSON.toJson(expectedBlogPost));
-        when(elasticsearchClient.getById(any(), any(), any())).thenReturn(Optional.of(getResponse));
+        when(getResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(GSON.toJson(expectedBlogPost)));
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.of(getResponse))));
 
         // Do Test
-        final Optional<BlogPost> resp = daoUnderTest.getById(ID);
+        final Optional<BlogPost> resp = daoUnderTest.getById(ID).join();
 
-        // Check response
+        // Check response - looked for in every partition it could be in
         assertThat(resp.isPresent(), is(true));
         assertThat(resp.get(), is(expectedBlogPost));
-        verify(elasticsearchClient).getById(eq(daoUnderTest.getIndex()), eq(daoUnderTest.getType()), eq(ID));
+        final ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(elasticsearchClient).multiGet(captor.capture(), eq(daoUnderTest.getType()), eq(Collections.singletonList(ID)));
+        assertThat(captor.getValue().contains(PARTITION), is(true));
     }
 
     @Test
-    public void getById_resourceNotFound() throws Exception {
+    public void getRawById_resourceWasFound_returnStoredSource() throws Exception {
+
+        final String source = "{\"id\":\"" + ID + "\",\"body\":\"" + BODY + "\"}";
+
         // Mocks
         final GetResponse getResponse = Mockito.mock(GetResponse.class);
-        when(elasticsearchClient.getById(any(), any(), any())).thenReturn(Optional.empty());
+        when(getResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(source));
+        when(getResponse.getVersion()).thenReturn(2L);
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.of(getResponse))));
 
         // Do Test
-        final Optional<BlogPost> resp = daoUnderTest.getById(ID);
+        final Optional<Versioned<RawJson>> resp = daoUnderTest.getRawById(ID).join();
+
+        // Check response - same bytes as stored
+        assertThat(resp.isPresent(), is(true));
+        assertThat(resp.get().getValue().toString(), is(source));
+        assertThat(resp.get().getVersion(), is("2"));
+    }
+
+    @Test
+    public void getById_resourceNotFound() throws Exception {
+        // Mocks
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.empty())));
+
+        // Do Test
+        final Optional<BlogPost> resp = daoUnderTest.getById(ID).join();
 
         // Check response
         assertThat(resp.isPresent(), is(false));
-        verify(elasticsearchClient).getById(eq(daoUnderTest.getIndex()), eq(daoUnderTest.getType()), eq(ID));
+        verify(elasticsearchClient).multiGet(anyCollectionOf(String.class), eq(daoUnderTest.getType()), eq(Collections.singletonList(ID)));
+    }
+
+    @Test
+    public void getById_twice_lookUpOnceInES() throws Exception {
+
+        final BlogPost expectedBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).build();
+
+        // Mocks
+        final GetResponse getResponse = Mockito.mock(GetResponse.class);
+        when(getResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(GSON.toJson(expectedBlogPost)));
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.of(getResponse))));
+
+        // Do Test
+        daoUnderTest.getById(ID).join();
+        final Optional<BlogPost> resp = daoUnderTest.getById(ID).join();
+
+        // Second served from the cache
+        assertThat(resp.get(), is(expectedBlogPost));
+        verify(elasticsearchClient, times(1)).multiGet(anyCollectionOf(String.class), any(), any());
+        assertThat(daoUnderTest.getCache().stats().hitCount(), is(1L));
+    }
+
+    @Test
+    public void getById_notFoundTwice_lookUpOnceInES() throws Exception {
+
+        // Mocks
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.empty())));
+
+        // Do Test
+        daoUnderTest.getById(ID).join();
+        final Optional<BlogPost> resp = daoUnderTest.getById(ID).join();
+
+        // Second served from the missing cache
+        assertThat(resp.isPresent(), is(false));
+        verify(elasticsearchClient, times(1)).multiGet(anyCollectionOf(String.class), any(), any());
+        assertThat(daoUnderTest.getCache().size(), is(0L));
+        assertThat(daoUnderTest.getCache().missingStats().hitCount(), is(1L));
+    }
+
+    @Test
+    public void getById_afterCreate_lookUpAgainInES() throws Exception {
+
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+
+        // Mocks - missing until created
+        final GetResponse getResponse = Mockito.mock(GetResponse.class);
+        when(getResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(GSON.toJson(blogPost)));
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any()))
+                .thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.empty())))
+                .thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.of(getResponse))));
+        when(elasticsearchClient.create(any(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(ID));
+
+        // Do Test
+        daoUnderTest.getById(ID).join();
+        daoUnderTest.create(blogPost).join();
+        final Optional<BlogPost> resp = daoUnderTest.getById(ID).join();
+
+        // Create invalidated the cached miss
+        assertThat(resp.get().getId(), is(ID));
+        verify(elasticsearchClient, times(2)).multiGet(anyCollectionOf(String.class), any(), any());
     }
 
 
@@ -102,12 +244,14 @@ public class BlogPostDaoTest {
         when(response.getHits()).thenReturn(searchHits);
         when(searchHits.getTotalHits()).thenReturn(1L);
         when(searchHits.getHits()).thenReturn(new SearchHit[] { searchHit });
-        when(searchHit.getSourceAsString()).thenReturn(GSON.toJson(expectedBlogPost));
-        when(elasticsearchClient.getAll(any(), any(), any(), any(), any(), anyList())).thenReturn(Optional.of(response));
+        when(searchHit.getId()).thenReturn(ID);
+        when(searchHit.getVersion()).thenReturn(1L);
+        when(searchHit.getSourceRef()).thenReturn(new BytesArray(GSON.toJson(expectedBlogPost)));
+        when(elasticsearchClient.getAll(anyListOf(String.class), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
 
         // Do Test
         BlogPostSortFilter filter = BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter().build();
-        final List<BlogPost> resp = daoUnderTest.getAll(filter);
+        final List<BlogPost> resp = daoUnderTest.getAll(filter).join();
 
         // Check response
         assertThat(resp.size(), is(1));
@@ -125,37 +269,485 @@ public class BlogPostDaoTest {
         when(response.getHits()).thenReturn(searchHits);
         when(searchHits.getTotalHits()).thenReturn(0L);
         when(searchHits.getHits()).thenReturn(new SearchHit[] { });
-        when(elasticsearchClient.getAll(any(), any(), any(), any(), any(), anyList())).thenReturn(Optional.of(response));
+        when(elasticsearchClient.getAll(anyListOf(String.class), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
 
         // Do Test
         BlogPostSortFilter filter = BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter().build();
-        final List<BlogPost> resp = daoUnderTest.getAll(filter);
+        final List<BlogPost> resp = daoUnderTest.getAll(filter).join();
 
         // Check response
         assertThat(resp.size(), is(0));
     }
 
+    @Test
+    public void getPage_sameFilterDifferentOrder_searchOnce() throws Exception {
+
+        // Mocks
+        final SearchResponse response = Mockito.mock(SearchResponse.class);
+        final SearchHits searchHits = Mockito.mock(SearchHits.class);
+        when(response.getHits()).thenReturn(searchHits);
+        when(searchHits.getTotalHits()).thenReturn(0L);
+        when(searchHits.getHits()).thenReturn(new SearchHit[] { });
+        when(elasticsearchClient.getAll(anyListOf(String.class), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
+
+        // Do Test - same page asked for in different ways
+        daoUnderTest.getPage(BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter()
+                .withUserIds(Arrays.asList("b", "a")).withFromDateTime("2017-06-01").build()).join();
+        daoUnderTest.getPage(BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter()
+                .withUserIds(Arrays.asList("a", "b")).withFromDateTime("2017-06-01T00:00:00Z").withSort(Collections.singletonList("timestamp:desc")).build()).join();
+
+        // Second served from the cache
+        verify(elasticsearchClient, times(1)).getAll(anyListOf(String.class), any(), any(SearchQuery.class));
+        assertThat(daoUnderTest.getPageCache().stats().hitCount(), is(1L));
+    }
+
+    @Test
+    public void getPage_matchingPostCreated_searchAgain() throws Exception {
+
+        final BlogPost otherUsersPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID + "2").withBody(BODY).withUserId("other").withTimestamp(TIMESTAMP).build();
+        final BlogPost usersPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+
+        // Mocks
+        final SearchResponse response = Mockito.mock(SearchResponse.class);
+        final SearchHits searchHits = Mockito.mock(SearchHits.class);
+        when(response.getHits()).thenReturn(searchHits);
+        when(searchHits.getTotalHits()).thenReturn(0L);
+        when(searchHits.getHits()).thenReturn(new SearchHit[] { });
+        when(elasticsearchClient.getAll(anyListOf(String.class), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
+        when(elasticsearchClient.create(any(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(ID));
+
+        // Do Test - a post by someone else can't be on the page, a post by the user can
+        final BlogPostSortFilter filter = BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter().withUserIds(Collections.singletonList(USER)).build();
+        daoUnderTest.getPage(filter).join();
+        daoUnderTest.create(otherUsersPost).join();
+        daoUnderTest.getPage(filter).join();
+        daoUnderTest.create(usersPost).join();
+        daoUnderTest.getPage(filter).join();
+
+        verify(elasticsearchClient, times(2)).getAll(anyListOf(String.class), any(), any(SearchQuery.class));
+    }
+
+    @Test
+    public void getById_timeOrderedId_onlyItsPartition() throws Exception {
+
+        final String id = new TimeOrderedIdGenerator(0).nextId();
+        final String month = "microblog-blogpost-" + YearMonth.now(ZoneOffset.UTC).format(DateTimeFormatter.ofPattern("yyyy.MM"));
+
+        // Mocks
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.empty())));
+
+        // Do Test
+        daoUnderTest.getById(id).join();
+
+        // Check calls to client - not the older partition
+        final ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(elasticsearchClient).multiGet(captor.capture(), eq(daoUnderTest.getType()), eq(Collections.singletonList(id)));
+        assertThat(captor.getValue().contains(month), is(true));
+        assertThat(captor.getValue().contains(PARTITION), is(false));
+    }
+
+    @Test
+    public void getByIds_timeOrderedIdFromBeforePartitions_notLookedUp() throws Exception {
+
+        // Minted in 2017-01, before the only partition
+        final String old = "00000000k0000";
+
+        // Mocks
+        final GetResponse getResponse = Mockito.mock(GetResponse.class);
+        when(getResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(GSON.toJson(BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).build())));
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.of(getResponse))));
+
+        // Do Test
+        final Map<String, Optional<BlogPost>> resp = daoUnderTest.getByIds(Arrays.asList(old, ID)).join();
+
+        // Check response - only the id that can't be placed is looked for
+        assertThat(resp.get(old), is(Optional.empty()));
+        assertThat(resp.get(ID).isPresent(), is(true));
+        verify(elasticsearchClient, times(1)).multiGet(anyCollectionOf(String.class), eq(daoUnderTest.getType()), eq(Collections.singletonList(ID)));
+    }
+
+    @Test
+    public void getByIds_someMissing_keepRequestOrder() throws Exception {
+
+        final BlogPost first = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).build();
+        final BlogPost third = BlogPost.BlogPostBuilder.aBlogPost().withId(ID + "3").withBody(BODY).withUserId(USER).build();
+
+        // Mocks - middle id not found
+        final GetResponse firstResponse = Mockito.mock(GetResponse.class);
+        when(firstResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(GSON.toJson(first)));
+        final GetResponse missingResponse = Mockito.mock(GetResponse.class);
+        final GetResponse thirdResponse = Mockito.mock(GetResponse.class);
+        when(thirdResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(GSON.toJson(third)));
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(
+                Arrays.asList(Optional.of(firstResponse), Optional.of(missingResponse), Optional.of(thirdResponse))));
+
+        // Do Test - duplicate id is only looked up once
+        final Map<String, Optional<BlogPost>> resp = daoUnderTest.getByIds(Arrays.asList(ID, ID + "2", ID + "3", ID)).join();
+
+        // Check response
+        assertThat(new ArrayList<>(resp.keySet()), is(Arrays.asList(ID, ID + "2", ID + "3")));
+        assertThat(resp.get(ID), is(Optional.of(first)));
+        assertThat(resp.get(ID + "2"), is(Optional.empty()));
+        assertThat(resp.get(ID + "3"), is(Optional.of(third)));
+        verify(elasticsearchClient).multiGet(anyCollectionOf(String.class), eq(daoUnderTest.getType()), eq(Arrays.asList(ID, ID + "2", ID + "3")));
+    }
+
+    @Test
+    public void getPage_fullPage_returnNextCursor() throws Exception {
+
+        final BlogPost expectedBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).build();
+
+        // Mocks
+        final SearchResponse response = Mockito.mock(SearchResponse.class);
+        final SearchHit searchHit = Mockito.mock(SearchHit.class);
+        final SearchHits searchHits = Mockito.mock(SearchHits.class);
+        when(response.getHits()).thenReturn(searchHits);
+        when(searchHits.getTotalHits()).thenReturn(5L);
+        when(searchHits.getHits()).thenReturn(new SearchHit[] { searchHit });
+        when(searchHit.getId()).thenReturn(ID);
+        when(searchHit.getVersion()).thenReturn(1L);
+        when(searchHit.getSourceRef()).thenReturn(new BytesArray(GSON.toJson(expectedBlogPost)));
+        when(searchHit.getSortValues()).thenReturn(new Object[] { 1497194400000L, ID });
+        when(elasticsearchClient.getAll(anyListOf(String.class), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
+
+        // Do Test
+        BlogPostSortFilter filter = BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter().withSize(1).build();
+        final ResultPage<BlogPost> page = daoUnderTest.getPage(filter).join();
+
+        // Check response
+        assertThat(page.getResults().size(), is(1));
+        assertThat(PageCursor.parse(page.getNextCursor()).getSortValues(), is(new Object[] { 1497194400000L, ID }));
+        assertThat(page.getVersion() != null, is(true));
+        final ArgumentCaptor<SearchQuery> captor = ArgumentCaptor.forClass(SearchQuery.class);
+        verify(elasticsearchClient).getAll(anyListOf(String.class), any(), captor.capture());
+        assertThat(captor.getValue().isVersion(), is(true));
+    }
+
+    @Test
+    public void getPage_partPage_noNextCursor() throws Exception {
+
+        // Mocks
+        final SearchResponse response = Mockito.mock(SearchResponse.class);
+        final SearchHits searchHits = Mockito.mock(SearchHits.class);
+        when(response.getHits()).thenReturn(searchHits);
+        when(searchHits.getTotalHits()).thenReturn(0L);
+        when(searchHits.getHits()).thenReturn(new SearchHit[] { });
+        when(elasticsearchClient.getAll(anyListOf(String.class), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
+
+        // Do Test
+        BlogPostSortFilter filter = BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter().withSize(10).build();
+        final ResultPage<BlogPost> page = daoUnderTest.getPage(filter).join();
+
+        // Check response
+        assertThat(page.getNextCursor(), is(nullValue()));
+    }
+
+    @Test
+    public void getPage_withCursor_searchAfterAndDefaultSize() throws Exception {
+
+        // Mocks
+        final SearchResponse response = Mockito.mock(SearchResponse.class);
+        final SearchHits searchHits = Mockito.mock(SearchHits.class);
+        when(response.getHits()).thenReturn(searchHits);
+        when(searchHits.getTotalHits()).thenReturn(0L);
+        when(searchHits.getHits()).thenReturn(new SearchHit[] { });
+        when(elasticsearchClient.getAll(anyListOf(String.class), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
+
+        // Do Test - cursor from a page sorted by the default timestamp and id sorts
+        final String cursor = new PageCursor(new Object[] { 1497194400000L, ID }).encode();
+        BlogPostSortFilter filter = BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter().withCursor(cursor).withOffset(50).build();
+        daoUnderTest.getPage(filter).join();
+
+        // Check request
+        final ArgumentCaptor<SearchQuery> captor = ArgumentCaptor.forClass(SearchQuery.class);
+        verify(elasticsearchClient).getAll(eq(Collections.singletonList(daoUnderTest.getIndex())), eq(daoUnderTest.getType()), captor.capture());
+        assertThat(captor.getValue().getSearchAfter(), is(new Object[] { 1497194400000L, ID }));
+        assertThat(captor.getValue().getFrom(), is(nullValue()));
+        assertThat(captor.getValue().getSize(), is(applicationProperties.getPaging().getDefaultSize()));
+        assertThat(captor.getValue().getSortBuilders().size(), is(2));
+    }
+
+    @Test
+    public void getPage_sortByUserId_sortOnMappedKeywordField() throws Exception {
+
+        // Mocks
+        final SearchResponse response = Mockito.mock(SearchResponse.class);
+        final SearchHits searchHits = Mockito.mock(SearchHits.class);
+        when(response.getHits()).thenReturn(searchHits);
+        when(searchHits.getTotalHits()).thenReturn(0L);
+        when(searchHits.getHits()).thenReturn(new SearchHit[] { });
+        when(elasticsearchClient.getAll(anyListOf(String.class), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
+
+        // Do Test
+        BlogPostSortFilter filter = BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter().withSort(Collections.singletonList("userId:ASC")).build();
+        daoUnderTest.getPage(filter).join();
+
+        // Check request - userId is a keyword in the mapping so no sub field is needed
+        final ArgumentCaptor<SearchQuery> captor = ArgumentCaptor.forClass(SearchQuery.class);
+        verify(elasticsearchClient).getAll(eq(Collections.singletonList(daoUnderTest.getIndex())), eq(daoUnderTest.getType()), captor.capture());
+        assertThat(((FieldSortBuilder) captor.getValue().getSortBuilders().get(0)).getFieldName(), is("userId"));
+        assertThat(daoUnderTest.getMapping().string().contains("\"userId\":{\"type\":\"keyword\"}"), is(true));
+    }
+
+    @Test
+    public void getPage_cursorForDifferentSort_BadRequestException() throws Exception {
+
+        final String cursor = new PageCursor(new Object[] { 1497194400000L, ID }).encode();
+        BlogPostSortFilter filter = BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter()
+                .withCursor(cursor).withSort(Collections.singletonList("userId:ASC")).build();
+
+        expectedException.expect(BadRequestException.class);
+        daoUnderTest.getPage(filter);
+    }
+
+    @Test
+    public void export_twoBatches_writeEachSourceOnItsOwnLine() throws Exception {
+
+        // Mocks - client hands back two batches of hits, the second read after the first
+        final SearchHit first = Mockito.mock(SearchHit.class);
+        when(first.getSourceRef()).thenReturn(new BytesArray("{\"id\":\"1\"}"));
+        when(first.getSortValues()).thenReturn(new Object[] { "1" });
+        final SearchHit second = Mockito.mock(SearchHit.class);
+        when(second.getSourceRef()).thenReturn(new BytesArray("{\"id\":\"2\"}"));
+        when(elasticsearchClient.searchInBatches(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(
+                new HitBatches(new SearchHit[] { first }, 1, after -> CompletableFuture.completedFuture(new SearchHit[] { second }))));
+
+        // Do Test
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        daoUnderTest.export(BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter().build()).join().writeTo(out);
+
+        assertThat(out.toString("UTF-8"), is("{\"id\":\"1\"}\n{\"id\":\"2\"}\n"));
+
+        // Check request - batches of the configured size in id order
+        final ArgumentCaptor<SearchQuery> captor = ArgumentCaptor.forClass(SearchQuery.class);
+        verify(elasticsearchClient).searchInBatches(eq(daoUnderTest.getIndex()), eq(daoUnderTest.getType()), captor.capture());
+        assertThat(captor.getValue().getSize(), is(applicationProperties.getExport().getBatchSize()));
+        assertThat(captor.getValue().getSortBuilders().size(), is(1));
+    }
+
+    @Test
+    public void export_searchFailed_failBeforeWriting() throws Exception {
+
+        // Mocks
+        when(elasticsearchClient.searchInBatches(any(), any(), any())).thenReturn(failed(new ClusterBlockException(Collections.emptySet())));
+
+        // Do Test
+        final CompletableFuture<ResultWriter> result = daoUnderTest.export(BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter().build());
+
+        assertThat(result.isCompletedExceptionally(), is(true));
+    }
+
+    @Test
+    public void streamSearch_moreThanMaxResults_writeJsonArrayOfBestMatches() throws Exception {
+
+        applicationProperties.getSearch().setMaxResults(2);
+
+        // Mocks - client hands back two batches of hits but the second is only partly wanted
+        final SearchHit first = Mockito.mock(SearchHit.class);
+        when(first.getSourceRef()).thenReturn(new BytesArray("{\"id\":\"1\"}"));
+        when(first.getSortValues()).thenReturn(new Object[] { 2.0f, "1" });
+        final SearchHit second = Mockito.mock(SearchHit.class);
+        when(second.getSourceRef()).thenReturn(new BytesArray("{\"id\":\"2\"}"));
+        final SearchHit third = Mockito.mock(SearchHit.class);
+        when(third.getSourceRef()).thenReturn(new BytesArray("{\"id\":\"3\"}"));
+        when(elasticsearchClient.searchInBatches(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(
+                new HitBatches(new SearchHit[] { first }, 1, after -> CompletableFuture.completedFuture(new SearchHit[] { second, third }))));
+
+        // Do Test
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        daoUnderTest.streamSearch(BODY, null).join().writeTo(out);
+
+        assertThat(out.toString("UTF-8"), is("[{\"id\":\"1\"},{\"id\":\"2\"}]"));
+
+        // Check request - scored batches, ties broken by id, no bigger than the results wanted
+        final ArgumentCaptor<SearchQuery> captor = ArgumentCaptor.forClass(SearchQuery.class);
+        verify(elasticsearchClient).searchInBatches(eq(daoUnderTest.getIndex()), eq(daoUnderTest.getType()), captor.capture());
+        assertThat(captor.getValue().getSearchType(), is(SearchType.DFS_QUERY_THEN_FETCH));
+        assertThat(captor.getValue().getSize(), is(2));
+        assertThat(captor.getValue().getSortBuilders().size(), is(2));
+        assertThat(captor.getValue().getSortBuilders().get(0), instanceOf(ScoreSortBuilder.class));
+    }
+
+    @Test
+    public void search_scoredQuery_useDfsSearchType() throws Exception {
+
+        // Mocks
+        final SearchResponse response = Mockito.mock(SearchResponse.class);
+        final SearchHits searchHits = Mockito.mock(SearchHits.class);
+        when(response.getHits()).thenReturn(searchHits);
+        when(searchHits.getTotalHits()).thenReturn(0L);
+        when(elasticsearchClient.getAll(anyString(), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
+
+        // Do Test
+        daoUnderTest.search(BODY, null).join();
+
+        // Relevance scoring needs global term statistics
+        final ArgumentCaptor<SearchQuery> captor = ArgumentCaptor.forClass(SearchQuery.class);
+        verify(elasticsearchClient).getAll(eq(daoUnderTest.getIndex()), eq(daoUnderTest.getType()), captor.capture());
+        assertThat(captor.getValue().getSearchType(), is(SearchType.DFS_QUERY_THEN_FETCH));
+        assertThat(captor.getValue().getSourceIncludes(), is(nullValue()));
+    }
+
+    @Test
+    public void search_withFields_fetchOnlyThoseFields() throws Exception {
+
+        // Mocks
+        final SearchResponse response = Mockito.mock(SearchResponse.class);
+        final SearchHits searchHits = Mockito.mock(SearchHits.class);
+        when(response.getHits()).thenReturn(searchHits);
+        when(searchHits.getTotalHits()).thenReturn(0L);
+        when(elasticsearchClient.getAll(anyString(), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
+
+        // Do Test
+        daoUnderTest.search(BODY, Arrays.asList("id", "timestamp")).join();
+
+        final ArgumentCaptor<SearchQuery> captor = ArgumentCaptor.forClass(SearchQuery.class);
+        verify(elasticsearchClient).getAll(eq(daoUnderTest.getIndex()), eq(daoUnderTest.getType()), captor.capture());
+        assertThat(captor.getValue().getSourceIncludes(), is(new String[] { "id", "timestamp" }));
+    }
+
+    @Test
+    public void getPage_unknownField_BadRequestException() throws Exception {
+
+        BlogPostSortFilter filter = BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter().withFields(Collections.singletonList("password")).build();
+
+        expectedException.expect(BadRequestException.class);
+        daoUnderTest.getPage(filter);
+    }
+
     @Test
     public void create_checkClient_success() throws Exception {
 
-        final BlogPost newBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).build();
+        final BlogPost newBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+
+        when(elasticsearchClient.create(any(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(ID));
+
+        // Written to the partition for the month of the post
+        daoUnderTest.create(newBlogPost).join();
+        verify(elasticsearchClient, times(1)).create(PARTITION, daoUnderTest.getType(), ID, codec.encode(newBlogPost, XContentType.JSON), WriteRequest.RefreshPolicy.NONE);
+    }
+
+    @Test
+    public void create_smileSourceFormat_sendSmile() throws Exception {
+
+        final BlogPost newBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+
+        when(elasticsearchClient.getSourceType()).thenReturn(XContentType.SMILE);
+        when(elasticsearchClient.create(any(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(ID));
+
+        // Do Test
+        daoUnderTest.create(newBlogPost).join();
+
+        // Binary source that reads back as the same post
+        final ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+        verify(elasticsearchClient).create(eq(PARTITION), eq(daoUnderTest.getType()), eq(ID), captor.capture(), eq(WriteRequest.RefreshPolicy.NONE));
+        assertThat(XContentFactory.xContentType(captor.getValue()), is(XContentType.SMILE));
+        assertThat(codec.decode(new BytesArray(captor.getValue())), is(newBlogPost));
+    }
 
-        daoUnderTest.create(newBlogPost);
-        verify(elasticsearchClient, times(1)).create(daoUnderTest.getIndex(), daoUnderTest.getType(), ID, GSON.toJson(newBlogPost));
+    @Test
+    public void createAll_checkClient_reportEachItem() throws Exception {
+
+        final BlogPost first = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+        final BlogPost second = BlogPost.BlogPostBuilder.aBlogPost().withId(ID + "2").withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+
+        // Mocks - second item fails
+        final BulkItemResponse created = Mockito.mock(BulkItemResponse.class);
+        when(created.getId()).thenReturn(ID);
+        final BulkItemResponse.Failure failure = Mockito.mock(BulkItemResponse.Failure.class);
+        when(failure.getStatus()).thenReturn(RestStatus.TOO_MANY_REQUESTS);
+        final BulkItemResponse failed = Mockito.mock(BulkItemResponse.class);
+        when(failed.getId()).thenReturn(ID + "2");
+        when(failed.isFailed()).thenReturn(true);
+        when(failed.getFailure()).thenReturn(failure);
+        when(failed.getFailureMessage()).thenReturn("rejected");
+        when(elasticsearchClient.bulkCreate(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(Arrays.asList(created, failed)));
+
+        // Do Test
+        final BulkResult result = daoUnderTest.createAll(Arrays.asList(first, second)).join();
+
+        // Check response
+        final ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+        verify(elasticsearchClient, times(1)).bulkCreate(eq(PARTITION), eq(daoUnderTest.getType()), captor.capture());
+        assertThat(captor.getValue().keySet(), is(new LinkedHashSet<>(Arrays.asList(ID, ID + "2"))));
+        assertThat(codec.decode(new BytesArray((byte[]) captor.getValue().get(ID))), is(first));
+        assertThat(codec.decode(new BytesArray((byte[]) captor.getValue().get(ID + "2"))), is(second));
+        assertThat(result.isErrors(), is(true));
+        assertThat(result.getItems().get(0).getId(), is(ID));
+        assertThat(result.getItems().get(0).getStatus(), is(201));
+        assertThat(result.getItems().get(1).getStatus(), is(429));
+        assertThat(result.getItems().get(1).getError(), is("rejected"));
     }
 
     @Test
-    public void update_checkClient_success() throws Exception {
+    public void update_postLookedUp_oneRequestToItsPartition() throws Exception {
+
+        final BlogPost changedBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).build();
+        final BlogPost stored = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+
+        // Mocks - post already looked up so its partition is known
+        final GetResponse getResponse = Mockito.mock(GetResponse.class);
+        when(getResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(GSON.toJson(stored)));
+        when(getResponse.getIndex()).thenReturn(PARTITION);
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.of(getResponse))));
+        daoUnderTest.getById(ID).join();
+        when(elasticsearchClient.update(any(), any(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(anUpdateResponse(stored, 4)));
+
+        // Do Test
+        final Versioned<BlogPost> updated = daoUnderTest.update(changedBlogPost, 3L, WriteRequest.RefreshPolicy.NONE).join();
+
+        // Updated in the partition it was found in, with no second lookup
+        verify(elasticsearchClient, times(1)).update(PARTITION, daoUnderTest.getType(), ID, codec.encode(changedBlogPost, XContentType.JSON), 3L, WriteRequest.RefreshPolicy.NONE);
+        verify(elasticsearchClient, times(1)).multiGet(anyCollectionOf(String.class), any(), any());
+        assertThat(updated.getVersion(), is("4"));
+        assertThat(updated.getValue().getUserId(), is(USER));
+    }
+
+    @Test
+    public void update_notInCurrentPartition_lookUpPartition() throws Exception {
 
         final BlogPost changedBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).build();
 
-        // Mocks needed for Get operation
+        // Mocks - not in this month's partition but in an older one
+        when(elasticsearchClient.update(any(), any(), any(), any(), any(), any())).thenReturn(failed(Mockito.mock(DocumentMissingException.class)));
+        when(elasticsearchClient.update(eq(PARTITION), any(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(anUpdateResponse(changedBlogPost, 2)));
         final GetResponse getResponse = Mockito.mock(GetResponse.class);
-        when(getResponse.getSourceAsString()).thenReturn(GSON.toJson(changedBlogPost));
-        when(elasticsearchClient.getById(any(), any(), any())).thenReturn(Optional.of(getResponse));
+        when(getResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(GSON.toJson(changedBlogPost)));
+        when(getResponse.getIndex()).thenReturn(PARTITION);
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.of(getResponse))));
+
+        // Do Test
+        final BlogPost updated = daoUnderTest.update(changedBlogPost).join();
 
-        daoUnderTest.update(changedBlogPost);
-        verify(elasticsearchClient, times(1)).update(daoUnderTest.getIndex(), daoUnderTest.getType(), ID, GSON.toJson(changedBlogPost));
+        assertThat(updated, is(changedBlogPost));
+        verify(elasticsearchClient, times(2)).update(any(), any(), any(), any(), any(), any());
+        verify(elasticsearchClient, times(1)).update(eq(PARTITION), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void update_archivedPartition_BadRequestException() throws Exception {
+
+        final BlogPost changedBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).build();
+
+        // Mocks - partition is read-only
+        when(elasticsearchClient.update(any(), any(), any(), any(), any(), any())).thenReturn(failed(new ClusterBlockException(Collections.emptySet())));
+
+        expectedException.expect(CompletionException.class);
+        expectedException.expectCause(instanceOf(BadRequestException.class));
+        daoUnderTest.update(changedBlogPost).join();
+    }
+
+    @Test
+    public void update_changedSinceVersion_PreconditionFailedException() throws Exception {
+
+        final BlogPost changedBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).build();
+
+        // Mocks - another edit got there first
+        when(elasticsearchClient.update(any(), any(), any(), any(), eq(3L), any())).thenReturn(failed(Mockito.mock(VersionConflictEngineException.class)));
+
+        expectedException.expect(CompletionException.class);
+        expectedException.expectCause(instanceOf(PreconditionFailedException.class));
+        daoUnderTest.update(changedBlogPost, 3L, WriteRequest.RefreshPolicy.NONE).join();
     }
 
     @Test
@@ -163,21 +755,251 @@ public class BlogPostDaoTest {
 
         final BlogPost changedBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).build();
 
-        // Mocks needed for empty Get operation
-        final GetResponse getResponse = Mockito.mock(GetResponse.class);
-        when(getResponse.getSourceAsString()).thenReturn(GSON.toJson(changedBlogPost));
-        when(elasticsearchClient.getById(any(), any(), any())).thenReturn(Optional.empty());
+        // Mocks - not in this month's partition nor any other
+        when(elasticsearchClient.update(any(), any(), any(), any(), any(), any())).thenReturn(failed(Mockito.mock(DocumentMissingException.class)));
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.empty())));
+
+        expectedException.expect(CompletionException.class);
+        expectedException.expectCause(instanceOf(NotFoundException.class));
+        daoUnderTest.update(changedBlogPost).join();
+    }
+
+    private static UpdateResponse anUpdateResponse(final BlogPost stored, final long version) {
+
+        final GetResult getResult = Mockito.mock(GetResult.class);
+        when(getResult.sourceRef()).thenReturn(new BytesArray(GSON.toJson(stored)));
+        final UpdateResponse response = Mockito.mock(UpdateResponse.class);
+        when(response.getGetResult()).thenReturn(getResult);
+        when(response.getVersion()).thenReturn(version);
+        return response;
+    }
 
-        expectedException.expect(NotFoundException.class);
-        daoUnderTest.update(changedBlogPost);
-        verifyZeroInteractions(elasticsearchClient);
+    private static <T> CompletableFuture<T> failed(final Exception failure) {
+
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(failure);
+        return future;
     }
 
     @Test
     public void delete_checkClient_success() throws Exception {
 
-        daoUnderTest.delete(ID);
-        verify(elasticsearchClient, times(1)).deleteById(daoUnderTest.getIndex(), daoUnderTest.getType(), ID);
+        final GetResponse getResponse = Mockito.mock(GetResponse.class);
+        when(getResponse.getIndex()).thenReturn(PARTITION);
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.of(getResponse))));
+        when(elasticsearchClient.deleteById(any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+
+        daoUnderTest.delete(ID).join();
+        verify(elasticsearchClient, times(1)).deleteById(PARTITION, daoUnderTest.getType(), ID, WriteRequest.RefreshPolicy.NONE);
+    }
+
+    @Test
+    public void delete_cachedAsMissing_lookUpAgainAndDelete() throws Exception {
+
+        // Mocks - not found when first read, then created through another instance
+        final GetResponse getResponse = Mockito.mock(GetResponse.class);
+        when(getResponse.getIndex()).thenReturn(PARTITION);
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any()))
+                .thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.empty())))
+                .thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.of(getResponse))));
+        when(elasticsearchClient.deleteById(any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+
+        // Do Test
+        assertThat(daoUnderTest.getById(ID).join().isPresent(), is(false));
+        daoUnderTest.delete(ID).join();
+
+        verify(elasticsearchClient, times(2)).multiGet(anyCollectionOf(String.class), any(), any());
+        verify(elasticsearchClient).deleteById(PARTITION, daoUnderTest.getType(), ID, WriteRequest.RefreshPolicy.NONE);
+    }
+
+    @Test
+    public void create_immediateRefreshNotAllowed_waitForRefresh() throws Exception {
+
+        final BlogPost newBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+
+        when(elasticsearchClient.create(any(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(ID));
+
+        daoUnderTest.create(newBlogPost, WriteRequest.RefreshPolicy.IMMEDIATE).join();
+        verify(elasticsearchClient).create(eq(PARTITION), any(), eq(ID), any(), eq(WriteRequest.RefreshPolicy.WAIT_UNTIL));
+    }
+
+    @Test
+    public void createOnce_retried_createInESOnce() throws Exception {
+
+        final BlogPost newBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+        final BlogPost retriedBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(new Date()).build();
+
+        when(elasticsearchClient.create(any(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(ID));
+
+        final Created<BlogPost> first = daoUnderTest.createOnce(newBlogPost, WriteRequest.RefreshPolicy.NONE).join();
+        final Created<BlogPost> retry = daoUnderTest.createOnce(retriedBlogPost, WriteRequest.RefreshPolicy.NONE).join();
+
+        // Retry answered from memory with the post as first created
+        assertThat(first.isReplayed(), is(false));
+        assertThat(retry.isReplayed(), is(true));
+        assertThat(retry.getValue().getTimestamp(), is(TIMESTAMP));
+        verify(elasticsearchClient, times(1)).create(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void createOnce_retriedAfterDelete_createInESAgain() throws Exception {
+
+        final BlogPost newBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+
+        // Mocks
+        final GetResponse getResponse = Mockito.mock(GetResponse.class);
+        when(getResponse.getIndex()).thenReturn(PARTITION);
+        when(elasticsearchClient.create(any(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(ID));
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.of(getResponse))));
+        when(elasticsearchClient.deleteById(any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+
+        // Do Test
+        daoUnderTest.createOnce(newBlogPost, WriteRequest.RefreshPolicy.NONE).join();
+        daoUnderTest.delete(ID).join();
+        final Created<BlogPost> retry = daoUnderTest.createOnce(newBlogPost, WriteRequest.RefreshPolicy.NONE).join();
+
+        // Not a replay of the deleted post
+        assertThat(retry.isReplayed(), is(false));
+        verify(elasticsearchClient, times(2)).create(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void createOnce_alreadyCreatedInES_returnStoredPost() throws Exception {
+
+        final BlogPost storedBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+        final BlogPost retriedBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(new Date()).build();
+
+        // Mocks - created by an earlier attempt through another instance
+        final GetResponse getResponse = Mockito.mock(GetResponse.class);
+        when(getResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(GSON.toJson(storedBlogPost)));
+        when(elasticsearchClient.create(any(), any(), any(), any(), any())).thenReturn(failed(Mockito.mock(VersionConflictEngineException.class)));
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(Optional.of(getResponse))));
+
+        final Created<BlogPost> retry = daoUnderTest.createOnce(retriedBlogPost, WriteRequest.RefreshPolicy.NONE).join();
+
+        assertThat(retry.isReplayed(), is(true));
+        assertThat(retry.getValue(), is(storedBlogPost));
+    }
+
+    @Test
+    public void createOnce_keyUsedForDifferentPost_ConflictException() throws Exception {
+
+        final BlogPost newBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+        final BlogPost differentBlogPost = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody("other text").withUserId(USER).withTimestamp(TIMESTAMP).build();
+
+        when(elasticsearchClient.create(any(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(ID));
+        daoUnderTest.createOnce(newBlogPost, WriteRequest.RefreshPolicy.NONE).join();
+
+        expectedException.expect(CompletionException.class);
+        expectedException.expectCause(instanceOf(ConflictException.class));
+        daoUnderTest.createOnce(differentBlogPost, WriteRequest.RefreshPolicy.NONE).join();
+    }
+
+    @Test
+    public void getRawPage_sessionWroteRecently_placeItsPostAmongResults() throws Exception {
+
+        final BlogPost older = BlogPost.BlogPostBuilder.aBlogPost().withId(ID).withBody(BODY).withUserId(USER).withTimestamp(TIMESTAMP).build();
+        final BlogPost written = BlogPost.BlogPostBuilder.aBlogPost().withId(ID + "2").withBody(BODY).withUserId(USER).withTimestamp(new Date()).build();
+        final BlogPost otherUsers = BlogPost.BlogPostBuilder.aBlogPost().withId(ID + "3").withBody(BODY).withUserId("other").withTimestamp(new Date()).build();
+
+        // Mocks - search has only the older post. The written posts are found by id.
+        final SearchResponse response = Mockito.mock(SearchResponse.class);
+        final SearchHit searchHit = Mockito.mock(SearchHit.class);
+        final SearchHits searchHits = Mockito.mock(SearchHits.class);
+        when(response.getHits()).thenReturn(searchHits);
+        when(searchHits.getTotalHits()).thenReturn(1L);
+        when(searchHits.getHits()).thenReturn(new SearchHit[] { searchHit });
+        when(searchHit.getId()).thenReturn(ID);
+        when(searchHit.getSourceRef()).thenReturn(new BytesArray(GSON.toJson(older)));
+        when(searchHit.getSortValues()).thenReturn(new Object[] { TIMESTAMP.getTime(), ID });
+        when(elasticsearchClient.getAll(anyListOf(String.class), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
+        final GetResponse writtenResponse = Mockito.mock(GetResponse.class);
+        when(writtenResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(GSON.toJson(written)));
+        final GetResponse otherUsersResponse = Mockito.mock(GetResponse.class);
+        when(otherUsersResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(GSON.toJson(otherUsers)));
+        when(elasticsearchClient.multiGet(anyCollectionOf(String.class), any(), any())).thenReturn(CompletableFuture.completedFuture(
+                Arrays.asList(Optional.of(writtenResponse), Optional.of(otherUsersResponse))));
+
+        // Do Test
+        final SessionToken session = SessionToken.empty()
+                .withWrite(written.getId(), System.currentTimeMillis())
+                .withWrite(otherUsers.getId(), System.currentTimeMillis());
+        final BlogPostSortFilter filter = BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter().withUserIds(Collections.singletonList(USER)).build();
+        final ResultPage<RawJson> page = daoUnderTest.getRawPage(filter, session).join();
+
+        // Newest first, without the post that doesn't match the filter
+        assertThat(page.getResults().size(), is(2));
+        assertThat(codec.decode(new BytesArray(page.getResults().get(0).toString())), is(written));
+        assertThat(codec.decode(new BytesArray(page.getResults().get(1).toString())), is(older));
+        assertThat(page.getNextCursor(), is(nullValue()));
+        assertThat(page.getVersion(), is(nullValue()));
+    }
+
+    @Test
+    public void maintainPartitions_oldPartition_forceMergeAndMakeReadOnly() throws Exception {
+
+        // Mocks - one old partition still writable, one already archived
+        final Map<String, Settings> settingsByIndex = new LinkedHashMap<>();
+        settingsByIndex.put("microblog-blogpost-2017.05", Settings.EMPTY);
+        settingsByIndex.put(PARTITION, Settings.builder().put("index.blocks.write", true).build());
+        when(elasticsearchClient.getIndexSettings(any())).thenReturn(CompletableFuture.completedFuture(settingsByIndex));
+        when(elasticsearchClient.forceMerge(any(), anyInt(), any())).thenReturn(CompletableFuture.completedFuture(null));
+        when(elasticsearchClient.updateIndexSettings(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+
+        // Do Test
+        daoUnderTest.maintainPartitions().join();
+
+        verify(elasticsearchClient).forceMerge(eq("microblog-blogpost-2017.05"), eq(1), any());
+        final ArgumentCaptor<Settings> captor = ArgumentCaptor.forClass(Settings.class);
+        verify(elasticsearchClient).updateIndexSettings(eq("microblog-blogpost-2017.05"), captor.capture());
+        assertThat(captor.getValue().getAsBoolean("index.blocks.write", false), is(true));
+        verify(elasticsearchClient, never()).forceMerge(eq(PARTITION), anyInt(), any());
+    }
+
+    @Test
+    public void getPage_dateRange_searchMatchingPartitionsOnly() throws Exception {
+
+        // Mocks - partitions listed on either side of the range
+        final Map<String, Settings> settingsByIndex = new LinkedHashMap<>();
+        settingsByIndex.put("microblog-blogpost-2017.05", Settings.builder().put("index.blocks.write", true).build());
+        settingsByIndex.put(PARTITION, Settings.builder().put("index.blocks.write", true).build());
+        settingsByIndex.put("microblog-blogpost-2017.07", Settings.builder().put("index.blocks.write", true).build());
+        when(elasticsearchClient.getIndexSettings(any())).thenReturn(CompletableFuture.completedFuture(settingsByIndex));
+        daoUnderTest.maintainPartitions().join();
+
+        final SearchResponse response = Mockito.mock(SearchResponse.class);
+        final SearchHits searchHits = Mockito.mock(SearchHits.class);
+        when(response.getHits()).thenReturn(searchHits);
+        when(searchHits.getTotalHits()).thenReturn(0L);
+        when(searchHits.getHits()).thenReturn(new SearchHit[] { });
+        when(elasticsearchClient.getAll(anyListOf(String.class), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
+
+        // Do Test
+        BlogPostSortFilter filter = BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter()
+                .withFromDateTime("2017-06-01T00:00:00.000Z").withToDateTime("2017-06-30T23:59:59.999Z").build();
+        daoUnderTest.getPage(filter).join();
+
+        verify(elasticsearchClient).getAll(eq(Collections.singletonList(PARTITION)), eq(daoUnderTest.getType()), any(SearchQuery.class));
+    }
+
+    @Test
+    public void getPage_dateRangeBeforeAnyPartition_emptyPageWithoutSearch() throws Exception {
+
+        // Mocks - partitions listed, already archived
+        when(elasticsearchClient.getIndexSettings(any())).thenReturn(CompletableFuture.completedFuture(
+                Collections.singletonMap(PARTITION, Settings.builder().put("index.blocks.write", true).build())));
+        daoUnderTest.maintainPartitions().join();
+
+        // Do Test - range before the first partition, and a range ending before it starts
+        final ResultPage<BlogPost> before = daoUnderTest.getPage(BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter()
+                .withFromDateTime("2010-06-11T15:06:24.627Z").withToDateTime("2016-06-11T15:06:24.627Z").build()).join();
+        final ResultPage<RawJson> reversed = daoUnderTest.getRawPage(BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter()
+                .withFromDateTime("2017-07-15").withToDateTime("2017-05-01").build(), SessionToken.empty().withWrite(ID, System.currentTimeMillis())).join();
+
+        assertThat(before.getResults().isEmpty(), is(true));
+        assertThat(before.getNextCursor(), is(nullValue()));
+        assertThat(reversed.getResults().isEmpty(), is(true));
+        verify(elasticsearchClient, never()).getAll(anyListOf(String.class), any(), any(SearchQuery.class));
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,58 @@
+package com.forgerock.microblog.dao;
+
+import com.forgerock.microblog.filter.BlogPostSortFilter;
+import com.forgerock.microblog.filter.SortColumn;
+import com.forgerock.microblog.model.BlogPost;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+
+public class BlogPostPageKeyTest {
+
+    private static final List<SortColumn> DEFAULT_SORT = Collections.singletonList(SortColumn.parse("timestamp:DESC"));
+
+    @Test
+    public void equals_offsetIgnoredWithCursor() throws Exception {
+
+        final BlogPostPageKey first = new BlogPostPageKey(BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter()
+                .withCursor("abc").withOffset(10).build(), 100, DEFAULT_SORT);
+        final BlogPostPageKey second = new BlogPostPageKey(BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter()
+                .withCursor("abc").build(), 100, DEFAULT_SORT);
+
+        assertThat(first, is(second));
+        assertThat(first.hashCode(), is(second.hashCode()));
+        assertThat(first, not(new BlogPostPageKey(BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter().build(), 100, DEFAULT_SORT)));
+    }
+
+    @Test
+    public void matches_outsideDateRange_false() throws Exception {
+
+        final BlogPostPageKey key = new BlogPostPageKey(BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter()
+                .withUserIds(Arrays.asList("a", "b")).withFromDateTime("2017-06-01").withToDateTime("2017-06-30").build(), 100, DEFAULT_SORT);
+
+        assertThat(key.matches(aPost("a", 1497194400000L)), is(true)); // 2017-06-11
+        assertThat(key.matches(aPost("c", 1497194400000L)), is(false));
+        assertThat(key.matches(aPost("a", 1499860000000L)), is(false)); // 2017-07-12
+    }
+
+    @Test
+    public void matches_unparsedDate_true() throws Exception {
+
+        final BlogPostPageKey key = new BlogPostPageKey(BlogPostSortFilter.BlogPostSortFilterBuilder.aBlogPostSortFilter()
+                .withFromDateTime("now-1d").build(), 100, DEFAULT_SORT);
+
+        // Can't tell so assumed to match
+        assertThat(key.matches(aPost("a", 0L)), is(true));
+    }
+
+    private static BlogPost aPost(final String userId, final long timestamp) {
+        return BlogPost.BlogPostBuilder.aBlogPost().withId("1").withUserId(userId).withTimestamp(new Date(timestamp)).build();
+    }
+}
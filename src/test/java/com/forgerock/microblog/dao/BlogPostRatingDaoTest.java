@@ -1,28 +1,54 @@
 package com.forgerock.microblog.dao;
 
+import com.forgerock.microblog.configuration.ApplicationProperties;
 import com.forgerock.microblog.es.ElasticsearchClient;
+import com.forgerock.microblog.es.SearchQuery;
+import com.forgerock.microblog.es.SourceCodec;
+import com.forgerock.microblog.filter.TopRatedFilter;
 import com.forgerock.microblog.model.BlogPostRating;
+import com.forgerock.microblog.model.BulkResult;
+import com.forgerock.microblog.model.Created;
 import com.forgerock.microblog.model.DateTimeConstants;
+import com.forgerock.microblog.model.RatingSummary;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
 
 public class BlogPostRatingDaoTest {
@@ -37,10 +63,13 @@ public class BlogPostRatingDaoTest {
             .setDateFormat(DateTimeConstants.ISO_OFFSET_DATE_TIME)
             .create();
 
+    private final SourceCodec<BlogPostRating> codec = new SourceCodec<>(BlogPostRating.class);
+
     @Before
     public void startup() {
 
         MockitoAnnotations.initMocks(this);
+        when(elasticsearchClient.getSourceType()).thenReturn(XContentType.JSON);
     }
 
     @Rule
@@ -52,6 +81,12 @@ public class BlogPostRatingDaoTest {
     @Mock
     private ElasticsearchClient elasticsearchClient;
 
+    @Mock
+    private RatingCounters ratingCounters;
+
+    @Spy
+    private ApplicationProperties applicationProperties = new ApplicationProperties();
+
     @Test
     public void getAllByParentId_returnListOfOne() throws Exception {
 
@@ -64,17 +99,49 @@ public class BlogPostRatingDaoTest {
         when(response.getHits()).thenReturn(searchHits);
         when(searchHits.getTotalHits()).thenReturn(1L);
         when(searchHits.getHits()).thenReturn(new SearchHit[] { searchHit });
-        when(searchHit.getSourceAsString()).thenReturn(GSON.toJson(blogPostRating));
-        when(elasticsearchClient.getAll(any(), any(), any())).thenReturn(Optional.of(response));
+        when(searchHit.getId()).thenReturn(ID);
+        when(searchHit.getVersion()).thenReturn(1L);
+        when(searchHit.getSourceRef()).thenReturn(new BytesArray(GSON.toJson(blogPostRating)));
+        when(elasticsearchClient.getAll(anyString(), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
 
         // Do test
-        final List<BlogPostRating> ratingList = daoUnderTest.getAllByParentId(PARENT_ID);
+        final List<BlogPostRating> ratingList = daoUnderTest.getAllByParentId(PARENT_ID).join();
 
         // Check response
         assertThat(ratingList.size(), is(1));
         assertThat(ratingList.get(0), is(blogPostRating));
     }
 
+    @Test
+    public void getVersionedByParentId_ratingAdded_versionChanges() throws Exception {
+
+        // Mocks - one rating then two
+        final SearchHit first = Mockito.mock(SearchHit.class);
+        when(first.getId()).thenReturn(ID);
+        when(first.getVersion()).thenReturn(1L);
+        final SearchHit second = Mockito.mock(SearchHit.class);
+        when(second.getId()).thenReturn(ID + "2");
+        when(second.getVersion()).thenReturn(1L);
+        final SearchResponse response = Mockito.mock(SearchResponse.class);
+        final SearchHits searchHits = Mockito.mock(SearchHits.class);
+        when(response.getHits()).thenReturn(searchHits);
+        when(searchHits.getHits()).thenReturn(new SearchHit[] { first }, new SearchHit[] { first }, new SearchHit[] { first, second });
+        when(elasticsearchClient.getAll(anyString(), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
+
+        // Do test
+        final String version = daoUnderTest.getVersionedByParentId(PARENT_ID).join().getVersion();
+        final String sameVersion = daoUnderTest.getVersionedByParentId(PARENT_ID).join().getVersion();
+        final String newVersion = daoUnderTest.getVersionedByParentId(PARENT_ID).join().getVersion();
+
+        // Check response and that versions were asked for
+        assertThat(sameVersion, is(version));
+        assertThat(newVersion.equals(version), is(false));
+        final ArgumentCaptor<SearchQuery> captor = ArgumentCaptor.forClass(SearchQuery.class);
+        verify(elasticsearchClient, times(3)).getAll(eq(daoUnderTest.getIndex()), eq(daoUnderTest.getType()), captor.capture());
+        assertThat(captor.getValue().isVersion(), is(true));
+        assertThat(captor.getValue().getSearchType(), is(SearchType.QUERY_THEN_FETCH));
+    }
+
     @Test
     public void getAllByParentId_noResults_returnEmptyList() throws Exception {
 
@@ -83,10 +150,10 @@ public class BlogPostRatingDaoTest {
         final SearchHits searchHits = Mockito.mock(SearchHits.class);
         when(response.getHits()).thenReturn(searchHits);
         when(searchHits.getTotalHits()).thenReturn(0L);
-        when(elasticsearchClient.getAll(any(), any(), any())).thenReturn(Optional.empty());
+        when(elasticsearchClient.getAll(anyString(), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
 
         // Do test
-        final List<BlogPostRating> ratingList = daoUnderTest.getAllByParentId(PARENT_ID);
+        final List<BlogPostRating> ratingList = daoUnderTest.getAllByParentId(PARENT_ID).join();
 
         // Check response
         assertThat(ratingList.size(), is(0));
@@ -97,11 +164,86 @@ public class BlogPostRatingDaoTest {
 
         final BlogPostRating blogPostRating = BlogPostRating.BlogPostRatingBuilder.aBlogPostRating().withId(ID).withBlogPostId(PARENT_ID).withRating(RATING).withUserId(USER).build();
 
+        when(elasticsearchClient.create(any(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(ID));
+
         // Do test
-        daoUnderTest.addToParentResource(blogPostRating);
+        daoUnderTest.addToParentResource(blogPostRating).join();
+
+        // Check calls to client
+        verify(elasticsearchClient, times(1)).create(daoUnderTest.getIndex(), daoUnderTest.getType(), ID, codec.encode(blogPostRating, XContentType.JSON), WriteRequest.RefreshPolicy.NONE);
+    }
+
+    @Test
+    public void addToParentResourceOnce_alreadyAddedInES_replayStoredRating() throws Exception {
+
+        final BlogPostRating blogPostRating = BlogPostRating.BlogPostRatingBuilder.aBlogPostRating().withId(ID).withBlogPostId(PARENT_ID).withRating(RATING).withUserId(USER).build();
+
+        // Mocks - added by an earlier attempt through another instance
+        final CompletableFuture<String> conflict = new CompletableFuture<>();
+        conflict.completeExceptionally(Mockito.mock(VersionConflictEngineException.class));
+        final GetResponse getResponse = Mockito.mock(GetResponse.class);
+        when(getResponse.isExists()).thenReturn(true);
+        when(getResponse.getSourceAsBytesRef()).thenReturn(new BytesArray(codec.encode(blogPostRating, XContentType.JSON)));
+        when(elasticsearchClient.create(any(), any(), any(), any(), any())).thenReturn(conflict);
+        when(elasticsearchClient.getById(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(Optional.of(getResponse)));
+
+        // Do test - retried again, answered from memory
+        final Created<BlogPostRating> first = daoUnderTest.addToParentResourceOnce(blogPostRating).join();
+        final Created<BlogPostRating> second = daoUnderTest.addToParentResourceOnce(blogPostRating).join();
+
+        assertThat(first.isReplayed(), is(true));
+        assertThat(first.getValue().getRating(), is(RATING));
+        assertThat(second.isReplayed(), is(true));
+        verify(elasticsearchClient, times(1)).create(any(), any(), any(), any(), any());
+        verify(elasticsearchClient, times(1)).getById(daoUnderTest.getIndex(), daoUnderTest.getType(), ID);
+    }
+
+    @Test
+    public void addAllToParentResource() throws Exception {
+
+        final BlogPostRating blogPostRating = BlogPostRating.BlogPostRatingBuilder.aBlogPostRating().withId(ID).withBlogPostId(PARENT_ID).withRating(RATING).withUserId(USER).build();
+        final BulkItemResponse itemResponse = Mockito.mock(BulkItemResponse.class);
+        when(itemResponse.getId()).thenReturn(ID);
+        when(elasticsearchClient.bulkCreate(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(itemResponse)));
+
+        // Do test
+        final BulkResult result = daoUnderTest.addAllToParentResource(Collections.singletonList(blogPostRating)).join();
 
         // Check calls to client
-        verify(elasticsearchClient, times(1)).create(daoUnderTest.getIndex(), daoUnderTest.getType(), ID, GSON.toJson(blogPostRating));
+        final ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+        verify(elasticsearchClient, times(1)).bulkCreate(eq(daoUnderTest.getIndex()), eq(daoUnderTest.getType()), captor.capture());
+        assertThat(codec.decode(new BytesArray((byte[]) captor.getValue().get(ID))), is(blogPostRating));
+        assertThat(result.isErrors(), is(false));
+        assertThat(result.getItems().get(0).getId(), is(ID));
+        verify(ratingCounters).record(PARENT_ID, RATING);
+    }
+
+    @Test
+    public void addAllToParentResource_itemFailed_notCounted() throws Exception {
+
+        final BlogPostRating blogPostRating = BlogPostRating.BlogPostRatingBuilder.aBlogPostRating().withId(ID).withBlogPostId(PARENT_ID).withRating(RATING).withUserId(USER).build();
+        final BulkItemResponse itemResponse = Mockito.mock(BulkItemResponse.class);
+        when(itemResponse.getId()).thenReturn(ID);
+        when(itemResponse.isFailed()).thenReturn(true);
+        when(itemResponse.getFailure()).thenReturn(new BulkItemResponse.Failure("microblog", "rating", ID, new IllegalStateException("rejected")));
+        when(elasticsearchClient.bulkCreate(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(itemResponse)));
+
+        // Do test
+        final BulkResult result = daoUnderTest.addAllToParentResource(Collections.singletonList(blogPostRating)).join();
+
+        assertThat(result.isErrors(), is(true));
+        verifyZeroInteractions(ratingCounters);
+    }
+
+    @Test
+    public void addAllToParentResource_nullParentId_reject() throws Exception {
+
+        final BlogPostRating blogPostRating = BlogPostRating.BlogPostRatingBuilder.aBlogPostRating().withId(ID).withBlogPostId(null) // Null parent id
+                .withRating(RATING).withUserId(USER).build();
+
+        // Do test
+        expectedException.expect(NullPointerException.class);
+        daoUnderTest.addAllToParentResource(Collections.singletonList(blogPostRating));
     }
 
     @Test
@@ -126,4 +268,77 @@ public class BlogPostRatingDaoTest {
         daoUnderTest.addToParentResource(blogPostRating);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void getSummariesByParentIds_oneWithoutRatings_countZero() throws Exception {
+
+        // Mocks - a bucket for the post with ratings, holding its stats and a bucket per score
+        final Stats stats = Mockito.mock(Stats.class);
+        when(stats.getCount()).thenReturn(2L);
+        when(stats.getAvg()).thenReturn(4.5);
+        when(stats.getMin()).thenReturn(4.0);
+        when(stats.getMax()).thenReturn(5.0);
+        final Terms histogram = Mockito.mock(Terms.class);
+        final Terms.Bucket four = Mockito.mock(Terms.Bucket.class);
+        when(four.getKeyAsNumber()).thenReturn(4L);
+        when(four.getDocCount()).thenReturn(1L);
+        final Terms.Bucket five = Mockito.mock(Terms.Bucket.class);
+        when(five.getKeyAsNumber()).thenReturn(5L);
+        when(five.getDocCount()).thenReturn(1L);
+        doReturn(Arrays.asList(four, five)).when(histogram).getBuckets();
+        final Aggregations postAggregations = Mockito.mock(Aggregations.class);
+        when(postAggregations.get("stats")).thenReturn(stats);
+        when(postAggregations.get("histogram")).thenReturn(histogram);
+
+        final Terms.Bucket post = Mockito.mock(Terms.Bucket.class);
+        when(post.getKeyAsString()).thenReturn(PARENT_ID);
+        when(post.getAggregations()).thenReturn(postAggregations);
+        final Terms posts = Mockito.mock(Terms.class);
+        doReturn(Collections.singletonList(post)).when(posts).getBuckets();
+        final Aggregations aggregations = Mockito.mock(Aggregations.class);
+        when(aggregations.get("posts")).thenReturn(posts);
+        final SearchResponse response = Mockito.mock(SearchResponse.class);
+        when(response.getAggregations()).thenReturn(aggregations);
+        when(elasticsearchClient.getAll(anyString(), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.of(response)));
+
+        // Do test
+        final Map<String, RatingSummary> summaries = daoUnderTest.getSummariesByParentIds(Arrays.asList("other", PARENT_ID)).join();
+
+        // Check response - in order asked for
+        assertThat(summaries.keySet().iterator().next(), is("other"));
+        assertThat(summaries.get("other").getCount(), is(0L));
+        assertThat(summaries.get("other").getHistogram().get(5), is(0L));
+        final RatingSummary summary = summaries.get(PARENT_ID);
+        assertThat(summary.getCount(), is(2L));
+        assertThat(summary.getAverage(), is(4.5));
+        assertThat(summary.getMin(), is(4));
+        assertThat(summary.getMax(), is(5));
+        assertThat(summary.getHistogram().get(1), is(0L));
+        assertThat(summary.getHistogram().get(4), is(1L));
+
+        // Aggregations only - no ratings fetched
+        final ArgumentCaptor<SearchQuery> captor = ArgumentCaptor.forClass(SearchQuery.class);
+        verify(elasticsearchClient).getAll(anyString(), any(), captor.capture());
+        assertThat(captor.getValue().getSize(), is(0));
+        assertThat(captor.getValue().getAggregations().size(), is(1));
+    }
+
+    @Test
+    public void getTopRated_sameRankingTwice_searchOnce() throws Exception {
+
+        when(elasticsearchClient.getAll(anyString(), any(), any(SearchQuery.class))).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+        final TopRatedFilter filter = TopRatedFilter.TopRatedFilterBuilder.aTopRatedFilter()
+                .withBy(TopRatedFilter.RankBy.RATING_COUNT).withWindow(Duration.ofHours(24)).withSize(50).build();
+
+        // Do test
+        final List<RatingSummary> first = daoUnderTest.getTopRated(filter).join();
+        final List<RatingSummary> second = daoUnderTest.getTopRated(filter).join();
+
+        // Check response
+        assertThat(first.isEmpty(), is(true));
+        assertThat(second.isEmpty(), is(true));
+        final ArgumentCaptor<SearchQuery> captor = ArgumentCaptor.forClass(SearchQuery.class);
+        verify(elasticsearchClient, times(1)).getAll(anyString(), any(), captor.capture());
+        assertThat(captor.getValue().getSize(), is(0));
+        assertThat(((TermsAggregationBuilder) captor.getValue().getAggregations().get(0)).size(), is(50));
+    }
+}
@@ -0,0 +1,154 @@
+package com.forgerock.microblog.dao;
+
+import com.forgerock.microblog.configuration.ApplicationProperties;
+import com.forgerock.microblog.exception.ServiceUnavailableException;
+import com.forgerock.microblog.model.BlogPost;
+import com.forgerock.microblog.model.BulkResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class BlogPostWriteQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @InjectMocks
+    private BlogPostWriteQueue queueUnderTest;
+
+    @Mock
+    private BlogPostDao blogPostDao;
+
+    @Spy
+    private ApplicationProperties applicationProperties = new ApplicationProperties();
+
+    @Before
+    public void startup() {
+
+        MockitoAnnotations.initMocks(this);
+        applicationProperties.getWriteBehind().setEnabled(true);
+        applicationProperties.getWriteBehind().setJournalDir(folder.getRoot().getPath());
+        applicationProperties.getWriteBehind().setDrainTimeoutSeconds(1);
+    }
+
+    @After
+    public void cleanUp() {
+
+        queueUnderTest.cleanUp();
+    }
+
+    @Test
+    public void submit_writtenInBackground() throws Exception {
+
+        when(blogPostDao.createAll(any())).thenReturn(CompletableFuture.completedFuture(new BulkResult(Collections.singletonList(
+                new BulkResult.Item("1", 201, null)))));
+        queueUnderTest.init();
+
+        queueUnderTest.submit(aBlogPost("1"));
+
+        final ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        verify(blogPostDao, timeout(5000)).createAll(captor.capture());
+        assertThat(captor.getValue(), contains(aBlogPost("1")));
+    }
+
+    @Test
+    public void submit_queueFull_ServiceUnavailable() throws Exception {
+
+        applicationProperties.getWriteBehind().setQueueCapacity(1);
+        // Writer waits on the first post while the next fills the queue
+        when(blogPostDao.createAll(any())).thenReturn(new CompletableFuture<>());
+        queueUnderTest.init();
+        queueUnderTest.submit(aBlogPost("1"));
+        verify(blogPostDao, timeout(5000)).createAll(any());
+        queueUnderTest.submit(aBlogPost("2"));
+
+        try {
+            queueUnderTest.submit(aBlogPost("3"));
+        }
+        catch (ServiceUnavailableException e) {
+            assertThat(queueUnderTest.size(), is(1));
+            return;
+        }
+        throw new AssertionError("Expected ServiceUnavailableException");
+    }
+
+    @Test
+    public void write_itemRejectedByBusyEs_writeItAgain() throws Exception {
+
+        when(blogPostDao.createAll(any()))
+                .thenReturn(CompletableFuture.completedFuture(new BulkResult(Arrays.asList(
+                        new BulkResult.Item("1", 201, null),
+                        new BulkResult.Item("2", 429, "es_rejected_execution_exception"),
+                        new BulkResult.Item("3", 400, "mapper_parsing_exception")))))
+                .thenReturn(CompletableFuture.completedFuture(new BulkResult(Collections.singletonList(
+                        new BulkResult.Item("2", 201, null)))));
+
+        queueUnderTest.write(Arrays.asList(
+                new BlogPostWriteQueue.Queued(aBlogPost("1"), -1),
+                new BlogPostWriteQueue.Queued(aBlogPost("2"), -1),
+                new BlogPostWriteQueue.Queued(aBlogPost("3"), -1)));
+
+        final ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        verify(blogPostDao, times(2)).createAll(captor.capture());
+        assertThat(captor.getAllValues().get(1), contains(aBlogPost("2")));
+    }
+
+    @Test
+    public void write_itemAlreadyWritten_notWrittenAgain() throws Exception {
+
+        // Replayed from the journal after the post was written
+        when(blogPostDao.createAll(any())).thenReturn(CompletableFuture.completedFuture(new BulkResult(Arrays.asList(
+                new BulkResult.Item("1", 409, "version_conflict_engine_exception"),
+                new BulkResult.Item("2", 201, null)))));
+
+        queueUnderTest.write(Arrays.asList(
+                new BlogPostWriteQueue.Queued(aBlogPost("1"), -1),
+                new BlogPostWriteQueue.Queued(aBlogPost("2"), -1)));
+
+        verify(blogPostDao, times(1)).createAll(any());
+    }
+
+    @Test
+    public void init_journalLeftByLastRun_writeItsPosts() throws Exception {
+
+        // Stops before the post is written
+        when(blogPostDao.createAll(any())).thenReturn(new CompletableFuture<>());
+        applicationProperties.getWriteBehind().setDrainTimeoutSeconds(0);
+        queueUnderTest.init();
+        queueUnderTest.submit(aBlogPost("1"));
+        verify(blogPostDao, timeout(5000)).createAll(any());
+        queueUnderTest.cleanUp();
+
+        reset(blogPostDao);
+        when(blogPostDao.createAll(any())).thenReturn(CompletableFuture.completedFuture(new BulkResult(Collections.singletonList(
+                new BulkResult.Item("1", 201, null)))));
+        queueUnderTest.init();
+
+        final ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        verify(blogPostDao, timeout(5000)).createAll(captor.capture());
+        assertThat(captor.getValue(), contains(aBlogPost("1")));
+    }
+
+    private static BlogPost aBlogPost(final String id) {
+
+        return BlogPost.BlogPostBuilder.aBlogPost().withId(id).withBody("Text" + id).withUserId("user1").build();
+    }
+}
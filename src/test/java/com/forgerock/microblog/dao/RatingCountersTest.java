@@ -0,0 +1,211 @@
+package com.forgerock.microblog.dao;
+
+import com.forgerock.microblog.configuration.ApplicationProperties;
+import com.forgerock.microblog.model.RatingSummary;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class RatingCountersTest {
+
+    private static final String ID = "hjgjhgjhgjh";
+
+    @InjectMocks
+    private RatingCounters countersUnderTest;
+
+    @Mock
+    private RatingSummaryDao ratingSummaryDao;
+
+    @Mock
+    private BlogPostRatingDao blogPostRatingDao;
+
+    @Spy
+    private ApplicationProperties applicationProperties = new ApplicationProperties();
+
+    @Before
+    public void startup() {
+
+        MockitoAnnotations.initMocks(this);
+        // No ratings made before they were counted
+        when(blogPostRatingDao.getSummariesByParentIds(any())).thenAnswer(invocation -> {
+            final Map<String, RatingSummary> summaries = new HashMap<>();
+            for (Object id : (Collection<?>) invocation.getArguments()[0]) {
+                summaries.put((String) id, RatingSummary.RatingSummaryBuilder.aRatingSummary().withBlogPostId((String) id).build());
+            }
+            return CompletableFuture.completedFuture(summaries);
+        });
+    }
+
+    @Test
+    public void flush_addsCountsSinceLastFlush() throws Exception {
+
+        when(ratingSummaryDao.addCounts(any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(anItem(ID, false))));
+
+        countersUnderTest.record(ID, 5);
+        countersUnderTest.record(ID, 5);
+        countersUnderTest.record(ID, 1);
+        countersUnderTest.flush().join();
+        countersUnderTest.record(ID, 3);
+        countersUnderTest.flush().join();
+        countersUnderTest.flush().join();
+
+        final ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+        verify(ratingSummaryDao, times(2)).addCounts(captor.capture(), any());
+        assertThat(captor.getAllValues().get(0).get(ID), is(new long[] {1, 0, 0, 0, 2}));
+        assertThat(captor.getAllValues().get(1).get(ID), is(new long[] {0, 0, 1, 0, 0}));
+    }
+
+    @Test
+    public void flush_noSummary_seededFromRatingsMadeBefore() throws Exception {
+
+        when(blogPostRatingDao.getSummariesByParentIds(any())).thenReturn(CompletableFuture.completedFuture(
+                Collections.singletonMap(ID, aggregated(ID, 5, 3L))));
+        when(ratingSummaryDao.addCounts(any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.singletonList(anItem(ID, false))));
+
+        // Two 5s made before ratings were counted, then this one
+        countersUnderTest.record(ID, 5);
+        countersUnderTest.flush().join();
+        countersUnderTest.record(ID, 5);
+        countersUnderTest.flush().join();
+
+        final ArgumentCaptor<Map> deltas = ArgumentCaptor.forClass(Map.class);
+        final ArgumentCaptor<Map> seeds = ArgumentCaptor.forClass(Map.class);
+        verify(ratingSummaryDao, times(2)).addCounts(deltas.capture(), seeds.capture());
+        assertThat(deltas.getAllValues().get(0).get(ID), is(new long[] {0, 0, 0, 0, 1}));
+        assertThat(seeds.getAllValues().get(0).get(ID), is(new long[] {0, 0, 0, 0, 2}));
+        // Seeded once, the summary exists after that
+        assertThat(seeds.getAllValues().get(1).isEmpty(), is(true));
+        verify(blogPostRatingDao, times(1)).getSummariesByParentIds(any());
+    }
+
+    @Test
+    public void flush_itemFailed_addedAgainNextTime() throws Exception {
+
+        when(ratingSummaryDao.addCounts(any(), any()))
+                .thenReturn(CompletableFuture.completedFuture(Collections.singletonList(anItem(ID, true))))
+                .thenReturn(CompletableFuture.completedFuture(Collections.singletonList(anItem(ID, false))));
+
+        countersUnderTest.record(ID, 4);
+        countersUnderTest.flush().join();
+        countersUnderTest.record(ID, 4);
+        countersUnderTest.flush().join();
+
+        final ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+        verify(ratingSummaryDao, times(2)).addCounts(captor.capture(), any());
+        assertThat(captor.getAllValues().get(1).get(ID), is(new long[] {0, 0, 0, 2, 0}));
+    }
+
+    @Test
+    public void getSummaries_storedPlusUnflushed_readOnce() throws Exception {
+
+        final Map<String, long[]> stored = new HashMap<>();
+        stored.put(ID, new long[] {0, 1, 0, 0, 1});
+        when(ratingSummaryDao.getCounts(any())).thenReturn(CompletableFuture.completedFuture(stored));
+
+        countersUnderTest.record(ID, 5);
+        final RatingSummary first = countersUnderTest.getSummary(ID).join();
+        countersUnderTest.record(ID, 3);
+        final RatingSummary second = countersUnderTest.getSummary(ID).join();
+
+        assertThat(first.getCount(), is(3L));
+        assertThat(first.getAverage(), is(4.0));
+        assertThat(first.getMin(), is(2));
+        assertThat(first.getMax(), is(5));
+        assertThat(first.getHistogram().get(5), is(2L));
+        assertThat(second.getCount(), is(4L));
+        assertThat(second.getHistogram().get(3), is(1L));
+        verify(ratingSummaryDao, times(1)).getCounts(any());
+    }
+
+    @Test
+    public void getSummaries_noSummary_recountedFromRatings() throws Exception {
+
+        when(ratingSummaryDao.getCounts(any())).thenReturn(CompletableFuture.completedFuture(new HashMap<>()));
+        when(blogPostRatingDao.getSummariesByParentIds(any())).thenReturn(CompletableFuture.completedFuture(
+                Collections.singletonMap(ID, aggregated(ID, 4, 2L))));
+
+        final RatingSummary summary = countersUnderTest.getSummary(ID).join();
+
+        assertThat(summary.getCount(), is(2L));
+        assertThat(summary.getAverage(), is(4.0));
+        assertThat(summary.getHistogram().get(4), is(2L));
+    }
+
+    @Test
+    public void getSummaries_noSummary_countZeroInOrderRequested() throws Exception {
+
+        when(ratingSummaryDao.getCounts(any())).thenReturn(CompletableFuture.completedFuture(new HashMap<>()));
+
+        final Map<String, RatingSummary> summaries = countersUnderTest.getSummaries(Arrays.asList("b", "a", "b")).join();
+
+        assertThat(summaries.keySet(), contains("b", "a"));
+        assertThat(summaries.get("a").getCount(), is(0L));
+        assertThat(summaries.get("a").getAverage(), is(nullValue()));
+    }
+
+    @Test
+    public void getSummaries_notRated_noCountersAndReadOnce() throws Exception {
+
+        final Map<String, long[]> stored = new HashMap<>();
+        stored.put("a", new long[] {0, 0, 1, 0, 0});
+        when(ratingSummaryDao.getCounts(any())).thenReturn(CompletableFuture.completedFuture(stored));
+
+        countersUnderTest.getSummaries(Arrays.asList("a", "b")).join();
+        final Map<String, RatingSummary> summaries = countersUnderTest.getSummaries(Arrays.asList("a", "b")).join();
+
+        assertThat(countersUnderTest.size(), is(0));
+        assertThat(summaries.get("a").getCount(), is(1L));
+        assertThat(summaries.get("b").getCount(), is(0L));
+        verify(ratingSummaryDao, times(1)).getCounts(any());
+    }
+
+    @Test
+    public void getSummaries_ratedAfterRead_readAgainWithRating() throws Exception {
+
+        final Map<String, long[]> stored = new HashMap<>();
+        stored.put(ID, new long[] {0, 0, 1, 0, 0});
+        when(ratingSummaryDao.getCounts(any())).thenReturn(CompletableFuture.completedFuture(stored));
+
+        countersUnderTest.getSummary(ID).join();
+        countersUnderTest.record(ID, 5);
+        final RatingSummary summary = countersUnderTest.getSummary(ID).join();
+
+        assertThat(summary.getCount(), is(2L));
+        assertThat(summary.getHistogram().get(5), is(1L));
+        verify(ratingSummaryDao, times(2)).getCounts(any());
+    }
+
+    private static RatingSummary aggregated(final String id, final int rating, final long count) {
+
+        return RatingSummary.RatingSummaryBuilder.aRatingSummary().withBlogPostId(id).withCount(count).withRatingCount(rating, count).build();
+    }
+
+    private static BulkItemResponse anItem(final String id, final boolean failed) {
+
+        final BulkItemResponse item = Mockito.mock(BulkItemResponse.class);
+        when(item.getId()).thenReturn(id);
+        when(item.isFailed()).thenReturn(failed);
+        when(item.getFailureMessage()).thenReturn(failed ? "rejected" : null);
+        return item;
+    }
+}
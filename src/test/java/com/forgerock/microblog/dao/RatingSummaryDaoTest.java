@@ -0,0 +1,81 @@
+package com.forgerock.microblog.dao;
+
+import com.forgerock.microblog.es.ElasticsearchClient;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.script.Script;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class RatingSummaryDaoTest {
+
+    private static final String ID = "hjgjhgjhgjh";
+
+    @InjectMocks
+    private RatingSummaryDao daoUnderTest;
+
+    @Mock
+    private ElasticsearchClient elasticsearchClient;
+
+    @Before
+    public void startup() {
+
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void getCounts_missingScoresAndSummaries_zero() throws Exception {
+
+        final Map<String, Object> counts = new HashMap<>();
+        counts.put("2", 3);
+        counts.put("5", 7L);
+        final GetResponse found = Mockito.mock(GetResponse.class);
+        when(found.getId()).thenReturn(ID);
+        when(found.getSourceAsMap()).thenReturn(Collections.singletonMap("counts", counts));
+        when(elasticsearchClient.multiGet(anyString(), anyString(), eq(Arrays.asList(ID, "other"))))
+                .thenReturn(CompletableFuture.completedFuture(Arrays.asList(Optional.of(found), Optional.empty())));
+
+        final Map<String, long[]> result = daoUnderTest.getCounts(Arrays.asList(ID, "other", ID)).join();
+
+        assertThat(result.size(), is(1));
+        assertThat(result.get(ID), is(new long[] {0, 3, 0, 0, 7}));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void addCounts_onlyNonZeroDeltas() throws Exception {
+
+        when(elasticsearchClient.bulkScriptedUpsert(anyString(), anyString(), any(), any())).thenReturn(CompletableFuture.completedFuture(Collections.emptyList()));
+
+        daoUnderTest.addCounts(Collections.singletonMap(ID, new long[] {1, 0, 0, 0, 2})).join();
+
+        final ArgumentCaptor<Map> scripts = ArgumentCaptor.forClass(Map.class);
+        final ArgumentCaptor<Function> upsert = ArgumentCaptor.forClass(Function.class);
+        verify(elasticsearchClient).bulkScriptedUpsert(eq("microblog"), eq("ratingsummary"), scripts.capture(), upsert.capture());
+        final Script script = (Script) scripts.getValue().get(ID);
+        final Map<String, Long> deltas = (Map<String, Long>) script.getParams().get("deltas");
+        assertThat(deltas.size(), is(2));
+        assertThat(deltas.get("1"), is(1L));
+        assertThat(deltas.get("5"), is(2L));
+        assertThat(((Map<String, Object>) upsert.getValue().apply(ID)).get("blogPostId"), is(ID));
+    }
+}
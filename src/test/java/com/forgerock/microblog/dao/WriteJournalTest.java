@@ -0,0 +1,73 @@
+package com.forgerock.microblog.dao;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.is;
+
+public class WriteJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recover_notCommitted_returnEntriesInOrder() throws Exception {
+
+        final WriteJournal journal = new WriteJournal(folder.getRoot().toPath(), true);
+        journal.recover();
+        journal.sync(journal.append(bytes("{\"id\":\"1\"}")).getSeq());
+        journal.sync(journal.append(bytes("{\"id\":\"2\"}")).getSeq());
+        journal.close();
+
+        final WriteJournal reopened = new WriteJournal(folder.getRoot().toPath(), true);
+        final List<String> entries = reopened.recover().stream()
+                .map(entry -> new String(entry.getData(), StandardCharsets.UTF_8))
+                .collect(Collectors.toList());
+
+        assertThat(entries, contains("{\"id\":\"1\"}", "{\"id\":\"2\"}"));
+    }
+
+    @Test
+    public void close_allCommitted_deleteSegments() throws Exception {
+
+        final WriteJournal journal = new WriteJournal(folder.getRoot().toPath(), false);
+        journal.recover();
+        journal.append(bytes("{\"id\":\"1\"}"));
+        final long last = journal.append(bytes("{\"id\":\"2\"}")).getSeq();
+        journal.committed(last);
+        journal.close();
+
+        assertThat(folder.getRoot().listFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void committed_fullSegments_deleteOnlyThose() throws Exception {
+
+        final WriteJournal journal = new WriteJournal(folder.getRoot().toPath(), false);
+        journal.recover();
+        long seq = -1;
+        for (int i = 0; i <= WriteJournal.SEGMENT_ENTRIES; i++) {
+            seq = journal.append(bytes("{}")).getSeq();
+        }
+        assertThat(folder.getRoot().listFiles().length, is(2));
+
+        journal.committed(seq - 1);
+
+        final File[] files = folder.getRoot().listFiles();
+        assertThat(files.length, is(1));
+        assertThat(files[0].getName(), is("segment-1.ndjson"));
+    }
+
+    private static byte[] bytes(final String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,66 @@
+package com.forgerock.microblog.es;
+
+import com.forgerock.microblog.configuration.ApplicationProperties;
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class DocumentCacheTest {
+
+    private final DocumentCache<String> cache = new DocumentCache<>(new ApplicationProperties.CacheSpec(10, 60), new ApplicationProperties.CacheSpec(10, 60));
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private Function<String, CompletableFuture<Optional<String>>> returning(final CompletableFuture<Optional<String>> result) {
+
+        return id -> {
+            loads.incrementAndGet();
+            return result;
+        };
+    }
+
+    @Test
+    public void get_inFlight_shareOneLoad() throws Exception {
+
+        final CompletableFuture<Optional<String>> pending = new CompletableFuture<>();
+
+        final CompletableFuture<Optional<String>> first = cache.get("1", returning(pending));
+        final CompletableFuture<Optional<String>> second = cache.get("1", returning(pending));
+        pending.complete(Optional.of("doc"));
+
+        assertThat(loads.get(), is(1));
+        assertThat(first.join(), is(Optional.of("doc")));
+        assertThat(second.join(), is(Optional.of("doc")));
+    }
+
+    @Test
+    public void get_failed_notCached() throws Exception {
+
+        final CompletableFuture<Optional<String>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException());
+
+        cache.get("1", returning(failed));
+        final Optional<String> resp = cache.get("1", returning(CompletableFuture.completedFuture(Optional.of("doc")))).join();
+
+        assertThat(loads.get(), is(2));
+        assertThat(resp, is(Optional.of("doc")));
+    }
+
+    @Test
+    public void invalidate_loadAgain() throws Exception {
+
+        cache.get("1", returning(CompletableFuture.completedFuture(Optional.empty())));
+        cache.invalidate("1");
+        final Optional<String> resp = cache.get("1", returning(CompletableFuture.completedFuture(Optional.of("doc")))).join();
+
+        assertThat(loads.get(), is(2));
+        assertThat(resp, is(Optional.of("doc")));
+        assertThat(cache.missingSize(), is(0L));
+    }
+}
@@ -0,0 +1,112 @@
+package com.forgerock.microblog.es;
+
+import com.forgerock.microblog.configuration.ApplicationProperties;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
+
+public class ElasticsearchClientTest {
+
+    @Test
+    public void toTransportAddress_host_defaultPort() throws Exception {
+
+        final InetSocketTransportAddress address = ElasticsearchClient.toTransportAddress(" 127.0.0.1 ");
+
+        assertThat(address.address().getAddress(), is(InetAddress.getByName("127.0.0.1")));
+        assertThat(address.getPort(), is(9300));
+    }
+
+    @Test
+    public void toTransportAddress_hostAndPort_thatPort() throws Exception {
+
+        final InetSocketTransportAddress address = ElasticsearchClient.toTransportAddress("127.0.0.1:9301");
+
+        assertThat(address.address().getAddress(), is(InetAddress.getByName("127.0.0.1")));
+        assertThat(address.getPort(), is(9301));
+    }
+
+    @Test
+    public void toTransportAddress_bracketedIpv6AndPort_thatPort() throws Exception {
+
+        final InetSocketTransportAddress address = ElasticsearchClient.toTransportAddress("[::1]:9301");
+
+        assertThat(address.address().getAddress(), is(InetAddress.getByName("::1")));
+        assertThat(address.getPort(), is(9301));
+    }
+
+    @Test
+    public void toTransportAddress_bracketedIpv6_defaultPort() throws Exception {
+
+        final InetSocketTransportAddress address = ElasticsearchClient.toTransportAddress("[::1]");
+
+        assertThat(address.address().getAddress(), is(InetAddress.getByName("::1")));
+        assertThat(address.getPort(), is(9300));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void toTransportAddress_ipv6WithoutBrackets_rejected() throws Exception {
+
+        ElasticsearchClient.toTransportAddress("::1:9300");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void toTransportAddress_blank_rejected() throws Exception {
+
+        ElasticsearchClient.toTransportAddress("  ");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void toTransportAddress_portOnly_rejected() throws Exception {
+
+        ElasticsearchClient.toTransportAddress(":9300");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void toTransportAddress_portNotNumber_rejected() throws Exception {
+
+        ElasticsearchClient.toTransportAddress("127.0.0.1:transport");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void toTransportAddress_portOutOfRange_rejected() throws Exception {
+
+        ElasticsearchClient.toTransportAddress("127.0.0.1:65536");
+    }
+
+    @Test
+    public void transportNodes_noNodes_hostAndPort() throws Exception {
+
+        final ApplicationProperties.Elasticsearch elasticsearch = new ApplicationProperties.Elasticsearch();
+        elasticsearch.setHost("localhost");
+        elasticsearch.setPort(9301);
+
+        assertThat(ElasticsearchClient.transportNodes(elasticsearch), contains("localhost:9301"));
+    }
+
+    @Test
+    public void transportNodes_noNodesIpv6Host_bracketed() throws Exception {
+
+        final ApplicationProperties.Elasticsearch elasticsearch = new ApplicationProperties.Elasticsearch();
+        elasticsearch.setHost("::1");
+        elasticsearch.setPort(9301);
+
+        assertThat(ElasticsearchClient.transportNodes(elasticsearch), contains("[::1]:9301"));
+    }
+
+    @Test
+    public void transportNodes_nodes_hostAndPortIgnored() throws Exception {
+
+        final ApplicationProperties.Elasticsearch elasticsearch = new ApplicationProperties.Elasticsearch();
+        elasticsearch.setHost("localhost");
+        elasticsearch.setPort(9301);
+        elasticsearch.setNodes(Arrays.asList("es1:9300", "es2"));
+
+        assertThat(ElasticsearchClient.transportNodes(elasticsearch), contains("es1:9300", "es2"));
+    }
+}
@@ -0,0 +1,80 @@
+package com.forgerock.microblog.es;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class MonthlyPartitionsTest {
+
+    private final MonthlyPartitions partitions = new MonthlyPartitions("posts");
+
+    @Test
+    public void forDate_utcMonth() throws Exception {
+
+        // 2017-06-30T23:30:00-01:00 is July in UTC
+        assertThat(partitions.forDate(new Date(1498869000000L)), is("posts-2017.07"));
+        assertThat(partitions.getPattern(), is("posts-*"));
+    }
+
+    @Test
+    public void monthOf_otherIndex_empty() throws Exception {
+
+        assertThat(partitions.monthOf("posts-2017.06"), is(Optional.of(YearMonth.of(2017, 6))));
+        assertThat(partitions.monthOf("posts"), is(Optional.empty()));
+        assertThat(partitions.monthOf("ratings-2017.06"), is(Optional.empty()));
+    }
+
+    @Test
+    public void forRange_notListedYet_useAlias() throws Exception {
+
+        assertThat(partitions.forRange("2017-06-01T00:00:00.000Z", null), is(Collections.singletonList("posts")));
+    }
+
+    @Test
+    public void forRange_knownPartitions_onlyThoseInRange() throws Exception {
+
+        partitions.setKnown(Arrays.asList("posts-2017.05", "posts-2017.06", "posts-2017.07", "other"));
+
+        assertThat(partitions.forRange("2017-06-11T15:06:24.627+01:00", "2017-07-01"), is(Arrays.asList("posts-2017.06", "posts-2017.07")));
+        assertThat(partitions.forRange(null, "1496275200000"), is(Arrays.asList("posts-2017.05", "posts-2017.06")));
+    }
+
+    @Test
+    public void forRange_noPartitionInRange_empty() throws Exception {
+
+        partitions.setKnown(Arrays.asList("posts-2017.05", "posts-2017.06"));
+
+        assertThat(partitions.forRange("2010-01-01", "2016-12-31"), is(Collections.emptyList()));
+        assertThat(partitions.forRange("2017-06-30", "2017-05-01"), is(Collections.emptyList()));
+    }
+
+    @Test
+    public void around_nearEndOfMonth_bothMonths() throws Exception {
+
+        partitions.setKnown(Arrays.asList("posts-2017.05", "posts-2017.06", "posts-2017.07"));
+
+        // 2017-06-30T23:30:00Z
+        assertThat(partitions.around(Instant.ofEpochMilli(1498865400000L), Duration.ofHours(1)), is(Arrays.asList("posts-2017.06", "posts-2017.07")));
+        // 2017-06-11T15:20:00Z
+        assertThat(partitions.around(Instant.ofEpochMilli(1497194400000L), Duration.ofHours(1)), is(Collections.singletonList("posts-2017.06")));
+        assertThat(partitions.around(Instant.ofEpochMilli(1420070400000L), Duration.ofHours(1)), is(Collections.emptyList()));
+    }
+
+    @Test
+    public void forRange_unreadableDate_unbounded() throws Exception {
+
+        partitions.setKnown(Collections.singletonList("posts-2017.05"));
+
+        assertThat(partitions.forRange("now-1d", null), is(Collections.singletonList("posts")));
+        assertThat(partitions.forRange("now-1d", "2017-05-31").get(0), is("posts-2017.05"));
+    }
+}
@@ -0,0 +1,87 @@
+package com.forgerock.microblog.es;
+
+import com.forgerock.microblog.model.BlogPost;
+import com.forgerock.microblog.model.DateTimeConstants;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Test;
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class SourceCodecTest {
+
+    // Documents are written with GSON
+    private static final Gson GSON = new GsonBuilder()
+            .setDateFormat(DateTimeConstants.ISO_OFFSET_DATE_TIME)
+            .create();
+
+    private final SourceCodec<BlogPost> codec = new SourceCodec<>(BlogPost.class);
+
+    @Test
+    public void decode_gsonDocument_sameBlogPost() throws Exception {
+
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withId("1").withBody("Steal the moon").withUserId("gru")
+                .withTimestamp(new Date(1497194400123L)).build();
+
+        assertThat(codec.decode(new BytesArray(GSON.toJson(blogPost))), is(blogPost));
+    }
+
+    @Test
+    public void encode_eachFormat_decodeToSameBlogPost() throws Exception {
+
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withId("1").withBody("Steal the moon").withUserId("gru")
+                .withTimestamp(new Date(1497194400123L)).build();
+
+        for (XContentType format : new XContentType[] { XContentType.JSON, XContentType.SMILE, XContentType.CBOR }) {
+            final byte[] source = codec.encode(blogPost, format);
+
+            // ES must recognise the format to index it
+            assertThat(XContentFactory.xContentType(source), is(format));
+            assertThat(codec.decode(new BytesArray(source)), is(blogPost));
+        }
+    }
+
+    @Test
+    public void encode_partialBlogPost_omitNullFields() throws Exception {
+
+        final BlogPost blogPost = BlogPost.BlogPostBuilder.aBlogPost().withId("1").withBody("Steal the moon").build();
+
+        assertThat(new String(codec.encode(blogPost, XContentType.JSON), StandardCharsets.UTF_8), is("{\"id\":\"1\",\"body\":\"Steal the moon\"}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_unsupportedFormat_IllegalArgumentException() throws Exception {
+
+        codec.encode(BlogPost.BlogPostBuilder.aBlogPost().withId("1").build(), XContentType.YAML);
+    }
+
+    @Test
+    public void decode_sliceOfLargerBuffer_onlyReadSlice() throws Exception {
+
+        final byte[] buffer = "xx{\"id\":\"1\",\"extra\":true}yy".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(codec.decode(new BytesArray(buffer, 2, buffer.length - 4)).getId(), is("1"));
+    }
+
+    @Test
+    public void decode_noSource_null() throws Exception {
+
+        assertThat(codec.decode(null), is(nullValue()));
+        assertThat(codec.decode(new BytesArray(new byte[0])), is(nullValue()));
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void decode_invalidJson_UncheckedIOException() throws Exception {
+
+        codec.decode(new BytesArray("{\"id\":"));
+    }
+}
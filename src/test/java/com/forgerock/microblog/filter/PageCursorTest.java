@@ -0,0 +1,52 @@
+package com.forgerock.microblog.filter;
+
+import com.forgerock.microblog.exception.BadRequestException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class PageCursorTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void encodeThenParse_keepValueTypes() throws Exception {
+
+        final String token = new PageCursor(new Object[] { 1497194400000L, "blogpost#abc", 2.5D }).encode();
+        final PageCursor cursor = PageCursor.parse(token);
+        assertThat(cursor.getSortValues(), is(new Object[] { 1497194400000L, "blogpost#abc", 2.5D }));
+    }
+
+    @Test
+    public void encodeThenParse_nullValue_keepNull() throws Exception {
+
+        final String token = new PageCursor(new Object[] { null, "blogpost#abc" }).encode();
+        final PageCursor cursor = PageCursor.parse(token);
+        assertThat(cursor.getSortValues(), is(new Object[] { null, "blogpost#abc" }));
+    }
+
+    @Test
+    public void encode_urlSafe() throws Exception {
+
+        final String token = new PageCursor(new Object[] { "??>>??" }).encode();
+        assertThat(token.matches("[A-Za-z0-9_-]+"), is(true));
+    }
+
+    @Test
+    public void parseGarbage_BadRequest() throws Exception {
+
+        expectedException.expect(BadRequestException.class);
+        PageCursor.parse("not a cursor!");
+    }
+
+    @Test
+    public void parseNotAnArray_BadRequest() throws Exception {
+
+        expectedException.expect(BadRequestException.class);
+        PageCursor.parse("eyJhIjoxfQ"); // {"a":1}
+    }
+}
@@ -0,0 +1,62 @@
+package com.forgerock.microblog.filter;
+
+import com.forgerock.microblog.configuration.ApplicationProperties;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
+
+public class SessionTokenSignerTest {
+
+    @InjectMocks
+    private SessionTokenSigner signerUnderTest;
+
+    @Spy
+    private ApplicationProperties applicationProperties = new ApplicationProperties();
+
+    @Before
+    public void startup() {
+
+        MockitoAnnotations.initMocks(this);
+        applicationProperties.getConsistency().setSessionTokenKey("secret");
+        signerUnderTest.init();
+    }
+
+    @Test
+    public void encodeThenParse_keepWrites() throws Exception {
+
+        final String token = signerUnderTest.encode(SessionToken.empty().withWrite("a", 1000L).withWrite("b", 2000L));
+        assertThat(signerUnderTest.parse(token).getWrittenSince(0), contains("a", "b"));
+        assertThat(token.matches("[A-Za-z0-9_.-]+"), is(true));
+    }
+
+    @Test
+    public void parseSignedWithOtherKey_empty() throws Exception {
+
+        // Signed by an instance with a different key
+        applicationProperties.getConsistency().setSessionTokenKey("other secret");
+        signerUnderTest.init();
+        final String token = signerUnderTest.encode(SessionToken.empty().withWrite("a", 1000L));
+
+        applicationProperties.getConsistency().setSessionTokenKey("secret");
+        signerUnderTest.init();
+        assertThat(signerUnderTest.parse(token).getWrittenSince(0).isEmpty(), is(true));
+    }
+
+    @Test
+    public void parseUnsigned_empty() throws Exception {
+
+        assertThat(signerUnderTest.parse(SessionToken.empty().withWrite("a", 1000L).encode()).getWrittenSince(0).isEmpty(), is(true));
+    }
+
+    @Test
+    public void parseEmpty_noWrites() throws Exception {
+
+        assertThat(signerUnderTest.parse(null).getWrittenSince(0).isEmpty(), is(true));
+    }
+}
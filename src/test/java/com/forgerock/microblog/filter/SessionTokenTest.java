@@ -0,0 +1,60 @@
+package com.forgerock.microblog.filter;
+
+import com.forgerock.microblog.exception.BadRequestException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.core.Is.is;
+
+public class SessionTokenTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void encodeThenParse_keepWrites() throws Exception {
+
+        final String token = SessionToken.empty().withWrite("a", 1000L).withWrite("b", 2000L).encode();
+        final SessionToken session = SessionToken.parse(token);
+        assertThat(session.getWrittenSince(0), contains("a", "b"));
+        assertThat(session.getWrittenSince(1500L), contains("b"));
+        assertThat(token.matches("[A-Za-z0-9_-]+"), is(true));
+    }
+
+    @Test
+    public void withWrite_full_dropOldest() throws Exception {
+
+        SessionToken session = SessionToken.empty();
+        for (int i = 0; i <= SessionToken.MAX_WRITES; i++) {
+            session = session.withWrite(String.valueOf(i), i);
+        }
+        assertThat(session.getWrittenSince(0).size(), is(SessionToken.MAX_WRITES));
+        assertThat(session.getWrittenSince(0), not(hasItem("0")));
+    }
+
+    @Test
+    public void parseEmpty_noWrites() throws Exception {
+
+        assertThat(SessionToken.parse(null).getWrittenSince(0), is(empty()));
+    }
+
+    @Test
+    public void parseGarbage_BadRequest() throws Exception {
+
+        expectedException.expect(BadRequestException.class);
+        SessionToken.parse("not a token!");
+    }
+
+    @Test
+    public void parseNotAnObject_BadRequest() throws Exception {
+
+        expectedException.expect(BadRequestException.class);
+        SessionToken.parse("WzFd"); // [1]
+    }
+}
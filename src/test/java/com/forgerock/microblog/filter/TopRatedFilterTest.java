@@ -0,0 +1,42 @@
+package com.forgerock.microblog.filter;
+
+import com.forgerock.microblog.exception.BadRequestException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.Duration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class TopRatedFilterTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void parseWindow_eachUnit() throws Exception {
+
+        assertThat(TopRatedFilter.parseWindow("30s"), is(Duration.ofSeconds(30)));
+        assertThat(TopRatedFilter.parseWindow("90m"), is(Duration.ofMinutes(90)));
+        assertThat(TopRatedFilter.parseWindow("24h"), is(Duration.ofHours(24)));
+        assertThat(TopRatedFilter.parseWindow("7d"), is(Duration.ofDays(7)));
+        assertThat(TopRatedFilter.parseWindow(""), is(nullValue()));
+    }
+
+    @Test
+    public void parseWindow_zero_badRequest() throws Exception {
+
+        expectedException.expect(BadRequestException.class);
+        TopRatedFilter.parseWindow("0h");
+    }
+
+    @Test
+    public void parseRankBy_caseInsensitive() throws Exception {
+
+        assertThat(TopRatedFilter.RankBy.parse("RATINGCOUNT"), is(TopRatedFilter.RankBy.RATING_COUNT));
+        assertThat(TopRatedFilter.RankBy.parse("avgRating"), is(TopRatedFilter.RankBy.AVG_RATING));
+    }
+}
@@ -0,0 +1,131 @@
+package com.forgerock.microblog.id;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TimeOrderedIdGeneratorTest {
+
+    // 2017-06-11
+    private static final long NOW = 1497194400000L;
+
+    @Test
+    public void nextId_laterMillisecond_sortsAfter() throws Exception {
+
+        final AtomicLong clock = new AtomicLong(NOW);
+        final IdGenerator generator = new TimeOrderedIdGenerator(5, clock::get);
+
+        final String first = generator.nextId();
+        clock.addAndGet(1);
+        final String second = generator.nextId();
+
+        assertThat(first.length(), is(13));
+        assertThat(first.compareTo(second) < 0, is(true));
+    }
+
+    @Test
+    public void nextId_sequenceRunsOutInMillisecond_carryOnInOrder() throws Exception {
+
+        final IdGenerator generator = new TimeOrderedIdGenerator(5, () -> NOW);
+
+        final List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 3 * (TimeOrderedIdGenerator.MAX_SEQUENCE + 1); i++) {
+            ids.add(generator.nextId());
+        }
+
+        final List<String> sorted = new ArrayList<>(ids);
+        Collections.sort(sorted);
+        assertThat(sorted, is(ids));
+        assertThat(ids.stream().distinct().count(), is((long) ids.size()));
+    }
+
+    @Test
+    public void nextId_clockGoesBack_carryOnInOrder() throws Exception {
+
+        final AtomicLong clock = new AtomicLong(NOW);
+        final IdGenerator generator = new TimeOrderedIdGenerator(5, clock::get);
+
+        final String first = generator.nextId();
+        clock.addAndGet(-1000);
+        final String second = generator.nextId();
+
+        assertThat(first.compareTo(second) < 0, is(true));
+    }
+
+    @Test
+    public void nextId_sameMillisecondOtherNode_different() throws Exception {
+
+        assertThat(new TimeOrderedIdGenerator(1, () -> NOW).nextId().equals(new TimeOrderedIdGenerator(2, () -> NOW).nextId()), is(false));
+    }
+
+    @Test
+    public void nextId_manyThreads_allUnique() throws Exception {
+
+        final IdGenerator generator = new TimeOrderedIdGenerator(5);
+        final Set<String> ids = ConcurrentHashMap.newKeySet();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 10000; j++) {
+                        ids.add(generator.nextId());
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        assertThat(ids.size(), is(40000));
+    }
+
+    @Test
+    public void encode_sortsAsNumbers() throws Exception {
+
+        assertThat(TimeOrderedIdGenerator.encode(0), is("0000000000000"));
+        assertThat(TimeOrderedIdGenerator.encode(31), is("000000000000z"));
+        assertThat(TimeOrderedIdGenerator.encode(32), is("0000000000010"));
+        assertThat(TimeOrderedIdGenerator.encode(Long.MAX_VALUE), is("7zzzzzzzzzzzz"));
+    }
+
+    @Test
+    public void mintedAt_timeOfId() throws Exception {
+
+        final String id = new TimeOrderedIdGenerator(TimeOrderedIdGenerator.MAX_NODE_ID, () -> NOW).nextId();
+
+        assertThat(TimeOrderedIdGenerator.mintedAt(id), is(Optional.of(Instant.ofEpochMilli(NOW))));
+    }
+
+    @Test
+    public void mintedAt_notTimeOrdered_empty() throws Exception {
+
+        assertThat(TimeOrderedIdGenerator.mintedAt("38d566e9-7af0-4b77-ace4-cd35a2fea4ee"), is(Optional.empty()));
+        assertThat(TimeOrderedIdGenerator.mintedAt("000000000000u"), is(Optional.empty()));
+        assertThat(TimeOrderedIdGenerator.mintedAt("8000000000000"), is(Optional.empty()));
+        assertThat(TimeOrderedIdGenerator.mintedAt(null), is(Optional.empty()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_nodeIdTooHigh_reject() throws Exception {
+
+        new TimeOrderedIdGenerator(TimeOrderedIdGenerator.MAX_NODE_ID + 1);
+    }
+}